@@ -0,0 +1,396 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kenai.jbosh;
+
+import org.apache.http.*;
+import org.apache.http.client.*;
+import org.apache.http.conn.scheme.*;
+import org.apache.http.conn.ssl.*;
+import org.apache.http.impl.client.*;
+import org.apache.http.impl.conn.tsccm.*;
+import org.apache.http.params.*;
+import org.jitsi.util.Logger;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * An <tt>HTTPSender</tt> sharing one Apache <tt>HttpClient</tt>, and so one
+ * bounded pool of HTTP connections, between all the BOSH sessions of the
+ * process. The default jbosh sender creates a new <tt>HttpClient</tt> (with
+ * its own connection manager) for each session.
+ *
+ * It's in the <tt>com.kenai.jbosh</tt> package because the
+ * <tt>HTTPSender</tt> interface of jbosh is package-private. It is selected
+ * by {@link #install(int)}, through the system property read by jbosh when
+ * it creates a <tt>BOSHClient</tt>, and it keeps track of the utilization of
+ * the pool, logged periodically.
+ *
+ * It only bounds the sockets and <tt>HttpClient</tt>s : jbosh still blocks
+ * one of its threads per request in flight, so the number of threads keeps
+ * growing with the number of sessions.
+ */
+public final class SharedApacheHTTPSender
+    implements HTTPSender
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>SharedApacheHTTPSender</tt> class
+     * for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(SharedApacheHTTPSender.class);
+
+    /**
+     * The name of the system property used by jbosh to choose the
+     * implementation of <tt>HTTPSender</tt>.
+     */
+    private static final String HTTP_SENDER_PNAME
+        = HTTPSender.class.getName();
+
+    /**
+     * The time (in seconds) between two logs of the utilization of the pool.
+     */
+    private static final long REPORT_INTERVAL = 10;
+
+    /**
+     * The connection manager shared by all the sessions.
+     */
+    private static ThreadSafeClientConnManager connectionManager;
+
+    /**
+     * The <tt>HttpClient</tt> shared by all the sessions.
+     */
+    private static HttpClient httpClient;
+
+    /**
+     * The maximum number of connections of the pool.
+     */
+    private static int maxConnections;
+
+    /**
+     * The thread logging the utilization of the pool.
+     */
+    private static ScheduledExecutorService reporter;
+
+    /**
+     * The number of sessions using the shared pool.
+     */
+    private static final AtomicInteger sessions = new AtomicInteger();
+
+    /**
+     * The number of requests sent through the shared pool.
+     */
+    private static final AtomicLong requests = new AtomicLong();
+
+    /**
+     * The number of requests which failed or were aborted.
+     */
+    private static final AtomicLong failedRequests = new AtomicLong();
+
+    /**
+     * The number of requests sent and not answered yet.
+     */
+    private static final AtomicInteger inFlightRequests = new AtomicInteger();
+
+    /**
+     * The highest number of requests in flight at the same time.
+     */
+    private static final AtomicInteger maxInFlightRequests
+        = new AtomicInteger();
+
+    /**
+     * The configuration of the session of this sender.
+     */
+    private BOSHClientConfig config;
+
+    /**
+     * Make all the BOSH sessions created from now on share a pool of at most
+     * <tt>maxConnections</tt> HTTP connections.
+     *
+     * As each BOSH session keeps one or two requests in flight, the pool
+     * must allow two connections per fake user, otherwise the long-polling
+     * requests wait for a connection and the sessions time out.
+     *
+     * @param maxConnections the maximum number of connections of the pool.
+     */
+    public static synchronized void install(int maxConnections)
+    {
+        if(maxConnections <= 0)
+        {
+            throw new IllegalArgumentException(
+                "The BOSH pool needs at least one connection : "
+                + maxConnections);
+        }
+
+        if(httpClient == null)
+        {
+            HttpParams params = new BasicHttpParams();
+            HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+            HttpProtocolParams.setUseExpectContinue(params, false);
+
+            SchemeRegistry schemeRegistry = new SchemeRegistry();
+            schemeRegistry.register(
+                new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+            SSLSocketFactory sslFactory = SSLSocketFactory.getSocketFactory();
+            sslFactory.setHostnameVerifier(
+                SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+            schemeRegistry.register(new Scheme("https", sslFactory, 443));
+
+            connectionManager
+                = new ThreadSafeClientConnManager(schemeRegistry);
+            httpClient = new DefaultHttpClient(connectionManager, params);
+
+            reporter = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, "BOSHPoolReporter");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            reporter.scheduleAtFixedRate(
+                new Runnable()
+                {
+                    public void run()
+                    {
+                        if(sessions.get() > 0)
+                            logger.info(getUtilization());
+                    }
+                },
+                REPORT_INTERVAL,
+                REPORT_INTERVAL,
+                TimeUnit.SECONDS);
+        }
+
+        /*
+         * All the sessions go to the same BOSH host, so the pool is a single
+         * route.
+         */
+        SharedApacheHTTPSender.maxConnections = maxConnections;
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+        System.setProperty(
+            HTTP_SENDER_PNAME,
+            SharedApacheHTTPSender.class.getName());
+        logger.info("BOSH sessions share a pool of " + maxConnections
+            + " HTTP connections");
+    }
+
+    /**
+     * Tell if the BOSH sessions share the pool of this class.
+     * @return <tt>true</tt> if {@link #install(int)} has been called.
+     */
+    public static synchronized boolean isInstalled()
+    {
+        return httpClient != null;
+    }
+
+    /**
+     * Get a description of the utilization of the shared pool, for the log.
+     * @return a description of the utilization of the shared pool.
+     */
+    public static synchronized String getUtilization()
+    {
+        if(connectionManager == null)
+            return "BOSH pool not installed";
+
+        return "BOSH pool : " + sessions.get() + " sessions, "
+            + connectionManager.getConnectionsInPool() + "/" + maxConnections
+            + " connections, " + inFlightRequests.get()
+            + " requests in flight (max " + maxInFlightRequests.get()
+            + "), " + requests.get() + " requests sent, "
+            + failedRequests.get() + " failed";
+    }
+
+    /**
+     * Get the number of connections currently in the shared pool.
+     * @return the number of connections in the shared pool.
+     */
+    public static synchronized int getConnectionsInPool()
+    {
+        return (connectionManager == null)
+            ? 0
+            : connectionManager.getConnectionsInPool();
+    }
+
+    /**
+     * Get the number of requests sent and not answered yet.
+     * @return the number of requests in flight.
+     */
+    public static int getInFlightRequests()
+    {
+        return inFlightRequests.get();
+    }
+
+    /**
+     * Get the number of requests sent through the shared pool.
+     * @return the number of requests sent through the shared pool.
+     */
+    public static long getRequests()
+    {
+        return requests.get();
+    }
+
+    /**
+     * Get the number of requests which failed or were aborted.
+     * @return the number of failed requests.
+     */
+    public static long getFailedRequests()
+    {
+        return failedRequests.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void init(BOSHClientConfig config)
+    {
+        this.config = config;
+        sessions.incrementAndGet();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The shared <tt>HttpClient</tt> is kept for the other sessions.
+     */
+    public void destroy()
+    {
+        if(config != null)
+        {
+            config = null;
+            sessions.decrementAndGet();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public HTTPResponse send(CMSessionParams params, AbstractBody body)
+    {
+        HttpClient client;
+        synchronized (SharedApacheHTTPSender.class)
+        {
+            client = httpClient;
+        }
+
+        requests.incrementAndGet();
+        int inFlight = inFlightRequests.incrementAndGet();
+        int max;
+        while(inFlight > (max = maxInFlightRequests.get()))
+        {
+            if(maxInFlightRequests.compareAndSet(max, inFlight))
+                break;
+        }
+
+        return new CountedHTTPResponse(
+            new ApacheHTTPResponse(client, config, params, body));
+    }
+
+    /**
+     * Wraps the <tt>HTTPResponse</tt> of a request to keep track of the
+     * requests in flight.
+     */
+    private static class CountedHTTPResponse
+        implements HTTPResponse
+    {
+        /**
+         * The wrapped <tt>HTTPResponse</tt>.
+         */
+        private final HTTPResponse response;
+
+        /**
+         * Whether the request has been answered, failed or aborted.
+         */
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        /**
+         * Initializes a new <tt>CountedHTTPResponse</tt>.
+         *
+         * @param response the wrapped <tt>HTTPResponse</tt>.
+         */
+        private CountedHTTPResponse(HTTPResponse response)
+        {
+            this.response = response;
+        }
+
+        /**
+         * Count the end of the request, once.
+         *
+         * @param failed whether the request failed.
+         */
+        private void done(boolean failed)
+        {
+            if(done.compareAndSet(false, true))
+            {
+                inFlightRequests.decrementAndGet();
+                if(failed)
+                    failedRequests.incrementAndGet();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void abort()
+        {
+            response.abort();
+            done(true);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int getHTTPStatus()
+            throws InterruptedException, BOSHException
+        {
+            boolean failed = true;
+            try
+            {
+                int status = response.getHTTPStatus();
+                failed = false;
+                return status;
+            }
+            finally
+            {
+                done(failed);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public AbstractBody getBody()
+            throws InterruptedException, BOSHException
+        {
+            boolean failed = true;
+            try
+            {
+                AbstractBody body = response.getBody();
+                failed = false;
+                return body;
+            }
+            finally
+            {
+                done(failed);
+            }
+        }
+    }
+}
@@ -16,7 +16,6 @@
 package org.jitsi.hammer;
 
 import org.jivesoftware.smack.*;
-import org.jivesoftware.smack.bosh.*;
 import org.jivesoftware.smack.packet.*;
 import org.jivesoftware.smack.filter.*;
 import org.jivesoftware.smackx.disco.*;
@@ -29,6 +28,8 @@ import org.jitsi.util.Logger;
 import org.jitsi.hammer.stats.*;
 import org.jitsi.hammer.utils.*;
 import org.jitsi.hammer.extension.*;
+import org.jitsi.hammer.media.*;
+import org.jitsi.hammer.impairment.*;
 
 import net.java.sip.communicator.impl.protocol.jabber.jinglesdp.*;
 import net.java.sip.communicator.impl.protocol.jabber.extensions.*;
@@ -39,6 +40,8 @@ import net.java.sip.communicator.service.protocol.media.*;
 import java.beans.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 
 /**
@@ -53,6 +56,19 @@ import java.util.*;
  */
 public class FakeUser implements PacketListener
 {
+    /**
+     * The maximum time (in milliseconds) given to the ICE connectivity
+     * establishment before the media are started (or ICE considered as
+     * failed).
+     */
+    private static final long ICE_TIMEOUT = 10000;
+
+    /**
+     * The service discovery feature telling the focus that RTP and RTCP can
+     * be multiplexed on a single port (RFC 5761).
+     */
+    private static final String RTCP_MUX_FEATURE = "urn:ietf:rfc:5761";
+
     /**
      * The <tt>Logger</tt> used by the <tt>FakeUser</tt> class and its
      * instances for logging output.
@@ -60,6 +76,11 @@ public class FakeUser implements PacketListener
     private static final Logger logger
         = Logger.getLogger(FakeUser.class);
 
+    /**
+     * The <tt>Random</tt> used to choose the SSRCs of the simulcast layers.
+     */
+    private static final Random random = new Random();
+
     /**
      * The <tt>Hammer</tt> instance to which this <tt>FakeUser</tt> corresponds
      * This object layout exists in order to make conference initiation 
@@ -92,14 +113,15 @@ public class FakeUser implements PacketListener
 
 
     /**
-     * The <tt>ConnectionConfiguration</tt> equivalent of <tt>serverInfo</tt>.
+     * The object use to connect to and then communicate with the XMPP server.
      */
-    private BOSHConfiguration config;
+    private XMPPConnection connection;
 
     /**
-     * The object use to connect to and then communicate with the XMPP server.
+     * The registration of <tt>connection</tt> to the
+     * <tt>KeepAliveScheduler</tt> of the <tt>Hammer</tt>.
      */
-    private XMPPConnection connection;
+    private KeepAliveScheduler.Registration keepAlive;
 
     /**
      * The object use to connect to and then send message to the MUC chatroom.
@@ -131,10 +153,28 @@ public class FakeUser implements PacketListener
      */
     private Map<String,MediaStream> mediaStreamMap;
 
+    /**
+     * The <tt>PacketReplayer</tt>s sending the pre-encoded packets on the
+     * <tt>MediaStream</tt>s of this <tt>FakeUser</tt>, in replay mode.
+     */
+    private final List<PacketReplayer> replayers
+        = new CopyOnWriteArrayList<PacketReplayer>();
+
     /**
      * The <tt>Agent</tt> handling the ICE protocol of the stream
      */
-    private Agent agent = new Agent();
+    private volatile Agent agent;
+
+    /**
+     * The index of this <tt>FakeUser</tt> among the users created by its
+     * <tt>Hammer</tt>, or of the user it replaced when churned.
+     */
+    private final int userIndex;
+
+    /**
+     * The boolean activating or not the debug screen of smack.
+     */
+    private final boolean smackDebug;
 
     /**
      * The <tt>FakeUserStats</tt> that represents the stats of the streams of
@@ -142,6 +182,73 @@ public class FakeUser implements PacketListener
      */
     private FakeUserStats fakeUserStats;
 
+    /**
+     * The <tt>JoinTimeline</tt> timestamping the phases of the join of this
+     * <tt>FakeUser</tt> each time it's started.
+     */
+    private final JoinTimeline joinTimeline;
+
+    /**
+     * The SSRCs of the simulcast layers of the video stream, from the lowest
+     * (the SSRC of the <tt>MediaStream</tt>) to the highest, or
+     * <tt>null</tt> if the video isn't simulcast.
+     */
+    private long[] simulcastSSRCs;
+
+    /**
+     * The SSRCs of the remote sources announced by the focus (in the
+     * session-initiate and the source-add and source-remove), from which
+     * packets are expected, by content name. It's also the lock of
+     * <tt>remoteSecondarySources</tt> and <tt>receiveStreamStats</tt>.
+     */
+    private final Map<String,Set<Long>> remoteSources
+        = new HashMap<String,Set<Long>>();
+
+    /**
+     * The secondary SSRCs of the simulcast (SIM) and retransmission (FID)
+     * groups announced by the focus, from which packets may or may not be
+     * received, by content name.
+     */
+    private final Map<String,Set<Long>> remoteSecondarySources
+        = new HashMap<String,Set<Long>>();
+
+    /**
+     * The <tt>ReceiveStreamStats</tt> of the streams of this
+     * <tt>FakeUser</tt>, by content name, added to the
+     * <tt>ReceiveStats</tt> of its <tt>Hammer</tt> while the streams run.
+     */
+    private final Map<String,ReceiveStreamStats> receiveStreamStats
+        = new HashMap<String,ReceiveStreamStats>();
+
+    /**
+     * The <tt>RtcpGenerator</tt>s sending RTCP on the streams of this
+     * <tt>FakeUser</tt>, by content name. Their feedback targets the
+     * <tt>remoteSources</tt>, which is also their lock.
+     */
+    private final Map<String,RtcpGenerator> rtcpGenerators
+        = new HashMap<String,RtcpGenerator>();
+
+    /**
+     * The <tt>NetworkImpairment</tt> impairing the packets sent by the
+     * streams of this <tt>FakeUser</tt>, or <tt>null</tt> if they aren't
+     * impaired.
+     */
+    private volatile NetworkImpairment impairment;
+
+    /**
+     * The lock held by <tt>startMedia()</tt>, and by <tt>stop()</tt> while it
+     * stops the media, so that a user stopped while its ICE processing ends
+     * doesn't start media (streams, replayers, RTCP generators, stats) that
+     * nothing would stop.
+     */
+    private final Object mediaLock = new Object();
+
+    /**
+     * Whether <tt>stop()</tt> has been called : the Jingle IQs received
+     * meanwhile, while the connection is being closed, are ignored.
+     */
+    private volatile boolean stopped = false;
+
     /**
      * Construct the conference focus JID 
      * (or get one from the server info if provided)
@@ -217,23 +324,88 @@ public class FakeUser implements PacketListener
         String nickname,
         boolean smackDebug,
         boolean statisticsEnabled)
+    {
+        this(hammer, mdc, nickname, 0, smackDebug, statisticsEnabled);
+    }
+
+    /**
+     * Instantiates a <tt>FakeUser</tt> with a specified <tt>nickname</tt>
+     * and index that will connect to the XMPP server contained in
+     * <tt>hostInfo</tt>.
+     *
+     * @param hammer the <tt>Hammer</tt> instance to which this 
+     *               <tt>FakeUser</tt> belongs
+     * @param mdc The <tt>MediaDeviceChooser</tt> that will be used by this
+     * <tt>FakeUser</tt> to choose the <tt>MediaDevice</tt> for each of its
+     * <tt>MediaStream</tt>s.
+     * @param nickname the nickname used by this <tt>FakeUser</tt> in the
+     * connection.
+     * @param userIndex the index of this <tt>FakeUser</tt> among the users
+     * created by its <tt>Hammer</tt>.
+     * @param statisticsEnabled whether the stats of the streams are kept.
+     */
+    public FakeUser(
+        Hammer hammer,
+        MediaDeviceChooser mdc,
+        String nickname,
+        int userIndex,
+        boolean statisticsEnabled)
+    {
+        this(hammer, mdc, nickname, userIndex, false, statisticsEnabled);
+    }
+
+    /**
+     * Instantiates a <tt>FakeUser</tt> with a specified <tt>nickname</tt>
+     * and index that will connect to the XMPP server contained in
+     * <tt>hostInfo</tt>.
+     *
+     * @param hammer the <tt>Hammer</tt> instance to which this 
+     *               <tt>FakeUser</tt> belongs
+     * @param mdc The <tt>MediaDeviceChooser</tt> that will be used by this
+     * <tt>FakeUser</tt> to choose the <tt>MediaDevice</tt> for each of its
+     * <tt>MediaStream</tt>s.
+     * @param nickname the nickname used by this <tt>FakeUser</tt> in the
+     * connection.
+     * @param userIndex the index of this <tt>FakeUser</tt> among the users
+     * created by its <tt>Hammer</tt>.
+     * @param smackDebug the boolean activating or not the debug screen of smack
+     * @param statisticsEnabled whether the stats of the streams are kept.
+     */
+    public FakeUser(
+        Hammer hammer,
+        MediaDeviceChooser mdc,
+        String nickname,
+        int userIndex,
+        boolean smackDebug,
+        boolean statisticsEnabled)
     {   
         this.hammer = hammer;
+        this.userIndex = userIndex;
         this.serverInfo = hammer.getServerInfo();
         this.mediaDeviceChooser = mdc;
         this.nickname = (nickname == null) ? "Anonymous" : nickname;
         this.conferenceInfo = hammer.getConferenceInfo();
+        this.smackDebug = smackDebug;
         fakeUserStats = statisticsEnabled ? new FakeUserStats(nickname) : null;
+        joinTimeline = new JoinTimeline(hammer.getJoinLatencyStats());
+
+    }
 
-        config = new BOSHConfiguration(
-                serverInfo.getUseHTTPS(),
-                serverInfo.getBOSHhostname(),
-                serverInfo.getPort(),
-                serverInfo.getBOSHpath(),
-                serverInfo.getXMPPDomain());
-        config.setDebuggerEnabled(smackDebug);
+    /**
+     * Create the XMPP connection, the <tt>MediaStream</tt>s and the ICE
+     * <tt>Agent</tt> of this <tt>FakeUser</tt>, and forget the Jingle session
+     * of a previous run. It's called each time this <tt>FakeUser</tt> is
+     * started, so that a stopped <tt>FakeUser</tt> can be started again with
+     * a full connection, MUC join, Jingle and ICE exchange.
+     */
+    private void init()
+    {
+        sessionInitiate = null;
+        sessionAccept = null;
+        muc = null;
 
-        connection = new XMPPBOSHConnection(config);
+        connection = serverInfo.getTransport()
+            .createConnection(serverInfo, smackDebug);
         connection.addPacketListener(this,new PacketFilter()
         {
             public boolean accept(Packet packet)
@@ -242,6 +414,8 @@ public class FakeUser implements PacketListener
             }
         });
 
+        agent = new Agent();
+
         /*
          * Creation in advance of the MediaStream that will be used later
          * so the HammerStats can register their MediaStreamStats now.
@@ -266,9 +440,15 @@ public class FakeUser implements PacketListener
         discoManager.addFeature(RTPHdrExtPacketExtension.NAMESPACE);
         discoManager.addFeature("urn:xmpp:jingle:apps:rtp:audio");
         discoManager.addFeature("urn:xmpp:jingle:apps:rtp:video");
+        if (hammer.getRtcpMux())
+            discoManager.addFeature(RTCP_MUX_FEATURE);
 
-        /** added to address bosh timeout issues causing early terminatin of the hammer **/
-        org.jivesoftware.smackx.ping.PingManager.getInstanceFor(connection).setPingInterval(15);
+        /*
+         * The pings keeping the connection alive are sent by the
+         * KeepAliveScheduler of the Hammer, so the PingManager only answers
+         * the pings of the server.
+         */
+        org.jivesoftware.smackx.ping.PingManager.getInstanceFor(connection).setPingInterval(0);
     }
 
     /**
@@ -283,8 +463,13 @@ public class FakeUser implements PacketListener
             XMPPException
     {
         logger.info(this.nickname + " : Login anonymously to the XMPP server.");
+        joinTimeline.start();
+        init();
         connection.connect();
+        joinTimeline.mark(JoinPhase.CONNECTED);
         connection.loginAnonymously();
+        joinTimeline.mark(JoinPhase.LOGGED_IN);
+        keepAlive = hammer.getKeepAliveScheduler().register(connection);
         connectMUC();
     }
 
@@ -301,8 +486,13 @@ public class FakeUser implements PacketListener
     {
         logger.info(this.nickname + " : Login with username "
                 + username + " to the XMPP server.");
+        joinTimeline.start();
+        init();
         connection.connect();
+        joinTimeline.mark(JoinPhase.CONNECTED);
         connection.login(username, password, "Jitsi-Hammer");
+        joinTimeline.mark(JoinPhase.LOGGED_IN);
+        keepAlive = hammer.getKeepAliveScheduler().register(connection);
 
       //set the highest priority possible
         Presence presence = new Presence(Presence.Type.available);
@@ -402,6 +592,7 @@ public class FakeUser implements PacketListener
                 presencePacket.setTo(roomURL + "/" + nickname);
                 presencePacket.addExtension(new Nick(nickname));
                 connection.sendPacket(presencePacket);
+                joinTimeline.mark(JoinPhase.MUC_JOINED);
 
                 /**
                  * Make an attempt to send an IQ to Focus user 
@@ -461,17 +652,69 @@ public class FakeUser implements PacketListener
     {
         logger.info(this.nickname + " : stopping the streams, leaving the MUC"
             + " and disconnecting from the XMPP server");
-        if(agent != null)
-            agent.free();
-        for(MediaStream stream : mediaStreamMap.values())
+        stopped = true;
+        synchronized(mediaLock)
         {
-            stream.close();
+            for(PacketReplayer replayer : replayers)
+            {
+                replayer.stop();
+            }
+            replayers.clear();
+            synchronized(remoteSources)
+            {
+                for(RtcpGenerator generator : rtcpGenerators.values())
+                {
+                    generator.stop();
+                }
+                rtcpGenerators.clear();
+                for(ReceiveStreamStats stats : receiveStreamStats.values())
+                {
+                    logger.info(this.nickname + " : received " + stats);
+                    hammer.getReceiveStats().remove(stats);
+                }
+                receiveStreamStats.clear();
+                remoteSources.clear();
+                remoteSecondarySources.clear();
+            }
+            if(impairment != null)
+            {
+                logger.info(this.nickname + " : " + impairment);
+                impairment = null;
+            }
+            if(keepAlive != null)
+            {
+                keepAlive.cancel();
+                keepAlive = null;
+            }
+            /*
+             * The agent is forgotten before being freed, so that the end of its
+             * ICE processing doesn't start the media of this stopped user.
+             */
+            Agent stoppedAgent = agent;
+            if(stoppedAgent != null)
+            {
+                agent = null;
+                stoppedAgent.free();
+                IceMediaStreamGenerator.getInstance()
+                    .releaseIceMediaStreams(stoppedAgent);
+            }
+            if(mediaStreamMap != null)
+            {
+                for(MediaStream stream : mediaStreamMap.values())
+                {
+                    stream.close();
+                }
+            }
         }
         if(connection !=null)
         {
-            if(sessionAccept != null)
+            /*
+             * With a load profile, users leave while the others keep running,
+             * so a user that can't properly leave only logs the failure.
+             */
+            try
             {
-                try
+                if(sessionAccept != null)
                 {
                     connection.sendPacket(
                             Smack4AwareJinglePacketFactory
@@ -482,18 +725,14 @@ public class FakeUser implements PacketListener
                                         Reason.GONE,
                                         "Bye Bye")
                     );
-                    if(muc != null) muc.leave();
-                    connection.disconnect();
-                }
-                catch (SmackException.NotConnectedException e) {
-                    logger.fatal("Not connected, so cannot properly " +
-                            "stop the conference");
-                    e.printStackTrace();
-                    System.exit(1);
                 }
-
+                if(muc != null && muc.isJoined()) muc.leave();
             }
-
+            catch (SmackException.NotConnectedException e) {
+                logger.error(this.nickname + " : not connected, so cannot "
+                        + "properly stop the conference");
+            }
+            connection.disconnect();
         }
     }
 
@@ -503,6 +742,9 @@ public class FakeUser implements PacketListener
      * send it to the initiator of the session.
      * The initiator is taken from the From attribute
      * of the initiate-session message.
+     *
+     * It returns once the ICE connectivity establishment is started, and the
+     * media are started asynchronously when it's over (see startMedia()).
      */
     private void acceptJingleSession()
     {
@@ -513,7 +755,7 @@ public class FakeUser implements PacketListener
         List<RTPExtension> listRtpExtension = null;
         ContentPacketExtension content = null;
         RtpDescriptionPacketExtension description = null;
-        Map<String,ContentPacketExtension> contentMap =
+        final Map<String,ContentPacketExtension> contentMap =
             new HashMap<String,ContentPacketExtension>();
 
 
@@ -538,7 +780,7 @@ public class FakeUser implements PacketListener
          * The registry containing the dynamic payload types learned in the
          * session-initiate (to use back in the session-accept)
          */
-        DynamicPayloadTypeRegistry ptRegistry =
+        final DynamicPayloadTypeRegistry ptRegistry =
                 new DynamicPayloadTypeRegistry();
 
         /**
@@ -621,19 +863,26 @@ public class FakeUser implements PacketListener
         
 
         iceMediaStreamGenerator = IceMediaStreamGenerator.getInstance();
-        
+
+        //With rtcp-mux, RTP and RTCP share the port of the RTP component
+        boolean rtcpMux = hammer.getRtcpMux()
+            && HammerUtils.isRtcpMuxOffered(sessionInitiate.getContentList());
+
         try
         {
             iceMediaStreamGenerator.generateIceMediaStream(
                 agent,
                 contentMap.keySet(),
                 null,
-                null);
+                null,
+                rtcpMux);
         }
         catch (IOException e)
         {
             logger.fatal(this.nickname + " : Error during the generation"
                 + " of the IceMediaStream",e);
+            hammer.iceDone(false);
+            return;
         }
         
         //Add the remote candidate to my agent, and add my local candidate of
@@ -644,12 +893,14 @@ public class FakeUser implements PacketListener
         HammerUtils.addLocalCandidateToContentList(
             agent,
             contentMap.values());
+        if(rtcpMux)
+            HammerUtils.addRtcpMuxToContentList(contentMap.values());
 
 
 
 
         /*
-         * configure the MediaStream created in the constructor with the
+         * configure the MediaStream created by init() with the
          * selected MediaFormat, and with the selected MediaDevice (through the
          * MediaDeviceChooser.
          */
@@ -665,6 +916,25 @@ public class FakeUser implements PacketListener
         //content list of the future session-accept
         HammerUtils.addSSRCToContent(contentMap, mediaStreamMap);
 
+        //With simulcast, the video stream sends one SSRC per layer
+        PacketCorpus[] layers = mediaDeviceChooser.getSimulcastPacketCorpora();
+        simulcastSSRCs = null;
+        for(String key : contentMap.keySet())
+        {
+            MediaStream stream = mediaStreamMap.get(key);
+
+            if(layers != null && stream instanceof VideoMediaStream)
+            {
+                simulcastSSRCs = new long[layers.length];
+                simulcastSSRCs[0] = stream.getLocalSourceID() & 0xFFFFFFFFL;
+                for(int i = 1; i < layers.length; i++)
+                    simulcastSSRCs[i] = newSSRC(simulcastSSRCs, i);
+                HammerUtils.addSimulcastToContent(
+                    contentMap.get(key),
+                    simulcastSSRCs);
+            }
+        }
+
 
         /*
          * Send the SSRC of the different media in a "media" tag
@@ -717,19 +987,35 @@ public class FakeUser implements PacketListener
 
             //Send the session-accept IQ
             connection.sendPacket(sessionAccept);
+            joinTimeline.mark(JoinPhase.SESSION_ACCEPT);
             logger.info(
                     this.nickname + " : Jingle accept-session message sent");
         }
         catch (SmackException.NotConnectedException e)
         {
+            if (stopped)
+            {
+                // The user was churned or removed while it was joining.
+                logger.error(this.nickname + " : cannot accept the Jingle"
+                    + " session, the user is stopped");
+                return;
+            }
             logger.fatal("Cannot accept Jingle session: not connected");
             System.exit(1);
         }
 
 
-        // A listener to wake us up when the Agent enters a final state.
-        final Object syncRoot = new Object();
-        PropertyChangeListener propertyChangeListener
+        /*
+         * The ICE connectivity establishment isn't waited for here, on the
+         * thread of Smack handling the Jingle IQs of the connection : the
+         * media are started by startMedia() once the Agent enters a final
+         * state, or after ICE_TIMEOUT, on a thread of the ICE scheduler of the
+         * Hammer.
+         */
+        final Agent iceAgent = agent;
+        final CompletableFuture<IceProcessingState> iceDone
+            = new CompletableFuture<IceProcessingState>();
+        final PropertyChangeListener propertyChangeListener
                 = new PropertyChangeListener()
         {
             @Override
@@ -741,16 +1027,8 @@ public class FakeUser implements PacketListener
                         || IceProcessingState.FAILED.equals(newValue)
                         || IceProcessingState.TERMINATED.equals(newValue))
                 {
-                    Agent iceAgent = (Agent) ev.getSource();
-
                     iceAgent.removeStateChangeListener(this);
-                    if (iceAgent == FakeUser.this.agent)
-                    {
-                        synchronized (syncRoot)
-                        {
-                            syncRoot.notify();
-                        }
-                    }
+                    iceDone.complete((IceProcessingState) newValue);
                 }
             }
         };
@@ -758,66 +1036,263 @@ public class FakeUser implements PacketListener
         agent.addStateChangeListener(propertyChangeListener);
         agent.startConnectivityEstablishment();
 
-        synchronized (syncRoot)
+        ScheduledExecutorService scheduler = hammer.getIceScheduler();
+        final ScheduledFuture<?> timeout = scheduler.schedule(
+            new Runnable()
+            {
+                public void run()
+                {
+                    iceDone.complete(iceAgent.getState());
+                }
+            },
+            ICE_TIMEOUT,
+            TimeUnit.MILLISECONDS);
+
+        iceDone.thenAcceptAsync(
+            new Consumer<IceProcessingState>()
+            {
+                public void accept(IceProcessingState iceState)
+                {
+                    timeout.cancel(false);
+                    iceAgent.removeStateChangeListener(propertyChangeListener);
+                    try
+                    {
+                        startMedia(
+                            iceAgent,
+                            iceState,
+                            contentMap,
+                            ptRegistry);
+                    }
+                    catch (Throwable t)
+                    {
+                        logger.fatal(nickname + " : could not start the"
+                            + " media", t);
+                    }
+                }
+            },
+            scheduler);
+    }
+
+    /**
+     * Start the media of the Jingle session once the ICE connectivity
+     * establishment is over : add the sockets selected by ICE to the
+     * <tt>MediaStream</tt>s, start their encryption, the streams and the
+     * replay of the pre-encoded packets, if any.
+     *
+     * @param iceAgent the <tt>Agent</tt> of the session.
+     * @param iceState the state of <tt>iceAgent</tt> at the end of the ICE
+     * connectivity establishment (or when it timed out).
+     * @param contentMap the contents of the session-accept, indexed by the
+     * names of their <tt>MediaStream</tt>.
+     * @param ptRegistry the registry of the dynamic payload types learned in
+     * the session-initiate.
+     */
+    private void startMedia(
+        Agent iceAgent,
+        IceProcessingState iceState,
+        Map<String,ContentPacketExtension> contentMap,
+        DynamicPayloadTypeRegistry ptRegistry)
+    {
+        synchronized(mediaLock)
         {
-            long startWait = System.currentTimeMillis();
-            do
+            if (iceAgent != agent)
             {
-                IceProcessingState iceState = agent.getState();
-                if (IceProcessingState.COMPLETED.equals(iceState)
-                        || IceProcessingState.TERMINATED.equals(iceState)
-                        || IceProcessingState.FAILED.equals(iceState))
-                    break;
+                // This FakeUser has been stopped (or restarted) in the
+                // meantime : stop() forgets the agent under mediaLock, so
+                // nothing started below can outlive it.
+                return;
+            }
+
+            if (!IceProcessingState.COMPLETED.equals(iceState)
+                    && !IceProcessingState.TERMINATED.equals(iceState))
+            {
+                logger.fatal("ICE failed for user " + nickname
+                    + ". Agent state: " + iceState);
+                hammer.iceDone(false);
+                return;
+            }
+            hammer.iceDone(true);
+            joinTimeline.mark(JoinPhase.ICE_COMPLETE);
+
+            // Add socket created by ice4j to their associated MediaStreams
+            // We drop incoming RTP packets when statistics are disabled in
+            // order to improve performance, but the first one is still
+            // timestamped.
+            // With receive side stats, they are dropped too, once their headers
+            // are parsed.
+            FirstMediaPacketWatcher watcher = new FirstMediaPacketWatcher(
+                new Runnable()
+                {
+                    public void run()
+                    {
+                        joinTimeline.mark(JoinPhase.FIRST_MEDIA_PACKET);
+                    }
+                });
+            ReceiveStats receiveStats = hammer.getReceiveStats();
+            Map<String,PacketWatcher> watchers
+                = new HashMap<String,PacketWatcher>();
 
-                if (System.currentTimeMillis() - startWait > 10000)
-                    break; // Don't run for more than 10 seconds
+            for(String key : contentMap.keySet())
+            {
+                PacketWatcher streamWatcher = watcher;
 
-                try
+                if(receiveStats != null)
                 {
-                    syncRoot.wait(1000);
+                    MediaFormat format = mediaStreamMap.get(key).getFormat();
+                    ReceiveStreamStats stats = new ReceiveStreamStats(
+                        format.getMediaType(),
+                        format.getClockRate());
+
+                    synchronized(remoteSources)
+                    {
+                        Set<Long> ssrcs = remoteSources.get(key);
+
+                        if(ssrcs != null)
+                        {
+                            for(long ssrc : ssrcs)
+                                stats.setAnnounced(ssrc, true, false);
+                        }
+                        ssrcs = remoteSecondarySources.get(key);
+                        if(ssrcs != null)
+                        {
+                            for(long ssrc : ssrcs)
+                                stats.setAnnounced(ssrc, true, true);
+                        }
+                        receiveStreamStats.put(key, stats);
+                    }
+                    receiveStats.add(stats);
+                    streamWatcher = PacketWatcher.chain(watcher, stats);
                 }
-                catch (InterruptedException ie)
+                watchers.put(key, streamWatcher);
+            }
+            // The packets sent are impaired as set for the cohort of this user
+            ImpairmentProfile impairmentProfile = hammer.getImpairmentProfile();
+            ImpairmentOptions impairmentOptions = (impairmentProfile == null)
+                ? null
+                : impairmentProfile.getOptions(userIndex);
+
+            impairment = (impairmentOptions == null)
+                ? null
+                : new NetworkImpairment(impairmentOptions);
+            HammerUtils.addSocketToMediaStream(iceAgent,
+                                               mediaStreamMap,
+                                               fakeUserStats == null
+                                                   || receiveStats != null,
+                                               watchers,
+                                               impairment);
+
+
+            //Start the encryption of the MediaStreams
+            for(String key : contentMap.keySet())
+            {
+                MediaStream stream = mediaStreamMap.get(key);
+                SrtpControl control = stream.getSrtpControl();
+                MediaType type = stream.getFormat().getMediaType();
+                IceMediaStream iceStream = iceAgent.getStream(key);
+
+                //Without RTCP component, SRTCP uses the DTLS session of RTP
+                if(control instanceof DtlsControl
+                    && iceStream != null
+                    && iceStream.getComponent(Component.RTCP) == null)
                 {
-                    logger.fatal("Interrupted: " + ie);
-                    break;
+                    ((DtlsControl) control).setRtcpmux(true);
                 }
+                control.start(type);
             }
-            while (true);
-        }
 
-        agent.removeStateChangeListener(propertyChangeListener);
+            //Start the MediaStream
+            for(String key : contentMap.keySet())
+            {
+                MediaStream stream = mediaStreamMap.get(key);
+                stream.start();
+            }
+            joinTimeline.mark(JoinPhase.MEDIA_STARTED);
+            logger.info(this.nickname + " : joined, " + joinTimeline);
 
-        IceProcessingState iceState = agent.getState();
-        if (!IceProcessingState.COMPLETED.equals(iceState)
-                && !IceProcessingState.TERMINATED.equals(iceState))
-        {
-            logger.fatal("ICE failed for user " + nickname + ". Agent state: "
-                                 + iceState);
-            return;
-        }
+            //Start the replay of the pre-encoded packets, if any
+            Map<String,List<PacketReplayer>> streamReplayers
+                = new HashMap<String,List<PacketReplayer>>();
 
-        // Add socket created by ice4j to their associated MediaStreams
-        // We drop incoming RTP packets when statistics are disabled in order
-        // to improve performance.
-        HammerUtils.addSocketToMediaStream(agent,
-                                           mediaStreamMap,
-                                           fakeUserStats == null);
+            for(String key : contentMap.keySet())
+            {
+                MediaStream stream = mediaStreamMap.get(key);
+                MediaFormat format = stream.getFormat();
+                PacketCorpus corpus
+                    = mediaDeviceChooser.getPacketCorpus(format.getMediaType());
+                List<PacketReplayer> keyReplayers
+                    = new ArrayList<PacketReplayer>();
+
+                streamReplayers.put(key, keyReplayers);
+                if(corpus == null)
+                    continue;
 
+                byte payloadType = (format.getRTPPayloadType()
+                        == MediaFormat.RTP_PAYLOAD_TYPE_UNKNOWN)
+                    ? ptRegistry.getPayloadType(format)
+                    : (byte) format.getRTPPayloadType();
+                ReplayOptions options = mediaDeviceChooser.getReplayOptions();
 
-        //Start the encryption of the MediaStreams
-        for(String key : contentMap.keySet())
-        {
-            MediaStream stream = mediaStreamMap.get(key);
-            SrtpControl control = stream.getSrtpControl();
-            MediaType type = stream.getFormat().getMediaType();
-            control.start(type);
-        }
+                if(simulcastSSRCs != null && stream instanceof VideoMediaStream)
+                {
+                    //The layers start at the same frame with the same
+                    //timestamps
+                    PacketCorpus[] layers
+                        = mediaDeviceChooser.getSimulcastPacketCorpora();
+                    long startOffset
+                        = options.getStartOffset(corpus, userIndex);
+                    long timestampBase = PacketReplayer.newTimestampBase();
+
+                    for(int i = 0; i < layers.length; i++)
+                    {
+                        PacketReplayer replayer = new PacketReplayer(
+                            layers[i],
+                            stream,
+                            simulcastSSRCs[i],
+                            payloadType,
+                            options);
+
+                        replayers.add(replayer);
+                        keyReplayers.add(replayer);
+                        replayer.start(startOffset, timestampBase);
+                    }
+                }
+                else
+                {
+                    PacketReplayer replayer = new PacketReplayer(
+                        corpus,
+                        stream,
+                        payloadType,
+                        options);
+
+                    replayers.add(replayer);
+                    keyReplayers.add(replayer);
+                    replayer.start(userIndex);
+                }
+            }
 
-        //Start the MediaStream
-        for(String key : contentMap.keySet())
-        {
-            MediaStream stream = mediaStreamMap.get(key);
-            stream.start();
+            //Start sending RTCP on each stream, if enabled
+            RtcpOptions rtcpOptions = hammer.getRtcpOptions();
+
+            if(rtcpOptions != null)
+            {
+                synchronized(remoteSources)
+                {
+                    for(String key : contentMap.keySet())
+                    {
+                        RtcpGenerator generator = new RtcpGenerator(
+                            mediaStreamMap.get(key),
+                            rtcpOptions,
+                            receiveStreamStats.get(key),
+                            streamReplayers.get(key));
+                        Set<Long> ssrcs = remoteSources.get(key);
+
+                        if(ssrcs != null)
+                            generator.setRemoteSSRCs(ssrcs);
+                        rtcpGenerators.put(key, generator);
+                        generator.start();
+                    }
+                }
+            }
         }
     }
 
@@ -829,6 +1304,9 @@ public class FakeUser implements PacketListener
      */
     public void processPacket(Packet packet)
     {
+        if (stopped)
+            return;
+
         JingleIQ jiq = (JingleIQ)packet;
         ackJingleIQ(jiq);
         switch(jiq.getAction())
@@ -837,7 +1315,9 @@ public class FakeUser implements PacketListener
             logger.info(this.nickname + " : Jingle session-initiate received");
             if(sessionInitiate == null)
             {
+                joinTimeline.mark(JoinPhase.SESSION_INITIATE);
                 sessionInitiate = jiq;
+                updateRemoteSources(jiq, true);
                 acceptJingleSession();
             }
             else
@@ -848,9 +1328,11 @@ public class FakeUser implements PacketListener
             break;
         case ADDSOURCE:
             logger.info(this.nickname + " : Jingle addsource received");
+            updateRemoteSources(jiq, true);
             break;
         case REMOVESOURCE:
-            logger.info(this.nickname + " : Jingle addsource received");
+            logger.info(this.nickname + " : Jingle removesource received");
+            updateRemoteSources(jiq, false);
             break;
         default:
             logger.info(this.nickname + " : Unknown Jingle IQ received : "
@@ -860,6 +1342,103 @@ public class FakeUser implements PacketListener
     }
 
 
+    /**
+     * Get a random SSRC, different from the ones already chosen.
+     * @param ssrcs the SSRCs already chosen.
+     * @param count the number of SSRCs already chosen in <tt>ssrcs</tt>.
+     * @return a new random SSRC.
+     */
+    private static long newSSRC(long[] ssrcs, int count)
+    {
+        long ssrc;
+        boolean taken;
+
+        do
+        {
+            ssrc = random.nextInt() & 0xFFFFFFFFL;
+            taken = (ssrc == 0);
+            for(int i = 0; i < count && !taken; i++)
+                taken = (ssrcs[i] == ssrc);
+        }
+        while(taken);
+        return ssrc;
+    }
+
+    /**
+     * Add the remote sources announced in a session-initiate or source-add
+     * to <tt>remoteSources</tt> and <tt>remoteSecondarySources</tt>, or
+     * remove the ones of a source-remove, and tell the
+     * <tt>ReceiveStreamStats</tt> and <tt>RtcpGenerator</tt>s of the streams
+     * if they run. The <tt>RtcpGenerator</tt>s only get the primary SSRCs.
+     * @param jiq the <tt>JingleIQ</tt> announcing the sources.
+     * @param add <tt>true</tt> to add the sources, <tt>false</tt> to remove
+     * them.
+     */
+    private void updateRemoteSources(JingleIQ jiq, boolean add)
+    {
+        List<ContentPacketExtension> contentList = jiq.getContentList();
+        Map<String,Set<Long>> primaries
+            = HammerUtils.getSources(contentList, false);
+        Map<String,Set<Long>> secondaries
+            = HammerUtils.getSources(contentList, true);
+
+        synchronized(remoteSources)
+        {
+            updateRemoteSources(remoteSources, primaries, add, false);
+            updateRemoteSources(
+                remoteSecondarySources, secondaries, add, true);
+            for(String name : primaries.keySet())
+            {
+                RtcpGenerator generator = rtcpGenerators.get(name);
+
+                if(generator != null)
+                    generator.setRemoteSSRCs(remoteSources.get(name));
+            }
+            logger.info(this.nickname + " : remote sources " + remoteSources
+                + ", secondary " + remoteSecondarySources);
+        }
+    }
+
+    /**
+     * Add or remove SSRCs to the remote sources of each content, and tell
+     * the <tt>ReceiveStreamStats</tt> of the streams if they run. It must
+     * be called with the lock of <tt>remoteSources</tt>.
+     * @param remote the remote sources to update, by content name.
+     * @param sources the SSRCs to add or remove, by content name.
+     * @param add <tt>true</tt> to add the SSRCs, <tt>false</tt> to remove
+     * them.
+     * @param secondary whether <tt>sources</tt> are secondary SSRCs, which
+     * are announced but optional.
+     */
+    private void updateRemoteSources(
+        Map<String,Set<Long>> remote,
+        Map<String,Set<Long>> sources,
+        boolean add,
+        boolean secondary)
+    {
+        for(Map.Entry<String,Set<Long>> entry : sources.entrySet())
+        {
+            String name = entry.getKey();
+            Set<Long> ssrcs = remote.get(name);
+            ReceiveStreamStats stats = receiveStreamStats.get(name);
+
+            if(ssrcs == null)
+            {
+                ssrcs = new HashSet<Long>();
+                remote.put(name, ssrcs);
+            }
+            for(long ssrc : entry.getValue())
+            {
+                if(add)
+                    ssrcs.add(ssrc);
+                else
+                    ssrcs.remove(ssrc);
+                if(stats != null)
+                    stats.setAnnounced(ssrc, add, secondary);
+            }
+        }
+    }
+
     /**
      * This function simply create an ACK packet to acknowledge the Jingle IQ
      * packet <tt>packetToAck</tt>.
@@ -873,6 +1452,12 @@ public class FakeUser implements PacketListener
             connection.sendPacket(ackPacket);
         }
         catch (SmackException.NotConnectedException e) {
+            if (stopped)
+            {
+                logger.error(this.nickname + " : cannot ACK the Jingle IQ,"
+                    + " the user is stopped");
+                return;
+            }
             logger.fatal("Cannot ACK Jingle session: not connected");
             System.exit(1);
         }
@@ -991,4 +1576,14 @@ public class FakeUser implements PacketListener
     {
         return this.fakeUserStats;
     }
+
+    /**
+     * Get the index of this <tt>FakeUser</tt> among the users created by its
+     * <tt>Hammer</tt>.
+     * @return the index of this <tt>FakeUser</tt>.
+     */
+    public int getUserIndex()
+    {
+        return this.userIndex;
+    }
 }
@@ -29,11 +29,18 @@ import org.jitsi.impl.neomedia.*;
 import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
 
 import org.jitsi.hammer.extension.*;
+import org.jitsi.hammer.load.*;
+import org.jitsi.hammer.media.*;
+import org.jitsi.hammer.impairment.*;
 import org.jitsi.hammer.utils.*;
 import org.jitsi.util.Logger;
 
+import com.kenai.jbosh.*;
+
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /**
  *
@@ -158,11 +165,105 @@ public class Hammer
     };
 
     /**
-     * The array containing all the <tt>FakeUser</tt> that this Hammer
+     * The list containing all the <tt>FakeUser</tt> that this Hammer
      * handle, representing all the virtual user that will connect to the XMPP
-     * server and start MediaStream with its jitsi-videobridge
+     * server and start MediaStream with its jitsi-videobridge. The users are
+     * kept in their order of creation.
+     */
+    private final List<FakeUser> fakeUsers = new ArrayList<FakeUser>();
+
+    /**
+     * The <tt>FakeUser</tt>s of {@link #fakeUsers} whose start is still in
+     * progress.
+     */
+    private final Set<FakeUser> startingUsers = new HashSet<FakeUser>();
+
+    /**
+     * The <tt>FakeUser</tt>s of {@link #fakeUsers} whose start succeeded and
+     * which haven't been stopped since.
+     */
+    private final Set<FakeUser> connectedUsers = new HashSet<FakeUser>();
+
+    /**
+     * The number of <tt>FakeUser</tt> created so far by this <tt>Hammer</tt>,
+     * used to give a unique nickname to each of them.
+     */
+    private int createdUsersCount = 0;
+
+    /**
+     * The <tt>Credential</tt>s used for the login of the fake users, or
+     * <tt>null</tt> if they login anonymously.
+     */
+    private List<Credential> credentials = null;
+
+    /**
+     * The <tt>RampUpEngine</tt> starting the fake users added by the
+     * <tt>LoadProfileRunner</tt>.
+     */
+    private RampUpEngine rampUpEngine;
+
+    /**
+     * The <tt>ExecutorService</tt> stopping the fake users removed by the
+     * <tt>LoadProfileRunner</tt>.
+     */
+    private ExecutorService stopExecutor;
+
+    /**
+     * The <tt>LoadProfile</tt> followed by this <tt>Hammer</tt>, or
+     * <tt>null</tt> if all the fake users are started at once.
+     */
+    private LoadProfile loadProfile = null;
+
+    /**
+     * The <tt>LoadProfileRunner</tt> driving the fake users according to
+     * {@link #loadProfile}.
+     */
+    private LoadProfileRunner loadProfileRunner;
+
+    /**
+     * The thread that run the <tt>LoadProfileRunner</tt> of this
+     * <tt>Hammer</tt>
+     */
+    private Thread loadProfileThread;
+
+    /**
+     * The fraction of the fake users replaced every second by the
+     * <tt>ChurnScheduler</tt>, or 0 to disable the churn.
      */
-    private FakeUser fakeUsers[] = null;
+    private double churnRate = 0;
+
+    /**
+     * The <tt>ChurnScheduler</tt> recycling the fake users of this
+     * <tt>Hammer</tt>.
+     */
+    private ChurnScheduler churnScheduler;
+
+    /**
+     * The thread that run the <tt>ChurnScheduler</tt> of this
+     * <tt>Hammer</tt>
+     */
+    private Thread churnThread;
+
+    /**
+     * The <tt>Credential</tt> used by each <tt>FakeUser</tt> for its login,
+     * so that a recycled user is replaced by one using the same account.
+     */
+    private final Map<FakeUser, Credential> userCredentials
+        = new HashMap<FakeUser, Credential>();
+
+    /**
+     * Whether the program exits when a fake user can't be started. It's the
+     * case when all the users are started at once, but with a load profile
+     * or a churn the run goes on without it.
+     */
+    private boolean exitOnStartFailure = true;
+
+    /**
+     * Whether a fake user couldn't be started while
+     * <tt>exitOnStartFailure</tt> : no more users are started, and the
+     * program exits once the users being started are done.
+     */
+    private volatile boolean startAborted = false;
 
     /**
      * The <tt>HammerStats/tt> that will be used by this <tt>Hammer</tt>
@@ -181,6 +282,81 @@ public class Hammer
      */
     private boolean started = false;
 
+    /**
+     * Whether the <tt>HammerStats</tt> record all the stats in a binary file.
+     */
+    private boolean binaryStats = false;
+
+    /**
+     * The interval (in seconds) between two pings keeping the connection of
+     * a <tt>FakeUser</tt> alive.
+     */
+    private int pingInterval = 15;
+
+    /**
+     * The <tt>KeepAliveScheduler</tt> sending the pings of all the
+     * <tt>FakeUser</tt>s, created with the first connection.
+     */
+    private KeepAliveScheduler keepAliveScheduler;
+
+    /**
+     * The <tt>ScheduledExecutorService</tt> on which the <tt>FakeUser</tt>s
+     * wait for the end of their ICE connectivity establishment and start
+     * their media, instead of blocking the threads of Smack.
+     */
+    private ScheduledExecutorService iceScheduler;
+
+    /**
+     * The port of the <tt>MetricsServer</tt> of this <tt>Hammer</tt>, or 0
+     * if the metrics aren't served.
+     */
+    private int metricsPort = 0;
+
+    /**
+     * Whether the fake users multiplex the RTP and RTCP of each of their
+     * streams on a single port, when the focus offers it.
+     */
+    private boolean rtcpMux = false;
+
+    /**
+     * The <tt>MetricsServer</tt> serving the live metrics of this
+     * <tt>Hammer</tt>, or <tt>null</tt>.
+     */
+    private MetricsServer metricsServer;
+
+    /**
+     * The number of ICE establishments of the fake users that succeeded.
+     */
+    private final AtomicLong iceSuccessCount = new AtomicLong();
+
+    /**
+     * The number of ICE establishments of the fake users that failed.
+     */
+    private final AtomicLong iceFailureCount = new AtomicLong();
+
+    /**
+     * The latencies of the phases of the join of the fake users.
+     */
+    private final JoinLatencyStats joinLatencyStats = new JoinLatencyStats();
+
+    /**
+     * The receive side stats of the fake users, or <tt>null</tt> if they
+     * aren't computed.
+     */
+    private ReceiveStats receiveStats = null;
+
+    /**
+     * The options of the RTCP sent by the streams of the fake users, or
+     * <tt>null</tt> if they don't send RTCP.
+     */
+    private RtcpOptions rtcpOptions = null;
+
+    /**
+     * The <tt>ImpairmentProfile</tt> giving the impairments of the packets
+     * sent by each fake user, or <tt>null</tt> if they aren't impaired.
+     */
+    private ImpairmentProfile impairmentProfile = null;
+
 
     /**
      * Instantiate a <tt>Hammer</tt> object with <tt>numberOfUser</tt> virtual
@@ -192,11 +368,12 @@ public class Hammer
      * @param mdc The media device chooser instance
      * @param nickname The base of the nickname used by all the virtual users.
      * @param numberOfUser The number of virtual users this <tt>Hammer</tt>
+     * will create and handle (more users can be added later by a
+     * <tt>LoadProfile</tt>).
      * @param conferenceInfo The information 
      *                       regarding the conference properties 
      *                       \for the video conference to be initiated
      * @param disableStats whether statistics should be disabled.
-     * will create and handle.
      */
     public Hammer(
             HostInfo host, 
@@ -211,23 +388,301 @@ public class Hammer
         this.serverInfo = host;
         this.conferenceInfo = conferenceInfo;
         this.mediaDeviceChooser = mdc;
-        fakeUsers = new FakeUser[numberOfUser];
         if (!disableStats)
             hammerStats = new HammerStats();
 
-        for(int i = 0; i<fakeUsers.length; i++)
+        for(int i = 0; i<numberOfUser; i++)
         {
-            fakeUsers[i] = new FakeUser(
+            createFakeUser();
+        }
+        logger.info(String.format("Hammer created : %d fake users were created"
+            + " with a base nickname %s", numberOfUser, nickname));
+    }
+
+    /**
+     * Create a new <tt>FakeUser</tt> with a unique nickname and add it to the
+     * users handled by this <tt>Hammer</tt>.
+     *
+     * @return the new <tt>FakeUser</tt>.
+     */
+    private FakeUser createFakeUser()
+    {
+        synchronized (fakeUsers)
+        {
+            return createFakeUser(createdUsersCount);
+        }
+    }
+
+    /**
+     * Create a new <tt>FakeUser</tt> with a unique nickname and a given
+     * index, and add it to the users handled by this <tt>Hammer</tt>. A user
+     * replacing another one takes its index, so that the settings depending
+     * on the index of the users (like the impairment cohorts or the media
+     * offsets) keep describing the same range of users.
+     *
+     * @param userIndex the index of the new user.
+     * @return the new <tt>FakeUser</tt>.
+     */
+    private FakeUser createFakeUser(int userIndex)
+    {
+        synchronized (fakeUsers)
+        {
+            FakeUser user = new FakeUser(
                 this,
                 this.mediaDeviceChooser,
-                this.nickname+"_"+i,
+                this.nickname+"_"+createdUsersCount,
+                userIndex,
                 (hammerStats != null));
+            createdUsersCount++;
+            fakeUsers.add(user);
+            return user;
         }
-        logger.info(String.format("Hammer created : %d fake users were created"
-            + " with a base nickname %s", numberOfUser, nickname));
     }
 
+    /**
+     * Set the <tt>LoadProfile</tt> that this <tt>Hammer</tt> will follow once
+     * started, instead of starting all its fake users at once.
+     *
+     * @param loadProfile the <tt>LoadProfile</tt> to follow, or <tt>null</tt>.
+     */
+    public void setLoadProfile(LoadProfile loadProfile)
+    {
+        this.loadProfile = loadProfile;
+    }
+
+    /**
+     * Enable or disable the recording of all the stats collected by the
+     * <tt>HammerStats</tt> in a compact binary file, converted offline by
+     * <tt>BinaryStatsConverter</tt>. It must be called before the
+     * <tt>Hammer</tt> is started.
+     *
+     * @param binaryStats whether the stats are recorded in a binary file.
+     */
+    public void setBinaryStats(boolean binaryStats)
+    {
+        this.binaryStats = binaryStats;
+    }
+
+    /**
+     * Set whether the fake users multiplex the RTP and RTCP of each of their
+     * streams on a single port, when the focus offers it.
+     *
+     * @param rtcpMux <tt>true</tt> to multiplex RTP and RTCP.
+     */
+    public void setRtcpMux(boolean rtcpMux)
+    {
+        this.rtcpMux = rtcpMux;
+    }
+
+    /**
+     * Tell if the fake users multiplex the RTP and RTCP of each of their
+     * streams on a single port, when the focus offers it.
+     *
+     * @return <tt>true</tt> if RTP and RTCP are multiplexed.
+     */
+    public boolean getRtcpMux()
+    {
+        return rtcpMux;
+    }
+
+    /**
+     * Set whether the fake users compute receive side stats from the
+     * headers of the packets they receive, instead of handing the packets
+     * to their <tt>MediaStream</tt>s.
+     *
+     * @param receiveStats <tt>true</tt> to compute the receive side stats.
+     */
+    public void setReceiveStats(boolean receiveStats)
+    {
+        this.receiveStats = receiveStats ? new ReceiveStats() : null;
+    }
+
+    /**
+     * Get the <tt>ReceiveStats</tt> to which the fake users add the
+     * <tt>ReceiveStreamStats</tt> of their streams.
+     *
+     * @return the <tt>ReceiveStats</tt> of this <tt>Hammer</tt>, or
+     * <tt>null</tt> if the receive side stats aren't computed.
+     */
+    public ReceiveStats getReceiveStats()
+    {
+        return receiveStats;
+    }
+
+    /**
+     * Set the options of the RTCP sent by a <tt>RtcpGenerator</tt> on each
+     * stream of the fake users.
+     *
+     * @param rtcpOptions the options of the RTCP, or <tt>null</tt> to send
+     * none.
+     */
+    public void setRtcpOptions(RtcpOptions rtcpOptions)
+    {
+        this.rtcpOptions = rtcpOptions;
+    }
+
+    /**
+     * Get the options of the RTCP sent by the streams of the fake users.
+     *
+     * @return the <tt>RtcpOptions</tt>, or <tt>null</tt> if the fake users
+     * don't send RTCP.
+     */
+    public RtcpOptions getRtcpOptions()
+    {
+        return rtcpOptions;
+    }
+
+    /**
+     * Set the <tt>ImpairmentProfile</tt> giving the network impairments of
+     * the packets sent by each fake user.
+     *
+     * @param impairmentProfile the <tt>ImpairmentProfile</tt>, or
+     * <tt>null</tt> to send the packets untouched.
+     */
+    public void setImpairmentProfile(ImpairmentProfile impairmentProfile)
+    {
+        this.impairmentProfile = impairmentProfile;
+    }
+
+    /**
+     * Get the <tt>ImpairmentProfile</tt> giving the network impairments of
+     * the packets sent by each fake user.
+     *
+     * @return the <tt>ImpairmentProfile</tt>, or <tt>null</tt> if the
+     * packets aren't impaired.
+     */
+    public ImpairmentProfile getImpairmentProfile()
+    {
+        return impairmentProfile;
+    }
+
+    /**
+     * Set the port on which the live metrics of this <tt>Hammer</tt> are
+     * served by a <tt>MetricsServer</tt> once started.
+     *
+     * @param metricsPort the port of the <tt>MetricsServer</tt>, or 0 to
+     * disable it.
+     */
+    public void setMetricsPort(int metricsPort)
+    {
+        this.metricsPort = metricsPort;
+    }
+
+    /**
+     * Notify this <tt>Hammer</tt> that the ICE establishment of one of its
+     * <tt>FakeUser</tt>s is done.
+     *
+     * @param success <tt>true</tt> if ICE completed, <tt>false</tt> if it
+     * failed or timed out.
+     */
+    public void iceDone(boolean success)
+    {
+        if (success)
+            iceSuccessCount.incrementAndGet();
+        else
+            iceFailureCount.incrementAndGet();
+    }
+
+    /**
+     * Get the <tt>JoinLatencyStats</tt> in which the fake users record the
+     * latencies of the phases of their join.
+     *
+     * @return the <tt>JoinLatencyStats</tt> of this <tt>Hammer</tt>.
+     */
+    public JoinLatencyStats getJoinLatencyStats()
+    {
+        return joinLatencyStats;
+    }
+
+    /**
+     * Get the number of ICE establishments of the fake users that succeeded.
+     *
+     * @return the number of successful ICE establishments.
+     */
+    public long getIceSuccessCount()
+    {
+        return iceSuccessCount.get();
+    }
 
+    /**
+     * Get the number of ICE establishments of the fake users that failed.
+     *
+     * @return the number of failed ICE establishments.
+     */
+    public long getIceFailureCount()
+    {
+        return iceFailureCount.get();
+    }
+
+    /**
+     * Set the interval between two pings keeping the connection of a
+     * <tt>FakeUser</tt> alive.
+     *
+     * @param pingInterval the interval between two pings, in seconds.
+     */
+    public void setPingInterval(int pingInterval)
+    {
+        this.pingInterval = pingInterval;
+    }
+
+    /**
+     * Get the <tt>KeepAliveScheduler</tt> sending the pings of all the
+     * <tt>FakeUser</tt>s, creating it if needed.
+     *
+     * @return the <tt>KeepAliveScheduler</tt> of this <tt>Hammer</tt>.
+     */
+    public synchronized KeepAliveScheduler getKeepAliveScheduler()
+    {
+        if (keepAliveScheduler == null)
+        {
+            keepAliveScheduler
+                = new KeepAliveScheduler(pingInterval * 1000L);
+        }
+        return keepAliveScheduler;
+    }
+
+    /**
+     * Get the <tt>ScheduledExecutorService</tt> on which the
+     * <tt>FakeUser</tt>s time out their ICE connectivity establishment and
+     * start their media, creating it if needed. It has one thread per
+     * processor, so that many ICE establishments can end at the same time.
+     *
+     * @return the ICE scheduler of this <tt>Hammer</tt>.
+     */
+    public synchronized ScheduledExecutorService getIceScheduler()
+    {
+        if (iceScheduler == null)
+        {
+            final AtomicInteger threadCount = new AtomicInteger();
+
+            iceScheduler = Executors.newScheduledThreadPool(
+                Runtime.getRuntime().availableProcessors(),
+                new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(
+                            r,
+                            "Hammer-ICE-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return iceScheduler;
+    }
+
+    /**
+     * Set the fraction of the fake users that will be replaced every second
+     * by fresh ones once this <tt>Hammer</tt> is started.
+     *
+     * @param churnRate the fraction (between 0 and 1) of the fake users
+     * replaced every second, or 0 to disable the churn.
+     */
+    public void setChurnRate(double churnRate)
+    {
+        this.churnRate = churnRate;
+    }
 
     /**
      * Initialize the Hammer by launching the OSGi Framework and
@@ -337,8 +792,13 @@ public class Hammer
      * handles to the XMPP server(and then a MUC), using the <tt>Credential</tt>
      * given as arguments for the login.
      *
-     * @param wait the number of milliseconds the Hammer will wait during the
-     * start of two consecutive fake users.
+     * The fake users are started by a <tt>RampUpEngine</tt> : up to
+     * <tt>concurrentStarts</tt> of them connect, login and join the MUC at the
+     * same time, and they are started at <tt>arrivalRate</tt> users per second.
+     *
+     * @param arrivalRate the number of fake users started per second.
+     * @param concurrentStarts the maximum number of fake users being started
+     * at the same time.
      * @param credentials a list of <tt>Credentials</tt> used for the login
      * of the fake users.
      * @param overallStats enable or not the logging of the overall stats
@@ -352,125 +812,561 @@ public class Hammer
      * by the <tt>HammerStats</tt> run method.
      */
     public void start(
-        int wait,
+        double arrivalRate,
+        int concurrentStarts,
         List<Credential> credentials,
         boolean overallStats,
         boolean allStats,
         boolean summaryStats,
         int statsPollingTime)
     {
-        if(wait <= 0) wait = 1;
         if(started)
         {
             logger.warn("Hammer already started");
             return;
         }
-        
 
-        if (credentials != null)
-            startUsersWithCredentials(credentials, wait);
-        else
-            startUsersAnonymous(wait);
+        this.credentials = credentials;
+        this.exitOnStartFailure = (loadProfile == null && churnRate <= 0);
+        startMetricsServer();
+
+        if (loadProfile != null)
+        {
+            startLoadProfile(
+                concurrentStarts,
+                overallStats,
+                allStats,
+                summaryStats,
+                statsPollingTime);
+            if (churnRate > 0)
+                startChurn();
+            return;
+        }
+
+        RampUpEngine rampUpEngine
+            = new RampUpEngine(concurrentStarts, arrivalRate);
+        long rampUpStart = System.currentTimeMillis();
+
+        try
+        {
+            if (credentials != null)
+                startUsersWithCredentials(rampUpEngine, credentials);
+            else
+                startUsersAnonymous(rampUpEngine);
+            rampUpEngine.awaitCompletion();
+        }
+        catch (InterruptedException e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            rampUpEngine.shutdown();
+        }
+
+        long rampUpLength = System.currentTimeMillis() - rampUpStart;
+        logger.info(String.format("Ramp-up of %d fake users done in %dms"
+            + " (%.2f users/s, %d failed)",
+            rampUpEngine.getSubmittedCount(),
+            rampUpLength,
+            rampUpEngine.getSubmittedCount() * 1000D
+                / Math.max(rampUpLength, 1),
+            rampUpEngine.getFailedCount()));
+
+        if (startAborted)
+        {
+            logger.fatal("A fake user couldn't be started, exiting");
+            System.exit(1);
+        }
+
         this.started = true;
         logger.info("The Hammer has correctly been started");
 
         if (!disableStats)
             startStats(overallStats, allStats, summaryStats, statsPollingTime);
+
+        if (churnRate > 0)
+        {
+            this.rampUpEngine = new RampUpEngine(concurrentStarts, 0);
+            startChurn();
+        }
     }
 
     /**
      * Start all users using authenticated login.
      *
+     * @param rampUpEngine the <tt>RampUpEngine</tt> used to start the fake
+     * users.
      * @param credentials a list of <tt>Credentials</tt> used for the login of
      * the fake users.
-     * @param wait the number of milliseconds the Hammer will wait during the
-     * start of two consecutive fake users.
+     * @throws InterruptedException if the current thread is interrupted while
+     * waiting for the <tt>RampUpEngine</tt>.
      */
-    private void startUsersWithCredentials(List<Credential> credentials, int wait)
+    private void startUsersWithCredentials(
+            RampUpEngine rampUpEngine,
+            List<Credential> credentials)
+        throws InterruptedException
     {
         logger.info("Starting the Hammer : starting all FakeUsers "
                             + "with username/password login");
+        Iterator<FakeUser> userIt = getFakeUsers().iterator();
+        Iterator<Credential> credIt = credentials.iterator();
+
+        while(credIt.hasNext() && userIt.hasNext() && !startAborted)
+        {
+            final FakeUser user = userIt.next();
+            final Credential credential = credIt.next();
+
+            rampUpEngine.submit(new Callable<Boolean>()
+            {
+                public Boolean call()
+                {
+                    return startFakeUser(user, credential);
+                }
+            });
+        }
+    }
+
+    /**
+     * Start all fake users with anonymous login.
+     *
+     * @param rampUpEngine the <tt>RampUpEngine</tt> used to start the fake
+     * users.
+     * @throws InterruptedException if the current thread is interrupted while
+     * waiting for the <tt>RampUpEngine</tt>.
+     */
+    private void startUsersAnonymous(RampUpEngine rampUpEngine)
+        throws InterruptedException
+    {
+        logger.info("Starting the Hammer : starting all "
+                            + "FakeUsers with anonymous login");
+        for(final FakeUser user : getFakeUsers())
+        {
+            if (startAborted)
+                break;
+            rampUpEngine.submit(new Callable<Boolean>()
+            {
+                public Boolean call()
+                {
+                    return startFakeUser(user, null);
+                }
+            });
+        }
+    }
+
+    /**
+     * Start a fake user (connection to the XMPP server, login and join of the
+     * MUC) and register its stats to the <tt>HammerStats</tt>. If it fails
+     * while <tt>exitOnStartFailure</tt>, the start of the other users is
+     * aborted.
+     *
+     * @param user the <tt>FakeUser</tt> to start.
+     * @param credential the <tt>Credential</tt> used for the login of the fake
+     * user, or <tt>null</tt> to login anonymously.
+     * @return <tt>true</tt> if the fake user was started, <tt>false</tt>
+     * otherwise.
+     */
+    private boolean startFakeUser(FakeUser user, Credential credential)
+    {
+        boolean success = false;
+
+        synchronized (userCredentials)
+        {
+            if (credential != null)
+                userCredentials.put(user, credential);
+        }
         try
         {
-            Iterator<FakeUser> userIt = Arrays.asList(fakeUsers).iterator();
-            Iterator<Credential> credIt = credentials.iterator();
-            FakeUser user = null;
             FakeUserStats userStats;
-            Credential credential = null;
 
-            while(credIt.hasNext() && userIt.hasNext())
+            if (credential != null)
+                user.start(credential.getUsername(), credential.getPassword());
+            else
+                user.start();
+            if (hammerStats != null
+                    && (userStats = user.getFakeUserStats()) != null)
+                hammerStats.addFakeUsersStats(userStats);
+            synchronized (fakeUsers)
             {
-                user = userIt.next();
-                credential = credIt.next();
-
-                user.start(credential.getUsername(),credential.getPassword());
-                if (hammerStats != null
-                        && (userStats = user.getFakeUserStats()) != null)
-                    hammerStats.addFakeUsersStats(userStats);
-                Thread.sleep(wait);
+                connectedUsers.add(user);
             }
+            success = true;
         }
         catch (XMPPException e)
         {
             e.printStackTrace();
-            System.exit(1);
         }
         catch (IOException e)
         {
             e.printStackTrace();
         }
-        catch (InterruptedException e)
+        catch (SmackException e)
         {
             e.printStackTrace();
         }
-        catch (SmackException e)
+        finally
         {
-            e.printStackTrace();
-            System.exit(1);
+            synchronized (fakeUsers)
+            {
+                startingUsers.remove(user);
+            }
         }
+        // The program isn't exited from here, while other users are being
+        // started on the other threads of the RampUpEngine.
+        if (!success && exitOnStartFailure)
+            startAborted = true;
+        return success;
     }
 
     /**
-     * Start all fake users with anonymous login.
-     * @param wait the number of milliseconds the Hammer will wait during the
-     * start of two consecutive fake users.
+     * Start the <tt>ChurnScheduler</tt> that will recycle the fake users of
+     * this <tt>Hammer</tt>.
      */
-    private void startUsersAnonymous(int wait)
+    private void startChurn()
     {
-        logger.info("Starting the Hammer : starting all "
-                            + "FakeUsers with anonymous login");
-        try
+        churnScheduler = new ChurnScheduler(this, churnRate);
+        churnThread = new Thread(churnScheduler, "ChurnScheduler");
+        churnThread.start();
+    }
+
+    /**
+     * Replace <tt>count</tt> fake users, chosen randomly among the ones
+     * already started, by fresh ones : each chosen user is stopped (it leaves
+     * the MUC and disconnects), and a new user goes through the whole start
+     * path with the same <tt>Credential</tt> and user index. The number of
+     * users doesn't change.
+     *
+     * The replacements are run by the <tt>RampUpEngine</tt> of this
+     * <tt>Hammer</tt>, so this method blocks while all its slots are busy.
+     *
+     * @param count the number of fake users to replace.
+     * @return the number of replacements actually submitted, which is lower
+     * than <tt>count</tt> when there aren't enough users started.
+     * @throws InterruptedException if the current thread is interrupted while
+     * waiting for the <tt>RampUpEngine</tt>.
+     */
+    public int churnUsers(int count)
+        throws InterruptedException
+    {
+        int submitted = 0;
+
+        List<FakeUser> candidates = new ArrayList<FakeUser>();
+
+        synchronized (fakeUsers)
         {
-            for(FakeUser user : fakeUsers)
+            for (FakeUser user : fakeUsers)
             {
-                FakeUserStats userStats;
-                user.start();
-                if (hammerStats != null
-                        && (userStats = user.getFakeUserStats()) != null)
-                    hammerStats.addFakeUsersStats(userStats);
-                Thread.sleep(wait);
+                if (!startingUsers.contains(user))
+                    candidates.add(user);
             }
         }
-        catch (XMPPException e)
+        Collections.shuffle(candidates);
+
+        for (int i = 0; i < count && i < candidates.size(); i++)
         {
-            e.printStackTrace();
-            System.exit(1);
+            final FakeUser oldUser = candidates.get(i);
+            final FakeUser newUser;
+            final Credential credential;
+
+            synchronized (fakeUsers)
+            {
+                // The user may have been removed by the load profile.
+                if (!fakeUsers.remove(oldUser))
+                    continue;
+                newUser = createFakeUser(oldUser.getUserIndex());
+                startingUsers.add(newUser);
+            }
+            synchronized (userCredentials)
+            {
+                credential = userCredentials.remove(oldUser);
+            }
+
+            rampUpEngine.submit(new Callable<Boolean>()
+            {
+                public Boolean call()
+                {
+                    stopFakeUser(oldUser);
+
+                    long joinStart = System.currentTimeMillis();
+                    boolean success = startFakeUser(newUser, credential);
+
+                    churnScheduler.joinDone(
+                        success,
+                        System.currentTimeMillis() - joinStart);
+                    if (!success)
+                    {
+                        // Its connection, streams and Agent were created
+                        // with it.
+                        synchronized (fakeUsers)
+                        {
+                            fakeUsers.remove(newUser);
+                        }
+                        stopFakeUser(newUser);
+                    }
+                    return success;
+                }
+            });
+            submitted++;
         }
-        catch (IOException e)
+        return submitted;
+    }
+
+    /**
+     * Start the <tt>HammerStats</tt> and the <tt>LoadProfileRunner</tt> that
+     * will add and remove fake users according to the <tt>LoadProfile</tt>
+     * of this <tt>Hammer</tt>.
+     *
+     * @param concurrentStarts the maximum number of fake users being started
+     * at the same time.
+     * @param overallStats enable or not the logging of the overall stats
+     * computed at the end of the run.
+     * @param allStats enable or not the logging of the all the stats collected
+     * by the <tt>HammerStats</tt> during the run.
+     * @param summaryStats enable or not the logging of the summary stats
+     * computed from all the streams' stats collected by the
+     * <tt>HammerStats</tt> during the run.
+     * @param statsPollingTime the number of seconds between two polling of stats
+     * by the <tt>HammerStats</tt> run method.
+     */
+    private void startLoadProfile(
+        int concurrentStarts,
+        boolean overallStats,
+        boolean allStats,
+        boolean summaryStats,
+        int statsPollingTime)
+    {
+        logger.info("Starting the Hammer with the load profile "
+            + loadProfile + " (peak of " + loadProfile.getPeakUsers()
+            + " users in " + loadProfile.getDuration() / 1000 + "s)");
+
+        /*
+         * The pace of the arrivals is given by the load profile, so the
+         * RampUpEngine only bounds the number of concurrent starts.
+         */
+        rampUpEngine = new RampUpEngine(concurrentStarts, 0);
+        stopExecutor = Executors.newFixedThreadPool(
+            Math.max(concurrentStarts, 1),
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "FakeUserStopper");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+        this.started = true;
+
+        if (!disableStats)
+            startStats(overallStats, allStats, summaryStats, statsPollingTime);
+
+        loadProfileRunner = new LoadProfileRunner(this, loadProfile);
+        loadProfileThread = new Thread(loadProfileRunner, "LoadProfileRunner");
+        loadProfileThread.start();
+    }
+
+    /**
+     * Wait until the <tt>LoadProfile</tt> of this <tt>Hammer</tt> is
+     * finished. Return immediately if this <tt>Hammer</tt> doesn't follow a
+     * <tt>LoadProfile</tt>.
+     *
+     * @throws InterruptedException if the current thread is interrupted while
+     * waiting.
+     */
+    public void waitForLoadProfile()
+        throws InterruptedException
+    {
+        if (loadProfileThread != null)
+            loadProfileThread.join();
+    }
+
+    /**
+     * Get a copy of the list of the <tt>FakeUser</tt>s handled by this
+     * <tt>Hammer</tt>, in their order of creation.
+     *
+     * @return a copy of the list of the <tt>FakeUser</tt>s of this
+     * <tt>Hammer</tt>.
+     */
+    private List<FakeUser> getFakeUsers()
+    {
+        synchronized (fakeUsers)
         {
-            e.printStackTrace();
+            return new ArrayList<FakeUser>(fakeUsers);
         }
-        catch (InterruptedException e)
+    }
+
+    /**
+     * Get the number of <tt>FakeUser</tt>s handled by this <tt>Hammer</tt>,
+     * including the ones whose start is still in progress.
+     *
+     * @return the number of <tt>FakeUser</tt>s handled by this
+     * <tt>Hammer</tt>.
+     */
+    public int getUserCount()
+    {
+        synchronized (fakeUsers)
         {
-            e.printStackTrace();
+            return fakeUsers.size();
         }
-        catch (SmackException e)
+    }
+
+    /**
+     * Get the number of <tt>FakeUser</tt>s whose start succeeded and which
+     * haven't been stopped since.
+     *
+     * @return the number of connected <tt>FakeUser</tt>s.
+     */
+    public int getConnectedUserCount()
+    {
+        synchronized (fakeUsers)
         {
-            e.printStackTrace();
-            System.exit(1);
+            return connectedUsers.size();
+        }
+    }
+
+    /**
+     * Create and start <tt>count</tt> new fake users. The users are started by
+     * the <tt>RampUpEngine</tt> of this <tt>Hammer</tt>, so this method
+     * returns once their start has begun, not once they have joined the MUC.
+     *
+     * The n-th user created by this <tt>Hammer</tt> logs in with the n-th
+     * <tt>Credential</tt> given to {@link #start}, or anonymously if there
+     * aren't enough of them.
+     *
+     * @param count the number of fake users to add.
+     * @throws InterruptedException if the current thread is interrupted while
+     * waiting for the <tt>RampUpEngine</tt>.
+     */
+    public void addUsers(int count)
+        throws InterruptedException
+    {
+        if (rampUpEngine == null)
+        {
+            logger.warn("Can't add users : the Hammer has no load profile");
+            return;
+        }
+
+        for (int i = 0; i < count; i++)
+        {
+            final FakeUser user;
+            final Credential credential;
+
+            synchronized (fakeUsers)
+            {
+                int index = createdUsersCount;
+
+                user = createFakeUser();
+                startingUsers.add(user);
+                credential = (credentials != null && index < credentials.size())
+                    ? credentials.get(index)
+                    : null;
+            }
+
+            rampUpEngine.submit(new Runnable()
+            {
+                public void run()
+                {
+                    startFakeUser(user, credential);
+                }
+            });
+        }
+    }
+
+    /**
+     * Stop and remove up to <tt>count</tt> fake users, the most recently
+     * created first. The users whose start is still in progress are not
+     * removed. The users are stopped asynchronously.
+     *
+     * @param count the number of fake users to remove.
+     * @return the number of fake users actually removed.
+     */
+    public int removeUsers(int count)
+    {
+        List<FakeUser> removedUsers = new ArrayList<FakeUser>();
+
+        synchronized (fakeUsers)
+        {
+            ListIterator<FakeUser> it
+                = fakeUsers.listIterator(fakeUsers.size());
+
+            while (it.hasPrevious() && removedUsers.size() < count)
+            {
+                FakeUser user = it.previous();
+
+                if (!startingUsers.contains(user))
+                {
+                    it.remove();
+                    removedUsers.add(user);
+                }
+            }
+        }
+
+        for (final FakeUser user : removedUsers)
+        {
+            Runnable stopTask = new Runnable()
+            {
+                public void run()
+                {
+                    stopFakeUser(user);
+                }
+            };
+
+            if (stopExecutor != null)
+                stopExecutor.execute(stopTask);
+            else
+                stopTask.run();
         }
+        return removedUsers.size();
+    }
+
+    /**
+     * Unregister the stats of a fake user from the <tt>HammerStats</tt>, and
+     * stop it.
+     *
+     * @param user the <tt>FakeUser</tt> to stop.
+     */
+    private void stopFakeUser(FakeUser user)
+    {
+        FakeUserStats userStats;
 
+        if (hammerStats != null
+                && (userStats = user.getFakeUserStats()) != null)
+            hammerStats.removeFakeUsersStats(userStats);
+        synchronized (userCredentials)
+        {
+            userCredentials.remove(user);
+        }
+        synchronized (fakeUsers)
+        {
+            connectedUsers.remove(user);
+        }
+        user.stop();
     }
+
+    /**
+     * Start the <tt>MetricsServer</tt> serving the live metrics of this
+     * <tt>Hammer</tt>, if a port was set. The run goes on without it if it
+     * can't be started.
+     */
+    private void startMetricsServer()
+    {
+        if (metricsPort <= 0)
+            return;
+
+        MetricsServer server = new MetricsServer(this, metricsPort);
+        try
+        {
+            server.start();
+            metricsServer = server;
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to start the metrics server on port "
+                + metricsPort, e);
+        }
+    }
+
     /**
      * Start the <tt>HammerStats</tt> used by this <tt>Hammer</tt> to keep track
      * of the streams stats.
@@ -493,11 +1389,17 @@ public class Hammer
     {
         logger.info(String.format("Starting the HammerStats with "
             + "(overall stats : %s), "
-            + "(summary stats : %s), (all stats : %s) and a polling of %dsec",
-            overallStats, summaryStats, allStats, statsPollingTime));
+            + "(summary stats : %s), (all stats : %s), (binary stats : %s)"
+            + " and a polling of %dsec",
+            overallStats, summaryStats, allStats, binaryStats,
+            statsPollingTime));
         hammerStats.setOverallStatsLogging(overallStats);
+        hammerStats.setBinaryStatsLogging(binaryStats);
         hammerStats.setAllStatsLogging(allStats);
         hammerStats.setSummaryStatsLogging(summaryStats);
+        hammerStats.setMetricsServer(metricsServer);
+        hammerStats.setJoinLatencyStats(joinLatencyStats);
+        hammerStats.setReceiveStats(receiveStats);
         hammerStats.setTimeBetweenUpdate(statsPollingTime);
         hammerStatsThread = new Thread(hammerStats);
         hammerStatsThread.start();
@@ -517,12 +1419,79 @@ public class Hammer
             return;
         }
 
+        if (churnScheduler != null)
+        {
+            logger.info("Stopping the ChurnScheduler");
+            churnScheduler.stop();
+            churnThread.interrupt();
+            try
+            {
+                churnThread.join();
+            }
+            catch (InterruptedException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        if (loadProfileRunner != null)
+        {
+            logger.info("Stopping the LoadProfileRunner");
+            loadProfileRunner.stop();
+            loadProfileThread.interrupt();
+            try
+            {
+                loadProfileThread.join();
+            }
+            catch (InterruptedException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        if (rampUpEngine != null)
+        {
+            rampUpEngine.shutdown();
+            try
+            {
+                rampUpEngine.awaitCompletion();
+            }
+            catch (InterruptedException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        if (stopExecutor != null)
+        {
+            stopExecutor.shutdown();
+            try
+            {
+                stopExecutor.awaitTermination(30, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                e.printStackTrace();
+            }
+        }
+
         logger.info("Stoppig the Hammer : stopping all FakeUser");
-        for(FakeUser user : fakeUsers)
+        for(FakeUser user : getFakeUsers())
         {
             user.stop();
         }
 
+        synchronized (this)
+        {
+            if (keepAliveScheduler != null)
+            {
+                keepAliveScheduler.stop();
+                keepAliveScheduler = null;
+            }
+            if (iceScheduler != null)
+            {
+                iceScheduler.shutdownNow();
+                iceScheduler = null;
+            }
+        }
+
         /*
          * Stop the thread of the HammerStats, without using the Thread
          * instance hammerStatsThread, to allow it to cleanly stop.
@@ -541,6 +1510,20 @@ public class Hammer
             e.printStackTrace();
         }
 
+        if (SharedApacheHTTPSender.isInstalled())
+            logger.info(SharedApacheHTTPSender.getUtilization());
+        logger.info(joinLatencyStats);
+        if (receiveStats != null)
+            logger.info(receiveStats);
+        logger.info(IceMediaStreamGenerator.getInstance()
+            .getPortRangeAllocator().getUtilization());
+
+        if (metricsServer != null)
+        {
+            metricsServer.stop();
+            metricsServer = null;
+        }
+
         this.started = false;
         logger.info("The Hammer has been correctly stopped");
     }
@@ -24,6 +24,11 @@ import java.util.List;
 import net.java.sip.communicator.impl.protocol.jabber.*;
 import net.java.sip.communicator.service.protocol.jabber.*;
 
+import com.kenai.jbosh.*;
+
+import org.jitsi.hammer.impairment.*;
+import org.jitsi.hammer.load.*;
+import org.jitsi.hammer.media.*;
 import org.jitsi.hammer.utils.*;
 import org.kohsuke.args4j.*;
 
@@ -168,6 +173,20 @@ public class Main
     }
 
 
+    /**
+     * Print an error message followed by the usage of the options, and
+     * exit.
+     * @param parser the <tt>CmdLineParser</tt> of the options.
+     * @param message the error message.
+     */
+    private static void usageError(CmdLineParser parser, String message)
+    {
+        System.out.println(message + '\n');
+        System.out.println("Jitsi-Hammer options usage :");
+        parser.printUsage(System.out);
+        System.exit(1);
+    }
+
     public static void main(String[] args)
         throws InterruptedException
     {
@@ -211,35 +230,45 @@ public class Main
         }
         catch(CmdLineException e)
         {
-            if(infoCLI.getHelpOption())
-            {
-                System.out.println("Required options of the program :");
-
-                System.out.println("-BOSHuri\n");
-            }
-            else
-            {
-                System.out.println(e.getMessage() + '\n');
-            }
-            System.out.println("Jitsi-Hammer options usage :");
-            parser.printUsage(System.out);
-            System.exit(1);
+            usageError(parser, infoCLI.getHelpOption()
+                ? "Required options of the program :\n-BOSHuri"
+                : e.getMessage());
         }
         if(infoCLI.getHelpOption())
         {
-            System.out.println("Required options of the program :");
-            System.out.println("-BOSHUri\n");
-            System.out.println("Jitsi-Hammer options usage :");
-            parser.printUsage(System.out);
-            System.exit(1);
+            usageError(parser, "Required options of the program :\n-BOSHUri");
         }
 
         // Set Smack interoperation to support Smackv4
         AbstractSmackInteroperabilityLayer
                 .setImplementationClass(SmackV4InteroperabilityLayer.class);
         
+        LoadProfile loadProfile = null;
+        PortRangeAllocator portRangeAllocator = null;
+        RtcpOptions rtcpOptions = null;
+        ImpairmentProfile impairmentProfile = null;
+        try
+        {
+            infoCLI.validate();
+            loadProfile = infoCLI.getLoadProfile();
+            portRangeAllocator = infoCLI.getPortRangeAllocator();
+            rtcpOptions = infoCLI.getRtcpOptions();
+            impairmentProfile = infoCLI.getImpairmentProfile();
+        }
+        catch(IllegalArgumentException e)
+        {
+            usageError(parser, e.getMessage());
+        }
+
+        if(portRangeAllocator != null)
+        {
+            IceMediaStreamGenerator.getInstance()
+                .setPortRangeAllocator(portRangeAllocator);
+        }
+
         //We call initialize the Hammer (registering OSGi bundle for example)
         Hammer.init();
+        Hammer runningHammer = null;
         try
         {
             HostInfo hostInfo = infoCLI.getHostInfoFromArguments();
@@ -249,6 +278,25 @@ public class Main
             int numberOfFakeUsers = infoCLI.getNumberOfFakeUsers();
             List<Credential> credentials = infoCLI.getCredentialsList();
             if(credentials.size() > 0) numberOfFakeUsers = credentials.size();
+            //The shared BOSH pool must be installed before any BOSH session.
+            //Each session keeps up to 2 long-polling requests in flight,
+            //which starve if the pool is smaller.
+            if(infoCLI.getBOSHPoolSize() > 0
+                && infoCLI.getTransport() == XMPPTransport.BOSH)
+            {
+                int peakUsers = (loadProfile != null)
+                    ? loadProfile.getPeakUsers()
+                    : numberOfFakeUsers;
+                if(infoCLI.getBOSHPoolSize() < 2 * peakUsers)
+                {
+                    usageError(parser, "-boshpool must be at least twice the"
+                        + " number of users (" + 2 * peakUsers + ")");
+                }
+                SharedApacheHTTPSender.install(infoCLI.getBOSHPoolSize());
+            }
+            //With a load profile, the users are created by the Hammer
+            //while it follows the profile
+            if(loadProfile != null) numberOfFakeUsers = 0;
             ConferenceInfo conferenceInfo = 
                     infoCLI.getConferenceInfoFromArguments();
 
@@ -259,7 +307,16 @@ public class Main
                 numberOfFakeUsers,
                     conferenceInfo,
                     infoCLI.getDisableStats());
-
+            hammer.setLoadProfile(loadProfile);
+            hammer.setChurnRate(infoCLI.getChurnRate());
+            hammer.setPingInterval(infoCLI.getPingInterval());
+            hammer.setBinaryStats(infoCLI.getBinaryStats());
+            hammer.setMetricsPort(infoCLI.getMetricsPort());
+            hammer.setRtcpMux(infoCLI.getRtcpMux());
+            hammer.setReceiveStats(infoCLI.getReceiveStats());
+            hammer.setRtcpOptions(rtcpOptions);
+            hammer.setImpairmentProfile(impairmentProfile);
+            runningHammer = hammer;
 
             //Cleanly stop the hammer when the program shutdown
             Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
@@ -279,7 +336,8 @@ public class Main
             //connect to the XMPP server and try to setup media stream
             // with it bridge
             hammer.start(
-                infoCLI.getInterval(),
+                infoCLI.getArrivalRate(),
+                infoCLI.getConcurrentStarts(),
                 (credentials.size() > 0) ? credentials : null,
                 infoCLI.getOverallStats(),
                 infoCLI.getAllStats(),
@@ -299,6 +357,11 @@ public class Main
         {
             Thread.sleep(infoCLI.getRunLength() * 1000);
         }
+        else if(loadProfile != null)
+        {
+            //Without a run length, the run ends with the load profile
+            runningHammer.waitForLoadProfile();
+        }
         else
         {
             while(true) Thread.sleep(3600000);
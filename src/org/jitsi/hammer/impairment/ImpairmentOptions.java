@@ -0,0 +1,379 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jitsi.hammer.impairment;
+
+/**
+ * The <tt>ImpairmentOptions</tt> describe the network impairments applied
+ * by a <tt>NetworkImpairment</tt> to the RTP and RTCP packets sent by a fake
+ * user, like the uplink of a lossy mobile client : random loss, bursts of
+ * loss following a Gilbert-Elliott model, added latency and jitter,
+ * reordering, duplication and a bandwidth cap with a bounded queue.
+ *
+ * They can be parsed from a String of comma separated <tt>key=value</tt>,
+ * the keys being :
+ * <ul>
+ * <li><tt>loss=P</tt> : lose P% of the packets (in the good state of the
+ * Gilbert-Elliott model, if any)</li>
+ * <li><tt>burst=P/R[/L]</tt> : go from the good to the bad state with a
+ * probability of P% per packet, back with a probability of R%, and lose L%
+ * (100 by default) of the packets in the bad state</li>
+ * <li><tt>delay=D</tt> : delay the packets by D ms</li>
+ * <li><tt>jitter=J</tt> : delay the packets by a random 0 to J ms more</li>
+ * <li><tt>reorder=P</tt> : hold back P% of the packets by
+ * <tt>REORDER_DELAY</tt> ms more, so that the next ones overtake them</li>
+ * <li><tt>dup=P</tt> : duplicate P% of the packets</li>
+ * <li><tt>rate=K</tt> : cap the bandwidth to K kbps</li>
+ * <li><tt>queue=Q</tt> : drop the packets which would wait more than Q ms
+ * (200 by default) behind the bandwidth cap</li>
+ * </ul>
+ * For example "loss=1,burst=2/30,delay=80,jitter=30,rate=500".
+ * "none", or an empty String, gives no impairment.
+ */
+public class ImpairmentOptions
+{
+    /**
+     * The default maximum time in milliseconds a packet waits behind the
+     * bandwidth cap.
+     */
+    public static final int DEFAULT_QUEUE = 200;
+
+    /**
+     * The time in milliseconds a reordered packet is held back for.
+     */
+    public static final int REORDER_DELAY = 20;
+
+    /**
+     * The probability of losing a packet (in the good state).
+     */
+    private double loss = 0;
+
+    /**
+     * The probability of going from the good to the bad state, per packet,
+     * or 0 without bursts.
+     */
+    private double burstStart = 0;
+
+    /**
+     * The probability of going from the bad to the good state, per packet.
+     */
+    private double burstEnd = 1;
+
+    /**
+     * The probability of losing a packet in the bad state.
+     */
+    private double burstLoss = 1;
+
+    /**
+     * The delay added to the packets, in milliseconds.
+     */
+    private int delay = 0;
+
+    /**
+     * The maximum random delay added to the packets, in milliseconds.
+     */
+    private int jitter = 0;
+
+    /**
+     * The probability of reordering a packet.
+     */
+    private double reorder = 0;
+
+    /**
+     * The probability of duplicating a packet.
+     */
+    private double duplicate = 0;
+
+    /**
+     * The bandwidth cap in kbps, or 0 for none.
+     */
+    private int rate = 0;
+
+    /**
+     * The maximum time in milliseconds a packet waits behind the bandwidth
+     * cap.
+     */
+    private int queue = DEFAULT_QUEUE;
+
+    /**
+     * Parse <tt>ImpairmentOptions</tt> from their String representation.
+     *
+     * @param options the String representation of the options.
+     * @return the parsed <tt>ImpairmentOptions</tt>.
+     * @throws IllegalArgumentException if <tt>options</tt> aren't valid.
+     */
+    public static ImpairmentOptions parse(String options)
+    {
+        ImpairmentOptions result = new ImpairmentOptions();
+
+        options = options.trim();
+        if(options.equalsIgnoreCase("none"))
+            return result;
+
+        for(String option : options.split(","))
+        {
+            option = option.trim();
+            if(option.isEmpty())
+                continue;
+
+            String[] args = option.split("=");
+            if(args.length != 2)
+            {
+                throw new IllegalArgumentException(
+                    "Invalid impairment : " + option);
+            }
+
+            String name = args[0].trim().toLowerCase();
+            String value = args[1].trim();
+
+            try
+            {
+                if(name.equals("loss"))
+                {
+                    result.loss = parsePercent(value);
+                }
+                else if(name.equals("burst"))
+                {
+                    String[] values = value.split("/");
+                    if(values.length < 2 || values.length > 3)
+                    {
+                        throw new IllegalArgumentException(
+                            "burst needs P/R or P/R/L : " + option);
+                    }
+                    result.burstStart = parsePercent(values[0]);
+                    result.burstEnd = parsePercent(values[1]);
+                    if(values.length == 3)
+                        result.burstLoss = parsePercent(values[2]);
+                    if(result.burstEnd == 0)
+                    {
+                        throw new IllegalArgumentException(
+                            "A burst must end : " + option);
+                    }
+                }
+                else if(name.equals("delay"))
+                {
+                    result.delay = parseNonNegative(value);
+                }
+                else if(name.equals("jitter"))
+                {
+                    result.jitter = parseNonNegative(value);
+                }
+                else if(name.equals("reorder"))
+                {
+                    result.reorder = parsePercent(value);
+                }
+                else if(name.equals("dup"))
+                {
+                    result.duplicate = parsePercent(value);
+                }
+                else if(name.equals("rate"))
+                {
+                    result.rate = parseNonNegative(value);
+                }
+                else if(name.equals("queue"))
+                {
+                    result.queue = parseNonNegative(value);
+                }
+                else
+                {
+                    throw new IllegalArgumentException(
+                        "Unknown impairment : " + option);
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException(
+                    "Invalid number in impairment : " + option, e);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Parse a percentage into a probability.
+     * @param percent the String to parse, between 0 and 100.
+     * @return the probability, between 0 and 1.
+     */
+    private static double parsePercent(String percent)
+    {
+        double value = Double.parseDouble(percent);
+
+        if(!(value >= 0 && value <= 100))
+        {
+            throw new IllegalArgumentException(
+                "A percentage must be between 0 and 100 : " + percent);
+        }
+        return value / 100;
+    }
+
+    /**
+     * Parse a non negative integer (a duration in milliseconds or a rate).
+     * @param value the String to parse.
+     * @return the integer.
+     */
+    private static int parseNonNegative(String value)
+    {
+        int result = Integer.parseInt(value);
+
+        if(result < 0)
+        {
+            throw new IllegalArgumentException(
+                "A delay or rate can't be negative : " + value);
+        }
+        return result;
+    }
+
+    /**
+     * Tell if these <tt>ImpairmentOptions</tt> leave the packets untouched.
+     * @return <tt>true</tt> if there is no impairment.
+     */
+    public boolean isNone()
+    {
+        return loss == 0
+            && burstStart == 0
+            && delay == 0
+            && jitter == 0
+            && reorder == 0
+            && duplicate == 0
+            && rate == 0;
+    }
+
+    /**
+     * Get the probability of losing a packet (in the good state).
+     * @return the probability of losing a packet.
+     */
+    public double getLoss()
+    {
+        return loss;
+    }
+
+    /**
+     * Get the probability of going from the good to the bad state of the
+     * Gilbert-Elliott model, per packet.
+     * @return the probability, or 0 without bursts.
+     */
+    public double getBurstStart()
+    {
+        return burstStart;
+    }
+
+    /**
+     * Get the probability of going from the bad to the good state of the
+     * Gilbert-Elliott model, per packet.
+     * @return the probability.
+     */
+    public double getBurstEnd()
+    {
+        return burstEnd;
+    }
+
+    /**
+     * Get the probability of losing a packet in the bad state.
+     * @return the probability.
+     */
+    public double getBurstLoss()
+    {
+        return burstLoss;
+    }
+
+    /**
+     * Get the delay added to the packets.
+     * @return the delay in milliseconds.
+     */
+    public int getDelay()
+    {
+        return delay;
+    }
+
+    /**
+     * Get the maximum random delay added to the packets.
+     * @return the maximum delay in milliseconds.
+     */
+    public int getJitter()
+    {
+        return jitter;
+    }
+
+    /**
+     * Get the probability of reordering a packet.
+     * @return the probability.
+     */
+    public double getReorder()
+    {
+        return reorder;
+    }
+
+    /**
+     * Get the probability of duplicating a packet.
+     * @return the probability.
+     */
+    public double getDuplicate()
+    {
+        return duplicate;
+    }
+
+    /**
+     * Get the bandwidth cap.
+     * @return the bandwidth cap in kbps, or 0 for none.
+     */
+    public int getRate()
+    {
+        return rate;
+    }
+
+    /**
+     * Get the maximum time a packet waits behind the bandwidth cap.
+     * @return the maximum time in milliseconds.
+     */
+    public int getQueue()
+    {
+        return queue;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        if(isNone())
+            return "none";
+
+        StringBuilder str = new StringBuilder();
+
+        if(loss > 0)
+            str.append(",loss=").append(loss * 100);
+        if(burstStart > 0)
+        {
+            str.append(",burst=").append(burstStart * 100)
+                .append('/').append(burstEnd * 100)
+                .append('/').append(burstLoss * 100);
+        }
+        if(delay > 0)
+            str.append(",delay=").append(delay);
+        if(jitter > 0)
+            str.append(",jitter=").append(jitter);
+        if(reorder > 0)
+            str.append(",reorder=").append(reorder * 100);
+        if(duplicate > 0)
+            str.append(",dup=").append(duplicate * 100);
+        if(rate > 0)
+            str.append(",rate=").append(rate).append(",queue=").append(queue);
+        return str.substring(1);
+    }
+}
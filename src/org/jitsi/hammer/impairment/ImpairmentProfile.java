@@ -0,0 +1,238 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jitsi.hammer.impairment;
+
+import java.util.*;
+
+/**
+ * An <tt>ImpairmentProfile</tt> gives the <tt>ImpairmentOptions</tt> of each
+ * fake user, from its index : the users are split in cohorts, each having
+ * its own impairments.
+ *
+ * A profile can be parsed from a String made of cohorts separated by
+ * semicolons, each cohort being <tt>[PREFIX:]OPTIONS</tt> with OPTIONS the
+ * <tt>ImpairmentOptions</tt> of the cohort, and PREFIX either :
+ * <ul>
+ * <li><tt>@N</tt> or <tt>@N-M</tt> : the cohort of the users of index N (to
+ * M)</li>
+ * <li><tt>W</tt> : the weight of the cohort (1 by default) among the
+ * cohorts without user indexes, which share the other users
+ * proportionally</li>
+ * </ul>
+ *
+ * For example "3:none;1:loss=5,burst=3/40;@0:delay=300" impairs the first
+ * user with 300 ms of latency, and a quarter of the others with bursty
+ * loss. The users of the weighted cohorts are spread with the index of the
+ * users, so that any number of users gets the same proportions.
+ */
+public class ImpairmentProfile
+{
+    /**
+     * The fractional part of the golden ratio, used to spread the users over
+     * the weighted cohorts whatever their number.
+     */
+    private static final double GOLDEN_RATIO_FRACTION = 0.6180339887498949;
+
+    /**
+     * The <tt>ImpairmentOptions</tt> of the cohorts.
+     */
+    private final List<ImpairmentOptions> cohorts
+        = new ArrayList<ImpairmentOptions>();
+
+    /**
+     * The index of the first user of each cohort, or -1 for a weighted
+     * cohort.
+     */
+    private final List<Integer> firstUsers = new ArrayList<Integer>();
+
+    /**
+     * The index of the last user of each cohort, or -1 for a weighted
+     * cohort.
+     */
+    private final List<Integer> lastUsers = new ArrayList<Integer>();
+
+    /**
+     * The weight of each cohort, or 0 for a cohort of user indexes.
+     */
+    private final List<Double> weights = new ArrayList<Double>();
+
+    /**
+     * The sum of the weights of the cohorts.
+     */
+    private double totalWeight = 0;
+
+    /**
+     * Parse an <tt>ImpairmentProfile</tt> from its String representation.
+     *
+     * @param profile the String representation of the profile.
+     * @return the parsed <tt>ImpairmentProfile</tt>.
+     * @throws IllegalArgumentException if <tt>profile</tt> is not a valid
+     * profile.
+     */
+    public static ImpairmentProfile parse(String profile)
+    {
+        ImpairmentProfile result = new ImpairmentProfile();
+
+        for(String cohort : profile.split(";"))
+        {
+            cohort = cohort.trim();
+            if(cohort.isEmpty())
+                continue;
+
+            int colon = cohort.indexOf(':');
+            String prefix = (colon == -1)
+                ? "" : cohort.substring(0, colon).trim();
+            ImpairmentOptions options = ImpairmentOptions.parse(
+                cohort.substring(colon + 1));
+
+            try
+            {
+                if(prefix.startsWith("@"))
+                {
+                    String[] users = prefix.substring(1).split("-");
+                    int first = Integer.parseInt(users[0].trim());
+                    int last = (users.length == 2)
+                        ? Integer.parseInt(users[1].trim())
+                        : first;
+
+                    if(users.length > 2 || first < 0 || last < first)
+                    {
+                        throw new IllegalArgumentException(
+                            "Invalid users of impairment cohort : " + cohort);
+                    }
+                    result.addCohort(options, first, last, 0);
+                }
+                else
+                {
+                    double weight = prefix.isEmpty()
+                        ? 1 : Double.parseDouble(prefix);
+
+                    if(!(weight > 0))
+                    {
+                        throw new IllegalArgumentException(
+                            "The weight of an impairment cohort must be"
+                                + " positive : " + cohort);
+                    }
+                    result.addCohort(options, -1, -1, weight);
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException(
+                    "Invalid number in impairment cohort : " + cohort, e);
+            }
+        }
+
+        if(result.cohorts.isEmpty())
+        {
+            throw new IllegalArgumentException(
+                "An impairment profile needs at least one cohort");
+        }
+        return result;
+    }
+
+    /**
+     * Add a cohort to this profile.
+     * @param options the <tt>ImpairmentOptions</tt> of the cohort.
+     * @param firstUser the index of its first user, or -1.
+     * @param lastUser the index of its last user, or -1.
+     * @param weight its weight, or 0.
+     */
+    private void addCohort(
+        ImpairmentOptions options,
+        int firstUser,
+        int lastUser,
+        double weight)
+    {
+        cohorts.add(options);
+        firstUsers.add(firstUser);
+        lastUsers.add(lastUser);
+        weights.add(weight);
+        totalWeight += weight;
+    }
+
+    /**
+     * Get the <tt>ImpairmentOptions</tt> of a user.
+     *
+     * @param userIndex the index of the user.
+     * @return the <tt>ImpairmentOptions</tt> of the first cohort of user
+     * indexes containing the user, or else of the weighted cohort in which
+     * it falls, or <tt>null</tt> if the user isn't impaired.
+     */
+    public ImpairmentOptions getOptions(int userIndex)
+    {
+        ImpairmentOptions options = null;
+
+        for(int i = 0; i < cohorts.size() && options == null; i++)
+        {
+            if(firstUsers.get(i) <= userIndex
+                && userIndex <= lastUsers.get(i))
+            {
+                options = cohorts.get(i);
+            }
+        }
+
+        if(options == null && totalWeight > 0)
+        {
+            double position = userIndex * GOLDEN_RATIO_FRACTION;
+            double weight
+                = (position - Math.floor(position)) * totalWeight;
+
+            for(int i = 0; i < cohorts.size(); i++)
+            {
+                if(weights.get(i) > 0)
+                {
+                    // The last weighted cohort takes the rounding errors.
+                    options = cohorts.get(i);
+                    weight -= weights.get(i);
+                    if(weight < 0)
+                        break;
+                }
+            }
+        }
+
+        return (options == null || options.isNone()) ? null : options;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder str = new StringBuilder();
+
+        for(int i = 0; i < cohorts.size(); i++)
+        {
+            if(i > 0)
+                str.append(';');
+            if(firstUsers.get(i) != -1)
+            {
+                str.append('@').append(firstUsers.get(i));
+                if(!lastUsers.get(i).equals(firstUsers.get(i)))
+                    str.append('-').append(lastUsers.get(i));
+            }
+            else
+            {
+                str.append(weights.get(i));
+            }
+            str.append(':').append(cohorts.get(i));
+        }
+        return str.toString();
+    }
+}
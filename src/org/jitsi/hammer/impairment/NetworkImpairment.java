@@ -0,0 +1,329 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jitsi.hammer.impairment;
+
+import org.ice4j.socket.*;
+import org.jitsi.hammer.utils.*;
+import org.jitsi.util.Logger;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * A <tt>NetworkImpairment</tt> impairs the RTP and RTCP packets sent on the
+ * sockets of the streams of a fake user, as set by its
+ * <tt>ImpairmentOptions</tt> : the sockets given to the
+ * <tt>MediaStream</tt>s are wrapped by <tt>wrapSocket()</tt>, which loses,
+ * delays, reorders and duplicates the packets they send, and makes them wait
+ * behind the bandwidth cap.
+ *
+ * All the sockets of a user share the state of its <tt>NetworkImpairment</tt>
+ * (the Gilbert-Elliott state and the bandwidth cap), like a real access
+ * link. The DTLS and STUN packets are sent untouched, so that the
+ * connectivity of the user doesn't depend on its impairments. The delayed
+ * packets are sent by the shared <tt>TimerWheel</tt>.
+ */
+public class NetworkImpairment
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>NetworkImpairment</tt> class and
+     * its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(NetworkImpairment.class);
+
+    /**
+     * The <tt>ImpairmentOptions</tt> applied to the packets.
+     */
+    private final ImpairmentOptions options;
+
+    /**
+     * The <tt>TimerWheel</tt> sending the delayed packets.
+     */
+    private final TimerWheel timerWheel = TimerWheel.getInstance();
+
+    /**
+     * The <tt>Random</tt> of the impairments of this user.
+     */
+    private final Random random = new Random();
+
+    /**
+     * The delays of the copies of the packet being sent, filled by
+     * <tt>impair()</tt>.
+     */
+    private final long[] delays = new long[2];
+
+    /**
+     * Whether the Gilbert-Elliott model is in its bad state.
+     */
+    private boolean bad = false;
+
+    /**
+     * The time (from <tt>System.nanoTime()</tt>) at which the bandwidth cap
+     * is done sending the packets already queued.
+     */
+    private long queueEnd = 0;
+
+    /**
+     * The number of RTP and RTCP packets given to the sockets.
+     */
+    private long packets = 0;
+
+    /**
+     * The number of packets lost by the random or burst loss.
+     */
+    private long lost = 0;
+
+    /**
+     * The number of packets dropped because the bandwidth cap queue was
+     * full.
+     */
+    private long queueDrops = 0;
+
+    /**
+     * The number of packets duplicated.
+     */
+    private long duplicated = 0;
+
+    /**
+     * The number of packets delayed.
+     */
+    private long delayed = 0;
+
+    /**
+     * Initializes a new <tt>NetworkImpairment</tt>.
+     * @param options the <tt>ImpairmentOptions</tt> applied to the packets.
+     */
+    public NetworkImpairment(ImpairmentOptions options)
+    {
+        this.options = options;
+    }
+
+    /**
+     * Wrap a socket, to impair the packets it sends.
+     * @param socket the socket.
+     * @return the socket to use instead of <tt>socket</tt>.
+     * @throws SocketException if the socket can't be wrapped.
+     */
+    public DatagramSocket wrapSocket(final DatagramSocket socket)
+        throws SocketException
+    {
+        return new DelegatingDatagramSocket(socket)
+        {
+            @Override
+            public void send(DatagramPacket p)
+                throws IOException
+            {
+                NetworkImpairment.this.send(socket, p);
+            }
+        };
+    }
+
+    /**
+     * Send a packet impaired on a socket.
+     * @param socket the wrapped socket.
+     * @param p the packet to send.
+     * @throws IOException if the packet can't be sent right away.
+     */
+    private void send(DatagramSocket socket, DatagramPacket p)
+        throws IOException
+    {
+        if(!PacketWatcher.isRtp(p) && !PacketWatcher.isRtcp(p))
+        {
+            socket.send(p);
+            return;
+        }
+
+        long delay0;
+        long delay1;
+
+        synchronized(this)
+        {
+            int copies = impair(p.getLength());
+
+            delay0 = (copies > 0) ? delays[0] : -1;
+            delay1 = (copies > 1) ? delays[1] : -1;
+        }
+
+        send(socket, p, delay0);
+        send(socket, p, delay1);
+    }
+
+    /**
+     * Send a copy of a packet after a delay.
+     * @param socket the wrapped socket.
+     * @param p the packet to send.
+     * @param delay the delay in milliseconds, 0 to send it right away, or -1
+     * not to send it.
+     * @throws IOException if the packet can't be sent right away.
+     */
+    private void send(DatagramSocket socket, DatagramPacket p, long delay)
+        throws IOException
+    {
+        if(delay == 0)
+        {
+            socket.send(p);
+        }
+        else if(delay > 0)
+        {
+            //The buffer of p is reused by the sender once it returns.
+            timerWheel.schedule(new DelayedPacket(socket, p), delay);
+        }
+    }
+
+    /**
+     * Decide the fate of a packet, and update the state of the impairments.
+     * @param length the length of the packet.
+     * @return the number of copies of the packet to send (0 if it's lost),
+     * whose delays are set in <tt>delays</tt>.
+     */
+    private int impair(int length)
+    {
+        packets++;
+
+        double loss = options.getLoss();
+
+        if(options.getBurstStart() > 0)
+        {
+            if(bad)
+            {
+                if(random.nextDouble() < options.getBurstEnd())
+                    bad = false;
+            }
+            else if(random.nextDouble() < options.getBurstStart())
+            {
+                bad = true;
+            }
+            if(bad)
+                loss = options.getBurstLoss();
+        }
+        if(loss > 0 && random.nextDouble() < loss)
+        {
+            lost++;
+            return 0;
+        }
+
+        int copies = (options.getDuplicate() > 0
+                && random.nextDouble() < options.getDuplicate())
+            ? 2 : 1;
+        int sent = 0;
+
+        if(copies == 2)
+            duplicated++;
+        for(int i = 0; i < copies; i++)
+        {
+            long delay = options.getDelay();
+
+            if(options.getRate() > 0)
+            {
+                // The packets are serialized at the rate of the cap, and
+                // dropped when the queue is longer than its limit.
+                long now = System.nanoTime();
+                long start = Math.max(now, queueEnd);
+
+                if(start - now > options.getQueue() * 1000000L)
+                {
+                    queueDrops++;
+                    continue;
+                }
+                // kbps is bits per ms, so 8000 ns per byte at 1 kbps.
+                queueEnd = start + length * 8000000L / options.getRate();
+                delay += (queueEnd - now) / 1000000;
+            }
+            if(options.getJitter() > 0)
+                delay += random.nextInt(options.getJitter() + 1);
+            if(options.getReorder() > 0
+                && random.nextDouble() < options.getReorder())
+            {
+                delay += ImpairmentOptions.REORDER_DELAY;
+            }
+            if(delay > 0)
+                delayed++;
+            delays[sent++] = delay;
+        }
+
+        return sent;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString()
+    {
+        return "impairment " + options + " : " + packets + " packets, "
+            + lost + " lost, " + queueDrops + " dropped by the rate cap, "
+            + duplicated + " duplicated, " + delayed + " delayed";
+    }
+
+    /**
+     * A copy of a packet sent by the <tt>TimerWheel</tt> after its delay.
+     */
+    private static class DelayedPacket
+        extends TimerWheel.Task
+    {
+        /**
+         * The socket on which the packet is sent.
+         */
+        private final DatagramSocket socket;
+
+        /**
+         * The packet.
+         */
+        private final DatagramPacket packet;
+
+        /**
+         * Initializes a new <tt>DelayedPacket</tt> with a copy of a packet.
+         * @param socket the socket on which the packet is sent.
+         * @param p the packet.
+         */
+        DelayedPacket(DatagramSocket socket, DatagramPacket p)
+        {
+            this.socket = socket;
+            this.packet = new DatagramPacket(
+                Arrays.copyOfRange(
+                    p.getData(),
+                    p.getOffset(),
+                    p.getOffset() + p.getLength()),
+                p.getLength());
+            if(p.getAddress() != null)
+                packet.setSocketAddress(p.getSocketAddress());
+        }
+
+        /**
+         * Send the packet.
+         */
+        @Override
+        protected void run()
+        {
+            if(socket.isClosed())
+                return;
+
+            try
+            {
+                socket.send(packet);
+            }
+            catch (IOException e)
+            {
+                logger.debug("Failed to send a delayed packet on " + socket,
+                    e);
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jitsi.hammer.impairment;
+
+import org.jitsi.util.Logger;
+
+/**
+ * A <tt>TimerWheel</tt> runs delayed <tt>Task</tt>s on a single thread, with
+ * a millisecond resolution. It is a hashed timing wheel : the tasks are
+ * linked in the slot of their deadline modulo the number of slots, so that
+ * scheduling a task and running it are O(1), whatever the number of tasks
+ * pending. The tasks further away than a turn of the wheel stay in their
+ * slot until their turn comes.
+ *
+ * A single <tt>TimerWheel</tt> delays the packets of all the impaired fake
+ * users, so the tasks must be short : they only send a packet. The thread
+ * sleeps while there is no task pending.
+ */
+public class TimerWheel
+    implements Runnable
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>TimerWheel</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger = Logger.getLogger(TimerWheel.class);
+
+    /**
+     * The number of slots of the wheel (a power of 2), i.e. the number of
+     * milliseconds of a turn.
+     */
+    private static final int SLOTS = 4096;
+
+    /**
+     * The mask giving the slot of a deadline.
+     */
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    /**
+     * The <tt>TimerWheel</tt> shared by the <tt>NetworkImpairment</tt>s.
+     */
+    private static TimerWheel instance;
+
+    /**
+     * A task run by a <tt>TimerWheel</tt>, which is also the link of the
+     * list of its slot, so that nothing more is allocated per task.
+     */
+    public static abstract class Task
+    {
+        /**
+         * The deadline of this task, in milliseconds since the start of the
+         * <tt>TimerWheel</tt>.
+         */
+        private long deadline;
+
+        /**
+         * The next task of the slot of this task.
+         */
+        private Task next;
+
+        /**
+         * Run this task, on the thread of the <tt>TimerWheel</tt>.
+         */
+        protected abstract void run();
+    }
+
+    /**
+     * The first task of each slot.
+     */
+    private final Task[] heads = new Task[SLOTS];
+
+    /**
+     * The last task of each slot.
+     */
+    private final Task[] tails = new Task[SLOTS];
+
+    /**
+     * The time (from <tt>System.nanoTime()</tt>) at which this
+     * <tt>TimerWheel</tt> was created.
+     */
+    private final long startTime = System.nanoTime();
+
+    /**
+     * The last millisecond whose tasks were run.
+     */
+    private long tick = 0;
+
+    /**
+     * The number of tasks pending.
+     */
+    private int size = 0;
+
+    /**
+     * The thread running the tasks, started with the first task.
+     */
+    private Thread thread;
+
+    /**
+     * Get the <tt>TimerWheel</tt> shared by the <tt>NetworkImpairment</tt>s.
+     * @return the shared <tt>TimerWheel</tt>.
+     */
+    public static synchronized TimerWheel getInstance()
+    {
+        if(instance == null)
+            instance = new TimerWheel();
+        return instance;
+    }
+
+    /**
+     * Get the current time of this <tt>TimerWheel</tt>.
+     * @return the milliseconds since the creation of this
+     * <tt>TimerWheel</tt>.
+     */
+    private long now()
+    {
+        return (System.nanoTime() - startTime) / 1000000;
+    }
+
+    /**
+     * Schedule a task. A task can be scheduled once at a time.
+     *
+     * @param task the task to run.
+     * @param delay the delay in milliseconds after which the task is run (at
+     * least one millisecond).
+     */
+    public synchronized void schedule(Task task, long delay)
+    {
+        long now = now();
+
+        if(size == 0)
+        {
+            // The thread slept, so there is no slot to catch up with.
+            tick = Math.max(tick, now);
+            notifyAll();
+        }
+
+        long deadline = Math.max(now + delay, tick + 1);
+        int slot = (int) (deadline & SLOT_MASK);
+
+        task.deadline = deadline;
+        task.next = null;
+        append(slot, task);
+        size++;
+
+        if(thread == null)
+        {
+            thread = new Thread(this, "ImpairmentTimerWheel");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Append a task to the list of a slot.
+     * @param slot the slot.
+     * @param task the task.
+     */
+    private void append(int slot, Task task)
+    {
+        if(tails[slot] == null)
+            heads[slot] = task;
+        else
+            tails[slot].next = task;
+        tails[slot] = task;
+    }
+
+    /**
+     * Run the tasks when their deadline comes.
+     */
+    public void run()
+    {
+        while(true)
+        {
+            Task due = null;
+
+            synchronized(this)
+            {
+                try
+                {
+                    long now = now();
+
+                    if(size == 0 || now <= tick)
+                    {
+                        // Wait for the next millisecond, or the next task.
+                        wait((size == 0) ? 0 : 1);
+                        continue;
+                    }
+
+                    due = collect(now);
+                }
+                catch (InterruptedException e)
+                {
+                    thread = null;
+                    return;
+                }
+            }
+
+            while(due != null)
+            {
+                Task next = due.next;
+
+                due.next = null;
+                try
+                {
+                    due.run();
+                }
+                catch (Throwable t)
+                {
+                    logger.warn("A task of the TimerWheel failed", t);
+                }
+                due = next;
+            }
+        }
+    }
+
+    /**
+     * Take the tasks whose deadline came out of the slots of the
+     * milliseconds elapsed since the last run.
+     *
+     * @param now the current time.
+     * @return the list of the tasks to run, in the order of their slots.
+     */
+    private Task collect(long now)
+    {
+        Task dueHead = null;
+        Task dueTail = null;
+        // After a long pause, a turn visits all the slots.
+        long end = Math.min(now, tick + SLOTS);
+
+        for(long t = tick + 1; t <= end; t++)
+        {
+            int slot = (int) (t & SLOT_MASK);
+            Task task = heads[slot];
+
+            heads[slot] = null;
+            tails[slot] = null;
+            while(task != null)
+            {
+                Task next = task.next;
+
+                task.next = null;
+                if(task.deadline <= now)
+                {
+                    if(dueTail == null)
+                        dueHead = task;
+                    else
+                        dueTail.next = task;
+                    dueTail = task;
+                    size--;
+                }
+                else
+                {
+                    append(slot, task);
+                }
+                task = next;
+            }
+        }
+        tick = now;
+
+        return dueHead;
+    }
+}
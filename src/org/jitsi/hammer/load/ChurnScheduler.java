@@ -0,0 +1,230 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.load;
+
+import org.jitsi.hammer.*;
+import org.jitsi.util.Logger;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * The <tt>ChurnScheduler</tt> continuously recycles the fake users of a
+ * <tt>Hammer</tt> : every second, it asks the <tt>Hammer</tt> to replace a
+ * fraction of its users by fresh ones, which go through the whole start path
+ * again (connection, MUC join, Jingle accept and ICE). The number of users
+ * stays the same.
+ *
+ * It also keeps track of the number of joins requested and achieved, and
+ * periodically logs the corresponding rates.
+ */
+public class ChurnScheduler
+    implements Runnable
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>ChurnScheduler</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(ChurnScheduler.class);
+
+    /**
+     * The time (in milliseconds) between two rounds of churn.
+     */
+    private static final long TICK_INTERVAL = 1000;
+
+    /**
+     * The number of rounds between two logs of the achieved churn.
+     */
+    private static final int REPORT_INTERVAL = 10;
+
+    /**
+     * The <tt>Hammer</tt> whose users are recycled.
+     */
+    private final Hammer hammer;
+
+    /**
+     * The fraction of the users replaced every second.
+     */
+    private final double churnRate;
+
+    /**
+     * The number of joins requested since the start of the churn.
+     */
+    private final AtomicLong requestedJoins = new AtomicLong();
+
+    /**
+     * The number of joins that succeeded since the start of the churn.
+     */
+    private final AtomicLong completedJoins = new AtomicLong();
+
+    /**
+     * The number of joins that failed since the start of the churn.
+     */
+    private final AtomicLong failedJoins = new AtomicLong();
+
+    /**
+     * The sum of the time (in milliseconds) taken by the successful joins.
+     */
+    private final AtomicLong totalJoinTime = new AtomicLong();
+
+    /**
+     * A boolean used to stop the run method of this <tt>ChurnScheduler</tt>.
+     */
+    private volatile boolean threadStop = false;
+
+    /**
+     * Initializes a new <tt>ChurnScheduler</tt>.
+     *
+     * @param hammer the <tt>Hammer</tt> whose users will be recycled.
+     * @param churnRate the fraction (between 0 and 1) of the users replaced
+     * every second.
+     */
+    public ChurnScheduler(Hammer hammer, double churnRate)
+    {
+        if(churnRate <= 0 || churnRate > 1)
+        {
+            throw new IllegalArgumentException(
+                "The churn rate must be in ]0, 1] : " + churnRate);
+        }
+        this.hammer = hammer;
+        this.churnRate = churnRate;
+    }
+
+    /**
+     * Replace <tt>churnRate</tt> of the users of the <tt>Hammer</tt> every
+     * second, until {@link #stop()} is called.
+     */
+    public void run()
+    {
+        logger.info(String.format("Starting the churn : %.2f%% of the users"
+            + " replaced every second", churnRate * 100));
+
+        long startTime = System.currentTimeMillis();
+        long lastReportTime = startTime;
+        long lastReportCompleted = 0;
+        long lastReportRequested = 0;
+        double pending = 0;
+        int rounds = 0;
+
+        while (!threadStop)
+        {
+            long roundStart = System.currentTimeMillis();
+
+            /*
+             * Keep the fractional part of the users to replace for the next
+             * rounds, so that small rates on small populations still churn.
+             */
+            pending += hammer.getUserCount() * churnRate;
+            int count = (int) pending;
+            pending -= count;
+
+            try
+            {
+                if(count > 0)
+                    requestedJoins.addAndGet(hammer.churnUsers(count));
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+
+            if(++rounds % REPORT_INTERVAL == 0)
+            {
+                long now = System.currentTimeMillis();
+                long completed = completedJoins.get();
+                long requested = requestedJoins.get();
+                double seconds = Math.max(now - lastReportTime, 1) / 1000D;
+
+                logger.info(String.format("Churn : %.2f joins/s requested,"
+                    + " %.2f joins/s achieved (%d failed, %d in progress),"
+                    + " mean join time %dms",
+                    (requested - lastReportRequested) / seconds,
+                    (completed - lastReportCompleted) / seconds,
+                    failedJoins.get(),
+                    requested - completed - failedJoins.get(),
+                    getMeanJoinTime()));
+                lastReportTime = now;
+                lastReportCompleted = completed;
+                lastReportRequested = requested;
+            }
+
+            long sleepTime
+                = TICK_INTERVAL - (System.currentTimeMillis() - roundStart);
+            if(sleepTime > 0)
+            {
+                try
+                {
+                    Thread.sleep(sleepTime);
+                }
+                catch (InterruptedException e)
+                {
+                    break;
+                }
+            }
+        }
+
+        double seconds
+            = Math.max(System.currentTimeMillis() - startTime, 1) / 1000D;
+        logger.info(String.format("Churn stopped : %d joins requested"
+            + " (%.2f/s), %d achieved (%.2f/s), %d failed,"
+            + " mean join time %dms",
+            requestedJoins.get(),
+            requestedJoins.get() / seconds,
+            completedJoins.get(),
+            completedJoins.get() / seconds,
+            failedJoins.get(),
+            getMeanJoinTime()));
+    }
+
+    /**
+     * Notify this <tt>ChurnScheduler</tt> that a join it requested is
+     * finished.
+     *
+     * @param success <tt>true</tt> if the fresh user joined successfully.
+     * @param joinTime the time (in milliseconds) taken by the join.
+     */
+    public void joinDone(boolean success, long joinTime)
+    {
+        if(success)
+        {
+            completedJoins.incrementAndGet();
+            totalJoinTime.addAndGet(joinTime);
+        }
+        else
+        {
+            failedJoins.incrementAndGet();
+        }
+    }
+
+    /**
+     * Provoke the stop of the method run().
+     */
+    public void stop()
+    {
+        threadStop = true;
+    }
+
+    /**
+     * Get the mean time taken by the successful joins.
+     * @return the mean time (in milliseconds) taken by the successful joins.
+     */
+    private long getMeanJoinTime()
+    {
+        long completed = completedJoins.get();
+        return (completed == 0) ? 0 : totalJoinTime.get() / completed;
+    }
+}
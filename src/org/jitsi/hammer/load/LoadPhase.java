@@ -0,0 +1,176 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.load;
+
+/**
+ * A <tt>LoadPhase</tt> is one step of a <tt>LoadProfile</tt> : it describes
+ * how the number of fake users evolves during a period of time.
+ */
+public class LoadPhase
+{
+    /**
+     * The different kinds of <tt>LoadPhase</tt>.
+     */
+    public enum Type
+    {
+        /**
+         * Jump to a number of users, as fast as possible.
+         */
+        STEP,
+
+        /**
+         * Linearly go to a number of users over a period of time.
+         */
+        RAMP,
+
+        /**
+         * Linearly add (or remove) a number of users over a (short) period of
+         * time.
+         */
+        SPIKE,
+
+        /**
+         * Keep the current number of users for a period of time (also used
+         * for soak phases).
+         */
+        HOLD,
+
+        /**
+         * Linearly go down to a number of users over a period of time.
+         */
+        DRAIN
+    }
+
+    /**
+     * The kind of this <tt>LoadPhase</tt>.
+     */
+    private final Type type;
+
+    /**
+     * The number of users targeted at the end of this phase, or the number
+     * of users added for a <tt>SPIKE</tt>.
+     */
+    private final int users;
+
+    /**
+     * The length of this phase, in milliseconds.
+     */
+    private final long duration;
+
+    /**
+     * Initializes a new <tt>LoadPhase</tt>.
+     *
+     * @param type the kind of the phase.
+     * @param users the number of users targeted at the end of the phase, or
+     * the number of users added for a <tt>SPIKE</tt>. Ignored for
+     * <tt>HOLD</tt>.
+     * @param duration the length of the phase, in milliseconds.
+     */
+    public LoadPhase(Type type, int users, long duration)
+    {
+        if(type != Type.SPIKE && type != Type.HOLD && users < 0)
+        {
+            throw new IllegalArgumentException(
+                "The number of users of a phase can't be negative");
+        }
+        if(duration < 0)
+        {
+            throw new IllegalArgumentException(
+                "The duration of a phase can't be negative");
+        }
+
+        this.type = type;
+        this.users = users;
+        this.duration = (type == Type.STEP) ? 0 : duration;
+    }
+
+    /**
+     * Get the kind of this <tt>LoadPhase</tt>.
+     * @return the kind of this <tt>LoadPhase</tt>.
+     */
+    public Type getType()
+    {
+        return type;
+    }
+
+    /**
+     * Get the length of this phase, in milliseconds.
+     * @return the length of this phase, in milliseconds.
+     */
+    public long getDuration()
+    {
+        return duration;
+    }
+
+    /**
+     * Get the number of users at the end of this phase.
+     *
+     * @param startUsers the number of users at the beginning of this phase.
+     * @return the number of users at the end of this phase.
+     */
+    public int getEndUsers(int startUsers)
+    {
+        switch(type)
+        {
+        case HOLD:
+            return startUsers;
+        case SPIKE:
+            return Math.max(0, startUsers + users);
+        default:
+            return users;
+        }
+    }
+
+    /**
+     * Get the number of users targeted <tt>elapsed</tt> milliseconds after
+     * the beginning of this phase.
+     *
+     * @param startUsers the number of users at the beginning of this phase.
+     * @param elapsed the time elapsed since the beginning of this phase, in
+     * milliseconds.
+     * @return the number of users targeted at this time.
+     */
+    public int getUsersAt(int startUsers, long elapsed)
+    {
+        int endUsers = getEndUsers(startUsers);
+
+        if(duration <= 0 || elapsed >= duration)
+            return endUsers;
+        if(elapsed <= 0)
+            return startUsers;
+
+        return startUsers
+            + (int) Math.round(
+                (endUsers - startUsers) * ((double) elapsed / duration));
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder bldr = new StringBuilder(type.toString().toLowerCase());
+        if(type != Type.HOLD)
+        {
+            bldr.append(':');
+            if(type == Type.SPIKE && users >= 0)
+                bldr.append('+');
+            bldr.append(users);
+        }
+        if(type != Type.STEP)
+            bldr.append(':').append(duration).append("ms");
+        return bldr.toString();
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.load;
+
+import java.util.*;
+
+/**
+ * A <tt>LoadProfile</tt> is a list of <tt>LoadPhase</tt>s describing how the
+ * number of fake users of the <tt>Hammer</tt> evolves during the run.
+ *
+ * A profile can be parsed from a String made of phases separated by commas,
+ * each phase being one of :
+ * <ul>
+ * <li><tt>step:N</tt> : go to N users as fast as possible</li>
+ * <li><tt>ramp:N:D</tt> : linearly go to N users in D</li>
+ * <li><tt>spike:+N:D</tt> : linearly add N users in D (-N removes them)</li>
+ * <li><tt>hold:D</tt> or <tt>soak:D</tt> : keep the number of users for D</li>
+ * <li><tt>drain:N:D</tt> : linearly go down to N users in D</li>
+ * </ul>
+ * with D a duration in seconds, or suffixed by "ms", "s", "m" or "h".
+ *
+ * For example "ramp:500:2m,hold:10m,spike:+300:10s,drain:100:1m" ramps up
+ * to 500 users in 2 minutes, keeps them for 10 minutes, adds 300 users in 10
+ * seconds and then goes down to 100 users in a minute.
+ */
+public class LoadProfile
+{
+    /**
+     * The phases of this <tt>LoadProfile</tt>, in order.
+     */
+    private final List<LoadPhase> phases;
+
+    /**
+     * Initializes a new <tt>LoadProfile</tt>.
+     * @param phases the phases of the profile, in order.
+     */
+    public LoadProfile(List<LoadPhase> phases)
+    {
+        if(phases == null || phases.isEmpty())
+        {
+            throw new IllegalArgumentException(
+                "A load profile needs at least one phase");
+        }
+        this.phases = Collections.unmodifiableList(
+            new ArrayList<LoadPhase>(phases));
+    }
+
+    /**
+     * Parse a <tt>LoadProfile</tt> from its String representation.
+     *
+     * @param profile the String representation of the profile.
+     * @return the parsed <tt>LoadProfile</tt>.
+     * @throws IllegalArgumentException if <tt>profile</tt> is not a valid
+     * profile.
+     */
+    public static LoadProfile parse(String profile)
+    {
+        List<LoadPhase> phases = new ArrayList<LoadPhase>();
+
+        for(String phase : profile.split(","))
+        {
+            phase = phase.trim();
+            if(phase.isEmpty())
+                continue;
+
+            String[] args = phase.split(":");
+            String name = args[0].trim().toLowerCase();
+
+            try
+            {
+                if(name.equals("step") && args.length == 2)
+                {
+                    phases.add(new LoadPhase(
+                        LoadPhase.Type.STEP, parseUsers(args[1]), 0));
+                }
+                else if(name.equals("ramp") && args.length == 3)
+                {
+                    phases.add(new LoadPhase(
+                        LoadPhase.Type.RAMP,
+                        parseUsers(args[1]),
+                        parseDuration(args[2])));
+                }
+                else if(name.equals("spike") && args.length == 3)
+                {
+                    phases.add(new LoadPhase(
+                        LoadPhase.Type.SPIKE,
+                        parseUsers(args[1]),
+                        parseDuration(args[2])));
+                }
+                else if((name.equals("hold") || name.equals("soak"))
+                    && args.length == 2)
+                {
+                    phases.add(new LoadPhase(
+                        LoadPhase.Type.HOLD, 0, parseDuration(args[1])));
+                }
+                else if(name.equals("drain") && args.length == 3)
+                {
+                    phases.add(new LoadPhase(
+                        LoadPhase.Type.DRAIN,
+                        parseUsers(args[1]),
+                        parseDuration(args[2])));
+                }
+                else
+                {
+                    throw new IllegalArgumentException(
+                        "Unknown load phase : " + phase);
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException(
+                    "Invalid number in load phase : " + phase, e);
+            }
+        }
+
+        return new LoadProfile(phases);
+    }
+
+    /**
+     * Parse a number of users (possibly with a leading '+').
+     * @param users the String to parse.
+     * @return the number of users.
+     */
+    private static int parseUsers(String users)
+    {
+        users = users.trim();
+        if(users.startsWith("+"))
+            users = users.substring(1);
+        return Integer.parseInt(users);
+    }
+
+    /**
+     * Parse a duration, in seconds by default or with a "ms", "s", "m" or "h"
+     * suffix.
+     * @param duration the String to parse.
+     * @return the duration in milliseconds.
+     */
+    private static long parseDuration(String duration)
+    {
+        duration = duration.trim().toLowerCase();
+        long multiplier = 1000;
+
+        if(duration.endsWith("ms"))
+        {
+            multiplier = 1;
+            duration = duration.substring(0, duration.length() - 2);
+        }
+        else if(duration.endsWith("s"))
+        {
+            duration = duration.substring(0, duration.length() - 1);
+        }
+        else if(duration.endsWith("m"))
+        {
+            multiplier = 60 * 1000;
+            duration = duration.substring(0, duration.length() - 1);
+        }
+        else if(duration.endsWith("h"))
+        {
+            multiplier = 60 * 60 * 1000;
+            duration = duration.substring(0, duration.length() - 1);
+        }
+
+        return (long) (Double.parseDouble(duration) * multiplier);
+    }
+
+    /**
+     * Get the phases of this <tt>LoadProfile</tt>.
+     * @return the phases of this <tt>LoadProfile</tt>.
+     */
+    public List<LoadPhase> getPhases()
+    {
+        return phases;
+    }
+
+    /**
+     * Get the total length of this <tt>LoadProfile</tt>, in milliseconds.
+     * @return the total length of this <tt>LoadProfile</tt>.
+     */
+    public long getDuration()
+    {
+        long duration = 0;
+        for(LoadPhase phase : phases)
+            duration += phase.getDuration();
+        return duration;
+    }
+
+    /**
+     * Get the highest number of users targeted during this profile.
+     * @return the highest number of users targeted during this profile.
+     */
+    public int getPeakUsers()
+    {
+        int users = 0;
+        int peak = 0;
+        for(LoadPhase phase : phases)
+        {
+            users = phase.getEndUsers(users);
+            peak = Math.max(peak, users);
+        }
+        return peak;
+    }
+
+    /**
+     * Get the number of users targeted <tt>elapsed</tt> milliseconds after
+     * the beginning of this profile. After the end of the profile, the number
+     * of users of the last phase is kept.
+     *
+     * @param elapsed the time since the beginning of the profile, in
+     * milliseconds.
+     * @return the number of users targeted at this time.
+     */
+    public int getUsersAt(long elapsed)
+    {
+        int users = 0;
+        for(LoadPhase phase : phases)
+        {
+            if(elapsed < phase.getDuration())
+                return phase.getUsersAt(users, elapsed);
+
+            elapsed -= phase.getDuration();
+            users = phase.getEndUsers(users);
+        }
+        return users;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder bldr = new StringBuilder();
+        for(LoadPhase phase : phases)
+        {
+            if(bldr.length() > 0)
+                bldr.append(',');
+            bldr.append(phase);
+        }
+        return bldr.toString();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.load;
+
+import org.jitsi.hammer.*;
+import org.jitsi.util.Logger;
+
+import java.util.*;
+
+/**
+ * The <tt>LoadProfileRunner</tt> drives the number of fake users of a
+ * <tt>Hammer</tt> so that it follows a <tt>LoadProfile</tt> : at each tick,
+ * it computes the number of users the profile targets and asks the
+ * <tt>Hammer</tt> to start or stop users accordingly.
+ */
+public class LoadProfileRunner
+    implements Runnable
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>LoadProfileRunner</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(LoadProfileRunner.class);
+
+    /**
+     * The time (in milliseconds) between two adjustments of the number of
+     * users.
+     */
+    private static final long TICK_INTERVAL = 100;
+
+    /**
+     * The <tt>Hammer</tt> whose users are driven by this runner.
+     */
+    private final Hammer hammer;
+
+    /**
+     * The <tt>LoadProfile</tt> followed by this runner.
+     */
+    private final LoadProfile profile;
+
+    /**
+     * A boolean used to stop the run method of this
+     * <tt>LoadProfileRunner</tt>.
+     */
+    private volatile boolean threadStop = false;
+
+    /**
+     * Initializes a new <tt>LoadProfileRunner</tt>.
+     *
+     * @param hammer the <tt>Hammer</tt> whose users will be driven.
+     * @param profile the <tt>LoadProfile</tt> to follow.
+     */
+    public LoadProfileRunner(Hammer hammer, LoadProfile profile)
+    {
+        this.hammer = hammer;
+        this.profile = profile;
+    }
+
+    /**
+     * Follow the <tt>LoadProfile</tt> until its end (or until
+     * {@link #stop()} is called).
+     */
+    public void run()
+    {
+        List<LoadPhase> phases = profile.getPhases();
+        long profileDuration = profile.getDuration();
+        long startTime = System.currentTimeMillis();
+        int currentPhase = -1;
+
+        logger.info("Starting the load profile " + profile);
+        while (!threadStop)
+        {
+            long elapsed = System.currentTimeMillis() - startTime;
+
+            int phase = getPhaseIndex(phases, elapsed);
+            if(phase != currentPhase && phase < phases.size())
+            {
+                currentPhase = phase;
+                logger.info("Load profile : entering phase "
+                    + phases.get(phase) + " with "
+                    + hammer.getUserCount() + " users");
+            }
+
+            int target = profile.getUsersAt(elapsed);
+            int current = hammer.getUserCount();
+
+            try
+            {
+                if(target > current)
+                    hammer.addUsers(target - current);
+                else if(target < current)
+                    hammer.removeUsers(current - target);
+            }
+            catch (InterruptedException e)
+            {
+                logger.warn("Load profile interrupted");
+                break;
+            }
+
+            if(elapsed >= profileDuration)
+                break;
+
+            try
+            {
+                Thread.sleep(TICK_INTERVAL);
+            }
+            catch (InterruptedException e)
+            {
+                logger.warn("Load profile interrupted");
+                break;
+            }
+        }
+        logger.info("Load profile finished with "
+            + hammer.getUserCount() + " users");
+    }
+
+    /**
+     * Provoke the stop of the method run(). The users already started are
+     * kept.
+     */
+    public void stop()
+    {
+        threadStop = true;
+    }
+
+    /**
+     * Get the index of the phase running <tt>elapsed</tt> milliseconds after
+     * the beginning of the profile.
+     *
+     * @param phases the phases of the profile.
+     * @param elapsed the time since the beginning of the profile.
+     * @return the index of the phase running at this time, or the number of
+     * phases if the profile is finished.
+     */
+    private static int getPhaseIndex(List<LoadPhase> phases, long elapsed)
+    {
+        for(int i = 0; i < phases.size(); i++)
+        {
+            long duration = phases.get(i).getDuration();
+            if(elapsed < duration)
+                return i;
+            elapsed -= duration;
+        }
+        return phases.size();
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.load;
+
+import org.jitsi.hammer.utils.*;
+import org.jitsi.util.Logger;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The <tt>RampUpEngine</tt> starts tasks (typically the start of a
+ * <tt>FakeUser</tt>: BOSH connection, login and MUC join) in parallel on a
+ * bounded pool of threads, while pacing their arrival with a
+ * <tt>TokenBucket</tt>.
+ *
+ * At most <tt>concurrency</tt> tasks run at the same time, so a slow login
+ * only holds one of the slots instead of delaying every user after it, and
+ * tasks are started at <tt>arrivalRate</tt> tasks per second.
+ */
+public class RampUpEngine
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>RampUpEngine</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(RampUpEngine.class);
+
+    /**
+     * The maximum number of tasks running at the same time.
+     */
+    private final int concurrency;
+
+    /**
+     * The <tt>Semaphore</tt> bounding the number of running tasks to
+     * <tt>concurrency</tt>.
+     */
+    private final Semaphore slots;
+
+    /**
+     * The <tt>TokenBucket</tt> pacing the start of the tasks.
+     */
+    private final TokenBucket tokenBucket;
+
+    /**
+     * The <tt>ExecutorService</tt> running the tasks.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The number of tasks submitted to this <tt>RampUpEngine</tt>.
+     */
+    private final AtomicInteger submitted = new AtomicInteger();
+
+    /**
+     * The number of tasks that have completed (successfully or not).
+     */
+    private final AtomicInteger completed = new AtomicInteger();
+
+    /**
+     * The number of tasks that have failed, by throwing an exception or
+     * returning <tt>false</tt>.
+     */
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * Initializes a new <tt>RampUpEngine</tt>.
+     *
+     * @param concurrency the maximum number of tasks running at the same time.
+     * @param arrivalRate the number of tasks started per second. If lower or
+     * equal to zero, the tasks are started as fast as <tt>concurrency</tt>
+     * allows.
+     */
+    public RampUpEngine(int concurrency, double arrivalRate)
+    {
+        if(concurrency <= 0)
+            concurrency = 1;
+
+        this.concurrency = concurrency;
+        this.slots = new Semaphore(concurrency);
+        this.tokenBucket = new TokenBucket(arrivalRate);
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(
+            concurrency,
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(
+                        r,
+                        "RampUpEngine-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+
+    /**
+     * Wait for a token and a free slot, then start <tt>task</tt> on one of
+     * the threads of this <tt>RampUpEngine</tt>. This method blocks the
+     * calling thread in order to pace the arrivals, but it doesn't wait for
+     * <tt>task</tt> to complete.
+     *
+     * @param task the task to start.
+     * @throws InterruptedException if the calling thread is interrupted while
+     * waiting for a token or a slot.
+     */
+    public void submit(final Runnable task)
+        throws InterruptedException
+    {
+        submit(new Callable<Boolean>()
+        {
+            public Boolean call()
+            {
+                task.run();
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Wait for a token and a free slot, then start <tt>task</tt> on one of
+     * the threads of this <tt>RampUpEngine</tt>, like
+     * {@link #submit(Runnable)}. The task is counted as failed if it returns
+     * <tt>false</tt> (e.g. a fake user which couldn't log in).
+     *
+     * @param task the task to start, returning whether it succeeded.
+     * @throws InterruptedException if the calling thread is interrupted while
+     * waiting for a token or a slot.
+     */
+    public void submit(final Callable<Boolean> task)
+        throws InterruptedException
+    {
+        tokenBucket.acquire();
+        slots.acquire();
+        submitted.incrementAndGet();
+
+        try
+        {
+            executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        if(!Boolean.TRUE.equals(task.call()))
+                            failed.incrementAndGet();
+                    }
+                    catch (Throwable t)
+                    {
+                        failed.incrementAndGet();
+                        logger.error("A task of the RampUpEngine failed", t);
+                    }
+                    finally
+                    {
+                        completed.incrementAndGet();
+                        slots.release();
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            submitted.decrementAndGet();
+            slots.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Wait until all the tasks submitted so far have completed.
+     *
+     * @throws InterruptedException if the calling thread is interrupted while
+     * waiting.
+     */
+    public void awaitCompletion()
+        throws InterruptedException
+    {
+        slots.acquire(concurrency);
+        slots.release(concurrency);
+    }
+
+    /**
+     * Change the number of tasks started per second.
+     *
+     * @param arrivalRate the new number of tasks started per second. If lower
+     * or equal to zero, the tasks are started as fast as possible.
+     */
+    public void setArrivalRate(double arrivalRate)
+    {
+        tokenBucket.setRate(arrivalRate);
+    }
+
+    /**
+     * Stop the threads of this <tt>RampUpEngine</tt>. The tasks already
+     * started are not interrupted.
+     */
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    /**
+     * Get the number of tasks submitted to this <tt>RampUpEngine</tt>.
+     * @return the number of tasks submitted to this <tt>RampUpEngine</tt>.
+     */
+    public int getSubmittedCount()
+    {
+        return submitted.get();
+    }
+
+    /**
+     * Get the number of tasks that have completed.
+     * @return the number of tasks that have completed.
+     */
+    public int getCompletedCount()
+    {
+        return completed.get();
+    }
+
+    /**
+     * Get the number of tasks that have failed, by throwing an exception or
+     * returning <tt>false</tt>.
+     * @return the number of tasks that have failed.
+     */
+    public int getFailedCount()
+    {
+        return failed.get();
+    }
+
+    /**
+     * Get the number of tasks currently running.
+     * @return the number of tasks currently running.
+     */
+    public int getRunningCount()
+    {
+        return concurrency - slots.availablePermits();
+    }
+}
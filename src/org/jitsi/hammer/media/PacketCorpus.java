@@ -0,0 +1,641 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.media;
+
+import org.jitsi.service.neomedia.*;
+import org.jitsi.util.Logger;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * A <tt>PacketCorpus</tt> is a list of pre-encoded RTP payloads, with their
+ * marker bit, RTP timestamp and send time, loaded from an rtpdump or an ivf
+ * file and shared by all the <tt>PacketReplayer</tt>s.
+ *
+ * The file is mapped read-only in memory and only an index of the payloads
+ * (offset, length, marker, timestamp and send time) is kept on the heap, so
+ * all the replayers read the same pages at independent offsets and large
+ * captures don't need to fit in the heap. The corpora are cached by file, so
+ * a file is mapped and indexed once per process.
+ *
+ * The timestamps and send times are relative to the first packet, so that
+ * each replayer can rewrite them with its own bases.
+ */
+public class PacketCorpus
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>PacketCorpus</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(PacketCorpus.class);
+
+    /**
+     * The size of the header of an RTP packet without CSRC nor extension.
+     */
+    public static final int RTP_HEADER_SIZE = 12;
+
+    /**
+     * The maximum size of the VP8 payloads created from an ivf file.
+     */
+    private static final int MAX_VP8_PAYLOAD_SIZE = 1200;
+
+    /**
+     * The RTP clock rate of VP8.
+     */
+    private static final int VP8_CLOCK_RATE = 90000;
+
+    /**
+     * The corpora already loaded, indexed by the canonical path of their file.
+     */
+    private static final Map<String, PacketCorpus> corpora
+        = new HashMap<String, PacketCorpus>();
+
+    /**
+     * The <tt>MediaType</tt> of the packets of this corpus.
+     */
+    private final MediaType mediaType;
+
+    /**
+     * The read-only mapping of the file containing the payloads.
+     */
+    private final ByteBuffer data;
+
+    /**
+     * The offset in {@link #data} of the payloads.
+     */
+    private final int[] offsets;
+
+    /**
+     * The length in {@link #data} of the payloads.
+     */
+    private final int[] lengths;
+
+    /**
+     * The byte written before each payload (the VP8 payload descriptor of the
+     * packets created from an ivf file), or <tt>null</tt> if the payloads are
+     * written as they are in the file.
+     */
+    private final byte[] prefixes;
+
+    /**
+     * The marker bit of the packets.
+     */
+    private final boolean[] markers;
+
+    /**
+     * The RTP timestamps of the packets, relative to the first packet.
+     */
+    private final long[] rtpTimestamps;
+
+    /**
+     * The send time of the packets in milliseconds, relative to the first
+     * packet.
+     */
+    private final long[] sendTimes;
+
+    /**
+     * The length of the corpus in milliseconds, i.e. the time after which
+     * the first packet is sent again when the corpus is looped.
+     */
+    private final long duration;
+
+    /**
+     * The RTP timestamp increment of a loop of the corpus.
+     */
+    private final long rtpDuration;
+
+    /**
+     * Initializes a new <tt>PacketCorpus</tt> from an index built on a
+     * mapped file.
+     *
+     * @param mediaType the <tt>MediaType</tt> of the packets.
+     * @param data the mapping of the file containing the payloads.
+     * @param index the index of the payloads in <tt>data</tt>.
+     */
+    private PacketCorpus(MediaType mediaType, ByteBuffer data, Index index)
+    {
+        if(index.size == 0)
+        {
+            throw new IllegalArgumentException(
+                "A packet corpus can't be empty");
+        }
+        this.mediaType = mediaType;
+        this.data = data;
+        this.offsets = Arrays.copyOf(index.offsets, index.size);
+        this.lengths = Arrays.copyOf(index.lengths, index.size);
+        this.prefixes = (index.prefixes == null)
+            ? null
+            : Arrays.copyOf(index.prefixes, index.size);
+        this.markers = Arrays.copyOf(index.markers, index.size);
+        this.rtpTimestamps = Arrays.copyOf(index.rtpTimestamps, index.size);
+        this.sendTimes = Arrays.copyOf(index.sendTimes, index.size);
+
+        int last = index.size - 1;
+        this.duration = sendTimes[last] + getLastInterval(sendTimes, 20);
+        this.rtpDuration
+            = rtpTimestamps[last] + getLastInterval(rtpTimestamps, 960);
+    }
+
+    /**
+     * Get the last non-null difference between two consecutive values of an
+     * array, used as the interval between the end of a loop of the corpus
+     * and the beginning of the next one.
+     *
+     * @param values the array of increasing values.
+     * @param defaultInterval the interval returned if all the values are the
+     * same.
+     * @return the last non-null difference between two consecutive values.
+     */
+    private static long getLastInterval(long[] values, long defaultInterval)
+    {
+        for(int i = values.length - 1; i > 0; i--)
+        {
+            long interval = values[i] - values[i - 1];
+            if(interval > 0)
+                return interval;
+        }
+        return defaultInterval;
+    }
+
+    /**
+     * Get the <tt>PacketCorpus</tt> of the RTP packets of an rtpdump file
+     * (the RTCP packets are ignored), loading it if it wasn't already.
+     *
+     * @param filename the path of the rtpdump file.
+     * @param mediaType the <tt>MediaType</tt> of the packets of the file.
+     * @return the <tt>PacketCorpus</tt> of the file.
+     * @throws IOException if the file can't be read or isn't a valid rtpdump
+     * file.
+     */
+    public static PacketCorpus loadRtpdump(String filename, MediaType mediaType)
+        throws IOException
+    {
+        String path = new File(filename).getCanonicalPath();
+
+        synchronized (corpora)
+        {
+            PacketCorpus corpus = corpora.get(path);
+            if(corpus == null)
+            {
+                ByteBuffer data = map(path);
+                corpus = new PacketCorpus(
+                    mediaType, data, indexRtpdump(data, path));
+                corpora.put(path, corpus);
+                logger.info("Loaded " + corpus + " from the rtpdump file "
+                    + filename);
+            }
+            return corpus;
+        }
+    }
+
+    /**
+     * Get the <tt>PacketCorpus</tt> of the VP8 frames of an ivf file,
+     * packetized as described in RFC 7741 with a one byte payload descriptor,
+     * loading it if it wasn't already.
+     *
+     * @param filename the path of the ivf file.
+     * @return the <tt>PacketCorpus</tt> of the file.
+     * @throws IOException if the file can't be read or isn't a valid ivf file.
+     */
+    public static PacketCorpus loadIvf(String filename)
+        throws IOException
+    {
+        String path = new File(filename).getCanonicalPath();
+
+        synchronized (corpora)
+        {
+            PacketCorpus corpus = corpora.get(path);
+            if(corpus == null)
+            {
+                ByteBuffer data = map(path);
+                corpus = new PacketCorpus(
+                    MediaType.VIDEO, data, indexIvf(data, path));
+                corpora.put(path, corpus);
+                logger.info("Loaded " + corpus + " from the ivf file "
+                    + filename);
+            }
+            return corpus;
+        }
+    }
+
+    /**
+     * Map a file read-only in memory.
+     *
+     * @param path the path of the file.
+     * @return the read-only mapping of the file.
+     * @throws IOException if the file can't be mapped.
+     */
+    private static ByteBuffer map(String path)
+        throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try
+        {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            if(size > Integer.MAX_VALUE)
+            {
+                throw new IOException("File too large to be replayed (more"
+                    + " than 2GB) : " + path);
+            }
+            // The mapping stays valid once the channel is closed.
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    /**
+     * Build the index of the RTP payloads of a mapped rtpdump file.
+     *
+     * @param data the mapping of the rtpdump file.
+     * @param path the path of the file, for the error messages.
+     * @return the index of the RTP payloads of the file.
+     * @throws IOException if the file isn't a valid rtpdump file.
+     */
+    private static Index indexRtpdump(ByteBuffer data, String path)
+        throws IOException
+    {
+        ByteBuffer buf = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+        Index index = new Index(false);
+
+        skipRtpdumpHeader(buf, path);
+
+        long firstTimestamp = -1;
+        long firstOffset = -1;
+
+        while(buf.remaining() >= 8)
+        {
+            int recordStart = buf.position();
+            int length = buf.getShort() & 0xFFFF;
+            int plen = buf.getShort() & 0xFFFF;
+            long offset = buf.getInt() & 0xFFFFFFFFL;
+
+            if(length < 8 || recordStart + length > buf.limit())
+            {
+                logger.warn("Truncated record at the end of " + path);
+                break;
+            }
+            int packetStart = recordStart + 8;
+            int packetLength = length - 8;
+            buf.position(recordStart + length);
+
+            // A null plen means that the record is an RTCP packet.
+            if(plen == 0
+                || packetLength < RTP_HEADER_SIZE
+                || (buf.get(packetStart) & 0xC0) != 0x80)
+                continue;
+
+            int b0 = buf.get(packetStart);
+            int payloadOffset
+                = packetStart + RTP_HEADER_SIZE + 4 * (b0 & 0x0F);
+            int payloadEnd = packetStart + packetLength;
+            if((b0 & 0x10) != 0 && payloadEnd >= payloadOffset + 4)
+            {
+                int extLength = buf.getShort(payloadOffset + 2) & 0xFFFF;
+                payloadOffset += 4 + 4 * extLength;
+            }
+            if((b0 & 0x20) != 0 && payloadEnd > payloadOffset)
+                payloadEnd -= buf.get(payloadEnd - 1) & 0xFF;
+            if(payloadEnd <= payloadOffset)
+                continue;
+
+            long timestamp = buf.getInt(packetStart + 4) & 0xFFFFFFFFL;
+            if(firstTimestamp < 0)
+            {
+                firstTimestamp = timestamp;
+                firstOffset = offset;
+            }
+
+            index.add(
+                payloadOffset,
+                payloadEnd - payloadOffset,
+                (byte) 0,
+                (buf.get(packetStart + 1) & 0x80) != 0,
+                (timestamp - firstTimestamp) & 0xFFFFFFFFL,
+                Math.max(0, offset - firstOffset));
+        }
+        return index;
+    }
+
+    /**
+     * Skip the text line and the binary header at the beginning of an
+     * rtpdump file.
+     *
+     * @param buf the content of the rtpdump file, positioned at its beginning.
+     * @param path the path of the file, for the error messages.
+     * @throws IOException if the file isn't a valid rtpdump file.
+     */
+    private static void skipRtpdumpHeader(ByteBuffer buf, String path)
+        throws IOException
+    {
+        StringBuilder line = new StringBuilder();
+        byte c;
+        do
+        {
+            if(!buf.hasRemaining())
+                throw new EOFException("Truncated rtpdump header : " + path);
+            c = buf.get();
+            line.append((char) c);
+        }
+        while(c != '\n');
+        if(!line.toString().startsWith("#!rtpplay"))
+            throw new IOException("Not an rtpdump file : " + path);
+
+        // struct timeval start, source address, port and padding
+        if(buf.remaining() < 16)
+            throw new EOFException("Truncated rtpdump header : " + path);
+        buf.position(buf.position() + 16);
+    }
+
+    /**
+     * Build the index of the VP8 payloads of a mapped ivf file. The frames
+     * are split in payloads of at most {@link #MAX_VP8_PAYLOAD_SIZE} bytes
+     * (with their payload descriptor).
+     *
+     * @param data the mapping of the ivf file.
+     * @param path the path of the file, for the error messages.
+     * @return the index of the VP8 payloads of the file.
+     * @throws IOException if the file isn't a valid ivf file.
+     */
+    private static Index indexIvf(ByteBuffer data, String path)
+        throws IOException
+    {
+        ByteBuffer buf = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        Index index = new Index(true);
+
+        if(buf.remaining() < 32
+            || buf.get(0) != 'D' || buf.get(1) != 'K'
+            || buf.get(2) != 'I' || buf.get(3) != 'F')
+        {
+            throw new IOException("Not an ivf file : " + path);
+        }
+        int headerLength = buf.getShort(6) & 0xFFFF;
+        long rate = buf.getInt(16) & 0xFFFFFFFFL;
+        long scale = buf.getInt(20) & 0xFFFFFFFFL;
+        if(rate == 0 || scale == 0)
+        {
+            rate = 30;
+            scale = 1;
+        }
+        buf.position(Math.max(32, headerLength));
+
+        long firstTimestamp = -1;
+        while(buf.remaining() >= 12)
+        {
+            int frameSize = buf.getInt();
+            long timestamp = buf.getLong();
+            int frameStart = buf.position();
+
+            if(frameSize < 0 || frameSize > buf.remaining())
+            {
+                logger.warn("Truncated frame at the end of " + path);
+                break;
+            }
+            buf.position(frameStart + frameSize);
+
+            if(firstTimestamp < 0)
+                firstTimestamp = timestamp;
+            long time = timestamp - firstTimestamp;
+            long rtpTimestamp = time * scale * VP8_CLOCK_RATE / rate;
+            long sendTime = time * scale * 1000 / rate;
+
+            for(int offset = 0; offset < frameSize;)
+            {
+                int length
+                    = Math.min(MAX_VP8_PAYLOAD_SIZE - 1, frameSize - offset);
+
+                // S bit set on the first packet of the frame, PID 0
+                index.add(
+                    frameStart + offset,
+                    length,
+                    (byte) ((offset == 0) ? 0x10 : 0x00),
+                    offset + length >= frameSize,
+                    rtpTimestamp,
+                    sendTime);
+                offset += length;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Get the <tt>MediaType</tt> of the packets of this corpus.
+     * @return the <tt>MediaType</tt> of the packets of this corpus.
+     */
+    public MediaType getMediaType()
+    {
+        return mediaType;
+    }
+
+    /**
+     * Get the number of packets of this corpus.
+     * @return the number of packets of this corpus.
+     */
+    public int size()
+    {
+        return offsets.length;
+    }
+
+    /**
+     * Create a new view of the mapped file of this corpus. Each reader must
+     * use its own view, as the views have independent positions.
+     * @return a new view of the mapped file of this corpus.
+     */
+    public ByteBuffer newView()
+    {
+        return data.duplicate();
+    }
+
+    /**
+     * Get the length of the payload of a packet.
+     * @param index the index of the packet.
+     * @return the length of the payload of the packet.
+     */
+    public int getPayloadLength(int index)
+    {
+        return (prefixes == null) ? lengths[index] : lengths[index] + 1;
+    }
+
+    /**
+     * Copy the payload of a packet into an array.
+     *
+     * @param index the index of the packet.
+     * @param view a view of the mapped file, created by {@link #newView()}.
+     * @param dst the array where the payload is copied.
+     * @param dstOffset the offset in <tt>dst</tt> where the payload is copied.
+     */
+    public void copyPayload(int index, ByteBuffer view, byte[] dst, int dstOffset)
+    {
+        if(prefixes != null)
+            dst[dstOffset++] = prefixes[index];
+        view.position(offsets[index]);
+        view.get(dst, dstOffset, lengths[index]);
+    }
+
+    /**
+     * Get the marker bit of a packet.
+     * @param index the index of the packet.
+     * @return the marker bit of the packet.
+     */
+    public boolean getMarker(int index)
+    {
+        return markers[index];
+    }
+
+    /**
+     * Get the RTP timestamp of a packet, relative to the first packet.
+     * @param index the index of the packet.
+     * @return the RTP timestamp of the packet.
+     */
+    public long getRtpTimestamp(int index)
+    {
+        return rtpTimestamps[index];
+    }
+
+    /**
+     * Get the send time of a packet, relative to the first packet.
+     * @param index the index of the packet.
+     * @return the send time of the packet, in milliseconds.
+     */
+    public long getSendTime(int index)
+    {
+        return sendTimes[index];
+    }
+
+    /**
+     * Get the length of a loop of this corpus.
+     * @return the length of a loop of this corpus, in milliseconds.
+     */
+    public long getDuration()
+    {
+        return duration;
+    }
+
+    /**
+     * Get the RTP timestamp increment of a loop of this corpus.
+     * @return the RTP timestamp increment of a loop of this corpus.
+     */
+    public long getRtpDuration()
+    {
+        return rtpDuration;
+    }
+
+    @Override
+    public String toString()
+    {
+        return mediaType + " corpus of " + offsets.length + " packets ("
+            + duration + "ms, " + data.capacity() / 1024 + "KB mapped)";
+    }
+
+    /**
+     * The index of the payloads of a file, built while the file is parsed.
+     */
+    private static class Index
+    {
+        /**
+         * The number of payloads in the index.
+         */
+        int size = 0;
+
+        /**
+         * The offset of the payloads in the file.
+         */
+        int[] offsets = new int[1024];
+
+        /**
+         * The length of the payloads in the file.
+         */
+        int[] lengths = new int[1024];
+
+        /**
+         * The byte written before the payloads, or <tt>null</tt> if none.
+         */
+        byte[] prefixes;
+
+        /**
+         * The marker bit of the packets.
+         */
+        boolean[] markers = new boolean[1024];
+
+        /**
+         * The relative RTP timestamps of the packets.
+         */
+        long[] rtpTimestamps = new long[1024];
+
+        /**
+         * The relative send times of the packets.
+         */
+        long[] sendTimes = new long[1024];
+
+        /**
+         * Initializes a new, empty, <tt>Index</tt>.
+         *
+         * @param withPrefixes whether a byte is written before each payload.
+         */
+        Index(boolean withPrefixes)
+        {
+            prefixes = withPrefixes ? new byte[1024] : null;
+        }
+
+        /**
+         * Add a payload to the index.
+         *
+         * @param offset the offset of the payload in the file.
+         * @param length the length of the payload in the file.
+         * @param prefix the byte written before the payload (ignored if the
+         * index has no prefixes).
+         * @param marker the marker bit of the packet.
+         * @param rtpTimestamp the relative RTP timestamp of the packet.
+         * @param sendTime the relative send time of the packet.
+         */
+        void add(
+            int offset,
+            int length,
+            byte prefix,
+            boolean marker,
+            long rtpTimestamp,
+            long sendTime)
+        {
+            if(size == offsets.length)
+            {
+                int capacity = size * 2;
+                offsets = Arrays.copyOf(offsets, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                if(prefixes != null)
+                    prefixes = Arrays.copyOf(prefixes, capacity);
+                markers = Arrays.copyOf(markers, capacity);
+                rtpTimestamps = Arrays.copyOf(rtpTimestamps, capacity);
+                sendTimes = Arrays.copyOf(sendTimes, capacity);
+            }
+            offsets[size] = offset;
+            lengths[size] = length;
+            if(prefixes != null)
+                prefixes[size] = prefix;
+            markers[size] = marker;
+            rtpTimestamps[size] = rtpTimestamp;
+            sendTimes[size] = sendTime;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,498 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.media;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.util.Logger;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A <tt>PacketReplayer</tt> sends the packets of a <tt>PacketCorpus</tt> on a
+ * <tt>MediaStream</tt> at their recorded pace, without going through the
+ * capture and encoding pipeline of libjitsi.
+ *
+ * The SSRC, sequence number, timestamp and payload type of each packet are
+ * rewritten for the stream, and the packets are injected in the transform
+ * chain of the stream so that they are SRTP-protected with its keys and sent
+ * on its ICE-selected socket. All the replayers share a small pool of
+ * threads.
+ *
+ * Following its <tt>ReplayOptions</tt>, a replayer can start at an offset in
+ * the corpus (always at the beginning of a frame), loop over the corpus or
+ * send it only once, and delay each frame by a random jitter.
+ */
+public class PacketReplayer
+    implements Runnable
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>PacketReplayer</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(PacketReplayer.class);
+
+    /**
+     * The <tt>ScheduledExecutorService</tt> shared by all the replayers and
+     * the <tt>RtcpGenerator</tt>s.
+     */
+    private static ScheduledExecutorService executor;
+
+    /**
+     * The <tt>Random</tt> used to choose the initial sequence number and
+     * timestamp of the replayers.
+     */
+    private static final Random random = new Random();
+
+    /**
+     * The corpus of packets replayed.
+     */
+    private final PacketCorpus corpus;
+
+    /**
+     * The <tt>MediaStream</tt> on which the packets are sent.
+     */
+    private final MediaStream stream;
+
+    /**
+     * The view of the mapped file of the corpus used by this replayer.
+     */
+    private final ByteBuffer view;
+
+    /**
+     * The payload type written in the packets.
+     */
+    private final byte payloadType;
+
+    /**
+     * The options of the replay (offset, looping and jitter).
+     */
+    private final ReplayOptions options;
+
+    /**
+     * The SSRC written in the packets.
+     */
+    private long ssrc;
+
+    /**
+     * The SSRC given to this replayer, or -1 if the packets are sent with
+     * the SSRC of the <tt>MediaStream</tt>.
+     */
+    private final long fixedSSRC;
+
+    /**
+     * The sequence number of the next packet.
+     */
+    private int sequenceNumber;
+
+    /**
+     * The RTP timestamp of the first packet of the corpus.
+     */
+    private long timestampBase;
+
+    /**
+     * The index in the corpus of the first packet sent.
+     */
+    private int startIndex;
+
+    /**
+     * The index in the corpus of the next packet to send.
+     */
+    private int index;
+
+    /**
+     * The number of times the corpus has been entirely sent.
+     */
+    private long loop;
+
+    /**
+     * The time (from <tt>System.currentTimeMillis()</tt>) at which the first
+     * packet of the corpus would have been sent, i.e. the time at which this
+     * replayer started minus the send time of its start packet.
+     */
+    private long startTime;
+
+    /**
+     * The jitter (in milliseconds) added to the send time of the packets of
+     * the current frame.
+     */
+    private int frameJitter;
+
+    /**
+     * The send time (relative to {@link #startTime}, jitter included) of the
+     * last packet sent. The packets are never sent before it, so that the
+     * jitter doesn't reorder them.
+     */
+    private long lastSendTime;
+
+    /**
+     * The <tt>ScheduledFuture</tt> of the next run of this replayer.
+     */
+    private ScheduledFuture<?> future;
+
+    /**
+     * Whether this replayer has been stopped.
+     */
+    private boolean stopped = true;
+
+    /**
+     * The RTP timestamp of the last packet sent.
+     */
+    private volatile long lastTimestamp;
+
+    /**
+     * The number of packets sent by this replayer.
+     */
+    private final AtomicLong packetsSent = new AtomicLong();
+
+    /**
+     * The number of bytes (of RTP packets, before SRTP) sent by this replayer.
+     */
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * Initializes a new <tt>PacketReplayer</tt>.
+     *
+     * @param corpus the corpus of packets to replay.
+     * @param stream the <tt>MediaStream</tt> on which the packets will be
+     * sent. It must be connected and started.
+     * @param payloadType the payload type negotiated for the format of the
+     * corpus.
+     * @param options the options of the replay.
+     */
+    public PacketReplayer(
+        PacketCorpus corpus,
+        MediaStream stream,
+        byte payloadType,
+        ReplayOptions options)
+    {
+        this(corpus, stream, -1, payloadType, options);
+    }
+
+    /**
+     * Initializes a new <tt>PacketReplayer</tt> sending its packets with
+     * another SSRC than the one of its <tt>MediaStream</tt>, e.g. for a
+     * simulcast layer.
+     *
+     * @param corpus the corpus of packets to replay.
+     * @param stream the <tt>MediaStream</tt> on which the packets will be
+     * sent. It must be connected and started.
+     * @param ssrc the SSRC of the packets, or -1 to use the one of
+     * <tt>stream</tt>.
+     * @param payloadType the payload type negotiated for the format of the
+     * corpus.
+     * @param options the options of the replay.
+     */
+    public PacketReplayer(
+        PacketCorpus corpus,
+        MediaStream stream,
+        long ssrc,
+        byte payloadType,
+        ReplayOptions options)
+    {
+        this.fixedSSRC = ssrc;
+        this.corpus = corpus;
+        this.view = corpus.newView();
+        this.stream = stream;
+        this.payloadType = payloadType;
+        this.options = (options == null) ? ReplayOptions.DEFAULT : options;
+    }
+
+    /**
+     * Get the <tt>ScheduledExecutorService</tt> shared by all the replayers
+     * and the <tt>RtcpGenerator</tt>s, creating it if needed.
+     *
+     * @return the <tt>ScheduledExecutorService</tt> shared by all the
+     * replayers.
+     */
+    static synchronized ScheduledExecutorService getExecutor()
+    {
+        if(executor == null)
+        {
+            final AtomicInteger threadCount = new AtomicInteger();
+            executor = Executors.newScheduledThreadPool(
+                Runtime.getRuntime().availableProcessors(),
+                new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(
+                            r,
+                            "PacketReplayer-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return executor;
+    }
+
+    /**
+     * Start sending the packets of the corpus, from the offset given by the
+     * <tt>ReplayOptions</tt> for the user of index <tt>userIndex</tt>.
+     *
+     * @param userIndex the index of the user on behalf of whom the packets
+     * are sent.
+     */
+    public void start(int userIndex)
+    {
+        start(options.getStartOffset(corpus, userIndex), newTimestampBase());
+    }
+
+    /**
+     * Start sending the packets of the corpus from a given offset and with a
+     * given RTP timestamp base, so that several replayers (e.g. the
+     * simulcast layers of a user) send aligned frames.
+     *
+     * @param startOffset the offset in the corpus at which the replay
+     * starts, in milliseconds.
+     * @param timestampBase the RTP timestamp of the first packet of the
+     * corpus.
+     */
+    public synchronized void start(long startOffset, long timestampBase)
+    {
+        if(!stopped || corpus.size() == 0)
+            return;
+
+        ssrc = getSSRC();
+        synchronized (random)
+        {
+            sequenceNumber = random.nextInt(0x10000);
+        }
+        this.timestampBase = timestampBase;
+        startIndex = getFrameIndex(startOffset);
+        index = startIndex;
+        loop = 0;
+        frameJitter = 0;
+        lastSendTime = corpus.getSendTime(startIndex);
+        stopped = false;
+        startTime = System.currentTimeMillis() - lastSendTime;
+        future = getExecutor().schedule(this, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get a random RTP timestamp base for a replay.
+     *
+     * @return a random 32 bits RTP timestamp.
+     */
+    public static long newTimestampBase()
+    {
+        synchronized (random)
+        {
+            return random.nextInt() & 0xFFFFFFFFL;
+        }
+    }
+
+    /**
+     * Stop sending packets.
+     */
+    public synchronized void stop()
+    {
+        stopped = true;
+        if(future != null)
+        {
+            future.cancel(false);
+            future = null;
+        }
+    }
+
+    /**
+     * Send the packets whose time has come, then schedule the next run of
+     * this replayer at the send time of the next packet.
+     */
+    public synchronized void run()
+    {
+        if(stopped)
+            return;
+
+        long elapsed = System.currentTimeMillis() - startTime;
+        long nextSendTime;
+
+        while((nextSendTime = getNextSendTime()) <= elapsed)
+        {
+            if(!send())
+            {
+                stop();
+                return;
+            }
+            lastSendTime = nextSendTime;
+
+            index++;
+            if(index >= corpus.size())
+            {
+                index = 0;
+                loop++;
+            }
+            if(index == startIndex && !options.getLoop())
+            {
+                logger.debug("The " + corpus.getMediaType() + " corpus has"
+                    + " been entirely sent on the stream of SSRC " + ssrc);
+                stop();
+                return;
+            }
+            if(isFrameStart(index))
+                frameJitter = options.nextJitter();
+        }
+
+        future = getExecutor().schedule(
+            this,
+            nextSendTime - elapsed,
+            TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the send time of the next packet, jitter included, relative to
+     * {@link #startTime}.
+     *
+     * @return the send time of the next packet, in milliseconds.
+     */
+    private long getNextSendTime()
+    {
+        long sendTime = loop * corpus.getDuration()
+            + corpus.getSendTime(index)
+            + frameJitter;
+
+        return Math.max(sendTime, lastSendTime);
+    }
+
+    /**
+     * Get the index of the first packet of the first frame which starts at
+     * or after <tt>offset</tt> in the corpus.
+     *
+     * @param offset the offset in the corpus, in milliseconds.
+     * @return the index of the first packet of the frame, or 0 if no frame
+     * starts after <tt>offset</tt>.
+     */
+    private int getFrameIndex(long offset)
+    {
+        for(int i = 0; i < corpus.size(); i++)
+        {
+            if(corpus.getSendTime(i) >= offset && isFrameStart(i))
+                return i;
+        }
+        return 0;
+    }
+
+    /**
+     * Tell if a packet of the corpus is the first packet of a frame, i.e. if
+     * its RTP timestamp differs from the one of the previous packet.
+     *
+     * @param i the index of the packet in the corpus.
+     * @return <tt>true</tt> if the packet starts a frame.
+     */
+    private boolean isFrameStart(int i)
+    {
+        return i == 0
+            || corpus.getRtpTimestamp(i) != corpus.getRtpTimestamp(i - 1);
+    }
+
+    /**
+     * Build the next packet with the header of this replayer and inject it
+     * in the <tt>MediaStream</tt>.
+     *
+     * @return <tt>false</tt> if the packet couldn't be sent because of the
+     * <tt>MediaStream</tt>.
+     */
+    private boolean send()
+    {
+        int payloadLength = corpus.getPayloadLength(index);
+        byte[] buf = new byte[PacketCorpus.RTP_HEADER_SIZE + payloadLength];
+        long timestamp = (timestampBase
+            + loop * corpus.getRtpDuration()
+            + corpus.getRtpTimestamp(index)) & 0xFFFFFFFFL;
+
+        buf[0] = (byte) 0x80;
+        buf[1] = (byte) ((corpus.getMarker(index) ? 0x80 : 0x00)
+            | (payloadType & 0x7F));
+        buf[2] = (byte) (sequenceNumber >> 8);
+        buf[3] = (byte) sequenceNumber;
+        buf[4] = (byte) (timestamp >> 24);
+        buf[5] = (byte) (timestamp >> 16);
+        buf[6] = (byte) (timestamp >> 8);
+        buf[7] = (byte) timestamp;
+        buf[8] = (byte) (ssrc >> 24);
+        buf[9] = (byte) (ssrc >> 16);
+        buf[10] = (byte) (ssrc >> 8);
+        buf[11] = (byte) ssrc;
+        corpus.copyPayload(index, view, buf, PacketCorpus.RTP_HEADER_SIZE);
+        sequenceNumber = (sequenceNumber + 1) & 0xFFFF;
+
+        try
+        {
+            stream.injectPacket(
+                new RawPacket(buf, 0, buf.length),
+                true,
+                (TransformEngine) null);
+        }
+        catch (TransmissionFailedException e)
+        {
+            logger.warn("Failed to send a replayed packet on the "
+                + corpus.getMediaType() + " stream of SSRC " + ssrc
+                + ", stopping the replay", e);
+            return false;
+        }
+
+        lastTimestamp = timestamp;
+        packetsSent.incrementAndGet();
+        bytesSent.addAndGet(buf.length);
+        return true;
+    }
+
+    /**
+     * Get the SSRC of the packets sent by this replayer.
+     * @return the SSRC of the packets.
+     */
+    public long getSSRC()
+    {
+        return (fixedSSRC == -1)
+            ? stream.getLocalSourceID() & 0xFFFFFFFFL
+            : fixedSSRC;
+    }
+
+    /**
+     * Get the RTP timestamp of the last packet sent by this replayer.
+     * @return the RTP timestamp of the last packet sent.
+     */
+    public long getLastTimestamp()
+    {
+        return lastTimestamp;
+    }
+
+    /**
+     * Get the number of packets sent by this replayer.
+     * @return the number of packets sent by this replayer.
+     */
+    public long getPacketsSent()
+    {
+        return packetsSent.get();
+    }
+
+    /**
+     * Get the number of bytes (of RTP packets, before SRTP) sent by this
+     * replayer.
+     * @return the number of bytes sent by this replayer.
+     */
+    public long getBytesSent()
+    {
+        return bytesSent.get();
+    }
+}
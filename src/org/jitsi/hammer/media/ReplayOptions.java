@@ -0,0 +1,205 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.media;
+
+import java.util.*;
+
+/**
+ * The <tt>ReplayOptions</tt> describe how each <tt>PacketReplayer</tt> plays
+ * the shared <tt>PacketCorpus</tt> : the position in the corpus at which it
+ * starts, whether it loops over the corpus, and how much jitter is added to
+ * the send time of its frames.
+ *
+ * Without offset and jitter, all the users send the same packets at nearly
+ * the same time, which doesn't look like independent participants.
+ */
+public class ReplayOptions
+{
+    /**
+     * The ways a replayer can choose its start position in the corpus.
+     */
+    public enum OffsetMode
+    {
+        /**
+         * Every replayer starts at the beginning of the corpus.
+         */
+        NONE,
+
+        /**
+         * Every replayer starts at a random position in the corpus.
+         */
+        RANDOM,
+
+        /**
+         * The replayers start at deterministic positions computed from the
+         * index of their user, evenly spread over the corpus.
+         */
+        SPREAD;
+
+        /**
+         * Get the <tt>OffsetMode</tt> named <tt>name</tt>, ignoring the case.
+         *
+         * @param name the name of the mode.
+         * @return the <tt>OffsetMode</tt> named <tt>name</tt>.
+         * @throws IllegalArgumentException if there is no such mode.
+         */
+        public static OffsetMode parse(String name)
+        {
+            for(OffsetMode mode : values())
+            {
+                if(mode.name().equalsIgnoreCase(name))
+                    return mode;
+            }
+            throw new IllegalArgumentException(
+                "Unknown media offset mode : " + name);
+        }
+    }
+
+    /**
+     * The default <tt>ReplayOptions</tt> : no offset, looping, no jitter.
+     */
+    public static final ReplayOptions DEFAULT
+        = new ReplayOptions(OffsetMode.NONE, true, 0);
+
+    /**
+     * The fractional part of the golden ratio, used to spread the offsets of
+     * the users over the corpus whatever their number.
+     */
+    private static final double GOLDEN_RATIO_FRACTION = 0.6180339887498949;
+
+    /**
+     * The <tt>Random</tt> used to choose the random offsets and the jitter.
+     */
+    private static final Random random = new Random();
+
+    /**
+     * The way replayers choose their start position.
+     */
+    private final OffsetMode offsetMode;
+
+    /**
+     * Whether the replayers loop over the corpus.
+     */
+    private final boolean loop;
+
+    /**
+     * The maximum jitter (in milliseconds) added to the send time of a frame.
+     */
+    private final int maxJitter;
+
+    /**
+     * Initializes new <tt>ReplayOptions</tt>.
+     *
+     * @param offsetMode the way replayers choose their start position.
+     * @param loop whether the replayers loop over the corpus.
+     * @param maxJitter the maximum jitter (in milliseconds) added to the
+     * send time of a frame.
+     */
+    public ReplayOptions(OffsetMode offsetMode, boolean loop, int maxJitter)
+    {
+        if(maxJitter < 0)
+        {
+            throw new IllegalArgumentException(
+                "The media jitter can't be negative : " + maxJitter);
+        }
+        this.offsetMode = offsetMode;
+        this.loop = loop;
+        this.maxJitter = maxJitter;
+    }
+
+    /**
+     * Get the time (relative to the beginning of <tt>corpus</tt>) at which
+     * the replayer of a user starts.
+     *
+     * @param corpus the corpus replayed.
+     * @param userIndex the index of the user.
+     * @return the start offset, in milliseconds.
+     */
+    public long getStartOffset(PacketCorpus corpus, int userIndex)
+    {
+        long duration = corpus.getDuration();
+        if(duration <= 0)
+            return 0;
+
+        switch(offsetMode)
+        {
+        case RANDOM:
+            synchronized (random)
+            {
+                return (long) (random.nextDouble() * duration);
+            }
+        case SPREAD:
+            double position = userIndex * GOLDEN_RATIO_FRACTION;
+            return (long) ((position - Math.floor(position)) * duration);
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * Get a random jitter, between 0 and the maximum jitter.
+     *
+     * @return a random jitter, in milliseconds.
+     */
+    public int nextJitter()
+    {
+        if(maxJitter == 0)
+            return 0;
+        synchronized (random)
+        {
+            return random.nextInt(maxJitter + 1);
+        }
+    }
+
+    /**
+     * Get the way replayers choose their start position.
+     * @return the way replayers choose their start position.
+     */
+    public OffsetMode getOffsetMode()
+    {
+        return offsetMode;
+    }
+
+    /**
+     * Get whether the replayers loop over the corpus.
+     * @return <tt>true</tt> if the replayers loop over the corpus.
+     */
+    public boolean getLoop()
+    {
+        return loop;
+    }
+
+    /**
+     * Get the maximum jitter added to the send time of a frame.
+     * @return the maximum jitter, in milliseconds.
+     */
+    public int getMaxJitter()
+    {
+        return maxJitter;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return "offset=" + offsetMode.name().toLowerCase()
+            + ", loop=" + loop
+            + ", jitter=" + maxJitter + "ms";
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jitsi.hammer.media;
+
+import org.jitsi.hammer.stats.*;
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.util.Logger;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A <tt>RtcpGenerator</tt> periodically sends a compound RTCP packet on a
+ * <tt>MediaStream</tt>, so that the bridge handles the RTCP of a fake user
+ * like the one of a real client :
+ * <ul>
+ * <li>a receiver report, with a report block per remote SSRC when the
+ * <tt>ReceiveStreamStats</tt> of the stream are known, or a sender report
+ * when the stream is replayed, and a sender report per other SSRC replayed
+ * (e.g. the simulcast layers);</li>
+ * <li>a SDES with the CNAME;</li>
+ * <li>for the video streams, a REMB with the bitrate of the
+ * <tt>RtcpOptions</tt> for the remote SSRCs, and NACKs and PLIs for random
+ * remote SSRCs at the rates of the <tt>RtcpOptions</tt>.</li>
+ * </ul>
+ *
+ * The packets are injected in the transform chain of the stream, so that
+ * they are SRTCP-protected and sent on its RTCP socket. All the generators
+ * run on the threads shared with the <tt>PacketReplayer</tt>s, and their
+ * first packets are spread over an interval.
+ */
+public class RtcpGenerator
+    implements Runnable
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>RtcpGenerator</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(RtcpGenerator.class);
+
+    /**
+     * The maximum number of report blocks of a report (the RC field has 5
+     * bits).
+     */
+    private static final int MAX_REPORT_BLOCKS = 31;
+
+    /**
+     * The maximum number of SSRCs of a REMB (the count has 8 bits).
+     */
+    private static final int MAX_REMB_SSRCS = 255;
+
+    /**
+     * The maximum number of NACKs, and of PLIs, of a compound packet.
+     */
+    private static final int MAX_FEEDBACKS = 32;
+
+    /**
+     * The difference between the NTP epoch (1900) and the Java epoch
+     * (1970), in seconds.
+     */
+    private static final long NTP_EPOCH_OFFSET = 2208988800L;
+
+    /**
+     * The <tt>Random</tt> used to spread the generators and choose the
+     * targets of the NACKs and PLIs.
+     */
+    private static final Random random = new Random();
+
+    /**
+     * The <tt>MediaStream</tt> on which the packets are sent.
+     */
+    private final MediaStream stream;
+
+    /**
+     * Whether <tt>stream</tt> is a video stream, which sends feedback.
+     */
+    private final boolean video;
+
+    /**
+     * The options of the RTCP sent.
+     */
+    private final RtcpOptions options;
+
+    /**
+     * The stats of the packets received on the stream, from which the
+     * report blocks are written, or <tt>null</tt>.
+     */
+    private final ReceiveStreamStats receiveStats;
+
+    /**
+     * The <tt>PacketReplayer</tt>s sending on the stream.
+     */
+    private final List<PacketReplayer> replayers;
+
+    /**
+     * The CNAME of the SDES.
+     */
+    private final byte[] cname;
+
+    /**
+     * The remote SSRCs targeted by the feedback.
+     */
+    private volatile long[] remoteSSRCs = new long[0];
+
+    /**
+     * The number of NACKs due, of which the integral part is sent with the
+     * next packet.
+     */
+    private double nackCredit;
+
+    /**
+     * The number of PLIs due, of which the integral part is sent with the
+     * next packet.
+     */
+    private double pliCredit;
+
+    /**
+     * The <tt>ScheduledFuture</tt> of the periodic runs of this generator.
+     */
+    private ScheduledFuture<?> future;
+
+    /**
+     * The number of compound packets sent by this generator.
+     */
+    private final AtomicLong packetsSent = new AtomicLong();
+
+    /**
+     * Initializes a new <tt>RtcpGenerator</tt>.
+     *
+     * @param stream the <tt>MediaStream</tt> on which the packets will be
+     * sent. It must be connected and started.
+     * @param options the options of the RTCP sent.
+     * @param receiveStats the stats of the packets received on the stream,
+     * or <tt>null</tt> to send receiver reports without report blocks.
+     * @param replayers the <tt>PacketReplayer</tt>s sending on the stream,
+     * for which sender reports are sent.
+     */
+    public RtcpGenerator(
+        MediaStream stream,
+        RtcpOptions options,
+        ReceiveStreamStats receiveStats,
+        List<PacketReplayer> replayers)
+    {
+        this.stream = stream;
+        this.video = (stream instanceof VideoMediaStream);
+        this.options = options;
+        this.receiveStats = receiveStats;
+        this.replayers = replayers;
+        this.cname = LibJitsi.getMediaService().getRtpCname().getBytes();
+        synchronized (random)
+        {
+            // Without it, all the generators send their NACKs and PLIs
+            // at the same ticks.
+            this.nackCredit = random.nextDouble();
+            this.pliCredit = random.nextDouble();
+        }
+    }
+
+    /**
+     * Set the remote SSRCs targeted by the feedback.
+     *
+     * @param ssrcs the remote SSRCs announced for the stream.
+     */
+    public void setRemoteSSRCs(Collection<Long> ssrcs)
+    {
+        long[] remoteSSRCs = new long[ssrcs.size()];
+        int i = 0;
+
+        for(long ssrc : ssrcs)
+            remoteSSRCs[i++] = ssrc;
+        this.remoteSSRCs = remoteSSRCs;
+    }
+
+    /**
+     * Start sending a compound packet at each interval of the
+     * <tt>RtcpOptions</tt>, the first one after a random part of it.
+     */
+    public synchronized void start()
+    {
+        if(future != null)
+            return;
+
+        int interval = options.getInterval();
+        int delay;
+
+        synchronized (random)
+        {
+            delay = random.nextInt(interval);
+        }
+        future = PacketReplayer.getExecutor().scheduleAtFixedRate(
+            this,
+            delay,
+            interval,
+            TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop sending packets.
+     */
+    public synchronized void stop()
+    {
+        if(future != null)
+        {
+            future.cancel(false);
+            future = null;
+        }
+    }
+
+    /**
+     * Build and send a compound packet.
+     */
+    public void run()
+    {
+        byte[] packet;
+
+        synchronized (this)
+        {
+            if(future == null)
+                return;
+            packet = buildPacket();
+        }
+
+        try
+        {
+            stream.injectPacket(
+                new RawPacket(packet, 0, packet.length),
+                false,
+                (TransformEngine) null);
+            packetsSent.incrementAndGet();
+        }
+        catch (TransmissionFailedException e)
+        {
+            logger.warn("Failed to send RTCP on the stream of SSRC "
+                + stream.getLocalSourceID() + ", stopping the generator", e);
+            stop();
+        }
+    }
+
+    /**
+     * Build the next compound packet.
+     *
+     * @return the compound packet.
+     */
+    private byte[] buildPacket()
+    {
+        long localSSRC = stream.getLocalSourceID() & 0xFFFFFFFFL;
+        long[] remoteSSRCs = this.remoteSSRCs;
+        byte[] blocks = new byte[MAX_REPORT_BLOCKS * 24];
+        int blockCount = (receiveStats == null)
+            ? 0
+            : receiveStats.writeReportBlocks(blocks, 0, MAX_REPORT_BLOCKS);
+        int nackCount = 0;
+        int pliCount = 0;
+        int rembCount = 0;
+
+        if(video && remoteSSRCs.length > 0)
+        {
+            double seconds = options.getInterval() / 1000D;
+
+            nackCredit += options.getNackRate() * seconds;
+            pliCredit += options.getPliRate() * seconds;
+            nackCount = (int) Math.min(MAX_FEEDBACKS, nackCredit);
+            pliCount = (int) Math.min(MAX_FEEDBACKS, pliCredit);
+            nackCredit -= (int) nackCredit;
+            pliCredit -= (int) pliCredit;
+            if(options.getRembBitrate() > 0)
+                rembCount = Math.min(MAX_REMB_SSRCS, remoteSSRCs.length);
+        }
+
+        PacketReplayer primary = null;
+        List<PacketReplayer> senders = new ArrayList<PacketReplayer>();
+
+        for(PacketReplayer replayer : replayers)
+        {
+            if(replayer.getPacketsSent() == 0)
+                continue;
+            if(primary == null && replayer.getSSRC() == localSSRC)
+                primary = replayer;
+            else
+                senders.add(replayer);
+        }
+
+        int sdesLength = (4 + 2 + cname.length + 1 + 3) & ~3;
+        int size = ((primary == null) ? 8 : 28) + 24 * blockCount
+            + 28 * senders.size()
+            + 4 + sdesLength
+            + ((rembCount > 0) ? 20 + 4 * rembCount : 0)
+            + 16 * nackCount
+            + 12 * pliCount;
+        ByteBuffer buf = ByteBuffer.allocate(size);
+
+        if(primary == null)
+        {
+            putHeader(buf, blockCount, 201, 1 + 6 * blockCount);
+            buf.putInt((int) localSSRC);
+        }
+        else
+        {
+            putSenderReport(buf, primary, blockCount);
+        }
+        buf.put(blocks, 0, 24 * blockCount);
+        for(PacketReplayer sender : senders)
+            putSenderReport(buf, sender, 0);
+
+        putHeader(buf, 1, 202, sdesLength / 4);
+        buf.putInt((int) localSSRC);
+        buf.put((byte) 1);
+        buf.put((byte) cname.length);
+        buf.put(cname);
+        while(buf.position() % 4 != 0 || buf.get(buf.position() - 1) != 0)
+            buf.put((byte) 0);
+
+        if(rembCount > 0)
+        {
+            long bitrate = options.getRembBitrate();
+            int exp = 0;
+
+            while((bitrate >> exp) > 0x3FFFF)
+                exp++;
+            putHeader(buf, 15, 206, 4 + rembCount);
+            buf.putInt((int) localSSRC);
+            buf.putInt(0);
+            buf.put(new byte[] { 'R', 'E', 'M', 'B' });
+            buf.putInt((rembCount << 24) | (exp << 18)
+                | (int) (bitrate >> exp));
+            for(int i = 0; i < rembCount; i++)
+                buf.putInt((int) remoteSSRCs[i]);
+        }
+
+        for(int i = 0; i < nackCount; i++)
+        {
+            long ssrc = randomSSRC(remoteSSRCs);
+            int seq = (receiveStats == null)
+                ? -1
+                : receiveStats.getHighestSeq(ssrc);
+
+            synchronized (random)
+            {
+                seq = (seq == -1)
+                    ? random.nextInt(0x10000)
+                    : (seq - 1 - random.nextInt(16)) & 0xFFFF;
+            }
+            putHeader(buf, 1, 205, 3);
+            buf.putInt((int) localSSRC);
+            buf.putInt((int) ssrc);
+            buf.putInt(seq << 16);
+        }
+
+        for(int i = 0; i < pliCount; i++)
+        {
+            putHeader(buf, 1, 206, 2);
+            buf.putInt((int) localSSRC);
+            buf.putInt((int) randomSSRC(remoteSSRCs));
+        }
+
+        return buf.array();
+    }
+
+    /**
+     * Write the header of a RTCP packet.
+     *
+     * @param buf the buffer to write to.
+     * @param count the count (or FMT) field.
+     * @param packetType the packet type.
+     * @param length the length of the packet in 32 bits words, minus one.
+     */
+    private static void putHeader(
+        ByteBuffer buf,
+        int count,
+        int packetType,
+        int length)
+    {
+        buf.put((byte) (0x80 | count));
+        buf.put((byte) packetType);
+        buf.putShort((short) length);
+    }
+
+    /**
+     * Write a sender report for the SSRC of a <tt>PacketReplayer</tt>,
+     * without its report blocks.
+     *
+     * @param buf the buffer to write to.
+     * @param replayer the <tt>PacketReplayer</tt>.
+     * @param blockCount the number of report blocks written after it.
+     */
+    private static void putSenderReport(
+        ByteBuffer buf,
+        PacketReplayer replayer,
+        int blockCount)
+    {
+        long now = System.currentTimeMillis();
+        long packets = replayer.getPacketsSent();
+
+        putHeader(buf, blockCount, 200, 6 + 6 * blockCount);
+        buf.putInt((int) replayer.getSSRC());
+        buf.putInt((int) (now / 1000 + NTP_EPOCH_OFFSET));
+        buf.putInt((int) (((now % 1000) << 32) / 1000));
+        buf.putInt((int) replayer.getLastTimestamp());
+        buf.putInt((int) packets);
+        buf.putInt((int) (replayer.getBytesSent()
+            - packets * PacketCorpus.RTP_HEADER_SIZE));
+    }
+
+    /**
+     * Choose a random SSRC.
+     *
+     * @param ssrcs the SSRCs, which can't be empty.
+     * @return one of <tt>ssrcs</tt>.
+     */
+    private static long randomSSRC(long[] ssrcs)
+    {
+        synchronized (random)
+        {
+            return ssrcs[random.nextInt(ssrcs.length)];
+        }
+    }
+
+    /**
+     * Get the number of compound packets sent by this generator.
+     * @return the number of compound packets sent by this generator.
+     */
+    public long getPacketsSent()
+    {
+        return packetsSent.get();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jitsi.hammer.media;
+
+/**
+ * The <tt>RtcpOptions</tt> describe the RTCP sent by each
+ * <tt>RtcpGenerator</tt> : the interval between two compound packets, the
+ * bitrate announced in the REMB feedback, and the rates of the NACKs and
+ * PLIs sent for the remote video streams.
+ */
+public class RtcpOptions
+{
+    /**
+     * The interval between two compound RTCP packets of a stream, in
+     * milliseconds.
+     */
+    private final int interval;
+
+    /**
+     * The bitrate (in bits per second) announced in the REMB feedback of
+     * the video streams, or 0 for no REMB.
+     */
+    private final long rembBitrate;
+
+    /**
+     * The number of NACKs sent per second by a video stream.
+     */
+    private final double nackRate;
+
+    /**
+     * The number of PLIs sent per second by a video stream.
+     */
+    private final double pliRate;
+
+    /**
+     * Initializes new <tt>RtcpOptions</tt>.
+     *
+     * @param interval the interval between two compound RTCP packets of a
+     * stream, in milliseconds.
+     * @param rembBitrate the bitrate (in bits per second) announced in the
+     * REMB feedback, or 0 for no REMB.
+     * @param nackRate the number of NACKs sent per second by a video
+     * stream.
+     * @param pliRate the number of PLIs sent per second by a video stream.
+     */
+    public RtcpOptions(
+        int interval,
+        long rembBitrate,
+        double nackRate,
+        double pliRate)
+    {
+        if(interval < 1)
+        {
+            throw new IllegalArgumentException(
+                "The RTCP interval must be positive : " + interval);
+        }
+        if(rembBitrate < 0 || !(nackRate >= 0) || !(pliRate >= 0))
+        {
+            throw new IllegalArgumentException(
+                "The REMB bitrate and the NACK and PLI rates can't be"
+                    + " negative");
+        }
+        this.interval = interval;
+        this.rembBitrate = rembBitrate;
+        this.nackRate = nackRate;
+        this.pliRate = pliRate;
+    }
+
+    /**
+     * Get the interval between two compound RTCP packets of a stream.
+     * @return the interval, in milliseconds.
+     */
+    public int getInterval()
+    {
+        return interval;
+    }
+
+    /**
+     * Get the bitrate announced in the REMB feedback.
+     * @return the bitrate in bits per second, or 0 for no REMB.
+     */
+    public long getRembBitrate()
+    {
+        return rembBitrate;
+    }
+
+    /**
+     * Get the number of NACKs sent per second by a video stream.
+     * @return the number of NACKs per second.
+     */
+    public double getNackRate()
+    {
+        return nackRate;
+    }
+
+    /**
+     * Get the number of PLIs sent per second by a video stream.
+     * @return the number of PLIs per second.
+     */
+    public double getPliRate()
+    {
+        return pliRate;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return "interval=" + interval + "ms"
+            + ", remb=" + rembBitrate + "bps"
+            + ", nack=" + nackRate + "/s"
+            + ", pli=" + pliRate + "/s";
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.stats;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Converts a binary stats file written by <tt>StatsBinaryWriter</tt> :
+ * <ul>
+ * <li><tt>json</tt> : to the JSON of the all stats file, with the stats of
+ * all the users and the summary stats of each sample;</li>
+ * <li><tt>csv</tt> : to a CSV file with a line per stream per user per
+ * sample;</li>
+ * <li><tt>overall</tt> : to the JSON of the overall stats file.</li>
+ * </ul>
+ *
+ * Usage : <tt>BinaryStatsConverter json|csv|overall input.bin output</tt>
+ */
+public class BinaryStatsConverter
+{
+    /**
+     * The output formats of the converter.
+     */
+    private enum Format
+    {
+        JSON,
+        CSV,
+        OVERALL
+    }
+
+    /**
+     * The stream of the binary stats file.
+     */
+    private final DataInputStream in;
+
+    /**
+     * The index in <tt>StreamStatsField.fields()</tt> of each field of the
+     * file, or -1 if it isn't known.
+     */
+    private final int[] fieldIndexes;
+
+    /**
+     * Whether each field of the file is an integer.
+     */
+    private final boolean[] fieldIntegral;
+
+    /**
+     * The usernames of the users, by ID.
+     */
+    private final Map<Integer, String> usernames
+        = new HashMap<Integer, String>();
+
+    /**
+     * The summary stats of the audio streams.
+     */
+    private final HammerSummaryStats audioSummaryStats
+        = new HammerSummaryStats();
+
+    /**
+     * The summary stats of the video streams.
+     */
+    private final HammerSummaryStats videoSummaryStats
+        = new HammerSummaryStats();
+
+    /**
+     * The previous samples of the cumulative stats of the audio streams,
+     * indexed by the IDs of the users.
+     */
+    private final StatsDeltaTracker audioDeltas = new StatsDeltaTracker();
+
+    /**
+     * The previous samples of the cumulative stats of the video streams,
+     * indexed by the IDs of the users.
+     */
+    private final StatsDeltaTracker videoDeltas = new StatsDeltaTracker();
+
+    /**
+     * The timestamp of the current sample.
+     */
+    private long timestamp;
+
+    /**
+     * The number of users of the current sample.
+     */
+    private int userCount;
+
+    /**
+     * The index of the next user of the current sample.
+     */
+    private int userIndex;
+
+    /**
+     * Whether the end of the file has been reached in the middle of a
+     * record (e.g. the run was killed while writing a sample).
+     */
+    private boolean truncated = false;
+
+    /**
+     * The ID of the current user.
+     */
+    private int userId;
+
+    /**
+     * The username of the current user.
+     */
+    private String username;
+
+    /**
+     * The SSRC of the audio stream of the current user.
+     */
+    private long audioSSRC;
+
+    /**
+     * The stats of the audio stream of the current user.
+     */
+    private final double[] audioValues
+        = new double[StreamStatsField.fields().length];
+
+    /**
+     * The SSRC of the video stream of the current user.
+     */
+    private long videoSSRC;
+
+    /**
+     * The stats of the video stream of the current user.
+     */
+    private final double[] videoValues
+        = new double[StreamStatsField.fields().length];
+
+    /**
+     * Initializes a new <tt>BinaryStatsConverter</tt> and reads the header of
+     * the file.
+     *
+     * @param in the stream of the binary stats file.
+     * @throws IOException if the file can't be read or isn't a binary stats
+     * file.
+     */
+    public BinaryStatsConverter(InputStream in)
+        throws IOException
+    {
+        this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+
+        if(this.in.readInt() != StatsBinaryWriter.MAGIC)
+            throw new IOException("Not a binary stats file");
+        int version = this.in.readInt();
+        if(version != StatsBinaryWriter.VERSION)
+        {
+            throw new IOException(
+                "Unsupported binary stats version : " + version);
+        }
+
+        int fieldCount = this.in.readInt();
+        fieldIndexes = new int[fieldCount];
+        fieldIntegral = new boolean[fieldCount];
+        for(int i = 0; i < fieldCount; i++)
+        {
+            String name = this.in.readUTF();
+            fieldIntegral[i] = this.in.readBoolean();
+            fieldIndexes[i] = -1;
+            for(StreamStatsField field : StreamStatsField.fields())
+            {
+                if(field.getJsonName().equals(name))
+                    fieldIndexes[i] = field.ordinal();
+            }
+        }
+    }
+
+    /**
+     * Read the next sample of the file.
+     *
+     * @return <tt>false</tt> if the end of the file has been reached.
+     * @throws IOException if the file can't be read.
+     */
+    private boolean nextSample()
+        throws IOException
+    {
+        try
+        {
+            while(!truncated)
+            {
+                int tag = in.read();
+                if(tag == -1)
+                    return false;
+
+                if(tag == StatsBinaryWriter.USER_RECORD)
+                {
+                    int id = in.readInt();
+                    usernames.put(id, in.readUTF());
+                }
+                else if(tag == StatsBinaryWriter.SAMPLE_RECORD)
+                {
+                    timestamp = in.readLong();
+                    userCount = in.readInt();
+                    userIndex = 0;
+                    return true;
+                }
+                else
+                {
+                    throw new IOException("Unknown record : " + tag);
+                }
+            }
+        }
+        catch (EOFException e)
+        {
+            truncated = true;
+        }
+        return false;
+    }
+
+    /**
+     * Read the next user of the current sample.
+     *
+     * @return <tt>false</tt> if all the users of the sample have been read.
+     * @throws IOException if the file can't be read.
+     */
+    private boolean nextUser()
+        throws IOException
+    {
+        if(truncated || userIndex == userCount)
+            return false;
+        userIndex++;
+
+        try
+        {
+            userId = in.readInt();
+            username = usernames.get(userId);
+            audioSSRC = in.readLong();
+            readValues(audioValues);
+            videoSSRC = in.readLong();
+            readValues(videoValues);
+        }
+        catch (EOFException e)
+        {
+            truncated = true;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Read the values of the stats of a stream.
+     *
+     * @param values the array filled with the values, indexed by the
+     * ordinals of the <tt>StreamStatsField</tt>s.
+     * @throws IOException if the file can't be read.
+     */
+    private void readValues(double[] values)
+        throws IOException
+    {
+        Arrays.fill(values, Double.NaN);
+        for(int i = 0; i < fieldIndexes.length; i++)
+        {
+            double value = fieldIntegral[i]
+                ? in.readLong()
+                : in.readDouble();
+            if(fieldIndexes[i] != -1)
+                values[fieldIndexes[i]] = value;
+        }
+    }
+
+    /**
+     * Convert the file to the JSON of the all stats file of
+     * <tt>HammerStats</tt>, with the summary stats of each sample.
+     *
+     * @param output the file to write.
+     * @throws IOException if a file can't be read or written.
+     */
+    public void toJSON(File output)
+        throws IOException
+    {
+        StatsJsonWriter writer = new StatsJsonWriter(output);
+        StringBuilder builder = new StringBuilder();
+        String delim_ = "";
+        try
+        {
+            writer.print("[\n");
+            while(nextSample())
+            {
+                writer.print(delim_ + '\n');
+                delim_ = ",";
+                writer.print("{\n");
+                writer.print("  \"timestamp\":").print(timestamp)
+                    .print(",\n");
+                writer.print("  \"users\":\n");
+                writer.print("  [\n");
+                audioSummaryStats.setTimestamp(timestamp);
+                videoSummaryStats.setTimestamp(timestamp);
+
+                String delim = "";
+                while(nextUser())
+                {
+                    builder.setLength(0);
+                    builder.append(delim);
+                    FakeUserStats.appendStatsJSON(
+                        builder, 2, username,
+                        audioSSRC, audioValues,
+                        videoSSRC, videoValues);
+                    builder.append('\n');
+                    writer.print(builder.toString());
+                    delim = ",";
+
+                    addSummaryStats();
+                }
+
+                writer.print("  ],\n");
+                HammerSummaryStats.printSummaryJSON(
+                    writer,
+                    audioSummaryStats,
+                    videoSummaryStats,
+                    null,
+                    null);
+                writer.print("}");
+                audioSummaryStats.clear();
+                videoSummaryStats.clear();
+            }
+            writer.print("]\n");
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * Add the stats of the current user to the summary stats, with their
+     * cumulative stats replaced by their increase since the previous sample
+     * of the user, like <tt>HammerStats</tt> does.
+     */
+    private void addSummaryStats()
+    {
+        audioDeltas.computeDeltas(userId, audioSSRC, audioValues);
+        audioSummaryStats.add(audioValues);
+        videoDeltas.computeDeltas(userId, videoSSRC, videoValues);
+        videoSummaryStats.add(videoValues);
+    }
+
+    /**
+     * Convert the file to CSV, with a line per stream per user per sample.
+     *
+     * @param output the file to write.
+     * @throws IOException if a file can't be read or written.
+     */
+    public void toCSV(File output)
+        throws IOException
+    {
+        Writer writer = new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(output), "UTF-8"));
+        StringBuilder builder = new StringBuilder();
+        try
+        {
+            builder.append("timestamp,username,media,ssrc");
+            for(StreamStatsField field : StreamStatsField.fields())
+                builder.append(',').append(field.getJsonName());
+            builder.append('\n');
+            writer.write(builder.toString());
+
+            while(nextSample())
+            {
+                while(nextUser())
+                {
+                    builder.setLength(0);
+                    appendCSV(builder, "audio", audioSSRC, audioValues);
+                    appendCSV(builder, "video", videoSSRC, videoValues);
+                    writer.write(builder.toString());
+                }
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * Append the CSV line of a stream of the current user.
+     *
+     * @param builder the <tt>StringBuilder</tt> to append to.
+     * @param media the media type of the stream.
+     * @param ssrc the SSRC of the stream.
+     * @param values the stats of the stream.
+     */
+    private void appendCSV(
+        StringBuilder builder,
+        String media,
+        long ssrc,
+        double[] values)
+    {
+        builder.append(timestamp).append(',')
+            .append(username).append(',')
+            .append(media).append(',')
+            .append(ssrc);
+        for(StreamStatsField field : StreamStatsField.fields())
+        {
+            builder.append(',');
+            field.appendValue(builder, values[field.ordinal()]);
+        }
+        builder.append('\n');
+    }
+
+    /**
+     * Convert the file to the JSON of the overall stats file of
+     * <tt>HammerStats</tt>.
+     *
+     * @param output the file to write.
+     * @throws IOException if a file can't be read or written.
+     */
+    public void toOverallJSON(File output)
+        throws IOException
+    {
+        while(nextSample())
+        {
+            audioSummaryStats.setTimestamp(timestamp);
+            videoSummaryStats.setTimestamp(timestamp);
+            while(nextUser())
+                addSummaryStats();
+            audioSummaryStats.clear();
+            videoSummaryStats.clear();
+        }
+
+        PrintWriter writer = new PrintWriter(output, "UTF-8");
+        writer.print(HammerSummaryStats.getOverallStatsJSON(
+            audioSummaryStats,
+            videoSummaryStats,
+            null,
+            null) + '\n');
+        writer.close();
+    }
+
+    /**
+     * Close the binary stats file.
+     *
+     * @throws IOException if the file can't be closed.
+     */
+    public void close()
+        throws IOException
+    {
+        in.close();
+    }
+
+    /**
+     * Convert a binary stats file.
+     *
+     * @param args the format (json, csv or overall), the binary stats file
+     * and the output file.
+     * @throws IOException if a file can't be read or written.
+     */
+    public static void main(String[] args)
+        throws IOException
+    {
+        Format format = null;
+        if(args.length == 3)
+        {
+            for(Format f : Format.values())
+            {
+                if(f.name().equalsIgnoreCase(args[0]))
+                    format = f;
+            }
+        }
+        if(format == null)
+        {
+            System.out.println("Usage : BinaryStatsConverter json|csv|overall"
+                + " <binary stats file> <output file>");
+            System.exit(1);
+        }
+
+        BinaryStatsConverter converter
+            = new BinaryStatsConverter(new FileInputStream(args[1]));
+        try
+        {
+            switch(format)
+            {
+            case JSON:
+                converter.toJSON(new File(args[2]));
+                break;
+            case CSV:
+                converter.toCSV(new File(args[2]));
+                break;
+            case OVERALL:
+                converter.toOverallJSON(new File(args[2]));
+                break;
+            }
+        }
+        finally
+        {
+            converter.close();
+        }
+    }
+}
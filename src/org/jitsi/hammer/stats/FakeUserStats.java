@@ -16,6 +16,8 @@
 
 package org.jitsi.hammer.stats;
 
+import java.util.concurrent.atomic.*;
+
 import org.jitsi.service.neomedia.*;
 
 /**
@@ -25,50 +27,24 @@ import org.jitsi.service.neomedia.*;
 public class FakeUserStats
 {
     /**
-     * A JSON template of all the stats a <tt>MediaStreamStats</tt> have.
-     * It needs to be formatted with String.format() .
-     */
-    public static final String jsonMediaStreamStatsTemplate =
-        "{"
-        + " \"ssrc\":%s"
-        + " , \"DownloadJitterMs\":%s"
-        + " , \"DownloadPercentLoss\":%s"
-        + " , \"DownloadRateKiloBitPerSec\":%s"
-        + " , \"JitterBufferDelayMs\":%s"
-        + " , \"JitterBufferDelayPackets\":%s"
-        + " , \"NbDiscarded\":%s"
-        + " , \"NbDiscardedFull\":%s"
-        + " , \"NbDiscardedLate\":%s"
-        + " , \"NbDiscardedReset\":%s"
-        + " , \"NbDiscardedShrink\":%s"
-        + " , \"NbFec\":%s"
-        + " , \"NbPackets\":%s"
-        + " , \"NbPacketsLost\":%s"
-        + " , \"NbReceivedBytes\":%s"
-        + " , \"NbSentBytes\":%s"
-        + " , \"PacketQueueCountPackets\":%s"
-        + " , \"PacketQueueSize\":%s"
-        + " , \"PercentDiscarded\":%s"
-        + " , \"RttMs\":%s"
-        + " , \"UploadJitterMs\":%s"
-        + " , \"UploadPercentLoss\":%s"
-        + " , \"UploadRateKiloBitPerSec\":%s"
-        + " }";
-
-    /**
-     * A JSON template of all the stats a <tt>FakeUser</tt> have (
-     * stats for an audio stream, and for video stream).
-     * It needs to be formatted with String.format() .
-     */
-    public static final String jsonTemplate =
-              "  {\n"
-            + "      \"audio\" : "
-            + FakeUserStats.jsonMediaStreamStatsTemplate
-            + ",\n"
-            + "      \"video\" : "
-            + FakeUserStats.jsonMediaStreamStatsTemplate
-            + "\n"
-            + "  }";
+     * The last ID given to a <tt>FakeUserStats</tt>.
+     */
+    private static final AtomicInteger lastId = new AtomicInteger();
+
+    /**
+     * The ID of this <tt>FakeUserStats</tt>, unique in the process, used to
+     * identify its records in the binary stats files.
+     */
+    private final int id = lastId.incrementAndGet();
+
+    /**
+     * The index given to this <tt>FakeUserStats</tt> by the
+     * <tt>HammerStats</tt> watching it, used to choose its shard and to find
+     * its previous sample in the arrays of the <tt>StatsDeltaTracker</tt>s.
+     * The indexes of the removed users are reused, so they stay below the
+     * number of users.
+     */
+    int slot = -1;
 
     /**
      * The username of the <tt>FakeUser</tt> corresponding to this
@@ -139,6 +115,24 @@ public class FakeUserStats
         this.username = username;
     }
 
+    /**
+     * Get the ID of this <tt>FakeUserStats</tt>, unique in the process.
+     * @return the ID of this <tt>FakeUserStats</tt>.
+     */
+    public int getId()
+    {
+        return id;
+    }
+
+    /**
+     * Get the username used by this <tt>FakeUserStats</tt>.
+     * @return the username used by this <tt>FakeUserStats</tt>.
+     */
+    public String getUsername()
+    {
+        return username;
+    }
+
     /**
      * Call updateStats() of the 2 <tt>MediaStreamStats</tt> of this
      * <tt>FakeUserStats</tt> corresponding to the audio and video stream.
@@ -176,6 +170,25 @@ public class FakeUserStats
         return stats;
     }
 
+    /**
+     * Get the SSRC of the audio or video <tt>MediaStream</tt> this
+     * <tt>FakeUserStats</tt> has depending on value of type
+     * @param type the MediaType of the <tt>MediaStream</tt>.
+     * @return the SSRC of the <tt>MediaStream</tt>, or -1 if it isn't known.
+     */
+    public long getLocalSSRC(MediaType type)
+    {
+        switch(type)
+        {
+        case AUDIO:
+            return audioSSRC;
+        case VIDEO:
+            return videoSSRC;
+        default:
+            return -1;
+        }
+    }
+
     /**
      * Get the stats of the audio and video stream from the corresponding
      * <tt>MediaStreamStats</tt> in JSON.
@@ -186,65 +199,94 @@ public class FakeUserStats
      */
     public String getStatsJSON(int spaceIndent)
     {
-        String indent = new String(new char[spaceIndent]).replace("\0" ,  " ");
         StringBuilder builder = new StringBuilder();
-        builder.append(indent + "{\n");
-        builder.append(indent + "  \"username\" : \""+ this.username +"\" , \n");
-        builder.append(indent + "  \"streams\" :\n");
-
-        String str = String.format(jsonTemplate,
-            audioSSRC ,
-            audioStats.getDownloadJitterMs() ,
-            audioStats.getDownloadPercentLoss() ,
-            audioStats.getDownloadRateKiloBitPerSec() ,
-            audioStats.getJitterBufferDelayMs() ,
-            audioStats.getJitterBufferDelayPackets() ,
-            audioStats.getNbDiscarded() ,
-            audioStats.getNbDiscardedFull() ,
-            audioStats.getNbDiscardedLate() ,
-            audioStats.getNbDiscardedReset() ,
-            audioStats.getNbDiscardedShrink() ,
-            audioStats.getNbFec() ,
-            audioStats.getNbPackets() ,
-            audioStats.getNbPacketsLost() ,
-            audioStats.getNbReceivedBytes() ,
-            audioStats.getNbSentBytes() ,
-            audioStats.getPacketQueueCountPackets() ,
-            audioStats.getPacketQueueSize() ,
-            audioStats.getPercentDiscarded() ,
-            audioStats.getRttMs() ,
-            audioStats.getUploadJitterMs(),
-            audioStats.getUploadPercentLoss() ,
-            audioStats.getUploadRateKiloBitPerSec() ,
-
-            videoSSRC ,
-            videoStats.getDownloadJitterMs() ,
-            videoStats.getDownloadPercentLoss() ,
-            videoStats.getDownloadRateKiloBitPerSec() ,
-            videoStats.getJitterBufferDelayMs() ,
-            videoStats.getJitterBufferDelayPackets() ,
-            videoStats.getNbDiscarded() ,
-            videoStats.getNbDiscardedFull() ,
-            videoStats.getNbDiscardedLate() ,
-            videoStats.getNbDiscardedReset() ,
-            videoStats.getNbDiscardedShrink() ,
-            videoStats.getNbFec() ,
-            videoStats.getNbPackets() ,
-            videoStats.getNbPacketsLost() ,
-            videoStats.getNbReceivedBytes() ,
-            videoStats.getNbSentBytes() ,
-            videoStats.getPacketQueueCountPackets() ,
-            videoStats.getPacketQueueSize() ,
-            videoStats.getPercentDiscarded() ,
-            videoStats.getRttMs() ,
-            videoStats.getUploadJitterMs(),
-            videoStats.getUploadPercentLoss() ,
-            videoStats.getUploadRateKiloBitPerSec());
-        str = indent + str.replaceAll("\n", "\n"+indent);
-        builder.append(str + '\n');
-
-        builder.append(indent + "}");
-
+        appendStatsJSON(builder, spaceIndent);
         return builder.toString();
     }
+
+    /**
+     * Append the stats of the audio and video stream from the corresponding
+     * <tt>MediaStreamStats</tt> in JSON to <tt>builder</tt> : the username,
+     * and the stats of each stream as written by
+     * {@link StreamStatsField#appendJSON(StringBuilder, long,
+     * MediaStreamStats)}.
+     * @param builder the <tt>StringBuilder</tt> to append to.
+     * @param spaceIndent the number of space added to indent each line
+     * of the JSON.
+     */
+    public void appendStatsJSON(StringBuilder builder, int spaceIndent)
+    {
+        appendIndent(builder, spaceIndent).append("{\n");
+        appendIndent(builder, spaceIndent)
+            .append("  \"username\" : \"").append(this.username)
+            .append("\" , \n");
+        appendIndent(builder, spaceIndent).append("  \"streams\" :\n");
+
+        appendIndent(builder, spaceIndent).append("  {\n");
+        appendIndent(builder, spaceIndent).append("      \"audio\" : ");
+        StreamStatsField.appendJSON(builder, audioSSRC, audioStats);
+        builder.append(",\n");
+        appendIndent(builder, spaceIndent).append("      \"video\" : ");
+        StreamStatsField.appendJSON(builder, videoSSRC, videoStats);
+        builder.append('\n');
+        appendIndent(builder, spaceIndent).append("  }\n");
+
+        appendIndent(builder, spaceIndent).append('}');
+    }
+
+    /**
+     * Append stats recorded in a binary stats file in JSON to
+     * <tt>builder</tt>, in the format of {@link #appendStatsJSON(
+     * StringBuilder, int)}.
+     * @param builder the <tt>StringBuilder</tt> to append to.
+     * @param spaceIndent the number of space added to indent each line
+     * of the JSON.
+     * @param username the username of the user.
+     * @param audioSSRC the SSRC of the audio stream.
+     * @param audioValues the stats of the audio stream, indexed by the
+     * ordinals of the <tt>StreamStatsField</tt>s.
+     * @param videoSSRC the SSRC of the video stream.
+     * @param videoValues the stats of the video stream.
+     */
+    static void appendStatsJSON(
+        StringBuilder builder,
+        int spaceIndent,
+        String username,
+        long audioSSRC,
+        double[] audioValues,
+        long videoSSRC,
+        double[] videoValues)
+    {
+        appendIndent(builder, spaceIndent).append("{\n");
+        appendIndent(builder, spaceIndent)
+            .append("  \"username\" : \"").append(username)
+            .append("\" , \n");
+        appendIndent(builder, spaceIndent).append("  \"streams\" :\n");
+
+        appendIndent(builder, spaceIndent).append("  {\n");
+        appendIndent(builder, spaceIndent).append("      \"audio\" : ");
+        StreamStatsField.appendJSON(builder, audioSSRC, audioValues, true);
+        builder.append(",\n");
+        appendIndent(builder, spaceIndent).append("      \"video\" : ");
+        StreamStatsField.appendJSON(builder, videoSSRC, videoValues, true);
+        builder.append('\n');
+        appendIndent(builder, spaceIndent).append("  }\n");
+
+        appendIndent(builder, spaceIndent).append('}');
+    }
+
+    /**
+     * Append <tt>spaceIndent</tt> spaces to <tt>builder</tt>.
+     * @param builder the <tt>StringBuilder</tt> to append to.
+     * @param spaceIndent the number of spaces to append.
+     * @return <tt>builder</tt>.
+     */
+    private static StringBuilder appendIndent(
+        StringBuilder builder,
+        int spaceIndent)
+    {
+        for(int i = 0; i < spaceIndent; i++)
+            builder.append(' ');
+        return builder;
+    }
 }
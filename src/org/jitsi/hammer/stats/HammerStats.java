@@ -20,11 +20,10 @@ package org.jitsi.hammer.stats;
 import java.io.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
-import org.apache.commons.math3.stat.descriptive.*;
 import org.jitsi.hammer.*;
-import org.jitsi.service.neomedia.MediaStreamStats;
-import org.jitsi.service.neomedia.MediaType;
 import org.jitsi.util.Logger;
 
 /**
@@ -47,7 +46,7 @@ public class HammerStats implements Runnable
     /**
      * A boolean used to stop the run method of this <tt>HammerStats</tt>.
      */
-    private boolean threadStop = false;
+    private volatile boolean threadStop = false;
 
     /**
      * The name (not the path or location) of the directory where
@@ -72,12 +71,45 @@ public class HammerStats implements Runnable
     private final File allStatsFile;
 
     /**
-     * An <tt>List</tt> of <tt>FakeUserStats</tt> that contains the
-     * <tt>MediaStreamStats</tt>s of the <tt>FakeUser</tt>.
-     * It is used to keep track of the streams' stats.
+     * The file that will contain all the stats recorded by run() in the
+     * binary format of <tt>StatsBinaryWriter</tt>.
      */
-    private final ArrayList<FakeUserStats> fakeUserStatsList =
-        new ArrayList<FakeUserStats>();
+    private final File binaryStatsFile;
+
+    /**
+     * The <tt>FakeUserStats</tt> watched, split in shards which are polled in
+     * parallel. A <tt>FakeUserStats</tt> is in the shard of index its slot
+     * modulo the number of shards.
+     *
+     * The shards are concurrent sets, so that the users joining or leaving
+     * never wait for the stats to be polled or written.
+     */
+    private final List<Set<FakeUserStats>> shards;
+
+    /**
+     * The number of slots given to the <tt>FakeUserStats</tt> so far.
+     */
+    private final AtomicInteger slotCount = new AtomicInteger();
+
+    /**
+     * The slots of the removed <tt>FakeUserStats</tt>, given again to the
+     * next ones.
+     */
+    private final Queue<Integer> freeSlots
+        = new ConcurrentLinkedQueue<Integer>();
+
+    /**
+     * The maximum number of samples polled but not written yet. If the
+     * writing thread is late by more samples, the new samples are dropped
+     * rather than delaying the polling or using more memory.
+     */
+    private static final int MAX_PENDING_SAMPLES = 4;
+
+    /**
+     * The samples polled, waiting to be written by the writing thread.
+     */
+    private final BlockingQueue<Sample> pendingSamples
+        = new ArrayBlockingQueue<Sample>(MAX_PENDING_SAMPLES);
 
     /**
      * The time (in seconds) the HammerStats wait between two updates.
@@ -103,6 +135,31 @@ public class HammerStats implements Runnable
      * all the streams' stats collected is enable of not.
      */
     private boolean overallStatsLogging;
+
+    /**
+     * The boolean used to know if the recording of all the stats in the
+     * binary stats file is enabled.
+     */
+    private boolean binaryStatsLogging = false;
+
+    /**
+     * The <tt>MetricsServer</tt> serving the metrics of the streams computed
+     * at each polling, or <tt>null</tt>.
+     */
+    private MetricsServer metricsServer = null;
+
+    /**
+     * The join latencies of the users, written with the summary and overall
+     * stats, or <tt>null</tt>.
+     */
+    private JoinLatencyStats joinLatencyStats = null;
+
+    /**
+     * The receive side stats of the users, sampled at each polling and
+     * written with the summary and overall stats, or <tt>null</tt>.
+     */
+    private ReceiveStats receiveStats = null;
+
     /**
      * The HammerSummaryStats used to compute summary stats from the
      * audio streams' stats.
@@ -115,6 +172,17 @@ public class HammerStats implements Runnable
      */
     HammerSummaryStats videoSummaryStats = new HammerSummaryStats();
 
+    /**
+     * The previous samples of the cumulative stats of the audio streams,
+     * indexed by the slots of the <tt>FakeUserStats</tt>.
+     */
+    private final StatsDeltaTracker audioDeltas = new StatsDeltaTracker();
+
+    /**
+     * The previous samples of the cumulative stats of the video streams,
+     * indexed by the slots of the <tt>FakeUserStats</tt>.
+     */
+    private final StatsDeltaTracker videoDeltas = new StatsDeltaTracker();
 
     /**
      * Initialize an instance of a <tt>HammerStats</tt> with the default
@@ -150,6 +218,18 @@ public class HammerStats implements Runnable
             this.statsDirectoryPath
             + File.separator
             + "AllAndSummaryStats.json");
+        this.binaryStatsFile = new File(
+            this.statsDirectoryPath
+            + File.separator
+            + "AllStats.bin");
+
+        int shardCount = Runtime.getRuntime().availableProcessors();
+        shards = new ArrayList<Set<FakeUserStats>>(shardCount);
+        for(int i = 0; i < shardCount; i++)
+        {
+            shards.add(Collections.newSetFromMap(
+                new ConcurrentHashMap<FakeUserStats, Boolean>()));
+        }
 
         logger.info("Stats directory : " + this.statsDirectoryPath);
     }
@@ -159,185 +239,452 @@ public class HammerStats implements Runnable
      * Add a <tt>FakeUserStats</tt> to the list this <tt>HammerStats</tt> is watching
      * @param fakeUserStats the <tt>FakeUserStats</tt> that will added.
      */
-    public synchronized void addFakeUsersStats(
+    public void addFakeUsersStats(
         FakeUserStats fakeUserStats)
     {
         if(fakeUserStats == null)
         {
             throw new NullPointerException("FakeUserStats can't be null");
         }
-        fakeUserStatsList.add(fakeUserStats);
+        Integer slot = freeSlots.poll();
+        fakeUserStats.slot
+            = (slot == null) ? slotCount.getAndIncrement() : slot;
+        shards.get(fakeUserStats.slot % shards.size()).add(fakeUserStats);
+    }
+
+    /**
+     * Stop keeping track of the <tt>MediaStreamStats</tt> of a
+     * <tt>FakeUserStats</tt>, typically because its <tt>FakeUser</tt> left the
+     * conference.
+     *
+     * @param fakeUserStats the <tt>FakeUserStats</tt> to remove.
+     */
+    public void removeFakeUsersStats(
+        FakeUserStats fakeUserStats)
+    {
+        int slot = fakeUserStats.slot;
+        if(slot != -1
+            && shards.get(slot % shards.size()).remove(fakeUserStats))
+        {
+            freeSlots.offer(slot);
+        }
     }
 
     /**
      * Keep track, collect and update the stats of all the
      * <tt>MediaStreamStats</tt> this <tt>HammerStats</tt> handles.
      *
-     * Also write the results in the stats files.
+     * The shards of users are polled in parallel, and the samples are
+     * written in the stats files by another thread, so that a slow disk
+     * doesn't delay the polling.
      */
     public void run()
     {
-        PrintWriter writer = null;
-        StringBuilder allBldr = new StringBuilder();
-        String delim;
-        String delim_ = "";
         synchronized(this)
         {
             threadStop = false;
         }
 
+        final AtomicInteger pollerCount = new AtomicInteger();
+        ExecutorService pollers = Executors.newFixedThreadPool(
+            shards.size(),
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(
+                        r,
+                        "HammerStats-poller-" + pollerCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        Thread writerThread
+            = new Thread(new SampleWriter(), "HammerStats-writer");
+        writerThread.start();
+
         logger.info("Running the main loop");
         while (!threadStop)
         {
-            synchronized(this)
+            if(allStatsLogging || binaryStatsLogging || isSummaryNeeded())
             {
-                if(overallStatsLogging || allStatsLogging || summaryStatsLogging)
+                long timestamp = System.currentTimeMillis();
+                logger.info("Updating the MediaStreamStats");
+
+                List<UserStatsSample> statsList;
+                try
                 {
-                    if(allStatsLogging || summaryStatsLogging)
-                    {
-                        if(writer == null)
-                        {
-                            try
-                            {
-                                writer = new PrintWriter(allStatsFile, "UTF-8");
-                                writer.print("[\n");
-                            }
-                            catch (FileNotFoundException e)
-                            {
-                                logger.fatal("HammerStats stopping due to FileNotFound",e);
-                                stop();
-                            }
-                            catch (UnsupportedEncodingException e)
-                            {
-                                logger.fatal("HammerStats stopping due to "
-                                    + "UnsupportedEncoding", e);
-                            }
-                        }
-
-                        //Clear the StringBuilder
-                        allBldr.setLength(0);
-
-                        writer.print(delim_ + '\n');
-                        delim_ = ",";
-                        writer.print("{\n");
-                        writer.print("  \"timestamp\":" + System.currentTimeMillis()+",\n");
-                    }
+                    statsList = poll(pollers);
+                }
+                catch (InterruptedException e)
+                {
+                    logger.fatal("Interrupted while polling the stats : " + e);
+                    stop();
+                    break;
+                }
+
+                if(!pendingSamples.offer(new Sample(timestamp, statsList)))
+                {
+                    logger.warn("The writing of the stats files is late,"
+                        + " dropping the stats of " + statsList.size()
+                        + " users polled at " + timestamp);
+                }
+            }
+
+            if(threadStop)
+                break;
+            try
+            {
+                Thread.sleep(timeBetweenUpdate * 1000);
+            }
+            catch (InterruptedException e)
+            {
+                logger.fatal("Error during sleep in main loop : " + e);
+                stop();
+            }
+        }
+        logger.info("Exiting the main loop");
+        pollers.shutdown();
+
+        /*
+         * Let the writing thread write the pending samples and close the
+         * files (and write the overall stats) before returning, as the
+         * Hammer waits for this method to return before exiting.
+         */
+        boolean interrupted = false;
+        while(true)
+        {
+            try
+            {
+                pendingSamples.put(Sample.END);
+                writerThread.join();
+                break;
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Update and copy the stats of all the users, each shard of users being
+     * polled by a thread of <tt>pollers</tt>.
+     * @param pollers the <tt>ExecutorService</tt> polling the shards.
+     * @return the stats of all the users, ordered by their IDs (i.e. by
+     * their arrival).
+     * @throws InterruptedException if the current thread is interrupted
+     * while waiting for the shards to be polled.
+     */
+    private List<UserStatsSample> poll(ExecutorService pollers)
+        throws InterruptedException
+    {
+        List<Future<List<UserStatsSample>>> futures
+            = new ArrayList<Future<List<UserStatsSample>>>(shards.size());
 
-                    delim = "";
-                    logger.info("Updating the MediaStreamStats");
-                    for(FakeUserStats stats : fakeUserStatsList)
+        for(final Set<FakeUserStats> shard : shards)
+        {
+            futures.add(pollers.submit(new Callable<List<UserStatsSample>>()
+            {
+                public List<UserStatsSample> call()
+                {
+                    List<UserStatsSample> shardStats
+                        = new ArrayList<UserStatsSample>(shard.size());
+                    for(FakeUserStats stats : shard)
                     {
                         //We update the stats before using/reading them.
                         stats.updateStats();
+                        shardStats.add(new UserStatsSample(stats));
                     }
+                    return shardStats;
+                }
+            }));
+        }
 
-                    for(FakeUserStats stats : fakeUserStatsList)
-                    {
-                        if(allStatsLogging)
-                        {
-                            allBldr.append(delim + stats.getStatsJSON(2) + '\n');
-                            delim = ",";
-                        }
-
-                        if(summaryStatsLogging || overallStatsLogging)
-                        {
-                            logger.info("Adding stats values from the"
-                                + " MediaStreamStats to their"
-                                + " HammerSummaryStats objects");
-                            audioSummaryStats.add(
-                                stats.getMediaStreamStats(MediaType.AUDIO));
-                            videoSummaryStats.add(
-                                stats.getMediaStreamStats(MediaType.VIDEO));
-                        }
-                    }
+        List<UserStatsSample> statsList = new ArrayList<UserStatsSample>();
+        for(Future<List<UserStatsSample>> future : futures)
+        {
+            try
+            {
+                statsList.addAll(future.get());
+            }
+            catch (ExecutionException e)
+            {
+                logger.error("Failed to poll a shard of the stats",
+                    e.getCause());
+            }
+        }
+        Collections.sort(statsList, new Comparator<UserStatsSample>()
+        {
+            public int compare(UserStatsSample s1, UserStatsSample s2)
+            {
+                return (s1.id < s2.id) ? -1 : ((s1.id == s2.id) ? 0 : 1);
+            }
+        });
+        return statsList;
+    }
 
-                    if(allStatsLogging)
-                    {
-                        logger.info("Writing all stats to file");
-                        writer.print("  \"users\":\n");
-                        writer.print("  [\n");
-                        writer.print(allBldr.toString());
-                        writer.print("  ]");
-                        if(summaryStatsLogging) writer.print(',');
-                        writer.print('\n');
-                    }
-                    if(summaryStatsLogging)
-                    {
-                        logger.info("Writing summary stats to file");
-                        writer.print("  \"summary\":\n");
-                        writer.print("  {\n");
-
-
-                        writer.print("    \"max\":\n");
-                        writer.print("    {\n");
-                        writer.print("        \"audio\":");
-                        writer.print(audioSummaryStats.getMaxJSON() + ",\n");
-                        writer.print("        \"video\":");
-                        writer.print(videoSummaryStats.getMaxJSON() + '\n');
-                        writer.print("    },\n");
-
-                        writer.print("    \"mean\":\n");
-                        writer.print("    {\n");
-                        writer.print("       \"audio\":");
-                        writer.print(audioSummaryStats.getMeanJSON() + ",\n");
-                        writer.print("        \"video\":");
-                        writer.print(videoSummaryStats.getMeanJSON() + '\n');
-                        writer.print("    },\n");
-
-                        writer.print("    \"min\":\n");
-                        writer.print("    {\n");
-                        writer.print("        \"audio\":");
-                        writer.print(audioSummaryStats.getMinJSON() + ",\n");
-                        writer.print("        \"video\":");
-                        writer.print(videoSummaryStats.getMinJSON() + '\n');
-                        writer.print("    },\n");
-
-                        writer.print("    \"standard_deviation\":\n");
-                        writer.print("    {\n");
-                        writer.print("        \"audio\":");
-                        writer.print(audioSummaryStats.getStandardDeviationJSON() + ",\n");
-                        writer.print("        \"video\":");
-                        writer.print(videoSummaryStats.getStandardDeviationJSON() + '\n');
-                        writer.print("    }\n");
-
-
-                        writer.print("  }\n");
-                    }
-                    if(allStatsLogging || summaryStatsLogging)
-                    {
-                        writer.append("}");
-                        writer.flush();
-                    }
+    /**
+     * The stats of all the users polled at a given time.
+     */
+    private static class Sample
+    {
+        /**
+         * The <tt>Sample</tt> queued after the last one, to stop the writing
+         * thread.
+         */
+        static final Sample END = new Sample(-1, null);
+
+        /**
+         * The time of the polling.
+         */
+        final long timestamp;
+
+        /**
+         * The stats of the users.
+         */
+        final List<UserStatsSample> statsList;
+
+        /**
+         * Initializes a new <tt>Sample</tt>.
+         * @param timestamp the time of the polling.
+         * @param statsList the stats of the users.
+         */
+        Sample(long timestamp, List<UserStatsSample> statsList)
+        {
+            this.timestamp = timestamp;
+            this.statsList = statsList;
+        }
+    }
+
+    /**
+     * Writes the samples polled by run() in the stats files, and computes
+     * the summary and overall stats, in its own thread.
+     */
+    private class SampleWriter
+        implements Runnable
+    {
+        /**
+         * The writer of the all and summary stats file.
+         */
+        private StatsJsonWriter writer = null;
+
+        /**
+         * The writer of the binary stats file.
+         */
+        private StatsBinaryWriter binaryWriter = null;
+
+        /**
+         * The delimiter written before the next sample in the all and
+         * summary stats file.
+         */
+        private String delim_ = "";
+
+        /**
+         * Whether writing a stats file failed. The samples are then still
+         * taken from the queue, but not written anymore.
+         */
+        private boolean failed = false;
+
+        /**
+         * Write the samples until <tt>Sample.END</tt> is taken, then close
+         * the files and write the overall stats.
+         */
+        public void run()
+        {
+            while(true)
+            {
+                Sample sample;
+                try
+                {
+                    sample = pendingSamples.take();
+                }
+                catch (InterruptedException e)
+                {
+                    continue;
                 }
+                if(sample == Sample.END)
+                    break;
+                if(failed)
+                    continue;
 
-                if(summaryStatsLogging || overallStatsLogging)
+                try
                 {
-                    logger.info("Clearing the HammerSummaryStats by creating new"
-                        + " SummaryStats objects for each watched stats");
+                    write(sample.timestamp, sample.statsList);
+                }
+                catch (IOException e)
+                {
+                    logger.fatal("HammerStats stopping due to an error while"
+                        + " writing the stats file", e);
+                    failed = true;
+                    stop();
+                }
+
+                if(isSummaryNeeded())
+                {
+                    logger.info("Clearing the HammerSummaryStats by creating"
+                        + " new SummaryStats objects for each watched stats");
                     audioSummaryStats.clear();
                     videoSummaryStats.clear();
                 }
+                if(joinLatencyStats != null)
+                    joinLatencyStats.clear();
+                if(receiveStats != null)
+                    receiveStats.clear();
             }
 
-            try
+            if(writer != null)
             {
-                Thread.sleep(timeBetweenUpdate * 1000);
+                try
+                {
+                    writer.print("]\n");
+                    writer.close();
+                }
+                catch (IOException e)
+                {
+                    logger.fatal("Error while closing the stats file", e);
+                }
             }
-            catch (InterruptedException e)
+            if(binaryWriter != null)
             {
-                logger.fatal("Error during sleep in main loop : " + e);
-                stop();
+                try
+                {
+                    binaryWriter.close();
+                }
+                catch (IOException e)
+                {
+                    logger.fatal("Error while closing the binary stats file",
+                        e);
+                }
             }
+
+            if(overallStatsLogging) writeOverallStats();
         }
-        logger.info("Exiting the main loop");
 
-        if(writer != null)
+        /**
+         * Write a sample in the stats files and add it to the summary stats.
+         * @param timestamp the time of the sample.
+         * @param statsList the stats of the users.
+         * @throws IOException if a stats file can't be written.
+         */
+        private void write(long timestamp, List<UserStatsSample> statsList)
+            throws IOException
         {
-            writer.print("]\n");
-            writer.close();
+            String delim = "";
+
+            if(receiveStats != null)
+                receiveStats.sample();
+
+            if(allStatsLogging || summaryStatsLogging)
+            {
+                if(writer == null)
+                {
+                    writer = new StatsJsonWriter(allStatsFile);
+                    writer.print("[\n");
+                }
+
+                writer.print(delim_ + '\n');
+                delim_ = ",";
+                writer.print("{\n");
+                writer.print("  \"timestamp\":")
+                    .print(timestamp)
+                    .print(",\n");
+            }
+
+            if(binaryStatsLogging)
+            {
+                if(binaryWriter == null)
+                    binaryWriter = new StatsBinaryWriter(binaryStatsFile);
+                binaryWriter.writeSample(timestamp, statsList);
+            }
+
+            if(allStatsLogging)
+            {
+                logger.info("Writing all stats to file");
+                writer.print("  \"users\":\n");
+                writer.print("  [\n");
+            }
+            if(isSummaryNeeded())
+            {
+                logger.info("Adding stats values from the"
+                    + " MediaStreamStats to their"
+                    + " HammerSummaryStats objects");
+                audioSummaryStats.setTimestamp(timestamp);
+                videoSummaryStats.setTimestamp(timestamp);
+            }
+            for(UserStatsSample stats : statsList)
+            {
+                if(allStatsLogging)
+                {
+                    writer.print(delim).printStats(stats, 2)
+                        .print('\n');
+                    delim = ",";
+                }
+
+                if(isSummaryNeeded())
+                {
+                    /*
+                     * The sample is not written anymore, so its cumulative
+                     * stats can be replaced by their increase in place.
+                     */
+                    audioDeltas.computeDeltas(
+                        stats.slot,
+                        stats.audioSSRC,
+                        stats.audioValues);
+                    audioSummaryStats.add(stats.audioValues);
+                    videoDeltas.computeDeltas(
+                        stats.slot,
+                        stats.videoSSRC,
+                        stats.videoValues);
+                    videoSummaryStats.add(stats.videoValues);
+                }
+            }
+
+            if(allStatsLogging)
+            {
+                writer.print("  ]");
+                if(summaryStatsLogging) writer.print(',');
+                writer.print('\n');
+            }
+            if(summaryStatsLogging)
+            {
+                logger.info("Writing summary stats to file");
+                HammerSummaryStats.printSummaryJSON(
+                    writer,
+                    audioSummaryStats,
+                    videoSummaryStats,
+                    joinLatencyStats,
+                    receiveStats);
+            }
+            if(allStatsLogging || summaryStatsLogging)
+            {
+                writer.print("}");
+                writer.flush();
+            }
+            if(metricsServer != null)
+            {
+                String metrics = HammerSummaryStats.getMetrics(
+                    audioSummaryStats,
+                    videoSummaryStats);
+
+                if(receiveStats != null)
+                    metrics += receiveStats.getMetrics();
+                metricsServer.setStreamMetrics(metrics);
+            }
         }
+    }
 
-        if(overallStatsLogging) writeOverallStats();
+    /**
+     * Tell if the stats polled must be added to the summary stats, because
+     * the summary or overall stats are logged or the metrics are served.
+     * @return <tt>true</tt> if the summary stats are needed.
+     */
+    private boolean isSummaryNeeded()
+    {
+        return summaryStatsLogging || overallStatsLogging
+            || metricsServer != null;
     }
 
     /**
@@ -395,54 +742,11 @@ public class HammerStats implements Runnable
      */
     protected String getOverallStatsJSON()
     {
-        StringBuilder bldr = new StringBuilder();
-        bldr.append("{\n");
-
-
-        bldr.append("  \"max\":\n");
-        bldr.append("  {\n");
-        bldr.append("      \"audio\":");
-        bldr.append(audioSummaryStats.getAggregateMaxJSON() + ",\n");
-        bldr.append("      \"video\":");
-        bldr.append(videoSummaryStats.getAggregateMaxJSON() + '\n');
-        bldr.append("  },\n");
-
-        bldr.append("  \"mean\":\n");
-        bldr.append("  {\n");
-        bldr.append("     \"audio\":");
-        bldr.append(audioSummaryStats.getAggregateMeanJSON() + ",\n");
-        bldr.append("      \"video\":");
-        bldr.append(videoSummaryStats.getAggregateMeanJSON() + '\n');
-        bldr.append("  },\n");
-            
-
-        bldr.append("  \"min\":\n");
-        bldr.append("  {\n");
-        bldr.append("      \"audio\":");
-        bldr.append(audioSummaryStats.getAggregateMinJSON() + ",\n");
-        bldr.append("      \"video\":");
-        bldr.append(videoSummaryStats.getAggregateMinJSON() + '\n');
-        bldr.append("  },\n");
-
-        bldr.append("  \"standard_deviation\":\n");
-        bldr.append("  {\n");
-        bldr.append("      \"audio\":");
-        bldr.append(audioSummaryStats.getAggregateStandardDeviationJSON() + ",\n");
-        bldr.append("      \"video\":");
-        bldr.append(videoSummaryStats.getAggregateStandardDeviationJSON() + '\n');
-        bldr.append("  },\n");
-
-        bldr.append("  \"sum\":\n");
-        bldr.append("  {\n");
-        bldr.append("      \"audio\":");
-        bldr.append(audioSummaryStats.getAggregateSumJSON() + ",\n");
-        bldr.append("      \"video\":");
-        bldr.append(videoSummaryStats.getAggregateSumJSON() + '\n');
-        bldr.append("  }\n");
-
-
-        bldr.append("}\n");
-        return bldr.toString();
+        return HammerSummaryStats.getOverallStatsJSON(
+            audioSummaryStats,
+            videoSummaryStats,
+            joinLatencyStats,
+            receiveStats);
     }
 
     /**
@@ -505,6 +809,26 @@ public class HammerStats implements Runnable
         }
     }
 
+    /**
+     * Enable or disable the recording of all the stats collected by this
+     * <tt>HammerStats</tt> in a binary file (see <tt>StatsBinaryWriter</tt>).
+     * @param binaryStats the boolean that enable of disable the recording.
+     */
+    public void setBinaryStatsLogging(boolean binaryStats)
+    {
+        this.binaryStatsLogging = binaryStats;
+        if(binaryStats)
+        {
+            File saveDir = new File(this.statsDirectoryPath);
+            if (!saveDir.exists())
+            {
+                logger.info("Creating stats directory at : "
+                                    + this.statsDirectoryPath);
+                saveDir.mkdirs();
+            }
+        }
+    }
+
     /**
      * Enable or disable the logging of all the stats collected by this
      * <tt>HammerStats</tt>.
@@ -525,599 +849,34 @@ public class HammerStats implements Runnable
         }
     }
 
-
     /**
-     * A private class used to keep track and compute the summary stats and the
-     * aggregate summary stats from all the <tt>MediaStreamStats</tt>'s possible
-     * stats.
-     *
-     * @author Thomas Kuntz
-     *
+     * Set the <tt>MetricsServer</tt> to which the metrics of the streams are
+     * given at each polling of the stats.
+     * @param metricsServer the <tt>MetricsServer</tt>, or <tt>null</tt>.
      */
-    private class HammerSummaryStats
+    public void setMetricsServer(MetricsServer metricsServer)
     {
-        /*
-         * All the AggregateSummaryStatistics will be used to create new
-         * SummaryStatistics (for the option "-summarystats") that will
-         * be use to compute summary stats like max/min/std dev... ,
-         * and also be used to compute overall stats.
-         *
-         * At each iteration of the loop in run(), all stats are added to their
-         * corresponding SummaryStatistics, that will automatically add them
-         * to their related AggregateSummaryStatistics.
-         * After that, the SummaryStatistics are used to get the summary stats
-         * (in JSON), and are replace by newly created SummaryStatistics by
-         * the AggregateSummaryStatistics (for the next iteration).
-         */
-        AggregateSummaryStatistics aggregateDownloadJitterMs
-                = new AggregateSummaryStatistics();
-        AggregateSummaryStatistics aggregateDownloadPercentLoss
-                = new AggregateSummaryStatistics();
-        AggregateSummaryStatistics aggregateDownloadRateKiloBitPerSec
-                = new AggregateSummaryStatistics();
-        AggregateSummaryStatistics aggregateJitterBufferDelayMs
-                = new AggregateSummaryStatistics();
-        AggregateSummaryStatistics aggregateJitterBufferDelayPackets
-                = new AggregateSummaryStatistics();
-        AggregateSummaryStatistics aggregateNbDiscarded
-                = new AggregateSummaryStatistics();
-        AggregateSummaryStatistics aggregateNbDiscardedFull
-                = new AggregateSummaryStatistics();
-        AggregateSummaryStatistics aggregateNbDiscardedLate
-                = new AggregateSummaryStatistics();
-        AggregateSummaryStatistics aggregateNbDiscardedReset
-                = new AggregateSummaryStatistics();
-        AggregateSummaryStatistics aggregateNbDiscardedShrink
-                = new AggregateSummaryStatistics();
-        AggregateSummaryStatistics aggregateNbFec
-                = new AggregateSummaryStatistics();
-        AggregateSummaryStatistics aggregateNbPackets
-                = new AggregateSummaryStatistics();
-        AggregateSummaryStatistics aggregateNbPacketsLost
-                = new AggregateSummaryStatistics();
-        AggregateSummaryStatistics aggregateNbReceivedBytes
-                = new AggregateSummaryStatistics();
-        AggregateSummaryStatistics aggregateNbSentBytes
-                = new AggregateSummaryStatistics();
-        AggregateSummaryStatistics aggregatePacketQueueCountPackets
-                = new AggregateSummaryStatistics();
-        AggregateSummaryStatistics aggregatePacketQueueSize
-                = new AggregateSummaryStatistics();
-        AggregateSummaryStatistics aggregatePercentDiscarded
-                = new AggregateSummaryStatistics();
-        AggregateSummaryStatistics aggregateRttMs
-                = new AggregateSummaryStatistics();
-        AggregateSummaryStatistics aggregateUploadJitterMs
-                = new AggregateSummaryStatistics();
-        AggregateSummaryStatistics aggregateUploadPercentLoss
-                = new AggregateSummaryStatistics();
-        AggregateSummaryStatistics aggregateUploadRateKiloBitPerSec
-                = new AggregateSummaryStatistics();
-
-        SummaryStatistics downloadJitterMs;
-        SummaryStatistics downloadPercentLoss;
-        SummaryStatistics downloadRateKiloBitPerSec;
-        SummaryStatistics jitterBufferDelayMs;
-        SummaryStatistics jitterBufferDelayPackets;
-        SummaryStatistics nbDiscarded;
-        SummaryStatistics nbDiscardedFull;
-        SummaryStatistics nbDiscardedLate;
-        SummaryStatistics nbDiscardedReset;
-        SummaryStatistics nbDiscardedShrink;
-        SummaryStatistics nbFec;
-        SummaryStatistics nbPackets;
-        SummaryStatistics nbPacketsLost;
-        SummaryStatistics nbReceivedBytes;
-        SummaryStatistics nbSentBytes;
-        SummaryStatistics packetQueueCountPackets;
-        SummaryStatistics packetQueueSize;
-        SummaryStatistics percentDiscarded;
-        SummaryStatistics rttMs;
-        SummaryStatistics uploadJitterMs;
-        SummaryStatistics uploadPercentLoss;
-        SummaryStatistics uploadRateKiloBitPerSec;
-
-        /**
-         * Create a new HammerSummaryStats
-         */
-        public HammerSummaryStats()
-        {
-            clear();
-        }
-
-        /**
-         * Add the stats contained by <tt>stats<tt> to their corresponding
-         * <tt>SummaryStats</tt> objects.
-         * @param stats the stats of a stream that will be added.
-         */
-        public void add(MediaStreamStats stats)
-        {
-            downloadJitterMs.addValue(stats.getDownloadJitterMs());
-            downloadPercentLoss.addValue(stats.getDownloadPercentLoss());
-            downloadRateKiloBitPerSec.addValue(stats.getDownloadRateKiloBitPerSec());
-            jitterBufferDelayMs.addValue(stats.getJitterBufferDelayMs());
-            jitterBufferDelayPackets.addValue(stats.getJitterBufferDelayPackets());
-            nbDiscarded.addValue(stats.getNbDiscarded());
-            nbDiscardedFull.addValue(stats.getNbDiscardedFull());
-            nbDiscardedLate.addValue(stats.getNbDiscardedLate());
-            nbDiscardedReset.addValue(stats.getNbDiscardedReset());
-            nbDiscardedShrink.addValue(stats.getNbDiscardedShrink());
-            nbFec.addValue(stats.getNbFec());
-            nbPackets.addValue(stats.getNbPackets());
-            nbPacketsLost.addValue(stats.getNbPacketsLost());
-            nbReceivedBytes.addValue(stats.getNbReceivedBytes());
-            nbSentBytes.addValue(stats.getNbSentBytes());
-            packetQueueCountPackets.addValue(stats.getPacketQueueCountPackets());
-            packetQueueSize.addValue(stats.getPacketQueueSize());
-            percentDiscarded.addValue(stats.getPercentDiscarded());
-            rttMs.addValue(stats.getRttMs());
-            uploadJitterMs.addValue(stats.getUploadJitterMs());
-            uploadPercentLoss.addValue(stats.getUploadPercentLoss());
-            uploadRateKiloBitPerSec.addValue(stats.getUploadRateKiloBitPerSec());
-
-        }
-
-        /**
-         * Create new <tt>SummaryStatistics</tt> from the
-         * <tt>AggregateSummaryStatistics</tt> for all the stream's stats that
-         * are watched.
-         */
-        public void clear()
-        {
-            downloadJitterMs =
-                aggregateDownloadJitterMs.createContributingStatistics();
-            downloadPercentLoss =
-                aggregateDownloadPercentLoss.createContributingStatistics();
-            downloadRateKiloBitPerSec =
-                aggregateDownloadRateKiloBitPerSec.createContributingStatistics();
-            jitterBufferDelayMs =
-                aggregateJitterBufferDelayMs.createContributingStatistics();
-            jitterBufferDelayPackets =
-                aggregateJitterBufferDelayPackets.createContributingStatistics();
-            nbDiscarded =
-                aggregateNbDiscarded.createContributingStatistics();
-            nbDiscardedFull =
-                aggregateNbDiscardedFull.createContributingStatistics();
-            nbDiscardedLate =
-                aggregateNbDiscardedLate.createContributingStatistics();
-            nbDiscardedReset =
-                aggregateNbDiscardedReset.createContributingStatistics();
-            nbDiscardedShrink =
-                aggregateNbDiscardedShrink.createContributingStatistics();
-            nbFec =
-                aggregateNbFec.createContributingStatistics();
-            nbPackets =
-                aggregateNbPackets.createContributingStatistics();
-            nbPacketsLost =
-                aggregateNbPacketsLost.createContributingStatistics();
-            nbReceivedBytes =
-                aggregateNbReceivedBytes.createContributingStatistics();
-            nbSentBytes =
-                aggregateNbSentBytes.createContributingStatistics();
-            packetQueueCountPackets =
-                aggregatePacketQueueCountPackets.createContributingStatistics();
-            packetQueueSize =
-                aggregatePacketQueueSize.createContributingStatistics();
-            percentDiscarded =
-                aggregatePercentDiscarded.createContributingStatistics();
-            rttMs =
-                aggregateRttMs.createContributingStatistics();
-            uploadJitterMs =
-                aggregateUploadJitterMs.createContributingStatistics();
-            uploadPercentLoss =
-                aggregateUploadPercentLoss.createContributingStatistics();
-            uploadRateKiloBitPerSec =
-                aggregateUploadRateKiloBitPerSec.createContributingStatistics();
-        }
-
-        /**
-         * Get the Max of all the stats that are watched, for all the stats
-         * added with add() since the last call to clear() in JSON.
-         * @return The Max of all the stats since last clear() in JSON.
-         */
-        public String getMaxJSON()
-        {
-            String str = String.format(FakeUserStats.jsonMediaStreamStatsTemplate,
-                -1, //ssrc not needed here
-                downloadJitterMs.getMax(),
-                downloadPercentLoss.getMax(),
-                downloadRateKiloBitPerSec.getMax(),
-                jitterBufferDelayMs.getMax(),
-                jitterBufferDelayPackets.getMax(),
-                nbDiscarded.getMax(),
-                nbDiscardedFull.getMax(),
-                nbDiscardedLate.getMax(),
-                nbDiscardedReset.getMax(),
-                nbDiscardedShrink.getMax(),
-                nbFec.getMax(),
-                nbPackets.getMax(),
-                nbPacketsLost.getMax(),
-                nbReceivedBytes.getMax(),
-                nbSentBytes.getMax(),
-                packetQueueCountPackets.getMax(),
-                packetQueueSize.getMax(),
-                percentDiscarded.getMax(),
-                rttMs.getMax(),
-                uploadJitterMs.getMax(),
-                uploadPercentLoss.getMax(),
-                uploadRateKiloBitPerSec.getMax());
-            return str;
-        }
-
-        /**
-         * Get the Mean of all the stats that are watched, for all the stats
-         * added with add() between the latest call to clear() and now (in JSON).
-         * @return The Mean of all the stats since last clear() in JSON.
-         */
-        public String getMeanJSON()
-        {
-            String str = String.format(FakeUserStats.jsonMediaStreamStatsTemplate,
-                -1, //ssrc not needed here
-                downloadJitterMs.getMean(),
-                downloadPercentLoss.getMean(),
-                downloadRateKiloBitPerSec.getMean(),
-                jitterBufferDelayMs.getMean(),
-                jitterBufferDelayPackets.getMean(),
-                nbDiscarded.getMean(),
-                nbDiscardedFull.getMean(),
-                nbDiscardedLate.getMean(),
-                nbDiscardedReset.getMean(),
-                nbDiscardedShrink.getMean(),
-                nbFec.getMean(),
-                nbPackets.getMean(),
-                nbPacketsLost.getMean(),
-                nbReceivedBytes.getMean(),
-                nbSentBytes.getMean(),
-                packetQueueCountPackets.getMean(),
-                packetQueueSize.getMean(),
-                percentDiscarded.getMean(),
-                rttMs.getMean(),
-                uploadJitterMs.getMean(),
-                uploadPercentLoss.getMean(),
-                uploadRateKiloBitPerSec.getMean());
-            return str;
-        }
-
-        /**
-         * Get the Min of all the stats that are watched, for all the stats
-         * added with add() since the last call to clear() in JSON.
-         * @return The Min of all the stats since last clear() in JSON.
-         */
-        public String getMinJSON()
-        {
-            String str = String.format(FakeUserStats.jsonMediaStreamStatsTemplate,
-                -1, //ssrc not needed here
-                downloadJitterMs.getMin(),
-                downloadPercentLoss.getMin(),
-                downloadRateKiloBitPerSec.getMin(),
-                jitterBufferDelayMs.getMin(),
-                jitterBufferDelayPackets.getMin(),
-                nbDiscarded.getMin(),
-                nbDiscardedFull.getMin(),
-                nbDiscardedLate.getMin(),
-                nbDiscardedReset.getMin(),
-                nbDiscardedShrink.getMin(),
-                nbFec.getMin(),
-                nbPackets.getMin(),
-                nbPacketsLost.getMin(),
-                nbReceivedBytes.getMin(),
-                nbSentBytes.getMin(),
-                packetQueueCountPackets.getMin(),
-                packetQueueSize.getMin(),
-                percentDiscarded.getMin(),
-                rttMs.getMin(),
-                uploadJitterMs.getMin(),
-                uploadPercentLoss.getMin(),
-                uploadRateKiloBitPerSec.getMin());
-            return str;
-        }
-
-        /**
-         * Get the Standard Deviation of all the stats that are watched, for all
-         * the stats added with add() since the last call to clear() in JSON.
-         * @return The Standard Deviation of all the stats since last clear()
-         * in JSON.
-         */
-        public String getStandardDeviationJSON()
-        {
-            String str = String.format(FakeUserStats.jsonMediaStreamStatsTemplate,
-                -1, //ssrc not needed here
-                downloadJitterMs.getStandardDeviation(),
-                downloadPercentLoss.getStandardDeviation(),
-                downloadRateKiloBitPerSec.getStandardDeviation(),
-                jitterBufferDelayMs.getStandardDeviation(),
-                jitterBufferDelayPackets.getStandardDeviation(),
-                nbDiscarded.getStandardDeviation(),
-                nbDiscardedFull.getStandardDeviation(),
-                nbDiscardedLate.getStandardDeviation(),
-                nbDiscardedReset.getStandardDeviation(),
-                nbDiscardedShrink.getStandardDeviation(),
-                nbFec.getStandardDeviation(),
-                nbPackets.getStandardDeviation(),
-                nbPacketsLost.getStandardDeviation(),
-                nbReceivedBytes.getStandardDeviation(),
-                nbSentBytes.getStandardDeviation(),
-                packetQueueCountPackets.getStandardDeviation(),
-                packetQueueSize.getStandardDeviation(),
-                percentDiscarded.getStandardDeviation(),
-                rttMs.getStandardDeviation(),
-                uploadJitterMs.getStandardDeviation(),
-                uploadPercentLoss.getStandardDeviation(),
-                uploadRateKiloBitPerSec.getStandardDeviation());
-            return str;
-        }
-
-        /**
-         * Get the Sum of all the stats that are watched, for all the stats
-         * added with add() since the last call to clear() in JSON.
-         * @return The Sum of all the stats since last clear() in JSON.
-         */
-        public String getSumJSON()
-        {
-            String str = String.format(FakeUserStats.jsonMediaStreamStatsTemplate,
-                -1, //ssrc not needed here
-                downloadJitterMs.getSum(),
-                downloadPercentLoss.getSum(),
-                downloadRateKiloBitPerSec.getSum(),
-                jitterBufferDelayMs.getSum(),
-                jitterBufferDelayPackets.getSum(),
-                nbDiscarded.getSum(),
-                nbDiscardedFull.getSum(),
-                nbDiscardedLate.getSum(),
-                nbDiscardedReset.getSum(),
-                nbDiscardedShrink.getSum(),
-                nbFec.getSum(),
-                nbPackets.getSum(),
-                nbPacketsLost.getSum(),
-                nbReceivedBytes.getSum(),
-                nbSentBytes.getSum(),
-                packetQueueCountPackets.getSum(),
-                packetQueueSize.getSum(),
-                percentDiscarded.getSum(),
-                rttMs.getSum(),
-                uploadJitterMs.getSum(),
-                uploadPercentLoss.getSum(),
-                uploadRateKiloBitPerSec.getSum());
-            return str;
-        }
-
-        /**
-         * Get the Variance of all the stats that are watched, for all the stats
-         * added with add() since the last call to clear() (in JSON).
-         * @return The Variance of all the stats since last clear() in JSON.
-         */
-        public String getVarianceJSON()
-        {
-            String str = String.format(FakeUserStats.jsonMediaStreamStatsTemplate,
-                -1, //ssrc not needed here
-                downloadJitterMs.getVariance(),
-                downloadPercentLoss.getVariance(),
-                downloadRateKiloBitPerSec.getVariance(),
-                jitterBufferDelayMs.getVariance(),
-                jitterBufferDelayPackets.getVariance(),
-                nbDiscarded.getVariance(),
-                nbDiscardedFull.getVariance(),
-                nbDiscardedLate.getVariance(),
-                nbDiscardedReset.getVariance(),
-                nbDiscardedShrink.getVariance(),
-                nbFec.getVariance(),
-                nbPackets.getVariance(),
-                nbPacketsLost.getVariance(),
-                nbReceivedBytes.getVariance(),
-                nbSentBytes.getVariance(),
-                packetQueueCountPackets.getVariance(),
-                packetQueueSize.getVariance(),
-                percentDiscarded.getVariance(),
-                rttMs.getVariance(),
-                uploadJitterMs.getVariance(),
-                uploadPercentLoss.getVariance(),
-                uploadRateKiloBitPerSec.getVariance());
-            return str;
-        }
-
-        /**
-         * Get the Max of all the stats that are watched, for all the stats
-         * added with add() since the creation of this <tt>HammerSummaryStats</tt>
-         * @return The Max of all the stats in JSON.
-         */
-        public String getAggregateMaxJSON()
-        {
-            String str = String.format(FakeUserStats.jsonMediaStreamStatsTemplate,
-                -1, //ssrc not needed here
-                aggregateDownloadJitterMs.getMax(),
-                aggregateDownloadPercentLoss.getMax(),
-                aggregateDownloadRateKiloBitPerSec.getMax(),
-                aggregateJitterBufferDelayMs.getMax(),
-                aggregateJitterBufferDelayPackets.getMax(),
-                aggregateNbDiscarded.getMax(),
-                aggregateNbDiscardedFull.getMax(),
-                aggregateNbDiscardedLate.getMax(),
-                aggregateNbDiscardedReset.getMax(),
-                aggregateNbDiscardedShrink.getMax(),
-                aggregateNbFec.getMax(),
-                aggregateNbPackets.getMax(),
-                aggregateNbPacketsLost.getMax(),
-                aggregateNbReceivedBytes.getMax(),
-                aggregateNbSentBytes.getMax(),
-                aggregatePacketQueueCountPackets.getMax(),
-                aggregatePacketQueueSize.getMax(),
-                aggregatePercentDiscarded.getMax(),
-                aggregateRttMs.getMax(),
-                aggregateUploadJitterMs.getMax(),
-                aggregateUploadPercentLoss.getMax(),
-                aggregateUploadRateKiloBitPerSec.getMax());
-            return str;
-        }
-
-        /**
-         * Get the Mean of all the stats that are watched, for all the stats
-         * added with add() since the creation of this <tt>HammerSummaryStats</tt>
-         * @return The Mean of all the stats in JSON.
-         */
-        public String getAggregateMeanJSON()
-        {
-            String str = String.format(FakeUserStats.jsonMediaStreamStatsTemplate,
-                -1, //ssrc not needed here
-                aggregateDownloadJitterMs.getMean(),
-                aggregateDownloadPercentLoss.getMean(),
-                aggregateDownloadRateKiloBitPerSec.getMean(),
-                aggregateJitterBufferDelayMs.getMean(),
-                aggregateJitterBufferDelayPackets.getMean(),
-                aggregateNbDiscarded.getMean(),
-                aggregateNbDiscardedFull.getMean(),
-                aggregateNbDiscardedLate.getMean(),
-                aggregateNbDiscardedReset.getMean(),
-                aggregateNbDiscardedShrink.getMean(),
-                aggregateNbFec.getMean(),
-                aggregateNbPackets.getMean(),
-                aggregateNbPacketsLost.getMean(),
-                aggregateNbReceivedBytes.getMean(),
-                aggregateNbSentBytes.getMean(),
-                aggregatePacketQueueCountPackets.getMean(),
-                aggregatePacketQueueSize.getMean(),
-                aggregatePercentDiscarded.getMean(),
-                aggregateRttMs.getMean(),
-                aggregateUploadJitterMs.getMean(),
-                aggregateUploadPercentLoss.getMean(),
-                aggregateUploadRateKiloBitPerSec.getMean());
-            return str;
-        }
-
-        /**
-         * Get the Min of all the stats that are watched, for all the stats
-         * added with add() since the creation of this <tt>HammerSummaryStats</tt>
-         * @return The Min of all the stats in JSON.
-         */
-        public String getAggregateMinJSON()
-        {
-            String str = String.format(FakeUserStats.jsonMediaStreamStatsTemplate,
-                -1, //ssrc not needed here
-                aggregateDownloadJitterMs.getMin(),
-                aggregateDownloadPercentLoss.getMin(),
-                aggregateDownloadRateKiloBitPerSec.getMin(),
-                aggregateJitterBufferDelayMs.getMin(),
-                aggregateJitterBufferDelayPackets.getMin(),
-                aggregateNbDiscarded.getMin(),
-                aggregateNbDiscardedFull.getMin(),
-                aggregateNbDiscardedLate.getMin(),
-                aggregateNbDiscardedReset.getMin(),
-                aggregateNbDiscardedShrink.getMin(),
-                aggregateNbFec.getMin(),
-                aggregateNbPackets.getMin(),
-                aggregateNbPacketsLost.getMin(),
-                aggregateNbReceivedBytes.getMin(),
-                aggregateNbSentBytes.getMin(),
-                aggregatePacketQueueCountPackets.getMin(),
-                aggregatePacketQueueSize.getMin(),
-                aggregatePercentDiscarded.getMin(),
-                aggregateRttMs.getMin(),
-                aggregateUploadJitterMs.getMin(),
-                aggregateUploadPercentLoss.getMin(),
-                aggregateUploadRateKiloBitPerSec.getMin());
-            return str;
-        }
-
-        /**
-         * Get the Standard Deviation of all the stats that are watched, for
-         * all the stats added with add() since the creation of this
-         *  <tt>HammerSummaryStats</tt>
-         * @return The Variance of all the stats in JSON.
-         */
-        public String getAggregateStandardDeviationJSON()
-        {
-            String str = String.format(FakeUserStats.jsonMediaStreamStatsTemplate,
-                -1, //ssrc not needed here
-                aggregateDownloadJitterMs.getStandardDeviation(),
-                aggregateDownloadPercentLoss.getStandardDeviation(),
-                aggregateDownloadRateKiloBitPerSec.getStandardDeviation(),
-                aggregateJitterBufferDelayMs.getStandardDeviation(),
-                aggregateJitterBufferDelayPackets.getStandardDeviation(),
-                aggregateNbDiscarded.getStandardDeviation(),
-                aggregateNbDiscardedFull.getStandardDeviation(),
-                aggregateNbDiscardedLate.getStandardDeviation(),
-                aggregateNbDiscardedReset.getStandardDeviation(),
-                aggregateNbDiscardedShrink.getStandardDeviation(),
-                aggregateNbFec.getStandardDeviation(),
-                aggregateNbPackets.getStandardDeviation(),
-                aggregateNbPacketsLost.getStandardDeviation(),
-                aggregateNbReceivedBytes.getStandardDeviation(),
-                aggregateNbSentBytes.getStandardDeviation(),
-                aggregatePacketQueueCountPackets.getStandardDeviation(),
-                aggregatePacketQueueSize.getStandardDeviation(),
-                aggregatePercentDiscarded.getStandardDeviation(),
-                aggregateRttMs.getStandardDeviation(),
-                aggregateUploadJitterMs.getStandardDeviation(),
-                aggregateUploadPercentLoss.getStandardDeviation(),
-                aggregateUploadRateKiloBitPerSec.getStandardDeviation());
-            return str;
-        }
+        this.metricsServer = metricsServer;
+    }
 
-        /**
-         * Get the Sum of all the stats that are watched, for all the stats
-         * added with add() since the creation of this <tt>HammerSummaryStats</tt>
-         * @return The Sum of all the stats in JSON.
-         */
-        public String getAggregateSumJSON()
-        {
-            String str = String.format(FakeUserStats.jsonMediaStreamStatsTemplate,
-                -1, //ssrc not needed here
-                aggregateDownloadJitterMs.getSum(),
-                aggregateDownloadPercentLoss.getSum(),
-                aggregateDownloadRateKiloBitPerSec.getSum(),
-                aggregateJitterBufferDelayMs.getSum(),
-                aggregateJitterBufferDelayPackets.getSum(),
-                aggregateNbDiscarded.getSum(),
-                aggregateNbDiscardedFull.getSum(),
-                aggregateNbDiscardedLate.getSum(),
-                aggregateNbDiscardedReset.getSum(),
-                aggregateNbDiscardedShrink.getSum(),
-                aggregateNbFec.getSum(),
-                aggregateNbPackets.getSum(),
-                aggregateNbPacketsLost.getSum(),
-                aggregateNbReceivedBytes.getSum(),
-                aggregateNbSentBytes.getSum(),
-                aggregatePacketQueueCountPackets.getSum(),
-                aggregatePacketQueueSize.getSum(),
-                aggregatePercentDiscarded.getSum(),
-                aggregateRttMs.getSum(),
-                aggregateUploadJitterMs.getSum(),
-                aggregateUploadPercentLoss.getSum(),
-                aggregateUploadRateKiloBitPerSec.getSum());
-            return str;
-        }
+    /**
+     * Set the <tt>JoinLatencyStats</tt> of the users, written with the
+     * summary and overall stats.
+     * @param joinLatencyStats the <tt>JoinLatencyStats</tt>, or
+     * <tt>null</tt>.
+     */
+    public void setJoinLatencyStats(JoinLatencyStats joinLatencyStats)
+    {
+        this.joinLatencyStats = joinLatencyStats;
+    }
 
-        /**
-         * Get the Variance of all the stats that are watched, for all the stats
-         * added with add() since the creation of this <tt>HammerSummaryStats</tt>
-         * @return The Variance of all the stats JSON.
-         */
-        public String getAggregateVarianceJSON()
-        {
-            String str = String.format(FakeUserStats.jsonMediaStreamStatsTemplate,
-                -1, //ssrc not needed here
-                aggregateDownloadJitterMs.getVariance(),
-                aggregateDownloadPercentLoss.getVariance(),
-                aggregateDownloadRateKiloBitPerSec.getVariance(),
-                aggregateJitterBufferDelayMs.getVariance(),
-                aggregateJitterBufferDelayPackets.getVariance(),
-                aggregateNbDiscarded.getVariance(),
-                aggregateNbDiscardedFull.getVariance(),
-                aggregateNbDiscardedLate.getVariance(),
-                aggregateNbDiscardedReset.getVariance(),
-                aggregateNbDiscardedShrink.getVariance(),
-                aggregateNbFec.getVariance(),
-                aggregateNbPackets.getVariance(),
-                aggregateNbPacketsLost.getVariance(),
-                aggregateNbReceivedBytes.getVariance(),
-                aggregateNbSentBytes.getVariance(),
-                aggregatePacketQueueCountPackets.getVariance(),
-                aggregatePacketQueueSize.getVariance(),
-                aggregatePercentDiscarded.getVariance(),
-                aggregateRttMs.getVariance(),
-                aggregateUploadJitterMs.getVariance(),
-                aggregateUploadPercentLoss.getVariance(),
-                aggregateUploadRateKiloBitPerSec.getVariance());
-            return str;
-        }
+    /**
+     * Set the <tt>ReceiveStats</tt> of the users, sampled at each polling
+     * and written with the summary and overall stats.
+     * @param receiveStats the <tt>ReceiveStats</tt>, or <tt>null</tt>.
+     */
+    public void setReceiveStats(ReceiveStats receiveStats)
+    {
+        this.receiveStats = receiveStats;
     }
 }
@@ -0,0 +1,740 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.stats;
+
+import java.io.*;
+
+import org.apache.commons.math3.stat.descriptive.*;
+
+/**
+ * A class used to keep track and compute the summary stats and the
+ * aggregate summary stats from all the <tt>MediaStreamStats</tt>'s possible
+ * stats (see <tt>StreamStatsField</tt>).
+ *
+ * It's used by <tt>HammerStats</tt> during a run, and by
+ * <tt>BinaryStatsConverter</tt> from a binary stats file. The cumulative
+ * stats (e.g. the number of packets received) are added as their increase
+ * since the previous sample of their stream, so that the summary of an
+ * interval is about this interval and not about the totals so far.
+ *
+ * @author Thomas Kuntz
+ */
+class HammerSummaryStats
+{
+    /**
+     * The stats watched.
+     */
+    private static final StreamStatsField[] FIELDS = StreamStatsField.fields();
+
+    /*
+     * All the AggregateSummaryStatistics will be used to create new
+     * SummaryStatistics (for the option "-summarystats") that will
+     * be use to compute summary stats like max/min/std dev... ,
+     * and also be used to compute overall stats.
+     *
+     * At each iteration of the loop in run(), all stats are added to their
+     * corresponding SummaryStatistics, that will automatically add them
+     * to their related AggregateSummaryStatistics.
+     * After that, the SummaryStatistics are used to get the summary stats
+     * (in JSON), and are replace by newly created SummaryStatistics by
+     * the AggregateSummaryStatistics (for the next iteration).
+     */
+    private final AggregateSummaryStatistics[] aggregates
+        = new AggregateSummaryStatistics[FIELDS.length];
+
+    /**
+     * The <tt>SummaryStatistics</tt> of the stats added since the last call
+     * to <tt>clear()</tt>, indexed like <tt>aggregates</tt>.
+     */
+    private final SummaryStatistics[] summaries
+        = new SummaryStatistics[FIELDS.length];
+
+    /**
+     * The percentiles written in the summary and overall stats.
+     */
+    static final double[] PERCENTILES = { 50, 99, 99.9 };
+
+    /**
+     * The names of the JSON sections of the <tt>PERCENTILES</tt>.
+     */
+    static final String[] PERCENTILE_NAMES
+        = { "p50", "p99", "p99_9" };
+
+    /**
+     * The <tt>PERCENTILES</tt> as the quantile labels of the metrics.
+     */
+    static final String[] QUANTILES = { "0.5", "0.99", "0.999" };
+
+    /**
+     * The histograms of the stats added since the last call to
+     * <tt>clear()</tt>, indexed like <tt>aggregates</tt>. They are merged
+     * in <tt>aggregateHistograms</tt> by <tt>clear()</tt>.
+     */
+    private final LogLinearHistogram[] histograms
+        = new LogLinearHistogram[FIELDS.length];
+
+    /**
+     * The histograms of all the stats added before the last call to
+     * <tt>clear()</tt>, indexed like <tt>aggregates</tt>.
+     */
+    private final LogLinearHistogram[] aggregateHistograms
+        = new LogLinearHistogram[FIELDS.length];
+
+    /**
+     * The time of the current sample, or -1 before the first sample.
+     */
+    private long timestamp = -1;
+
+    /**
+     * The time of the previous sample, or -1 if there is none.
+     */
+    private long previousTimestamp = -1;
+
+    /**
+     * The sum of the values of the stats added during all the complete
+     * intervals (the ones with a previous sample) before the last call to
+     * clear(), indexed like <tt>aggregates</tt>. Used to compute the overall
+     * rates of the cumulative stats.
+     */
+    private final double[] rateSums = new double[FIELDS.length];
+
+    /**
+     * The duration (in seconds) of all the intervals of <tt>rateSums</tt>.
+     */
+    private double rateSeconds = 0;
+
+    /**
+     * Create a new HammerSummaryStats
+     */
+    public HammerSummaryStats()
+    {
+        for(int i = 0; i < aggregates.length; i++)
+        {
+            aggregates[i] = new AggregateSummaryStatistics();
+
+            /*
+             * The integer stats (counters, RTT...) have a resolution of 1,
+             * the others (jitter, loss, rates) of 0.001.
+             */
+            double unit = FIELDS[i].isIntegral() ? 1 : 0.001;
+            histograms[i] = new LogLinearHistogram(unit);
+            aggregateHistograms[i] = new LogLinearHistogram(unit);
+        }
+        clear();
+    }
+
+    /**
+     * Add stats values to their corresponding <tt>SummaryStats</tt> objects.
+     * @param values the stats of a stream, indexed by the ordinals of the
+     * <tt>StreamStatsField</tt>s.
+     */
+    public void add(double[] values)
+    {
+        for(int i = 0; i < summaries.length; i++)
+        {
+            summaries[i].addValue(values[i]);
+            histograms[i].addValue(values[i]);
+        }
+    }
+
+    /**
+     * Create new <tt>SummaryStatistics</tt> from the
+     * <tt>AggregateSummaryStatistics</tt> for all the stream's stats that
+     * are watched, and merge the histograms of the stats added since the
+     * last call in the overall histograms.
+     */
+    public void clear()
+    {
+        if(previousTimestamp != -1)
+        {
+            for(int i = 0; i < rateSums.length; i++)
+                rateSums[i] += summaries[i].getSum();
+            rateSeconds += (timestamp - previousTimestamp) / 1000D;
+        }
+        for(int i = 0; i < summaries.length; i++)
+        {
+            summaries[i] = aggregates[i].createContributingStatistics();
+            aggregateHistograms[i].add(histograms[i]);
+            histograms[i].clear();
+        }
+    }
+
+    /**
+     * Set the time of the sample whose stats are going to be added, used to
+     * compute the rates of the cumulative stats over the interval since the
+     * previous sample.
+     * @param timestamp the time of the sample, in milliseconds.
+     */
+    public void setTimestamp(long timestamp)
+    {
+        this.previousTimestamp = this.timestamp;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Format summary values in JSON, in the format of the stats of a stream
+     * written by <tt>StreamStatsField.appendJSON()</tt>.
+     * @param values the values, indexed like <tt>summaries</tt>.
+     * @return the values in JSON.
+     */
+    private static String toJSON(double[] values)
+    {
+        StringBuilder builder = new StringBuilder();
+        //ssrc not needed here
+        StreamStatsField.appendJSON(builder, -1, values, false);
+        return builder.toString();
+    }
+
+    /**
+     * Format the rates (per second) of the cumulative stats in JSON.
+     * @param sums the sums of the stats, indexed like <tt>summaries</tt>.
+     * @param seconds the duration of the sums, in seconds.
+     * @return the rates in JSON, <tt>null</tt>s if <tt>seconds</tt> isn't
+     * positive.
+     */
+    private static String toRatesJSON(double[] sums, double seconds)
+    {
+        StringBuilder builder = new StringBuilder("{ ");
+        String delim = "";
+        for(StreamStatsField field : FIELDS)
+        {
+            if(!field.isCumulative())
+                continue;
+            builder.append(delim).append('"').append(field.getJsonName())
+                .append("\":");
+            StreamStatsField.appendJSONValue(
+                builder,
+                (seconds > 0) ? sums[field.ordinal()] / seconds : Double.NaN);
+            delim = " , ";
+        }
+        return builder.append(" }").toString();
+    }
+
+    /**
+     * Get the rates (per second, summed over all the streams) of the
+     * cumulative stats during the interval between the previous sample and
+     * the current one, in JSON. The stats added must be the increases since
+     * the previous sample (see <tt>StatsDeltaTracker</tt>).
+     * @return the rates of the cumulative stats since the previous sample,
+     * or <tt>null</tt>s for the first sample, in JSON.
+     */
+    public String getRatesJSON()
+    {
+        double[] sums = new double[summaries.length];
+        for(int i = 0; i < sums.length; i++)
+            sums[i] = summaries[i].getSum();
+        return toRatesJSON(
+            sums,
+            (previousTimestamp == -1)
+                ? Double.NaN
+                : (timestamp - previousTimestamp) / 1000D);
+    }
+
+    /**
+     * Get the mean rates (per second, summed over all the streams) of the
+     * cumulative stats over all the intervals before the last call to
+     * clear(), in JSON.
+     * @return the mean rates of the cumulative stats, or <tt>null</tt>s if
+     * no interval has completed, in JSON.
+     */
+    public String getAggregateRatesJSON()
+    {
+        return toRatesJSON(rateSums, rateSeconds);
+    }
+
+    /**
+     * Get the Max of all the stats that are watched, for all the stats
+     * added with add() since the last call to clear() in JSON.
+     * @return The Max of all the stats since last clear() in JSON.
+     */
+    public String getMaxJSON()
+    {
+        double[] values = new double[summaries.length];
+        for(int i = 0; i < values.length; i++)
+            values[i] = summaries[i].getMax();
+        return toJSON(values);
+    }
+
+    /**
+     * Get the Mean of all the stats that are watched, for all the stats
+     * added with add() since the last call to clear() in JSON.
+     * @return The Mean of all the stats since last clear() in JSON.
+     */
+    public String getMeanJSON()
+    {
+        double[] values = new double[summaries.length];
+        for(int i = 0; i < values.length; i++)
+            values[i] = summaries[i].getMean();
+        return toJSON(values);
+    }
+
+    /**
+     * Get the Min of all the stats that are watched, for all the stats
+     * added with add() since the last call to clear() in JSON.
+     * @return The Min of all the stats since last clear() in JSON.
+     */
+    public String getMinJSON()
+    {
+        double[] values = new double[summaries.length];
+        for(int i = 0; i < values.length; i++)
+            values[i] = summaries[i].getMin();
+        return toJSON(values);
+    }
+
+    /**
+     * Get the Standard Deviation of all the stats that are watched, for all
+     * the stats added with add() since the last call to clear() in JSON.
+     * @return The Standard Deviation of all the stats since last clear()
+     * in JSON.
+     */
+    public String getStandardDeviationJSON()
+    {
+        double[] values = new double[summaries.length];
+        for(int i = 0; i < values.length; i++)
+            values[i] = summaries[i].getStandardDeviation();
+        return toJSON(values);
+    }
+
+    /**
+     * Get the Sum of all the stats that are watched, for all the stats
+     * added with add() since the last call to clear() in JSON.
+     * @return The Sum of all the stats since last clear() in JSON.
+     */
+    public String getSumJSON()
+    {
+        double[] values = new double[summaries.length];
+        for(int i = 0; i < values.length; i++)
+            values[i] = summaries[i].getSum();
+        return toJSON(values);
+    }
+
+    /**
+     * Get the Variance of all the stats that are watched, for all the stats
+     * added with add() since the last call to clear() in JSON.
+     * @return The Variance of all the stats since last clear() in JSON.
+     */
+    public String getVarianceJSON()
+    {
+        double[] values = new double[summaries.length];
+        for(int i = 0; i < values.length; i++)
+            values[i] = summaries[i].getVariance();
+        return toJSON(values);
+    }
+
+    /**
+     * Get a percentile of all the stats that are watched, for all the stats
+     * added with add() since the last call to clear() in JSON. The negative
+     * values (unknown stats) are not counted.
+     * @param percentile the percentile, between 0 and 100.
+     * @return The percentile of all the stats since last clear() in JSON.
+     */
+    public String getPercentileJSON(double percentile)
+    {
+        double[] values = new double[histograms.length];
+        for(int i = 0; i < values.length; i++)
+            values[i] = histograms[i].getValueAtPercentile(percentile);
+        return toJSON(values);
+    }
+
+    /**
+     * Get a percentile of all the stats that are watched, for all the stats
+     * added with add() since the creation of this <tt>HammerSummaryStats</tt>
+     * and before the last call to clear(), in JSON.
+     * @param percentile the percentile, between 0 and 100.
+     * @return The percentile of all the stats in JSON.
+     */
+    public String getAggregatePercentileJSON(double percentile)
+    {
+        double[] values = new double[aggregateHistograms.length];
+        for(int i = 0; i < values.length; i++)
+        {
+            values[i]
+                = aggregateHistograms[i].getValueAtPercentile(percentile);
+        }
+        return toJSON(values);
+    }
+
+    /**
+     * Get the Max of all the stats that are watched, for all the stats
+     * added with add() since the creation of this <tt>HammerSummaryStats</tt>
+     * @return The Max of all the stats in JSON.
+     */
+    public String getAggregateMaxJSON()
+    {
+        double[] values = new double[aggregates.length];
+        for(int i = 0; i < values.length; i++)
+            values[i] = aggregates[i].getMax();
+        return toJSON(values);
+    }
+
+    /**
+     * Get the Mean of all the stats that are watched, for all the stats
+     * added with add() since the creation of this <tt>HammerSummaryStats</tt>
+     * @return The Mean of all the stats in JSON.
+     */
+    public String getAggregateMeanJSON()
+    {
+        double[] values = new double[aggregates.length];
+        for(int i = 0; i < values.length; i++)
+            values[i] = aggregates[i].getMean();
+        return toJSON(values);
+    }
+
+    /**
+     * Get the Min of all the stats that are watched, for all the stats
+     * added with add() since the creation of this <tt>HammerSummaryStats</tt>
+     * @return The Min of all the stats in JSON.
+     */
+    public String getAggregateMinJSON()
+    {
+        double[] values = new double[aggregates.length];
+        for(int i = 0; i < values.length; i++)
+            values[i] = aggregates[i].getMin();
+        return toJSON(values);
+    }
+
+    /**
+     * Get the Standard Deviation of all the stats that are watched, for all
+     * the stats added with add() since the creation of this
+     * <tt>HammerSummaryStats</tt>
+     * @return The Standard Deviation of all the stats in JSON.
+     */
+    public String getAggregateStandardDeviationJSON()
+    {
+        double[] values = new double[aggregates.length];
+        for(int i = 0; i < values.length; i++)
+            values[i] = aggregates[i].getStandardDeviation();
+        return toJSON(values);
+    }
+
+    /**
+     * Get the Sum of all the stats that are watched, for all the stats
+     * added with add() since the creation of this <tt>HammerSummaryStats</tt>
+     * @return The Sum of all the stats in JSON.
+     */
+    public String getAggregateSumJSON()
+    {
+        double[] values = new double[aggregates.length];
+        for(int i = 0; i < values.length; i++)
+            values[i] = aggregates[i].getSum();
+        return toJSON(values);
+    }
+
+    /**
+     * Get the Variance of all the stats that are watched, for all the stats
+     * added with add() since the creation of this <tt>HammerSummaryStats</tt>
+     * @return The Variance of all the stats in JSON.
+     */
+    public String getAggregateVarianceJSON()
+    {
+        double[] values = new double[aggregates.length];
+        for(int i = 0; i < values.length; i++)
+            values[i] = aggregates[i].getVariance();
+        return toJSON(values);
+    }
+
+    /**
+     * Write the "summary" section of the stats file (max, mean, min and
+     * standard deviation and percentiles of the stats since the last call to
+     * clear(), rates of the cumulative stats, and join latencies).
+     * @param writer the <tt>StatsJsonWriter</tt> of the stats file.
+     * @param audio the summary stats of the audio streams.
+     * @param video the summary stats of the video streams.
+     * @param joinLatency the join latencies recorded since the previous
+     * sample, or <tt>null</tt> if they aren't known.
+     * @param receive the receive side stats since the previous sample, or
+     * <tt>null</tt> if they aren't computed.
+     * @throws IOException if the file can't be written.
+     */
+    static void printSummaryJSON(
+        StatsJsonWriter writer,
+        HammerSummaryStats audio,
+        HammerSummaryStats video,
+        JoinLatencyStats joinLatency,
+        ReceiveStats receive)
+        throws IOException
+    {
+        writer.print("  \"summary\":\n");
+        writer.print("  {\n");
+
+
+        writer.print("    \"max\":\n");
+        writer.print("    {\n");
+        writer.print("        \"audio\":");
+        writer.print(audio.getMaxJSON() + ",\n");
+        writer.print("        \"video\":");
+        writer.print(video.getMaxJSON() + '\n');
+        writer.print("    },\n");
+
+        writer.print("    \"mean\":\n");
+        writer.print("    {\n");
+        writer.print("       \"audio\":");
+        writer.print(audio.getMeanJSON() + ",\n");
+        writer.print("        \"video\":");
+        writer.print(video.getMeanJSON() + '\n');
+        writer.print("    },\n");
+
+        writer.print("    \"min\":\n");
+        writer.print("    {\n");
+        writer.print("        \"audio\":");
+        writer.print(audio.getMinJSON() + ",\n");
+        writer.print("        \"video\":");
+        writer.print(video.getMinJSON() + '\n');
+        writer.print("    },\n");
+
+        writer.print("    \"standard_deviation\":\n");
+        writer.print("    {\n");
+        writer.print("        \"audio\":");
+        writer.print(audio.getStandardDeviationJSON() + ",\n");
+        writer.print("        \"video\":");
+        writer.print(video.getStandardDeviationJSON() + '\n');
+        writer.print("    }");
+
+        for(int i = 0; i < PERCENTILES.length; i++)
+        {
+            writer.print(",\n");
+            writer.print("    \"" + PERCENTILE_NAMES[i] + "\":\n");
+            writer.print("    {\n");
+            writer.print("        \"audio\":");
+            writer.print(audio.getPercentileJSON(PERCENTILES[i]) + ",\n");
+            writer.print("        \"video\":");
+            writer.print(video.getPercentileJSON(PERCENTILES[i]) + '\n');
+            writer.print("    }");
+        }
+
+        writer.print(",\n");
+        writer.print("    \"rates\":\n");
+        writer.print("    {\n");
+        writer.print("        \"audio\":");
+        writer.print(audio.getRatesJSON() + ",\n");
+        writer.print("        \"video\":");
+        writer.print(video.getRatesJSON() + '\n');
+        writer.print("    }");
+
+        if(joinLatency != null)
+        {
+            writer.print(",\n");
+            writer.print("    \"join_latency\":");
+            writer.print(joinLatency.getJSON(4));
+        }
+        if(receive != null)
+        {
+            writer.print(",\n");
+            writer.print("    \"receive\":");
+            writer.print(receive.getJSON(4));
+        }
+        writer.print("\n");
+
+
+        writer.print("  }\n");
+    }
+
+    /**
+     * Get the metrics of the streams for <tt>MetricsServer</tt>, in the text
+     * format of Prometheus : for the cumulative stats, their total since the
+     * start of the run and their rate during the last interval, and for the
+     * other stats, their percentiles and mean during the last interval. It
+     * must be called before clear().
+     * @param audio the summary stats of the audio streams.
+     * @param video the summary stats of the video streams.
+     * @return the metrics of the streams.
+     */
+    static String getMetrics(
+        HammerSummaryStats audio,
+        HammerSummaryStats video)
+    {
+        StringBuilder builder = new StringBuilder();
+        HammerSummaryStats[] stats = { audio, video };
+        String[] labels = { "media=\"audio\"", "media=\"video\"" };
+
+        for(StreamStatsField field : FIELDS)
+        {
+            int i = field.ordinal();
+            String name = field.getMetricName();
+
+            if(field.isCumulative())
+            {
+                MetricsServer.appendHeader(builder, name + "_total",
+                    "counter", "The total " + field.getJsonName()
+                        + " of all the streams since the start of the run.");
+                for(int j = 0; j < stats.length; j++)
+                {
+                    builder.append(name).append("_total{").append(labels[j])
+                        .append("} ");
+                    MetricsServer.appendValue(
+                        builder,
+                        stats[j].aggregates[i].getSum());
+                    builder.append('\n');
+                }
+
+                MetricsServer.appendHeader(builder, name + "_per_second",
+                    "gauge", "The " + field.getJsonName() + " per second of"
+                        + " all the streams during the last interval.");
+                for(int j = 0; j < stats.length; j++)
+                {
+                    HammerSummaryStats s = stats[j];
+                    builder.append(name).append("_per_second{")
+                        .append(labels[j]).append("} ");
+                    MetricsServer.appendValue(
+                        builder,
+                        (s.previousTimestamp == -1)
+                            ? Double.NaN
+                            : s.summaries[i].getSum() * 1000D
+                                / (s.timestamp - s.previousTimestamp));
+                    builder.append('\n');
+                }
+            }
+            else
+            {
+                MetricsServer.appendHeader(builder, name, "gauge",
+                    "The percentiles of the " + field.getJsonName()
+                        + " of the streams during the last interval.");
+                for(int j = 0; j < stats.length; j++)
+                {
+                    for(int k = 0; k < PERCENTILES.length; k++)
+                    {
+                        builder.append(name).append('{').append(labels[j])
+                            .append(",quantile=\"").append(QUANTILES[k])
+                            .append("\"} ");
+                        MetricsServer.appendValue(
+                            builder,
+                            stats[j].histograms[i]
+                                .getValueAtPercentile(PERCENTILES[k]));
+                        builder.append('\n');
+                    }
+                }
+
+                MetricsServer.appendHeader(builder, name + "_mean", "gauge",
+                    "The mean " + field.getJsonName() + " of the streams"
+                        + " during the last interval.");
+                for(int j = 0; j < stats.length; j++)
+                {
+                    builder.append(name).append("_mean{").append(labels[j])
+                        .append("} ");
+                    MetricsServer.appendValue(
+                        builder,
+                        stats[j].summaries[i].getMean());
+                    builder.append('\n');
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Create and return the String that contains the overall stats (in JSON).
+     * @param audio the summary stats of the audio streams.
+     * @param video the summary stats of the video streams.
+     * @param joinLatency the join latencies of the run, or <tt>null</tt> if
+     * they aren't known.
+     * @param receive the receive side stats of the run, or <tt>null</tt> if
+     * they aren't computed.
+     * @return the String that contains the overall stats.
+     */
+    static String getOverallStatsJSON(
+        HammerSummaryStats audio,
+        HammerSummaryStats video,
+        JoinLatencyStats joinLatency,
+        ReceiveStats receive)
+    {
+        StringBuilder bldr = new StringBuilder();
+        bldr.append("{\n");
+
+
+        bldr.append("  \"max\":\n");
+        bldr.append("  {\n");
+        bldr.append("      \"audio\":");
+        bldr.append(audio.getAggregateMaxJSON() + ",\n");
+        bldr.append("      \"video\":");
+        bldr.append(video.getAggregateMaxJSON() + '\n');
+        bldr.append("  },\n");
+
+        bldr.append("  \"mean\":\n");
+        bldr.append("  {\n");
+        bldr.append("     \"audio\":");
+        bldr.append(audio.getAggregateMeanJSON() + ",\n");
+        bldr.append("      \"video\":");
+        bldr.append(video.getAggregateMeanJSON() + '\n');
+        bldr.append("  },\n");
+
+
+        bldr.append("  \"min\":\n");
+        bldr.append("  {\n");
+        bldr.append("      \"audio\":");
+        bldr.append(audio.getAggregateMinJSON() + ",\n");
+        bldr.append("      \"video\":");
+        bldr.append(video.getAggregateMinJSON() + '\n');
+        bldr.append("  },\n");
+
+        bldr.append("  \"standard_deviation\":\n");
+        bldr.append("  {\n");
+        bldr.append("      \"audio\":");
+        bldr.append(audio.getAggregateStandardDeviationJSON() + ",\n");
+        bldr.append("      \"video\":");
+        bldr.append(video.getAggregateStandardDeviationJSON() + '\n');
+        bldr.append("  },\n");
+
+        bldr.append("  \"sum\":\n");
+        bldr.append("  {\n");
+        bldr.append("      \"audio\":");
+        bldr.append(audio.getAggregateSumJSON() + ",\n");
+        bldr.append("      \"video\":");
+        bldr.append(video.getAggregateSumJSON() + '\n');
+        bldr.append("  }");
+
+        for(int i = 0; i < PERCENTILES.length; i++)
+        {
+            double percentile = PERCENTILES[i];
+
+            bldr.append(",\n");
+            bldr.append("  \"" + PERCENTILE_NAMES[i] + "\":\n");
+            bldr.append("  {\n");
+            bldr.append("      \"audio\":");
+            bldr.append(audio.getAggregatePercentileJSON(percentile) + ",\n");
+            bldr.append("      \"video\":");
+            bldr.append(video.getAggregatePercentileJSON(percentile) + '\n');
+            bldr.append("  }");
+        }
+
+        bldr.append(",\n");
+        bldr.append("  \"rates\":\n");
+        bldr.append("  {\n");
+        bldr.append("      \"audio\":");
+        bldr.append(audio.getAggregateRatesJSON() + ",\n");
+        bldr.append("      \"video\":");
+        bldr.append(video.getAggregateRatesJSON() + '\n');
+        bldr.append("  }");
+
+        if(joinLatency != null)
+        {
+            bldr.append(",\n");
+            bldr.append("  \"join_latency\":");
+            bldr.append(joinLatency.getAggregateJSON(2));
+        }
+        if(receive != null)
+        {
+            bldr.append(",\n");
+            bldr.append("  \"receive\":");
+            bldr.append(receive.getAggregateJSON(2));
+        }
+        bldr.append('\n');
+
+
+        bldr.append("}\n");
+        return bldr.toString();
+    }
+}
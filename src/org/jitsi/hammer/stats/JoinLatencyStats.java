@@ -0,0 +1,223 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.stats;
+
+/**
+ * A <tt>JoinLatencyStats</tt> keeps the histograms of the join latencies of
+ * all the <tt>FakeUser</tt>s of a <tt>Hammer</tt>, for each
+ * <tt>JoinPhase</tt> : the ones of the whole run, and the ones recorded since
+ * the last call to <tt>clear()</tt> (i.e. since the previous polling of the
+ * stats).
+ *
+ * The latencies are recorded by the threads of the users, so all the methods
+ * are synchronized.
+ */
+public class JoinLatencyStats
+{
+    /**
+     * The phases of the join.
+     */
+    private static final JoinPhase[] PHASES = JoinPhase.values();
+
+    /**
+     * The histograms of the latencies (in milliseconds) recorded since the
+     * last call to <tt>clear()</tt>, indexed by the ordinals of the
+     * <tt>JoinPhase</tt>s.
+     */
+    private final LogLinearHistogram[] histograms
+        = new LogLinearHistogram[PHASES.length];
+
+    /**
+     * The histograms of all the latencies (in milliseconds), indexed like
+     * <tt>histograms</tt>.
+     */
+    private final LogLinearHistogram[] aggregateHistograms
+        = new LogLinearHistogram[PHASES.length];
+
+    /**
+     * The sum of all the latencies (in milliseconds), indexed like
+     * <tt>histograms</tt>.
+     */
+    private final long[] sums = new long[PHASES.length];
+
+    /**
+     * Create a new <tt>JoinLatencyStats</tt>.
+     */
+    public JoinLatencyStats()
+    {
+        for(int i = 0; i < PHASES.length; i++)
+        {
+            histograms[i] = new LogLinearHistogram(1);
+            aggregateHistograms[i] = new LogLinearHistogram(1);
+        }
+    }
+
+    /**
+     * Record the latency of a phase of the join of a user.
+     * @param phase the phase.
+     * @param latency the time from the start of the user to the end of the
+     * phase, in milliseconds.
+     */
+    public synchronized void record(JoinPhase phase, long latency)
+    {
+        int i = phase.ordinal();
+
+        histograms[i].addValue(latency);
+        aggregateHistograms[i].addValue(latency);
+        sums[i] += latency;
+    }
+
+    /**
+     * Forget the latencies recorded since the last call, for the next
+     * polling of the stats. The latencies of the whole run are kept.
+     */
+    public synchronized void clear()
+    {
+        for(LogLinearHistogram histogram : histograms)
+            histogram.clear();
+    }
+
+    /**
+     * Format the latencies of a set of histograms in JSON : for each phase,
+     * the number of users which went through it, and the percentiles and
+     * maximum of their latencies.
+     * @param histograms the histograms, indexed like <tt>PHASES</tt>.
+     * @param spaceIndent the number of spaces added to indent each line.
+     * @return the latencies in JSON.
+     */
+    private static String toJSON(
+        LogLinearHistogram[] histograms,
+        int spaceIndent)
+    {
+        StringBuilder builder = new StringBuilder();
+        StringBuilder indent = new StringBuilder();
+        String delim = "";
+
+        for(int i = 0; i < spaceIndent; i++)
+            indent.append(' ');
+
+        builder.append("{\n");
+        for(JoinPhase phase : PHASES)
+        {
+            LogLinearHistogram histogram = histograms[phase.ordinal()];
+
+            builder.append(delim).append(indent).append("    \"")
+                .append(phase.getJsonName()).append("\":{ \"count\":")
+                .append(histogram.getTotalCount());
+            for(int i = 0; i < HammerSummaryStats.PERCENTILES.length; i++)
+            {
+                builder.append(" , \"")
+                    .append(HammerSummaryStats.PERCENTILE_NAMES[i])
+                    .append("\":");
+                StreamStatsField.appendJSONValue(
+                    builder,
+                    histogram.getValueAtPercentile(
+                        HammerSummaryStats.PERCENTILES[i]));
+            }
+            builder.append(" , \"max\":");
+            StreamStatsField.appendJSONValue(
+                builder,
+                histogram.getValueAtPercentile(100));
+            builder.append(" }");
+            delim = ",\n";
+        }
+        builder.append('\n').append(indent).append('}');
+        return builder.toString();
+    }
+
+    /**
+     * Get the latencies recorded since the last call to <tt>clear()</tt>,
+     * in JSON.
+     * @param spaceIndent the number of spaces added to indent each line.
+     * @return the latencies in JSON.
+     */
+    public synchronized String getJSON(int spaceIndent)
+    {
+        return toJSON(histograms, spaceIndent);
+    }
+
+    /**
+     * Get all the latencies of the run, in JSON.
+     * @param spaceIndent the number of spaces added to indent each line.
+     * @return the latencies in JSON.
+     */
+    public synchronized String getAggregateJSON(int spaceIndent)
+    {
+        return toJSON(aggregateHistograms, spaceIndent);
+    }
+
+    /**
+     * Append the latencies of the whole run to the metrics of a
+     * <tt>MetricsServer</tt>, as a summary in the text format of Prometheus.
+     * @param builder the <tt>StringBuilder</tt> to append to.
+     */
+    synchronized void appendMetrics(StringBuilder builder)
+    {
+        String name = "hammer_join_latency_milliseconds";
+
+        MetricsServer.appendHeader(builder, name, "summary",
+            "The time from the start of a fake user to the end of each phase"
+                + " of its join.");
+        for(JoinPhase phase : PHASES)
+        {
+            int i = phase.ordinal();
+            LogLinearHistogram histogram = aggregateHistograms[i];
+            String label = "phase=\"" + phase.getJsonName() + "\"";
+
+            for(int j = 0; j < HammerSummaryStats.PERCENTILES.length; j++)
+            {
+                builder.append(name).append('{').append(label)
+                    .append(",quantile=\"")
+                    .append(HammerSummaryStats.QUANTILES[j])
+                    .append("\"} ");
+                MetricsServer.appendValue(
+                    builder,
+                    histogram.getValueAtPercentile(
+                        HammerSummaryStats.PERCENTILES[j]));
+                builder.append('\n');
+            }
+            builder.append(name).append("_sum{").append(label).append("} ")
+                .append(sums[i]).append('\n');
+            builder.append(name).append("_count{").append(label).append("} ")
+                .append(histogram.getTotalCount()).append('\n');
+        }
+    }
+
+    /**
+     * Get a one line summary of all the latencies of the run, for the logs.
+     * @return the median and 99th percentile of the latency of each phase.
+     */
+    public synchronized String toString()
+    {
+        StringBuilder builder = new StringBuilder("Join latencies (ms) :");
+        String delim = " ";
+
+        for(JoinPhase phase : PHASES)
+        {
+            LogLinearHistogram histogram
+                = aggregateHistograms[phase.ordinal()];
+
+            builder.append(delim).append(phase.getJsonName())
+                .append(" p50=").append(histogram.getValueAtPercentile(50))
+                .append(" p99=").append(histogram.getValueAtPercentile(99))
+                .append(" (").append(histogram.getTotalCount())
+                .append(" users)");
+            delim = ", ";
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.stats;
+
+/**
+ * The phases of the join of a <tt>FakeUser</tt> to the conference, in the
+ * order in which they happen. The latency of a phase is the time from the
+ * start of the user to the end of the phase.
+ */
+public enum JoinPhase
+{
+    /**
+     * The XMPP connection is established.
+     */
+    CONNECTED("connected"),
+
+    /**
+     * The user is logged in the XMPP server.
+     */
+    LOGGED_IN("logged_in"),
+
+    /**
+     * The user has joined the MUC chatroom.
+     */
+    MUC_JOINED("muc_joined"),
+
+    /**
+     * The Jingle session-initiate of the focus is received.
+     */
+    SESSION_INITIATE("session_initiate"),
+
+    /**
+     * The Jingle session-accept is sent, after the format negotiation and
+     * the ICE harvesting.
+     */
+    SESSION_ACCEPT("session_accept"),
+
+    /**
+     * The ICE connectivity establishment is completed.
+     */
+    ICE_COMPLETE("ice_complete"),
+
+    /**
+     * The encryption and the <tt>MediaStream</tt>s are started.
+     */
+    MEDIA_STARTED("media_started"),
+
+    /**
+     * The first RTP packet is received from the videobridge.
+     */
+    FIRST_MEDIA_PACKET("first_media_packet");
+
+    /**
+     * The name of the phase in the JSON stats and in the metrics.
+     */
+    private final String jsonName;
+
+    /**
+     * Create a new <tt>JoinPhase</tt>.
+     * @param jsonName the name of the phase in the JSON stats.
+     */
+    private JoinPhase(String jsonName)
+    {
+        this.jsonName = jsonName;
+    }
+
+    /**
+     * Get the name of this phase in the JSON stats and in the metrics.
+     * @return the name of this phase.
+     */
+    public String getJsonName()
+    {
+        return jsonName;
+    }
+}
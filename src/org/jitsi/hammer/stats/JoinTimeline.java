@@ -0,0 +1,123 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.stats;
+
+import java.util.*;
+
+/**
+ * A <tt>JoinTimeline</tt> timestamps the phases of the join of a
+ * <tt>FakeUser</tt>, from its start, and records their latencies in the
+ * <tt>JoinLatencyStats</tt> of its <tt>Hammer</tt>.
+ *
+ * Each phase is recorded once per start of the user : the first media packet
+ * is marked by the threads receiving the packets, the other phases by the
+ * thread starting the user.
+ */
+public class JoinTimeline
+{
+    /**
+     * The <tt>JoinLatencyStats</tt> in which the latencies are recorded.
+     */
+    private final JoinLatencyStats stats;
+
+    /**
+     * The time (in milliseconds) of the start of the user, or -1 if it
+     * hasn't been started.
+     */
+    private long startTime = -1;
+
+    /**
+     * The time (in milliseconds) of the end of each phase, or -1 if the
+     * phase isn't done since the start of the user, indexed by the ordinals
+     * of the <tt>JoinPhase</tt>s.
+     */
+    private final long[] phaseTimes = new long[JoinPhase.values().length];
+
+    /**
+     * Create a new <tt>JoinTimeline</tt>.
+     * @param stats the <tt>JoinLatencyStats</tt> in which the latencies
+     * will be recorded.
+     */
+    public JoinTimeline(JoinLatencyStats stats)
+    {
+        this.stats = stats;
+        Arrays.fill(phaseTimes, -1);
+    }
+
+    /**
+     * Timestamp the start of the user, and forget the phases of its previous
+     * start.
+     */
+    public synchronized void start()
+    {
+        startTime = System.currentTimeMillis();
+        Arrays.fill(phaseTimes, -1);
+    }
+
+    /**
+     * Timestamp the end of a phase, and record its latency if it's the
+     * first time the phase is done since the start of the user.
+     * @param phase the phase done.
+     */
+    public void mark(JoinPhase phase)
+    {
+        long latency;
+
+        synchronized (this)
+        {
+            if(startTime == -1 || phaseTimes[phase.ordinal()] != -1)
+                return;
+
+            phaseTimes[phase.ordinal()] = System.currentTimeMillis();
+            latency = phaseTimes[phase.ordinal()] - startTime;
+        }
+        stats.record(phase, latency);
+    }
+
+    /**
+     * Tell if a phase is done since the start of the user.
+     * @param phase the phase.
+     * @return <tt>true</tt> if <tt>phase</tt> is done.
+     */
+    public synchronized boolean isDone(JoinPhase phase)
+    {
+        return phaseTimes[phase.ordinal()] != -1;
+    }
+
+    /**
+     * Get the latency of each phase done, for the logs.
+     * @return the latency of each phase done since the start of the user.
+     */
+    public synchronized String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        String delim = "";
+
+        for(JoinPhase phase : JoinPhase.values())
+        {
+            long time = phaseTimes[phase.ordinal()];
+
+            if(time != -1)
+            {
+                builder.append(delim).append(phase.getJsonName())
+                    .append('=').append(time - startTime).append("ms");
+                delim = " ";
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.stats;
+
+import java.util.*;
+
+/**
+ * A <tt>LogLinearHistogram</tt> counts positive values in a fixed number of
+ * buckets, to compute percentiles in constant memory whatever the number of
+ * values added.
+ *
+ * The values are first converted to a number of <tt>unit</tt>s. Below
+ * <tt>2 * SUB_BUCKET_COUNT</tt> units, each unit has its own bucket. Above,
+ * each power of 2 is divided in <tt>SUB_BUCKET_COUNT</tt> linear buckets, so
+ * that the relative error of a percentile stays under
+ * <tt>1 / SUB_BUCKET_COUNT</tt> (about 3%).
+ *
+ * Two histograms with the same unit can be merged, which is how the
+ * histograms of each interval are added to the one of the whole run.
+ */
+public class LogLinearHistogram
+{
+    /**
+     * The number of bits of the linear part of a bucket index.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /**
+     * The number of linear buckets in each power of 2.
+     */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The number of buckets of a histogram, enough for any positive
+     * <tt>long</tt>.
+     */
+    private static final int BUCKET_COUNT
+        = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    /**
+     * The value of one unit of this histogram.
+     */
+    private final double unit;
+
+    /**
+     * The number of values in each bucket.
+     */
+    private final long[] counts = new long[BUCKET_COUNT];
+
+    /**
+     * The number of values added to this histogram.
+     */
+    private long totalCount = 0;
+
+    /**
+     * The smallest value added (in units).
+     */
+    private long min = Long.MAX_VALUE;
+
+    /**
+     * The largest value added (in units).
+     */
+    private long max = 0;
+
+    /**
+     * Create a new <tt>LogLinearHistogram</tt>.
+     * @param unit the resolution of the histogram : values are rounded to a
+     * multiple of <tt>unit</tt>.
+     */
+    public LogLinearHistogram(double unit)
+    {
+        if(!(unit > 0))
+        {
+            throw new IllegalArgumentException(
+                "The unit of a histogram must be positive : " + unit);
+        }
+        this.unit = unit;
+    }
+
+    /**
+     * Get the index of the bucket of a value.
+     * @param units the value, in units.
+     * @return the index of its bucket.
+     */
+    private static int getBucketIndex(long units)
+    {
+        if(units < 2 * SUB_BUCKET_COUNT)
+            return (int) units;
+
+        int shift = 63 - Long.numberOfLeadingZeros(units) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKET_COUNT + (int) (units >>> shift);
+    }
+
+    /**
+     * Get the smallest value (in units) of a bucket.
+     * @param index the index of the bucket.
+     * @return the smallest value of the bucket.
+     */
+    private static long getBucketLowerBound(int index)
+    {
+        if(index < 2 * SUB_BUCKET_COUNT)
+            return index;
+
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        return (long) (index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT) << shift;
+    }
+
+    /**
+     * Get the number of values (in units) of a bucket.
+     * @param index the index of the bucket.
+     * @return the width of the bucket.
+     */
+    private static long getBucketWidth(int index)
+    {
+        if(index < 2 * SUB_BUCKET_COUNT)
+            return 1;
+        return 1L << (index / SUB_BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Add a value to this histogram. The negative values (e.g. a RTT of -1
+     * when it is not known yet) and <tt>NaN</tt> are ignored.
+     * @param value the value to add.
+     */
+    public void addValue(double value)
+    {
+        if(!(value >= 0))
+            return;
+
+        /* The cast saturates at Long.MAX_VALUE for the huge values. */
+        long units = (long) (value / unit + 0.5);
+
+        counts[getBucketIndex(units)]++;
+        totalCount++;
+        if(units < min)
+            min = units;
+        if(units > max)
+            max = units;
+    }
+
+    /**
+     * Add all the values of another histogram to this one.
+     * @param other the histogram to merge in this one. It must have the same
+     * unit.
+     */
+    public void add(LogLinearHistogram other)
+    {
+        if(other.unit != unit)
+        {
+            throw new IllegalArgumentException(
+                "Can't merge histograms of different units : "
+                    + other.unit + " and " + unit);
+        }
+        if(other.totalCount == 0)
+            return;
+
+        for(int i = 0; i < counts.length; i++)
+            counts[i] += other.counts[i];
+        totalCount += other.totalCount;
+        if(other.min < min)
+            min = other.min;
+        if(other.max > max)
+            max = other.max;
+    }
+
+    /**
+     * Remove all the values of this histogram.
+     */
+    public void clear()
+    {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    /**
+     * Get the number of values added to this histogram.
+     * @return the number of values added to this histogram.
+     */
+    public long getTotalCount()
+    {
+        return totalCount;
+    }
+
+    /**
+     * Get the value below which <tt>percentile</tt> percent of the values
+     * added to this histogram fall. The value returned is the middle of the
+     * bucket of this percentile, bounded by the smallest and largest values
+     * added (the largest value is returned exactly for the 100th
+     * percentile).
+     * @param percentile the percentile, between 0 and 100.
+     * @return the value at <tt>percentile</tt>, or <tt>NaN</tt> if this
+     * histogram is empty.
+     */
+    public double getValueAtPercentile(double percentile)
+    {
+        if(totalCount == 0)
+            return Double.NaN;
+
+        long rank = (long) Math.ceil(percentile / 100D * totalCount);
+        if(rank < 1)
+            rank = 1;
+        else if(rank >= totalCount)
+            return max * unit;
+
+        long count = 0;
+        int index = 0;
+        for(; index < counts.length; index++)
+        {
+            count += counts[index];
+            if(count >= rank)
+                break;
+        }
+
+        double units = getBucketLowerBound(index)
+            + (getBucketWidth(index) - 1) / 2D;
+        units = Math.min(Math.max(units, min), max);
+        return units * unit;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.stats;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+import org.jitsi.hammer.*;
+import org.jitsi.util.Logger;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * A <tt>MetricsServer</tt> serves the current metrics of a <tt>Hammer</tt>
+ * on <tt>/metrics</tt>, in the text format of Prometheus, so that a run can
+ * be watched while it is running.
+ *
+ * The metrics of the users (users connected, ICE results, join latencies)
+ * are read from the <tt>Hammer</tt> at each request. The metrics of the streams are computed
+ * by the <tt>HammerStats</tt> at each polling of the stats, from its
+ * <tt>HammerSummaryStats</tt>, and served until the next polling.
+ */
+public class MetricsServer
+    implements HttpHandler
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>MetricsServer</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(MetricsServer.class);
+
+    /**
+     * The content type of the text format of Prometheus.
+     */
+    private static final String CONTENT_TYPE
+        = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * The <tt>Hammer</tt> whose metrics are served.
+     */
+    private final Hammer hammer;
+
+    /**
+     * The port the HTTP server listens on.
+     */
+    private final int port;
+
+    /**
+     * The HTTP server, or <tt>null</tt> if it isn't started.
+     */
+    private HttpServer server;
+
+    /**
+     * The metrics of the streams computed at the last polling of the stats,
+     * in the text format of Prometheus.
+     */
+    private volatile String streamMetrics = "";
+
+    /**
+     * Initializes a new <tt>MetricsServer</tt>.
+     *
+     * @param hammer the <tt>Hammer</tt> whose metrics are served.
+     * @param port the port the HTTP server will listen on.
+     */
+    public MetricsServer(Hammer hammer, int port)
+    {
+        this.hammer = hammer;
+        this.port = port;
+    }
+
+    /**
+     * Start the HTTP server, with a single thread handling the requests.
+     *
+     * @throws IOException if the server can't listen on its port.
+     */
+    public synchronized void start()
+        throws IOException
+    {
+        if(server != null)
+            return;
+
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", this);
+        server.setExecutor(Executors.newSingleThreadExecutor(
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "MetricsServer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }));
+        server.start();
+        logger.info("Serving the metrics on http://0.0.0.0:" + port
+            + "/metrics");
+    }
+
+    /**
+     * Stop the HTTP server.
+     */
+    public synchronized void stop()
+    {
+        if(server != null)
+        {
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdown();
+            server = null;
+        }
+    }
+
+    /**
+     * Set the metrics of the streams, computed at a polling of the stats.
+     *
+     * @param streamMetrics the metrics of the streams, in the text format of
+     * Prometheus.
+     */
+    void setStreamMetrics(String streamMetrics)
+    {
+        this.streamMetrics = streamMetrics;
+    }
+
+    /**
+     * Answer a request for the metrics.
+     *
+     * @param exchange the HTTP request and response.
+     * @throws IOException if the response can't be sent.
+     */
+    public void handle(HttpExchange exchange)
+        throws IOException
+    {
+        try
+        {
+            if(!"GET".equals(exchange.getRequestMethod()))
+            {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            byte[] body = getMetrics().getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Get all the metrics, in the text format of Prometheus.
+     *
+     * @return all the metrics.
+     */
+    private String getMetrics()
+    {
+        StringBuilder builder = new StringBuilder();
+        int userCount = hammer.getUserCount();
+
+        appendHeader(builder, "hammer_users", "gauge",
+            "The number of fake users handled by the hammer.");
+        builder.append("hammer_users ").append(userCount).append('\n');
+        appendHeader(builder, "hammer_users_connected", "gauge",
+            "The number of fake users connected and in the MUC.");
+        builder.append("hammer_users_connected ")
+            .append(hammer.getConnectedUserCount()).append('\n');
+        appendHeader(builder, "hammer_ice_total", "counter",
+            "The number of ICE establishments, by result.");
+        builder.append("hammer_ice_total{result=\"success\"} ")
+            .append(hammer.getIceSuccessCount()).append('\n');
+        builder.append("hammer_ice_total{result=\"failure\"} ")
+            .append(hammer.getIceFailureCount()).append('\n');
+        hammer.getJoinLatencyStats().appendMetrics(builder);
+
+        builder.append(streamMetrics);
+        return builder.toString();
+    }
+
+    /**
+     * Append the <tt>HELP</tt> and <tt>TYPE</tt> lines of a metric.
+     *
+     * @param builder the <tt>StringBuilder</tt> to append to.
+     * @param name the name of the metric.
+     * @param type the type of the metric (gauge, counter...).
+     * @param help the description of the metric.
+     */
+    static void appendHeader(
+        StringBuilder builder,
+        String name,
+        String type,
+        String help)
+    {
+        builder.append("# HELP ").append(name).append(' ').append(help)
+            .append('\n');
+        builder.append("# TYPE ").append(name).append(' ').append(type)
+            .append('\n');
+    }
+
+    /**
+     * Append a value in the text format of Prometheus.
+     *
+     * @param builder the <tt>StringBuilder</tt> to append to.
+     * @param value the value.
+     */
+    static void appendValue(StringBuilder builder, double value)
+    {
+        if(value == Double.POSITIVE_INFINITY)
+            builder.append("+Inf");
+        else if(value == Double.NEGATIVE_INFINITY)
+            builder.append("-Inf");
+        else
+            builder.append(value);
+    }
+}
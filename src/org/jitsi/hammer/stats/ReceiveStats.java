@@ -0,0 +1,532 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jitsi.hammer.stats;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.service.neomedia.*;
+
+/**
+ * A <tt>ReceiveStats</tt> keeps the <tt>ReceiveStreamStats</tt> of the
+ * streams of all the <tt>FakeUser</tt>s of a <tt>Hammer</tt>, and sums up
+ * their receive side stats for each type of media : the ones since the last
+ * call to <tt>clear()</tt> (i.e. since the previous polling of the stats),
+ * and the ones of the whole run.
+ *
+ * The streams are added and removed by the threads of the users, and
+ * sampled by the thread writing the stats.
+ */
+public class ReceiveStats
+{
+    /**
+     * The descriptions of the gauges of the numbers of remote streams :
+     * received, expected, missing and unannounced.
+     */
+    private static final String[] GAUGE_HELPS = {
+        "from which packets were received",
+        "announced by the focus",
+        "announced by the focus from which no packet was received",
+        "from which packets were received without being announced"
+    };
+
+    /**
+     * The <tt>ReceiveStreamStats</tt> of the streams of the users.
+     */
+    private final Set<ReceiveStreamStats> streams
+        = Collections.newSetFromMap(
+            new ConcurrentHashMap<ReceiveStreamStats, Boolean>());
+
+    /**
+     * The receive stats of the audio streams since the last call to
+     * <tt>clear()</tt>.
+     */
+    private final Summary audio = new Summary();
+
+    /**
+     * The receive stats of the video streams since the last call to
+     * <tt>clear()</tt>.
+     */
+    private final Summary video = new Summary();
+
+    /**
+     * The receive stats of the audio streams of the whole run.
+     */
+    private final Summary aggregateAudio = new Summary();
+
+    /**
+     * The receive stats of the video streams of the whole run.
+     */
+    private final Summary aggregateVideo = new Summary();
+
+    /**
+     * Add the <tt>ReceiveStreamStats</tt> of a stream.
+     * @param stream the <tt>ReceiveStreamStats</tt> of the stream.
+     */
+    public void add(ReceiveStreamStats stream)
+    {
+        streams.add(stream);
+    }
+
+    /**
+     * Remove the <tt>ReceiveStreamStats</tt> of a stream, after adding what
+     * it received since the previous sample.
+     * @param stream the <tt>ReceiveStreamStats</tt> of the stream.
+     */
+    public synchronized void remove(ReceiveStreamStats stream)
+    {
+        if(streams.remove(stream))
+            sample(stream, System.currentTimeMillis());
+    }
+
+    /**
+     * Add what all the streams received since the previous sample.
+     */
+    public synchronized void sample()
+    {
+        long now = System.currentTimeMillis();
+
+        for(ReceiveStreamStats stream : streams)
+            sample(stream, now);
+    }
+
+    /**
+     * Add what a stream received since the previous sample.
+     * @param stream the <tt>ReceiveStreamStats</tt> of the stream.
+     * @param now the time of the sample, in milliseconds.
+     */
+    private void sample(ReceiveStreamStats stream, long now)
+    {
+        Summary summary = new Summary();
+
+        stream.sample(summary, now);
+        if(MediaType.AUDIO.equals(stream.getMediaType()))
+        {
+            audio.add(summary);
+            aggregateAudio.add(summary);
+        }
+        else
+        {
+            video.add(summary);
+            aggregateVideo.add(summary);
+        }
+    }
+
+    /**
+     * Forget the stats added since the last call, for the next polling of
+     * the stats. The stats of the whole run are kept.
+     */
+    public synchronized void clear()
+    {
+        audio.clear();
+        video.clear();
+    }
+
+    /**
+     * Format the receive stats of the audio and video streams in JSON.
+     * @param audio the receive stats of the audio streams.
+     * @param video the receive stats of the video streams.
+     * @param spaceIndent the number of spaces added to indent each line.
+     * @return the receive stats in JSON.
+     */
+    private static String toJSON(Summary audio, Summary video, int spaceIndent)
+    {
+        StringBuilder builder = new StringBuilder();
+        StringBuilder indent = new StringBuilder();
+
+        for(int i = 0; i < spaceIndent; i++)
+            indent.append(' ');
+
+        builder.append("{\n");
+        builder.append(indent).append("    \"audio\":");
+        audio.appendJSON(builder);
+        builder.append(",\n");
+        builder.append(indent).append("    \"video\":");
+        video.appendJSON(builder);
+        builder.append('\n').append(indent).append('}');
+        return builder.toString();
+    }
+
+    /**
+     * Get the receive stats added since the last call to <tt>clear()</tt>,
+     * in JSON.
+     * @param spaceIndent the number of spaces added to indent each line.
+     * @return the receive stats in JSON.
+     */
+    public synchronized String getJSON(int spaceIndent)
+    {
+        return toJSON(audio, video, spaceIndent);
+    }
+
+    /**
+     * Get the receive stats of the whole run, in JSON.
+     * @param spaceIndent the number of spaces added to indent each line.
+     * @return the receive stats in JSON.
+     */
+    public synchronized String getAggregateJSON(int spaceIndent)
+    {
+        return toJSON(aggregateAudio, aggregateVideo, spaceIndent);
+    }
+
+    /**
+     * Get the metrics of the receive stats for <tt>MetricsServer</tt>, in
+     * the text format of Prometheus : the totals of the counters since the
+     * start of the run, and the percentiles of the loss, jitter and bitrate
+     * of the remote streams during the last interval. It must be called
+     * before clear().
+     * @return the metrics of the receive stats.
+     */
+    synchronized String getMetrics()
+    {
+        StringBuilder builder = new StringBuilder();
+        Summary[] summaries = { audio, video };
+        Summary[] aggregates = { aggregateAudio, aggregateVideo };
+        String[] labels = { "media=\"audio\"", "media=\"video\"" };
+        String[] counters = { "packets", "bytes", "lost", "gaps",
+            "rtcp_packets" };
+
+        for(int i = 0; i < counters.length; i++)
+        {
+            String name = "hammer_received_" + counters[i] + "_total";
+
+            MetricsServer.appendHeader(builder, name, "counter",
+                "The total " + counters[i] + " received from the remote"
+                    + " streams since the start of the run.");
+            for(int j = 0; j < aggregates.length; j++)
+            {
+                builder.append(name).append('{').append(labels[j])
+                    .append("} ").append(aggregates[j].getCounter(i))
+                    .append('\n');
+            }
+        }
+
+        String[] gauges = { "received", "expected", "missing",
+            "unannounced" };
+
+        for(int i = 0; i < gauges.length; i++)
+        {
+            String name = "hammer_" + gauges[i] + "_streams";
+
+            MetricsServer.appendHeader(builder, name, "gauge",
+                "The number of remote streams " + GAUGE_HELPS[i]
+                    + " during the last interval.");
+            for(int j = 0; j < summaries.length; j++)
+            {
+                builder.append(name).append('{').append(labels[j])
+                    .append("} ").append(summaries[j].getStreamCount(i))
+                    .append('\n');
+            }
+        }
+
+        String[] histograms = { "loss_percent", "jitter_milliseconds",
+            "bitrate_kbps" };
+
+        for(int i = 0; i < histograms.length; i++)
+        {
+            String name = "hammer_received_" + histograms[i];
+
+            MetricsServer.appendHeader(builder, name, "gauge",
+                "The percentiles of the " + histograms[i] + " of the remote"
+                    + " streams during the last interval.");
+            for(int j = 0; j < summaries.length; j++)
+            {
+                LogLinearHistogram histogram
+                    = summaries[j].getHistogram(i);
+
+                for(int k = 0; k < HammerSummaryStats.PERCENTILES.length; k++)
+                {
+                    builder.append(name).append('{').append(labels[j])
+                        .append(",quantile=\"")
+                        .append(HammerSummaryStats.QUANTILES[k])
+                        .append("\"} ");
+                    MetricsServer.appendValue(
+                        builder,
+                        histogram.getValueAtPercentile(
+                            HammerSummaryStats.PERCENTILES[k]));
+                    builder.append('\n');
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Get a one line summary of the receive stats of the whole run, for the
+     * logs.
+     * @return the totals and the median loss and jitter of each type of
+     * media.
+     */
+    public synchronized String toString()
+    {
+        return "Received : audio " + aggregateAudio + ", video "
+            + aggregateVideo;
+    }
+
+    /**
+     * The receive stats of the streams of a type of media : the totals of
+     * the counters, and the histograms of the loss, jitter and bitrate of
+     * each remote stream at each sample in which it received packets.
+     */
+    static class Summary
+    {
+        /**
+         * The histogram of the percentage of packets lost.
+         */
+        final LogLinearHistogram lossPercent = new LogLinearHistogram(0.01);
+
+        /**
+         * The histogram of the interarrival jitter, in milliseconds.
+         */
+        final LogLinearHistogram jitterMs = new LogLinearHistogram(0.01);
+
+        /**
+         * The histogram of the bitrate, in kilobits per second.
+         */
+        final LogLinearHistogram bitrateKbps = new LogLinearHistogram(0.1);
+
+        /**
+         * The number of RTP packets received.
+         */
+        long packets;
+
+        /**
+         * The number of bytes of RTP received.
+         */
+        long bytes;
+
+        /**
+         * The number of RTP packets lost.
+         */
+        long lost;
+
+        /**
+         * The number of gaps in the sequence numbers.
+         */
+        long gaps;
+
+        /**
+         * The number of RTCP packets received.
+         */
+        long rtcpPackets;
+
+        /**
+         * The number of remote streams (counted once per sample) from which
+         * packets were received.
+         */
+        long activeStreams;
+
+        /**
+         * The number of remote streams (counted once per sample) announced
+         * by the focus.
+         */
+        long expectedStreams;
+
+        /**
+         * The number of remote streams (counted once per sample) announced
+         * by the focus, from which no packet was received.
+         */
+        long missingStreams;
+
+        /**
+         * The number of remote streams (counted once per sample) from which
+         * packets were received without being announced by the focus.
+         */
+        long unannouncedStreams;
+
+        /**
+         * The number of remote streams which started to receive packets
+         * (e.g. a new participant, or a simulcast layer switched on).
+         */
+        long startedStreams;
+
+        /**
+         * The number of remote streams which stopped to receive packets.
+         */
+        long stoppedStreams;
+
+        /**
+         * Add another <tt>Summary</tt> to this one.
+         * @param other the <tt>Summary</tt> to add.
+         */
+        void add(Summary other)
+        {
+            lossPercent.add(other.lossPercent);
+            jitterMs.add(other.jitterMs);
+            bitrateKbps.add(other.bitrateKbps);
+            packets += other.packets;
+            bytes += other.bytes;
+            lost += other.lost;
+            gaps += other.gaps;
+            rtcpPackets += other.rtcpPackets;
+            activeStreams += other.activeStreams;
+            expectedStreams += other.expectedStreams;
+            missingStreams += other.missingStreams;
+            unannouncedStreams += other.unannouncedStreams;
+            startedStreams += other.startedStreams;
+            stoppedStreams += other.stoppedStreams;
+        }
+
+        /**
+         * Reset this <tt>Summary</tt>.
+         */
+        void clear()
+        {
+            lossPercent.clear();
+            jitterMs.clear();
+            bitrateKbps.clear();
+            packets = 0;
+            bytes = 0;
+            lost = 0;
+            gaps = 0;
+            rtcpPackets = 0;
+            activeStreams = 0;
+            expectedStreams = 0;
+            missingStreams = 0;
+            unannouncedStreams = 0;
+            startedStreams = 0;
+            stoppedStreams = 0;
+        }
+
+        /**
+         * Get a counter by its index in the metrics.
+         * @param index the index of the counter : packets, bytes, lost, gaps
+         * and RTCP packets.
+         * @return the value of the counter.
+         */
+        long getCounter(int index)
+        {
+            switch(index)
+            {
+            case 0:
+                return packets;
+            case 1:
+                return bytes;
+            case 2:
+                return lost;
+            case 3:
+                return gaps;
+            default:
+                return rtcpPackets;
+            }
+        }
+
+        /**
+         * Get a number of remote streams by its index in the metrics.
+         * @param index the index of the number : received, expected,
+         * missing and unannounced.
+         * @return the number of remote streams.
+         */
+        long getStreamCount(int index)
+        {
+            switch(index)
+            {
+            case 0:
+                return activeStreams;
+            case 1:
+                return expectedStreams;
+            case 2:
+                return missingStreams;
+            default:
+                return unannouncedStreams;
+            }
+        }
+
+        /**
+         * Get a histogram by its index in the metrics.
+         * @param index the index of the histogram : loss, jitter and
+         * bitrate.
+         * @return the histogram.
+         */
+        LogLinearHistogram getHistogram(int index)
+        {
+            switch(index)
+            {
+            case 0:
+                return lossPercent;
+            case 1:
+                return jitterMs;
+            default:
+                return bitrateKbps;
+            }
+        }
+
+        /**
+         * Append this <tt>Summary</tt> in JSON, on one line.
+         * @param builder the <tt>StringBuilder</tt> to append to.
+         */
+        void appendJSON(StringBuilder builder)
+        {
+            builder.append("{ \"packets\":").append(packets)
+                .append(" , \"bytes\":").append(bytes)
+                .append(" , \"lost\":").append(lost)
+                .append(" , \"gaps\":").append(gaps)
+                .append(" , \"rtcp_packets\":").append(rtcpPackets)
+                .append(" , \"active_streams\":").append(activeStreams)
+                .append(" , \"expected_streams\":").append(expectedStreams)
+                .append(" , \"missing_streams\":").append(missingStreams)
+                .append(" , \"unannounced_streams\":")
+                .append(unannouncedStreams)
+                .append(" , \"started_streams\":").append(startedStreams)
+                .append(" , \"stopped_streams\":").append(stoppedStreams);
+            appendJSON(builder, "loss_percent", lossPercent);
+            appendJSON(builder, "jitter_ms", jitterMs);
+            appendJSON(builder, "bitrate_kbps", bitrateKbps);
+            builder.append(" }");
+        }
+
+        /**
+         * Append the percentiles and maximum of a histogram in JSON.
+         * @param builder the <tt>StringBuilder</tt> to append to.
+         * @param name the name of the histogram.
+         * @param histogram the histogram.
+         */
+        private static void appendJSON(
+            StringBuilder builder,
+            String name,
+            LogLinearHistogram histogram)
+        {
+            builder.append(" , \"").append(name).append("\":{");
+            for(int i = 0; i < HammerSummaryStats.PERCENTILES.length; i++)
+            {
+                builder.append(i == 0 ? " \"" : " , \"")
+                    .append(HammerSummaryStats.PERCENTILE_NAMES[i])
+                    .append("\":");
+                StreamStatsField.appendJSONValue(
+                    builder,
+                    histogram.getValueAtPercentile(
+                        HammerSummaryStats.PERCENTILES[i]));
+            }
+            builder.append(" , \"max\":");
+            StreamStatsField.appendJSONValue(
+                builder,
+                histogram.getValueAtPercentile(100));
+            builder.append(" }");
+        }
+
+        /**
+         * Get a one line summary of this <tt>Summary</tt>.
+         * @return the totals and the median loss and jitter.
+         */
+        public String toString()
+        {
+            return packets + " packets, " + lost + " lost, " + gaps
+                + " gaps, " + missingStreams + " missing streams, loss p50=" + lossPercent.getValueAtPercentile(50)
+                + "% jitter p50=" + jitterMs.getValueAtPercentile(50) + "ms";
+        }
+    }
+}
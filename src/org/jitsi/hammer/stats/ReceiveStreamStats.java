@@ -0,0 +1,569 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jitsi.hammer.stats;
+
+import java.net.*;
+import java.util.*;
+
+import org.jitsi.hammer.utils.*;
+import org.jitsi.service.neomedia.*;
+
+/**
+ * A <tt>ReceiveStreamStats</tt> computes the receive side stats of a stream
+ * of a <tt>FakeUser</tt> from the headers of the packets it receives,
+ * without decrypting nor decoding them : SRTP leaves the RTP header in
+ * clear, and SRTCP the first 8 bytes of a compound packet.
+ *
+ * For each remote SSRC, it tracks the extended highest sequence number, the
+ * number of packets and bytes received, the gaps in the sequence numbers
+ * and the interarrival jitter, as defined by RFC 3550 (appendix A.1 and
+ * A.8, without the probation of new sources), and whether the SSRC has
+ * been announced by the focus, to compare the streams expected with the
+ * ones received (the secondary SSRCs of the SIM and FID groups are
+ * announced but optional : they are neither expected nor unannounced).
+ * They are kept in primitive arrays, which grow with the number of SSRCs.
+ *
+ * The packets are received by the threads of the sockets, and the stats are
+ * sampled by the thread writing the stats, so the methods are synchronized
+ * (the lock is almost never contended).
+ */
+public class ReceiveStreamStats
+    extends PacketWatcher
+{
+    /**
+     * The number of values kept per SSRC in <tt>sampled</tt>.
+     */
+    private static final int SAMPLED_FIELDS = 4;
+
+    /**
+     * The type of the stream.
+     */
+    private final MediaType mediaType;
+
+    /**
+     * The number of RTP timestamp units per nanosecond.
+     */
+    private final double unitsPerNano;
+
+    /**
+     * The number of remote SSRCs seen.
+     */
+    private int count = 0;
+
+    /**
+     * The index of the SSRC of the last RTP packet received, to skip the
+     * lookup when the packets of an SSRC follow each other.
+     */
+    private int lastIndex = -1;
+
+    /**
+     * The remote SSRCs.
+     */
+    private long[] ssrcs = new long[0];
+
+    /**
+     * The first sequence number received from each SSRC.
+     */
+    private int[] baseSeqs = new int[0];
+
+    /**
+     * The highest sequence number received from each SSRC.
+     */
+    private int[] maxSeqs = new int[0];
+
+    /**
+     * The number of sequence number cycles of each SSRC, shifted by 16.
+     */
+    private long[] cycles = new long[0];
+
+    /**
+     * The number of RTP packets received from each SSRC.
+     */
+    private long[] packets = new long[0];
+
+    /**
+     * The number of bytes of RTP received from each SSRC.
+     */
+    private long[] bytes = new long[0];
+
+    /**
+     * The number of gaps in the sequence numbers of each SSRC.
+     */
+    private long[] gaps = new long[0];
+
+    /**
+     * The interarrival jitter of each SSRC, in RTP timestamp units.
+     */
+    private double[] jitters = new double[0];
+
+    /**
+     * The time the last RTP packet of each SSRC was received, in RTP
+     * timestamp units.
+     */
+    private double[] lastArrivals = new double[0];
+
+    /**
+     * The RTP timestamp of the last RTP packet of each SSRC.
+     */
+    private int[] lastTimestamps = new int[0];
+
+    /**
+     * The number of packets, expected packets, bytes and gaps of each SSRC
+     * at the previous sample, one block of <tt>SAMPLED_FIELDS</tt> values
+     * per SSRC.
+     */
+    private long[] sampled = new long[0];
+
+    /**
+     * The number of packets and expected packets of each SSRC at the
+     * previous RTCP report, two values per SSRC.
+     */
+    private long[] reported = new long[0];
+
+    /**
+     * Whether packets were received from each SSRC between the two previous
+     * samples.
+     */
+    private boolean[] actives = new boolean[0];
+
+    /**
+     * Whether each SSRC has been announced by the focus.
+     */
+    private boolean[] announceds = new boolean[0];
+
+    /**
+     * Whether each announced SSRC is a secondary SSRC of a simulcast (SIM)
+     * or retransmission (FID) group, from which packets may or may not be
+     * received.
+     */
+    private boolean[] optionals = new boolean[0];
+
+    /**
+     * The number of RTCP packets received.
+     */
+    private long rtcpPackets = 0;
+
+    /**
+     * The number of RTCP packets received at the previous sample.
+     */
+    private long sampledRtcpPackets = 0;
+
+    /**
+     * The time of the previous sample, in milliseconds.
+     */
+    private long sampleTime = System.currentTimeMillis();
+
+    /**
+     * Create a new <tt>ReceiveStreamStats</tt>.
+     * @param mediaType the type of the stream.
+     * @param clockRate the clock rate of the RTP timestamps of the stream.
+     */
+    public ReceiveStreamStats(MediaType mediaType, double clockRate)
+    {
+        this.mediaType = mediaType;
+        this.unitsPerNano = clockRate / 1000000000D;
+    }
+
+    /**
+     * Get the type of the stream.
+     * @return the type of the stream.
+     */
+    public MediaType getMediaType()
+    {
+        return mediaType;
+    }
+
+    /**
+     * Update the stats with a packet received.
+     * @param p the packet received.
+     */
+    @Override
+    protected void received(DatagramPacket p)
+    {
+        if(isRtcp(p))
+        {
+            synchronized(this)
+            {
+                rtcpPackets++;
+            }
+        }
+        else if(isRtp(p))
+        {
+            byte[] buf = p.getData();
+            int off = p.getOffset();
+            int seq = ((buf[off + 2] & 0xFF) << 8) | (buf[off + 3] & 0xFF);
+            int timestamp = readInt(buf, off + 4);
+            long ssrc = readInt(buf, off + 8) & 0xFFFFFFFFL;
+
+            received(ssrc, seq, timestamp, p.getLength(),
+                System.nanoTime() * unitsPerNano);
+        }
+    }
+
+    /**
+     * Update the stats of an SSRC with a RTP packet received.
+     * @param ssrc the SSRC of the packet.
+     * @param seq the sequence number of the packet.
+     * @param timestamp the RTP timestamp of the packet.
+     * @param length the length of the packet, in bytes.
+     * @param arrival the time the packet was received, in RTP timestamp
+     * units.
+     */
+    private synchronized void received(
+        long ssrc,
+        int seq,
+        int timestamp,
+        int length,
+        double arrival)
+    {
+        int i = lastIndex;
+
+        if(i == -1 || ssrcs[i] != ssrc)
+        {
+            i = indexOf(ssrc, true);
+            lastIndex = i;
+        }
+        if(packets[i] == 0)
+        {
+            baseSeqs[i] = seq;
+            maxSeqs[i] = seq;
+            lastArrivals[i] = arrival;
+            lastTimestamps[i] = timestamp;
+        }
+
+        int delta = (seq - maxSeqs[i]) & 0xFFFF;
+
+        // A delta above half the sequence space is a reordered or
+        // duplicated packet.
+        if(delta > 0 && delta < 0x8000)
+        {
+            if(seq < maxSeqs[i])
+                cycles[i] += 0x10000;
+            if(delta > 1)
+                gaps[i]++;
+            maxSeqs[i] = seq;
+        }
+        packets[i]++;
+        bytes[i] += length;
+
+        double transitDelta = (arrival - lastArrivals[i])
+            - (timestamp - lastTimestamps[i]);
+
+        jitters[i] += (Math.abs(transitDelta) - jitters[i]) / 16D;
+        lastArrivals[i] = arrival;
+        lastTimestamps[i] = timestamp;
+    }
+
+    /**
+     * Set whether an SSRC has been announced by the focus (in the
+     * session-initiate or a source-add), so that packets are expected from
+     * it. An SSRC which isn't announced anymore is forgotten, and counted
+     * as unannounced if packets are still received from it.
+     * @param ssrc the SSRC.
+     * @param announced <tt>true</tt> if the SSRC is announced,
+     * <tt>false</tt> if it has been removed.
+     * @param optional whether the SSRC is a secondary SSRC of a simulcast
+     * or retransmission group, which is never counted as missing.
+     */
+    public synchronized void setAnnounced(
+        long ssrc,
+        boolean announced,
+        boolean optional)
+    {
+        int i = indexOf(ssrc, announced);
+
+        if(announced)
+        {
+            announceds[i] = true;
+            optionals[i] = optional;
+        }
+        else if(i != -1)
+            remove(i);
+    }
+
+    /**
+     * Get the index of an SSRC in the arrays.
+     * @param ssrc the SSRC.
+     * @param create whether the SSRC is added if it isn't known yet.
+     * @return the index of <tt>ssrc</tt>, or -1 if it isn't known and
+     * <tt>create</tt> is <tt>false</tt>.
+     */
+    private int indexOf(long ssrc, boolean create)
+    {
+        for(int i = 0; i < count; i++)
+        {
+            if(ssrcs[i] == ssrc)
+                return i;
+        }
+        if(!create)
+            return -1;
+
+        if(count == ssrcs.length)
+            grow();
+        ssrcs[count] = ssrc;
+        return count++;
+    }
+
+    /**
+     * Forget an SSRC, by moving the last SSRC of the arrays to its index.
+     * @param i the index of the SSRC.
+     */
+    private void remove(int i)
+    {
+        int last = --count;
+
+        ssrcs[i] = ssrcs[last];
+        baseSeqs[i] = baseSeqs[last];
+        maxSeqs[i] = maxSeqs[last];
+        cycles[i] = cycles[last];
+        packets[i] = packets[last];
+        bytes[i] = bytes[last];
+        gaps[i] = gaps[last];
+        jitters[i] = jitters[last];
+        lastArrivals[i] = lastArrivals[last];
+        lastTimestamps[i] = lastTimestamps[last];
+        System.arraycopy(sampled, last * SAMPLED_FIELDS,
+            sampled, i * SAMPLED_FIELDS, SAMPLED_FIELDS);
+        System.arraycopy(reported, last * 2, reported, i * 2, 2);
+        actives[i] = actives[last];
+        announceds[i] = announceds[last];
+        optionals[i] = optionals[last];
+
+        cycles[last] = 0;
+        packets[last] = 0;
+        bytes[last] = 0;
+        gaps[last] = 0;
+        jitters[last] = 0;
+        Arrays.fill(sampled, last * SAMPLED_FIELDS,
+            (last + 1) * SAMPLED_FIELDS, 0);
+        Arrays.fill(reported, last * 2, (last + 1) * 2, 0);
+        actives[last] = false;
+        announceds[last] = false;
+        optionals[last] = false;
+        lastIndex = -1;
+    }
+
+    /**
+     * Add the stats of the SSRCs since the previous sample to the receive
+     * stats of a <tt>ReceiveStats</tt>. Only the SSRCs from which packets
+     * were received since the previous sample are added to the histograms,
+     * and the SSRCs announced from which nothing was received are counted
+     * as missing, unless they are optional.
+     * @param summary the receive stats of the type of this stream.
+     * @param now the time of the sample, in milliseconds.
+     */
+    synchronized void sample(ReceiveStats.Summary summary, long now)
+    {
+        long interval = now - sampleTime;
+        double unitsPerMilli = unitsPerNano * 1000000D;
+
+        sampleTime = now;
+        summary.rtcpPackets += rtcpPackets - sampledRtcpPackets;
+        sampledRtcpPackets = rtcpPackets;
+        for(int i = 0; i < count; i++)
+        {
+            int offset = i * SAMPLED_FIELDS;
+            long expected = (packets[i] == 0)
+                ? 0
+                : cycles[i] + maxSeqs[i] - baseSeqs[i] + 1;
+            long packetDelta = packets[i] - sampled[offset];
+            long expectedDelta = expected - sampled[offset + 1];
+            long lost = Math.max(0, expectedDelta - packetDelta);
+
+            summary.packets += packetDelta;
+            summary.bytes += bytes[i] - sampled[offset + 2];
+            summary.lost += lost;
+            summary.gaps += gaps[i] - sampled[offset + 3];
+            if(announceds[i])
+            {
+                // The secondary SSRCs are neither expected nor missing.
+                if(!optionals[i])
+                {
+                    summary.expectedStreams++;
+                    if(packetDelta == 0)
+                        summary.missingStreams++;
+                }
+            }
+            else if(packetDelta > 0)
+            {
+                summary.unannouncedStreams++;
+            }
+            if(packetDelta > 0)
+            {
+                summary.activeStreams++;
+                if(!actives[i])
+                {
+                    summary.startedStreams++;
+                    actives[i] = true;
+                }
+                summary.lossPercent.addValue(
+                    (expectedDelta > 0) ? lost * 100D / expectedDelta : 0);
+                summary.jitterMs.addValue(jitters[i] / unitsPerMilli);
+                if(interval > 0)
+                {
+                    summary.bitrateKbps.addValue(
+                        (bytes[i] - sampled[offset + 2]) * 8D / interval);
+                }
+            }
+            else if(actives[i])
+            {
+                summary.stoppedStreams++;
+                actives[i] = false;
+            }
+
+            sampled[offset] = packets[i];
+            sampled[offset + 1] = expected;
+            sampled[offset + 2] = bytes[i];
+            sampled[offset + 3] = gaps[i];
+        }
+    }
+
+    /**
+     * Write the RTCP report blocks (RFC 3550, section 6.4.1) of the SSRCs
+     * from which packets were received, with the losses since the previous
+     * call. The LSR and DLSR are left at 0, as the sender reports can't be
+     * read without decrypting them.
+     * @param buf the buffer to write to.
+     * @param off the offset in <tt>buf</tt> of the first block.
+     * @param maxBlocks the maximum number of blocks written.
+     * @return the number of blocks written, 24 bytes each.
+     */
+    public synchronized int writeReportBlocks(
+        byte[] buf,
+        int off,
+        int maxBlocks)
+    {
+        int blocks = 0;
+
+        for(int i = 0; i < count && blocks < maxBlocks; i++)
+        {
+            if(packets[i] == 0)
+                continue;
+
+            long highestSeq = cycles[i] + maxSeqs[i];
+            long expected = highestSeq - baseSeqs[i] + 1;
+            long expectedDelta = expected - reported[i * 2 + 1];
+            long lostDelta = expectedDelta - (packets[i] - reported[i * 2]);
+            int fraction = (expectedDelta <= 0 || lostDelta <= 0)
+                ? 0
+                : (int) ((lostDelta << 8) / expectedDelta);
+            long lost = Math.max(-0x800000,
+                Math.min(0x7FFFFF, expected - packets[i]));
+
+            reported[i * 2] = packets[i];
+            reported[i * 2 + 1] = expected;
+            writeInt(buf, off, ssrcs[i]);
+            writeInt(buf, off + 4, ((fraction & 0xFF) << 24)
+                | (lost & 0xFFFFFF));
+            writeInt(buf, off + 8, highestSeq);
+            writeInt(buf, off + 12, (long) jitters[i]);
+            writeInt(buf, off + 16, 0);
+            writeInt(buf, off + 20, 0);
+            off += 24;
+            blocks++;
+        }
+        return blocks;
+    }
+
+    /**
+     * Get the highest sequence number received from an SSRC.
+     * @param ssrc the SSRC.
+     * @return the highest sequence number received from <tt>ssrc</tt>, or
+     * -1 if no packet was received from it.
+     */
+    public synchronized int getHighestSeq(long ssrc)
+    {
+        int i = indexOf(ssrc, false);
+
+        return (i == -1 || packets[i] == 0) ? -1 : maxSeqs[i];
+    }
+
+    /**
+     * Write a 32 bits integer in network order.
+     * @param buf the buffer.
+     * @param off the offset of the integer in <tt>buf</tt>.
+     * @param value the integer (only its 32 low bits are written).
+     */
+    private static void writeInt(byte[] buf, int off, long value)
+    {
+        buf[off] = (byte) (value >> 24);
+        buf[off + 1] = (byte) (value >> 16);
+        buf[off + 2] = (byte) (value >> 8);
+        buf[off + 3] = (byte) value;
+    }
+
+    /**
+     * Read a 32 bits integer in network order.
+     * @param buf the buffer.
+     * @param off the offset of the integer in <tt>buf</tt>.
+     * @return the integer.
+     */
+    private static int readInt(byte[] buf, int off)
+    {
+        return ((buf[off] & 0xFF) << 24) | ((buf[off + 1] & 0xFF) << 16)
+            | ((buf[off + 2] & 0xFF) << 8) | (buf[off + 3] & 0xFF);
+    }
+
+    /**
+     * Double the size of the arrays.
+     */
+    private void grow()
+    {
+        int size = Math.max(4, ssrcs.length * 2);
+
+        ssrcs = Arrays.copyOf(ssrcs, size);
+        baseSeqs = Arrays.copyOf(baseSeqs, size);
+        maxSeqs = Arrays.copyOf(maxSeqs, size);
+        cycles = Arrays.copyOf(cycles, size);
+        packets = Arrays.copyOf(packets, size);
+        bytes = Arrays.copyOf(bytes, size);
+        gaps = Arrays.copyOf(gaps, size);
+        jitters = Arrays.copyOf(jitters, size);
+        lastArrivals = Arrays.copyOf(lastArrivals, size);
+        lastTimestamps = Arrays.copyOf(lastTimestamps, size);
+        sampled = Arrays.copyOf(sampled, size * SAMPLED_FIELDS);
+        reported = Arrays.copyOf(reported, size * 2);
+        actives = Arrays.copyOf(actives, size);
+        announceds = Arrays.copyOf(announceds, size);
+        optionals = Arrays.copyOf(optionals, size);
+    }
+
+    /**
+     * Get the SSRCs of this stream, with whether they are announced and the
+     * number of packets received from them, for the logs.
+     * @return the SSRCs of this stream.
+     */
+    public synchronized String toString()
+    {
+        StringBuilder builder = new StringBuilder(mediaType.toString())
+            .append(" :");
+
+        for(int i = 0; i < count; i++)
+        {
+            builder.append(' ').append(ssrcs[i]).append('=')
+                .append(packets[i]);
+            if(optionals[i])
+                builder.append("(secondary)");
+            else if(!announceds[i])
+                builder.append("(unannounced)");
+            else if(packets[i] == 0)
+                builder.append("(missing)");
+        }
+        return builder.toString();
+    }
+}
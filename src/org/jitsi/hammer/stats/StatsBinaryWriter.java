@@ -0,0 +1,137 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.stats;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A <tt>StatsBinaryWriter</tt> records the stats of all the users in a
+ * compact binary file, converted offline by <tt>BinaryStatsConverter</tt>.
+ *
+ * All the numbers are big-endian. The file starts with a header : the
+ * {@link #MAGIC} and {@link #VERSION} ints, the number of fields (int), and
+ * for each <tt>StreamStatsField</tt> its JSON name (modified UTF-8, as
+ * written by <tt>DataOutput.writeUTF</tt>) and whether it is an integer
+ * (boolean). Then come records, each starting with a tag byte :
+ * <ul>
+ * <li>{@link #USER_RECORD} : the ID (int) and the username (UTF) of a user,
+ * written before its first sample;</li>
+ * <li>{@link #SAMPLE_RECORD} : the timestamp in milliseconds (long), the
+ * number of users (int), then for each user a fixed-width record : its ID
+ * (int), and for the audio then video stream the SSRC (long) and the value
+ * of each field, as a long for the integers or else a double.</li>
+ * </ul>
+ * The file is flushed after each sample.
+ */
+public class StatsBinaryWriter
+    implements Closeable
+{
+    /**
+     * The magic number starting a binary stats file ("JHST").
+     */
+    static final int MAGIC = 0x4A485354;
+
+    /**
+     * The version of the format.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * The tag of a user record.
+     */
+    static final byte USER_RECORD = 1;
+
+    /**
+     * The tag of a sample record.
+     */
+    static final byte SAMPLE_RECORD = 2;
+
+    /**
+     * The stream the records are written to.
+     */
+    private final DataOutputStream out;
+
+    /**
+     * The IDs of the users already described by a user record.
+     */
+    private final BitSet knownUsers = new BitSet();
+
+    /**
+     * Initializes a new <tt>StatsBinaryWriter</tt> writing to <tt>file</tt>,
+     * which is truncated, and writes the header.
+     *
+     * @param file the file to write.
+     * @throws IOException if the file can't be opened or written.
+     */
+    public StatsBinaryWriter(File file)
+        throws IOException
+    {
+        out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+
+        StreamStatsField[] fields = StreamStatsField.fields();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(fields.length);
+        for(StreamStatsField field : fields)
+        {
+            out.writeUTF(field.getJsonName());
+            out.writeBoolean(field.isIntegral());
+        }
+    }
+
+    /**
+     * Record a sample of the stats of users, and flush the file.
+     *
+     * @param timestamp the time of the sample, in milliseconds.
+     * @param statsList the stats of the users.
+     * @throws IOException if the file can't be written.
+     */
+    void writeSample(long timestamp, List<UserStatsSample> statsList)
+        throws IOException
+    {
+        for(UserStatsSample stats : statsList)
+        {
+            if(!knownUsers.get(stats.id))
+            {
+                out.writeByte(USER_RECORD);
+                out.writeInt(stats.id);
+                out.writeUTF(stats.username);
+                knownUsers.set(stats.id);
+            }
+        }
+
+        out.writeByte(SAMPLE_RECORD);
+        out.writeLong(timestamp);
+        out.writeInt(statsList.size());
+        for(UserStatsSample stats : statsList)
+            stats.writeBinary(out);
+        out.flush();
+    }
+
+    /**
+     * Flush and close the file.
+     *
+     * @throws IOException if the file can't be written.
+     */
+    public void close()
+        throws IOException
+    {
+        out.close();
+    }
+}
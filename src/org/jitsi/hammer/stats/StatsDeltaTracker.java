@@ -0,0 +1,124 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.stats;
+
+import java.util.*;
+
+/**
+ * A <tt>StatsDeltaTracker</tt> keeps the previous sample of the cumulative
+ * stats (see <tt>StreamStatsField.isCumulative()</tt>) of a set of streams,
+ * to turn them into their increase since the previous sample.
+ *
+ * The streams are identified by an index (e.g. the slot of a user), and the
+ * previous samples are kept in primitive arrays indexed by it, which grow
+ * with the highest index seen. When a stream is seen for the first time at
+ * an index (or the SSRC at an index changes, e.g. the index has been given
+ * to a new user), or if a counter decreases (the stream has been reset),
+ * its counters are counted from 0 : a stream is polled within an interval
+ * of its start, so its totals are the traffic of this interval.
+ */
+class StatsDeltaTracker
+{
+    /**
+     * The ordinals of the cumulative <tt>StreamStatsField</tt>s.
+     */
+    private static final int[] CUMULATIVE_FIELDS;
+
+    static
+    {
+        StreamStatsField[] fields = StreamStatsField.fields();
+        int count = 0;
+
+        for(StreamStatsField field : fields)
+        {
+            if(field.isCumulative())
+                count++;
+        }
+        CUMULATIVE_FIELDS = new int[count];
+        count = 0;
+        for(StreamStatsField field : fields)
+        {
+            if(field.isCumulative())
+                CUMULATIVE_FIELDS[count++] = field.ordinal();
+        }
+    }
+
+    /**
+     * The SSRC of the stream at each index, or -1 if there is no previous
+     * sample for this index.
+     */
+    private long[] ssrcs = new long[0];
+
+    /**
+     * The previous values of the cumulative stats, one block of
+     * <tt>CUMULATIVE_FIELDS.length</tt> values per index.
+     */
+    private double[] previousValues = new double[0];
+
+    /**
+     * Replace the cumulative stats of a stream by their increase since the
+     * previous sample of the stream, and keep their values for the next
+     * sample.
+     *
+     * @param index the index of the stream.
+     * @param ssrc the SSRC of the stream.
+     * @param values the stats of the stream, indexed by the ordinals of the
+     * <tt>StreamStatsField</tt>s. The cumulative stats are modified in place.
+     */
+    public void computeDeltas(int index, long ssrc, double[] values)
+    {
+        if(index >= ssrcs.length)
+            grow(index + 1);
+
+        int offset = index * CUMULATIVE_FIELDS.length;
+        boolean seen = (ssrcs[index] == ssrc);
+        boolean reset = false;
+
+        for(int i = 0; i < CUMULATIVE_FIELDS.length && seen && !reset; i++)
+        {
+            if(values[CUMULATIVE_FIELDS[i]] < previousValues[offset + i])
+                reset = true;
+        }
+
+        ssrcs[index] = ssrc;
+        for(int i = 0; i < CUMULATIVE_FIELDS.length; i++)
+        {
+            double value = values[CUMULATIVE_FIELDS[i]];
+
+            if(seen && !reset)
+                values[CUMULATIVE_FIELDS[i]] -= previousValues[offset + i];
+            previousValues[offset + i] = value;
+        }
+    }
+
+    /**
+     * Grow the arrays to hold at least <tt>minSize</tt> streams.
+     *
+     * @param minSize the number of streams needed.
+     */
+    private void grow(int minSize)
+    {
+        int oldSize = ssrcs.length;
+        int newSize = Math.max(minSize, Math.max(16, oldSize * 2));
+
+        ssrcs = Arrays.copyOf(ssrcs, newSize);
+        Arrays.fill(ssrcs, oldSize, newSize, -1);
+        previousValues = Arrays.copyOf(
+            previousValues,
+            newSize * CUMULATIVE_FIELDS.length);
+    }
+}
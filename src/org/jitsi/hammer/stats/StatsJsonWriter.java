@@ -0,0 +1,214 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.stats;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+
+/**
+ * A <tt>StatsJsonWriter</tt> streams the JSON stats to a file. The text is
+ * appended to a reused <tt>StringBuilder</tt>, and encoded in UTF-8 to the
+ * file channel each time a few kilobytes are buffered, so that writing the
+ * stats of thousands of users doesn't build them in memory first.
+ */
+public class StatsJsonWriter
+    implements Closeable
+{
+    /**
+     * The number of chars buffered before they are written to the file.
+     */
+    private static final int FLUSH_THRESHOLD = 16 * 1024;
+
+    /**
+     * The channel of the file written.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The text not written to the file yet.
+     */
+    private final StringBuilder builder
+        = new StringBuilder(FLUSH_THRESHOLD * 2);
+
+    /**
+     * The UTF-8 encoder of the text.
+     */
+    private final CharsetEncoder encoder
+        = Charset.forName("UTF-8").newEncoder();
+
+    /**
+     * The buffer the text is encoded in before it is written.
+     */
+    private final ByteBuffer bytes
+        = ByteBuffer.allocateDirect(FLUSH_THRESHOLD * 4);
+
+    /**
+     * Initializes a new <tt>StatsJsonWriter</tt> writing to <tt>file</tt>,
+     * which is truncated.
+     *
+     * @param file the file to write.
+     * @throws FileNotFoundException if the file can't be opened.
+     */
+    public StatsJsonWriter(File file)
+        throws FileNotFoundException
+    {
+        this.channel = new FileOutputStream(file).getChannel();
+    }
+
+    /**
+     * Write a string.
+     *
+     * @param str the string to write.
+     * @return this <tt>StatsJsonWriter</tt>.
+     * @throws IOException if the file can't be written.
+     */
+    public StatsJsonWriter print(String str)
+        throws IOException
+    {
+        builder.append(str);
+        maybeFlush();
+        return this;
+    }
+
+    /**
+     * Write a char.
+     *
+     * @param c the char to write.
+     * @return this <tt>StatsJsonWriter</tt>.
+     * @throws IOException if the file can't be written.
+     */
+    public StatsJsonWriter print(char c)
+        throws IOException
+    {
+        builder.append(c);
+        maybeFlush();
+        return this;
+    }
+
+    /**
+     * Write a long.
+     *
+     * @param l the long to write.
+     * @return this <tt>StatsJsonWriter</tt>.
+     * @throws IOException if the file can't be written.
+     */
+    public StatsJsonWriter print(long l)
+        throws IOException
+    {
+        builder.append(l);
+        maybeFlush();
+        return this;
+    }
+
+    /**
+     * Write the stats of a user, in the format of
+     * {@link FakeUserStats#getStatsJSON(int)}.
+     *
+     * @param stats the stats of the user.
+     * @param spaceIndent the number of spaces indenting each line.
+     * @return this <tt>StatsJsonWriter</tt>.
+     * @throws IOException if the file can't be written.
+     */
+    StatsJsonWriter printStats(UserStatsSample stats, int spaceIndent)
+        throws IOException
+    {
+        stats.appendJSON(builder, spaceIndent);
+        maybeFlush();
+        return this;
+    }
+
+    /**
+     * Write the buffered text to the file if there is enough of it.
+     *
+     * @throws IOException if the file can't be written.
+     */
+    private void maybeFlush()
+        throws IOException
+    {
+        if(builder.length() >= FLUSH_THRESHOLD)
+            writeBuffered();
+    }
+
+    /**
+     * Encode the buffered text and write it to the file.
+     *
+     * @throws IOException if the file can't be written.
+     */
+    private void writeBuffered()
+        throws IOException
+    {
+        if(builder.length() == 0)
+            return;
+
+        CharBuffer chars = CharBuffer.wrap(builder);
+        encoder.reset();
+        CoderResult result;
+        while((result = encoder.encode(chars, bytes, true)).isOverflow())
+            drain();
+        if(result.isError())
+            result.throwException();
+        while(encoder.flush(bytes).isOverflow())
+            drain();
+        drain();
+        builder.setLength(0);
+    }
+
+    /**
+     * Write the encoded bytes to the file channel.
+     *
+     * @throws IOException if the file can't be written.
+     */
+    private void drain()
+        throws IOException
+    {
+        bytes.flip();
+        while(bytes.hasRemaining())
+            channel.write(bytes);
+        bytes.clear();
+    }
+
+    /**
+     * Write all the buffered text to the file.
+     *
+     * @throws IOException if the file can't be written.
+     */
+    public void flush()
+        throws IOException
+    {
+        writeBuffered();
+    }
+
+    /**
+     * Write all the buffered text to the file and close it.
+     *
+     * @throws IOException if the file can't be written.
+     */
+    public void close()
+        throws IOException
+    {
+        try
+        {
+            writeBuffered();
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+}
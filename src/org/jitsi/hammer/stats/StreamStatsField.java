@@ -0,0 +1,385 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.stats;
+
+import org.jitsi.service.neomedia.*;
+
+/**
+ * The stats of a <tt>MediaStreamStats</tt> written in the stats files, in the
+ * order in which they follow the SSRC in the JSON of a stream.
+ */
+public enum StreamStatsField
+{
+    DOWNLOAD_JITTER_MS("DownloadJitterMs", false, false),
+    DOWNLOAD_PERCENT_LOSS("DownloadPercentLoss", false, false),
+    DOWNLOAD_RATE_KILOBIT_PER_SEC("DownloadRateKiloBitPerSec", false, false),
+    JITTER_BUFFER_DELAY_MS("JitterBufferDelayMs", true, false),
+    JITTER_BUFFER_DELAY_PACKETS("JitterBufferDelayPackets", true, false),
+    NB_DISCARDED("NbDiscarded", true, true),
+    NB_DISCARDED_FULL("NbDiscardedFull", true, true),
+    NB_DISCARDED_LATE("NbDiscardedLate", true, true),
+    NB_DISCARDED_RESET("NbDiscardedReset", true, true),
+    NB_DISCARDED_SHRINK("NbDiscardedShrink", true, true),
+    NB_FEC("NbFec", true, true),
+    NB_PACKETS("NbPackets", true, true),
+    NB_PACKETS_LOST("NbPacketsLost", true, true),
+    NB_RECEIVED_BYTES("NbReceivedBytes", true, true),
+    NB_SENT_BYTES("NbSentBytes", true, true),
+    PACKET_QUEUE_COUNT_PACKETS("PacketQueueCountPackets", true, false),
+    PACKET_QUEUE_SIZE("PacketQueueSize", true, false),
+    PERCENT_DISCARDED("PercentDiscarded", false, false),
+    RTT_MS("RttMs", true, false),
+    UPLOAD_JITTER_MS("UploadJitterMs", false, false),
+    UPLOAD_PERCENT_LOSS("UploadPercentLoss", false, false),
+    UPLOAD_RATE_KILOBIT_PER_SEC("UploadRateKiloBitPerSec", false, false);
+
+    /**
+     * The name of the stat in the JSON stats.
+     */
+    private final String jsonName;
+
+    /**
+     * The name of the stat in the metrics served by <tt>MetricsServer</tt>
+     * (e.g. <tt>hammer_stream_download_jitter_ms</tt>).
+     */
+    private final String metricName;
+
+    /**
+     * Whether the stat is an integer (<tt>int</tt> or <tt>long</tt>) rather
+     * than a <tt>double</tt>.
+     */
+    private final boolean integral;
+
+    /**
+     * Whether the stat is a counter accumulated since the start of the
+     * stream (e.g. the number of packets received), rather than a value
+     * measured at the time of the sample.
+     */
+    private final boolean cumulative;
+
+    /**
+     * The values of this enum, cached to avoid the copy made by
+     * <tt>values()</tt>.
+     */
+    private static final StreamStatsField[] VALUES = values();
+
+    /**
+     * Initializes a new <tt>StreamStatsField</tt>.
+     *
+     * @param jsonName the name of the stat in the JSON stats.
+     * @param integral whether the stat is an integer.
+     * @param cumulative whether the stat is accumulated since the start of
+     * the stream.
+     */
+    StreamStatsField(String jsonName, boolean integral, boolean cumulative)
+    {
+        this.jsonName = jsonName;
+        this.metricName
+            = "hammer_stream_" + jsonName.replaceAll("([a-z])([A-Z])", "$1_$2")
+                .toLowerCase();
+        this.integral = integral;
+        this.cumulative = cumulative;
+    }
+
+    /**
+     * Get the name of the stat in the JSON stats.
+     * @return the name of the stat in the JSON stats.
+     */
+    public String getJsonName()
+    {
+        return jsonName;
+    }
+
+    /**
+     * Get the name of the stat in the metrics served by
+     * <tt>MetricsServer</tt>.
+     * @return the name of the stat in the metrics.
+     */
+    public String getMetricName()
+    {
+        return metricName;
+    }
+
+    /**
+     * Tell if the stat is an integer (<tt>int</tt> or <tt>long</tt>) rather
+     * than a <tt>double</tt>.
+     * @return <tt>true</tt> if the stat is an integer.
+     */
+    public boolean isIntegral()
+    {
+        return integral;
+    }
+
+    /**
+     * Tell if the stat is a counter accumulated since the start of the
+     * stream, whose interesting value for an interval is its increase.
+     * @return <tt>true</tt> if the stat is accumulated.
+     */
+    public boolean isCumulative()
+    {
+        return cumulative;
+    }
+
+    /**
+     * Get the value of this stat.
+     *
+     * @param stats the <tt>MediaStreamStats</tt> holding the value.
+     * @return the value of this stat in <tt>stats</tt>.
+     */
+    public double getValue(MediaStreamStats stats)
+    {
+        switch(this)
+        {
+        case DOWNLOAD_JITTER_MS:
+            return stats.getDownloadJitterMs();
+        case DOWNLOAD_PERCENT_LOSS:
+            return stats.getDownloadPercentLoss();
+        case DOWNLOAD_RATE_KILOBIT_PER_SEC:
+            return stats.getDownloadRateKiloBitPerSec();
+        case JITTER_BUFFER_DELAY_MS:
+            return stats.getJitterBufferDelayMs();
+        case JITTER_BUFFER_DELAY_PACKETS:
+            return stats.getJitterBufferDelayPackets();
+        case NB_DISCARDED:
+            return stats.getNbDiscarded();
+        case NB_DISCARDED_FULL:
+            return stats.getNbDiscardedFull();
+        case NB_DISCARDED_LATE:
+            return stats.getNbDiscardedLate();
+        case NB_DISCARDED_RESET:
+            return stats.getNbDiscardedReset();
+        case NB_DISCARDED_SHRINK:
+            return stats.getNbDiscardedShrink();
+        case NB_FEC:
+            return stats.getNbFec();
+        case NB_PACKETS:
+            return stats.getNbPackets();
+        case NB_PACKETS_LOST:
+            return stats.getNbPacketsLost();
+        case NB_RECEIVED_BYTES:
+            return stats.getNbReceivedBytes();
+        case NB_SENT_BYTES:
+            return stats.getNbSentBytes();
+        case PACKET_QUEUE_COUNT_PACKETS:
+            return stats.getPacketQueueCountPackets();
+        case PACKET_QUEUE_SIZE:
+            return stats.getPacketQueueSize();
+        case PERCENT_DISCARDED:
+            return stats.getPercentDiscarded();
+        case RTT_MS:
+            return stats.getRttMs();
+        case UPLOAD_JITTER_MS:
+            return stats.getUploadJitterMs();
+        case UPLOAD_PERCENT_LOSS:
+            return stats.getUploadPercentLoss();
+        case UPLOAD_RATE_KILOBIT_PER_SEC:
+            return stats.getUploadRateKiloBitPerSec();
+        default:
+            throw new IllegalStateException(name());
+        }
+    }
+
+    /**
+     * Append the value of this stat to <tt>builder</tt>, formatted like
+     * <tt>String.valueOf</tt> formats the value returned by
+     * <tt>stats</tt>, without boxing it.
+     *
+     * @param builder the <tt>StringBuilder</tt> to append to.
+     * @param stats the <tt>MediaStreamStats</tt> holding the value.
+     */
+    public void appendValue(StringBuilder builder, MediaStreamStats stats)
+    {
+        switch(this)
+        {
+        case DOWNLOAD_JITTER_MS:
+            builder.append(stats.getDownloadJitterMs());
+            break;
+        case DOWNLOAD_PERCENT_LOSS:
+            builder.append(stats.getDownloadPercentLoss());
+            break;
+        case DOWNLOAD_RATE_KILOBIT_PER_SEC:
+            builder.append(stats.getDownloadRateKiloBitPerSec());
+            break;
+        case JITTER_BUFFER_DELAY_MS:
+            builder.append(stats.getJitterBufferDelayMs());
+            break;
+        case JITTER_BUFFER_DELAY_PACKETS:
+            builder.append(stats.getJitterBufferDelayPackets());
+            break;
+        case NB_DISCARDED:
+            builder.append(stats.getNbDiscarded());
+            break;
+        case NB_DISCARDED_FULL:
+            builder.append(stats.getNbDiscardedFull());
+            break;
+        case NB_DISCARDED_LATE:
+            builder.append(stats.getNbDiscardedLate());
+            break;
+        case NB_DISCARDED_RESET:
+            builder.append(stats.getNbDiscardedReset());
+            break;
+        case NB_DISCARDED_SHRINK:
+            builder.append(stats.getNbDiscardedShrink());
+            break;
+        case NB_FEC:
+            builder.append(stats.getNbFec());
+            break;
+        case NB_PACKETS:
+            builder.append(stats.getNbPackets());
+            break;
+        case NB_PACKETS_LOST:
+            builder.append(stats.getNbPacketsLost());
+            break;
+        case NB_RECEIVED_BYTES:
+            builder.append(stats.getNbReceivedBytes());
+            break;
+        case NB_SENT_BYTES:
+            builder.append(stats.getNbSentBytes());
+            break;
+        case PACKET_QUEUE_COUNT_PACKETS:
+            builder.append(stats.getPacketQueueCountPackets());
+            break;
+        case PACKET_QUEUE_SIZE:
+            builder.append(stats.getPacketQueueSize());
+            break;
+        case PERCENT_DISCARDED:
+            builder.append(stats.getPercentDiscarded());
+            break;
+        case RTT_MS:
+            builder.append(stats.getRttMs());
+            break;
+        case UPLOAD_JITTER_MS:
+            builder.append(stats.getUploadJitterMs());
+            break;
+        case UPLOAD_PERCENT_LOSS:
+            builder.append(stats.getUploadPercentLoss());
+            break;
+        case UPLOAD_RATE_KILOBIT_PER_SEC:
+            builder.append(stats.getUploadRateKiloBitPerSec());
+            break;
+        }
+    }
+
+    /**
+     * Append a value of this stat to <tt>builder</tt>, formatted like the
+     * value returned by the <tt>MediaStreamStats</tt> (without decimals for
+     * the integers).
+     *
+     * @param builder the <tt>StringBuilder</tt> to append to.
+     * @param value the value to append.
+     */
+    public void appendValue(StringBuilder builder, double value)
+    {
+        if(integral)
+            builder.append((long) value);
+        else
+            builder.append(value);
+    }
+
+    /**
+     * Get the values of all the stats of a stream.
+     *
+     * @param stats the <tt>MediaStreamStats</tt> of the stream.
+     * @param values the array filled with the values, indexed by the
+     * ordinals of the fields.
+     */
+    static void getValues(MediaStreamStats stats, double[] values)
+    {
+        for(StreamStatsField field : VALUES)
+            values[field.ordinal()] = field.getValue(stats);
+    }
+
+    /**
+     * Get the values of this enum, without the copy made by
+     * <tt>values()</tt>. The returned array must not be modified.
+     * @return the values of this enum.
+     */
+    static StreamStatsField[] fields()
+    {
+        return VALUES;
+    }
+
+    /**
+     * Append the stats of a stream to <tt>builder</tt> as a JSON object : its
+     * SSRC, then the value of each field under its JSON name, in order.
+     *
+     * @param builder the <tt>StringBuilder</tt> to append to.
+     * @param ssrc the SSRC of the stream.
+     * @param stats the <tt>MediaStreamStats</tt> of the stream.
+     */
+    public static void appendJSON(
+        StringBuilder builder,
+        long ssrc,
+        MediaStreamStats stats)
+    {
+        builder.append("{ \"ssrc\":").append(ssrc);
+        for(StreamStatsField field : VALUES)
+        {
+            builder.append(" , \"").append(field.jsonName).append("\":");
+            field.appendValue(builder, stats);
+        }
+        builder.append(" }");
+    }
+
+    /**
+     * Append the values of the stats of a stream to <tt>builder</tt> as a
+     * JSON object, in the format of
+     * {@link #appendJSON(StringBuilder, long, MediaStreamStats)}.
+     *
+     * @param builder the <tt>StringBuilder</tt> to append to.
+     * @param ssrc the SSRC of the stream.
+     * @param values the values of the stats, indexed by the ordinals of the
+     * fields.
+     * @param recorded <tt>true</tt> if the values were recorded from a
+     * <tt>MediaStreamStats</tt> (the integer stats are then formatted as
+     * integers), <tt>false</tt> if they are computed (e.g. a mean) and all
+     * formatted as <tt>double</tt>s.
+     */
+    public static void appendJSON(
+        StringBuilder builder,
+        long ssrc,
+        double[] values,
+        boolean recorded)
+    {
+        builder.append("{ \"ssrc\":").append(ssrc);
+        for(StreamStatsField field : VALUES)
+        {
+            builder.append(" , \"").append(field.jsonName).append("\":");
+            if(recorded)
+                field.appendValue(builder, values[field.ordinal()]);
+            else
+                appendJSONValue(builder, values[field.ordinal()]);
+        }
+        builder.append(" }");
+    }
+
+    /**
+     * Append a computed value to <tt>builder</tt> as a JSON number, or as
+     * <tt>null</tt> if it isn't finite (e.g. the percentile of no value, or
+     * a rate over no interval), which JSON can't represent.
+     *
+     * @param builder the <tt>StringBuilder</tt> to append to.
+     * @param value the value.
+     */
+    static void appendJSONValue(StringBuilder builder, double value)
+    {
+        if(Double.isNaN(value) || Double.isInfinite(value))
+            builder.append("null");
+        else
+            builder.append(value);
+    }
+}
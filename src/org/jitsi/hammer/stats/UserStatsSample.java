@@ -0,0 +1,150 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.stats;
+
+import java.io.*;
+
+import org.jitsi.service.neomedia.*;
+
+/**
+ * A <tt>UserStatsSample</tt> is a copy of the stats of the audio and video
+ * streams of a user taken when they are polled, so that they can be written
+ * by another thread while the <tt>MediaStreamStats</tt> keep changing.
+ */
+class UserStatsSample
+{
+    /**
+     * The ID of the <tt>FakeUserStats</tt> of the user.
+     */
+    final int id;
+
+    /**
+     * The slot of the <tt>FakeUserStats</tt> of the user in its
+     * <tt>HammerStats</tt>.
+     */
+    final int slot;
+
+    /**
+     * The username of the user.
+     */
+    final String username;
+
+    /**
+     * The SSRC of the audio stream.
+     */
+    final long audioSSRC;
+
+    /**
+     * The stats of the audio stream, indexed by the ordinals of the
+     * <tt>StreamStatsField</tt>s.
+     */
+    final double[] audioValues;
+
+    /**
+     * The SSRC of the video stream.
+     */
+    final long videoSSRC;
+
+    /**
+     * The stats of the video stream, indexed by the ordinals of the
+     * <tt>StreamStatsField</tt>s.
+     */
+    final double[] videoValues;
+
+    /**
+     * Initializes a new <tt>UserStatsSample</tt> with the current values of
+     * the stats of a user.
+     *
+     * @param stats the <tt>FakeUserStats</tt> of the user, already updated.
+     */
+    UserStatsSample(FakeUserStats stats)
+    {
+        int fieldCount = StreamStatsField.fields().length;
+
+        this.id = stats.getId();
+        this.slot = stats.slot;
+        this.username = stats.getUsername();
+        this.audioSSRC = stats.getLocalSSRC(MediaType.AUDIO);
+        this.audioValues = new double[fieldCount];
+        StreamStatsField.getValues(
+            stats.getMediaStreamStats(MediaType.AUDIO),
+            audioValues);
+        this.videoSSRC = stats.getLocalSSRC(MediaType.VIDEO);
+        this.videoValues = new double[fieldCount];
+        StreamStatsField.getValues(
+            stats.getMediaStreamStats(MediaType.VIDEO),
+            videoValues);
+    }
+
+    /**
+     * Append the stats of this sample to <tt>builder</tt> in the JSON format
+     * of <tt>FakeUserStats</tt>.
+     *
+     * @param builder the <tt>StringBuilder</tt> to append to.
+     * @param spaceIndent the number of space added to indent each line
+     * of the JSON.
+     */
+    void appendJSON(StringBuilder builder, int spaceIndent)
+    {
+        FakeUserStats.appendStatsJSON(
+            builder, spaceIndent, username,
+            audioSSRC, audioValues,
+            videoSSRC, videoValues);
+    }
+
+    /**
+     * Write the stats of this sample in the binary format of
+     * <tt>StatsBinaryWriter</tt> : the ID of the user, then for each stream
+     * its SSRC and the values of the <tt>StreamStatsField</tt>s.
+     *
+     * @param out the <tt>DataOutput</tt> to write to.
+     * @throws IOException if the stats can't be written.
+     */
+    void writeBinary(DataOutput out)
+        throws IOException
+    {
+        out.writeInt(id);
+        writeBinary(out, audioSSRC, audioValues);
+        writeBinary(out, videoSSRC, videoValues);
+    }
+
+    /**
+     * Write the stats of a stream in the binary format of
+     * <tt>StatsBinaryWriter</tt>.
+     *
+     * @param out the <tt>DataOutput</tt> to write to.
+     * @param ssrc the SSRC of the stream.
+     * @param values the stats of the stream.
+     * @throws IOException if the stats can't be written.
+     */
+    private static void writeBinary(
+        DataOutput out,
+        long ssrc,
+        double[] values)
+        throws IOException
+    {
+        out.writeLong(ssrc);
+        for(StreamStatsField field : StreamStatsField.fields())
+        {
+            double value = values[field.ordinal()];
+            if(field.isIntegral())
+                out.writeLong((long) value);
+            else
+                out.writeDouble(value);
+        }
+    }
+}
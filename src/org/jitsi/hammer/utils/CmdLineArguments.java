@@ -20,6 +20,9 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 
+import org.jitsi.hammer.load.*;
+import org.jitsi.hammer.media.*;
+import org.jitsi.hammer.impairment.*;
 import org.kohsuke.args4j.*;
 
 /**
@@ -89,6 +92,45 @@ public class CmdLineArguments
     @Option(name="-port",usage="The port of the BOSH server to use")
     private int port = -1;
 
+    /**
+     * The transport used to connect to the XMPP server.
+     */
+    @Option(name="-transport",usage="The transport used to connect to the"
+        + " XMPP server : bosh or tcp (default: bosh)")
+    private String transport = "bosh";
+
+    /**
+     * The maximum number of HTTP connections of the pool shared by all the
+     * BOSH sessions, or 0 if each session has its own HTTP client.
+     */
+    @Option(name="-boshpool",usage="Make all the BOSH sessions share one"
+        + " HTTP client with a pool of at most N connections, at least 2 per"
+        + " user (it doesn't bound the jbosh threads, one per request in"
+        + " flight) (default: 0, an HTTP client per user)")
+    private int boshPoolSize = 0;
+
+    /**
+     * The interval (in seconds) between two pings keeping the XMPP
+     * connection of a user alive.
+     */
+    @Option(name="-pinginterval",usage="The interval in seconds between two"
+        + " XMPP pings keeping the connection of a user alive (default: 15)")
+    private int pingInterval = 15;
+
+    /**
+     * The hostname used to access the XMPP server directly.
+     */
+    @Option(name="-XMPPhost",usage="The hostname of the XMPP server for the"
+        + " tcp transport (default: the BOSH host)")
+    private String XMPPhost;
+
+    /**
+     * The port used to access the XMPP server directly.
+     */
+    @Option(name="-XMPPport",usage="The port of the XMPP server for the"
+        + " tcp transport (default: 5222)")
+    private int XMPPport = -1;
+
     /**
      * The number of fake users jitsi-hammer will create.
      */
@@ -128,6 +170,91 @@ public class CmdLineArguments
         + " that will be read for the audio stream")
     private String audioRtpdumpFile = null;
 
+    /**
+     * Whether the rtpdump/ivf files are replayed as pre-encoded packets
+     * instead of going through the libjitsi media pipeline.
+     */
+    @Option(name="-replay",usage="Replay the packets of the -audiortpdump,"
+        + " -videortpdump or -ivf files directly (SSRC, sequence number and"
+        + " timestamp rewritten) instead of streaming them through libjitsi")
+    private boolean replay = false;
+
+    /**
+     * The way each user chooses its start position in the replayed media.
+     */
+    @Option(name="-mediaoffset",usage="Where each user starts in the"
+        + " replayed media : none (at the beginning), random, or spread"
+        + " (deterministic, from the user index). Requires -replay."
+        + " Default: none")
+    private String mediaOffset = "none";
+
+    /**
+     * Whether the replayed media is sent only once instead of looping.
+     */
+    @Option(name="-mediaonce",usage="Send the replayed media only once"
+        + " instead of looping over it. Requires -replay")
+    private boolean mediaOnce = false;
+
+    /**
+     * The maximum random jitter (in milliseconds) added to the send time of
+     * each replayed frame.
+     */
+    @Option(name="-mediajitter",usage="The maximum random jitter in"
+        + " milliseconds added to the send time of each replayed frame."
+        + " Requires -replay (default: 0)")
+    private int mediaJitter = 0;
+
+    /**
+     * The ivf or rtpdump files of the simulcast layers of the video, from
+     * the lowest to the highest, as a comma-separated list.
+     */
+    @Option(name="-simulcastlayers",usage="The ivf or rtpdump files of the"
+        + " simulcast layers replayed on the video stream, from the lowest to"
+        + " the highest, as a comma-separated list of 2 or 3 files (each user"
+        + " then sends one SSRC per layer, in a SIM group). Requires -replay")
+    private String simulcastLayers = null;
+
+    /**
+     * The interval in milliseconds between two compound RTCP packets sent
+     * by each stream of the fake users, or 0 to send none.
+     */
+    @Option(name="-rtcpinterval",usage="Send a compound RTCP packet (reports,"
+        + " SDES, and REMB/NACK/PLI feedback on the video) every given"
+        + " milliseconds on each stream of the fake users (0 to disable)")
+    private int rtcpInterval = 0;
+
+    /**
+     * The bitrate in bits per second announced by the REMB feedback of the
+     * video streams, or 0 to send no REMB.
+     */
+    @Option(name="-rembbitrate",usage="The bitrate in bits per second"
+        + " announced in the REMB feedback sent with -rtcpinterval"
+        + " (0 for no REMB)")
+    private long rembBitrate = 2000000;
+
+    /**
+     * The number of NACKs sent per second by each video stream.
+     */
+    @Option(name="-nackrate",usage="The number of NACKs sent per second by"
+        + " each video stream with -rtcpinterval")
+    private double nackRate = 0;
+
+    /**
+     * The number of PLIs sent per second by each video stream.
+     */
+    @Option(name="-plirate",usage="The number of PLIs sent per second by"
+        + " each video stream with -rtcpinterval")
+    private double pliRate = 0;
+
+    /**
+     * The impairment profile of the packets sent by the fake users, or null.
+     */
+    @Option(name="-impairment",usage="Impair the packets sent by the fake"
+        + " users (loss, bursts, delay, jitter, reordering, duplication,"
+        + " bandwidth cap), per cohort of users, e.g."
+        + " \"3:none;1:loss=5,burst=3/40,rate=300;@0:delay=300\"")
+    private String impairment = null;
+
     /**
      * If this boolean is true, the logging of overall stats is activated
      */
@@ -141,6 +268,53 @@ public class CmdLineArguments
         + "streams' stats collected during the run")
     private boolean allStats = false;
 
+    /**
+     * If this boolean is true, all the stats are recorded in a binary file
+     */
+    @Option(name="-binarystats",usage="Record all the streams' stats"
+        + " collected during the run in a compact binary file (see"
+        + " BinaryStatsConverter)")
+    private boolean binaryStats = false;
+
+    /**
+     * The port of the HTTP server serving the live metrics, or 0 if they
+     * aren't served.
+     */
+    @Option(name="-metricsport",usage="Serve the live metrics of the run"
+        + " (users, ICE, streams' stats) in the Prometheus text format on"
+        + " http://<host>:<port>/metrics (default: 0, disabled)")
+    private int metricsPort = 0;
+
+    /**
+     * The port ranges of the ICE components of the fake users, or
+     * <tt>null</tt> to use the default one.
+     */
+    @Option(name="-portrange",usage="The local port ranges of the media"
+        + " streams, as a comma-separated list of min-max ranges (default: "
+        + IceMediaStreamGenerator.DEFAULT_MIN_COMPONENT_PORT + "-"
+        + IceMediaStreamGenerator.DEFAULT_MAX_COMPONENT_PORT + "). Each"
+        + " stream uses 2 ports")
+    private String portRange = null;
+
+    /**
+     * If this boolean is true, the fake users multiplex RTP and RTCP on a
+     * single port.
+     */
+    @Option(name="-rtcpmux",usage="Multiplex the RTP and RTCP of each stream"
+        + " on a single UDP port, when the focus offers it (one socket per"
+        + " stream instead of two)")
+    private boolean rtcpMux = false;
+
+    /**
+     * Whether the fake users compute receive side stats from the headers of
+     * the packets they receive.
+     */
+    @Option(name="-receivestats",usage="Compute receive side stats (loss,"
+        + " jitter, bitrate of each remote stream) from the RTP and RTCP"
+        + " headers of the packets received, which are then not decrypted"
+        + " nor decoded (incompatible with -nostats)")
+    private boolean receiveStats = false;
+
     /**
      * If this boolean is true, the logging of overall stats is activated
      */
@@ -170,6 +344,37 @@ public class CmdLineArguments
         + "the start of new users.")
     private int interval = 2000;
 
+    /**
+     * The number of new users started per second. If set, it overrides
+     * <tt>interval</tt>.
+     */
+    @Option(name="-rate", usage="The number of new users started per"
+        + " second (overrides -interval)")
+    private double arrivalRate = 0;
+
+    /**
+     * The maximum number of users being started (connection, login and MUC
+     * join) at the same time.
+     */
+    @Option(name="-concurrentstarts", usage="The maximum number of users"
+        + " connecting and joining the MUC at the same time")
+    private int concurrentStarts = 10;
+
+    /**
+     * The load profile followed by the Hammer (see <tt>LoadProfile</tt>).
+     */
+    @Option(name="-profile", usage="The load profile followed by the users,"
+        + " e.g. \"ramp:500:2m,hold:10m,spike:+300:10s,drain:100:1m\"."
+        + " Overrides -users")
+    private String loadProfile = null;
+
+    /**
+     * The fraction of the users replaced every second by fresh ones.
+     */
+    @Option(name="-churn", usage="The fraction of the users (between 0 and 1)"
+        + " leaving and replaced by new users every second (default: 0)")
+    private double churnRate = 0;
+
     /**
      * Whether statistics should be disabled.
      */
@@ -286,6 +491,18 @@ public class CmdLineArguments
         {
             hostInfo.setFocusJID(focusJID);
         }
+
+        hostInfo.setTransport(getTransport());
+
+        if (XMPPhost != null)
+        {
+            hostInfo.setXMPPhost(XMPPhost);
+        }
+
+        if (XMPPport != -1)
+        {
+            hostInfo.setXMPPport(XMPPport);
+        }
         
         return hostInfo;
         
@@ -320,6 +537,61 @@ public class CmdLineArguments
         return ivffile;
     }
 
+    /**
+     * Get whether the media files are replayed as pre-encoded packets.
+     * @return <tt>true</tt> if the media files are replayed as pre-encoded
+     * packets.
+     */
+    public boolean getReplay()
+    {
+        return replay;
+    }
+
+    /**
+     * Get the transport used to connect to the XMPP server.
+     * @return the transport used to connect to the XMPP server.
+     * @throws IllegalArgumentException if the transport is unknown.
+     */
+    public XMPPTransport getTransport()
+    {
+        return XMPPTransport.parse(transport);
+    }
+
+    /**
+     * Get the maximum number of HTTP connections of the pool shared by all
+     * the BOSH sessions.
+     * @return the size of the shared BOSH pool, or 0 if each session has
+     * its own HTTP client.
+     */
+    public int getBOSHPoolSize()
+    {
+        return boshPoolSize;
+    }
+
+    /**
+     * Get the interval between two pings keeping the XMPP connection of a
+     * user alive.
+     * @return the interval between two pings, in seconds.
+     */
+    public int getPingInterval()
+    {
+        return pingInterval;
+    }
+
+    /**
+     * Get the options of the replay of the media files (start offset,
+     * looping and jitter).
+     * @return the <tt>ReplayOptions</tt> given as options to the program.
+     * @throws IllegalArgumentException if the options are invalid.
+     */
+    public ReplayOptions getReplayOptions()
+    {
+        return new ReplayOptions(
+            ReplayOptions.OffsetMode.parse(mediaOffset),
+            !mediaOnce,
+            mediaJitter);
+    }
+
     /**
      * Get The path of a rtpdump file containing recorded VP8 RTP packets
      * that will be read for the video stream if it was
@@ -387,6 +659,107 @@ public class CmdLineArguments
         return allStats;
     }
 
+    /**
+     * Get the boolean of the binaryStats option : if true, all the stats
+     * are recorded in a binary file.
+     * @return the boolean of the binaryStats option
+     */
+    public boolean getBinaryStats()
+    {
+        return binaryStats;
+    }
+
+    /**
+     * Get the port of the HTTP server serving the live metrics.
+     * @return the port of the metrics server, or 0 if it is disabled.
+     */
+    public int getMetricsPort()
+    {
+        return metricsPort;
+    }
+
+    /**
+     * Get the <tt>PortRangeAllocator</tt> of the port ranges given as
+     * option to the program.
+     * @return the <tt>PortRangeAllocator</tt> of the port ranges, or
+     * <tt>null</tt> if none were given.
+     * @throws IllegalArgumentException if the port ranges are invalid.
+     */
+    public PortRangeAllocator getPortRangeAllocator()
+    {
+        return (portRange == null) ? null : PortRangeAllocator.parse(portRange);
+    }
+
+    /**
+     * Get the files of the simulcast layers of the video, from the lowest to
+     * the highest.
+     * @return the files of the simulcast layers, or <tt>null</tt> if the
+     * video isn't simulcast.
+     * @throws IllegalArgumentException if there aren't 2 or 3 layers.
+     */
+    public String[] getSimulcastLayerFiles()
+    {
+        if(simulcastLayers == null)
+            return null;
+
+        String[] files = simulcastLayers.split(",");
+        if(files.length < 2 || files.length > 3)
+        {
+            throw new IllegalArgumentException(
+                "-simulcastlayers needs 2 or 3 files : " + simulcastLayers);
+        }
+        for(int i = 0; i < files.length; i++)
+            files[i] = files[i].trim();
+        return files;
+    }
+
+    /**
+     * Get the boolean of the rtcpmux option.
+     * @return the boolean of the rtcpmux option.
+     */
+    public boolean getRtcpMux()
+    {
+        return rtcpMux;
+    }
+
+    /**
+     * Get the boolean of the receivestats option.
+     * @return the boolean of the receivestats option.
+     */
+    public boolean getReceiveStats()
+    {
+        return receiveStats;
+    }
+
+    /**
+     * Get the <tt>RtcpOptions</tt> of the RTCP sent by the streams of the
+     * fake users.
+     * @return the <tt>RtcpOptions</tt>, or <tt>null</tt> if the fake users
+     * don't send RTCP.
+     * @throws IllegalArgumentException if the options are invalid.
+     */
+    public RtcpOptions getRtcpOptions()
+    {
+        if(rtcpInterval == 0)
+            return null;
+
+        return new RtcpOptions(rtcpInterval, rembBitrate, nackRate, pliRate);
+    }
+
+    /**
+     * Get the <tt>ImpairmentProfile</tt> of the packets sent by the fake
+     * users.
+     * @return the <tt>ImpairmentProfile</tt>, or <tt>null</tt> if the
+     * packets aren't impaired.
+     * @throws IllegalArgumentException if the profile is invalid.
+     */
+    public ImpairmentProfile getImpairmentProfile()
+    {
+        return (impairment == null)
+            ? null
+            : ImpairmentProfile.parse(impairment);
+    }
+
     /**
      * Get the boolean of the summaryStats option.
      * @return the boolean of the summaryStats option
@@ -416,6 +789,50 @@ public class CmdLineArguments
         return interval;
     }
 
+    /**
+     * Gets the number of new users started per second : the value of the
+     * "-rate" option if it was given, or the rate corresponding to the
+     * "-interval" option otherwise.
+     * @return the number of new users started per second.
+     */
+    public double getArrivalRate()
+    {
+        if(arrivalRate > 0)
+            return arrivalRate;
+        return 1000D / Math.max(interval, 1);
+    }
+
+    /**
+     * Gets the maximum number of users being started at the same time.
+     * @return the maximum number of users being started at the same time.
+     */
+    public int getConcurrentStarts()
+    {
+        return concurrentStarts;
+    }
+
+    /**
+     * Gets the fraction of the users replaced every second by fresh ones.
+     * @return the fraction of the users replaced every second.
+     */
+    public double getChurnRate()
+    {
+        return churnRate;
+    }
+
+    /**
+     * Gets the <tt>LoadProfile</tt> given with the "-profile" option.
+     * @return the <tt>LoadProfile</tt> followed by the Hammer, or
+     * <tt>null</tt> if none was given.
+     * @throws IllegalArgumentException if the profile is invalid.
+     */
+    public LoadProfile getLoadProfile()
+    {
+        if(loadProfile == null)
+            return null;
+        return LoadProfile.parse(loadProfile);
+    }
+
     /**
      * Get the flag which indicates whether statistics should be disabled.
      * @return the flag which indicates whether statistics should be disabled.
@@ -459,4 +876,53 @@ public class CmdLineArguments
 
         return list;
     }
+
+    /**
+     * Check the options which aren't turned into objects by <tt>Main</tt>
+     * (the replay options, the transport and the simulcast layers are read
+     * by the <tt>MediaDeviceChooser</tt> and <tt>HostInfo</tt>), and the
+     * ranges and combinations of the options.
+     * @throws IllegalArgumentException if an option is invalid, with the
+     * message printed before the usage.
+     */
+    public void validate()
+    {
+        getReplayOptions();
+        getTransport();
+        getSimulcastLayerFiles();
+
+        if(pingInterval < 1)
+        {
+            throw new IllegalArgumentException(
+                "-pinginterval must be at least 1 second");
+        }
+        if(boshPoolSize < 0)
+            throw new IllegalArgumentException("-boshpool can't be negative");
+        if(metricsPort < 0 || metricsPort > 65535)
+        {
+            throw new IllegalArgumentException(
+                "-metricsport must be a valid port");
+        }
+        if(simulcastLayers != null && !replay)
+        {
+            throw new IllegalArgumentException(
+                "-simulcastlayers requires -replay");
+        }
+        if((!"none".equals(mediaOffset) || mediaOnce || mediaJitter != 0)
+            && !replay)
+        {
+            throw new IllegalArgumentException(
+                "-mediaoffset, -mediaonce and -mediajitter require -replay");
+        }
+        if(receiveStats && disableStats)
+        {
+            throw new IllegalArgumentException(
+                "-receivestats can't be used with -nostats");
+        }
+        if(churnRate < 0 || churnRate > 1)
+        {
+            throw new IllegalArgumentException(
+                "-churn must be between 0 and 1");
+        }
+    }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.utils;
+
+import java.net.*;
+
+/**
+ * A <tt>FirstMediaPacketWatcher</tt> watches the packets received on the RTP
+ * sockets of a <tt>FakeUser</tt>, and runs a callback when the first RTP
+ * packet is received. The packets themselves are left untouched, and once
+ * the first one is seen, the cost per packet is a volatile read.
+ */
+public class FirstMediaPacketWatcher
+    extends PacketWatcher
+{
+    /**
+     * The callback run when the first RTP packet is received.
+     */
+    private final Runnable callback;
+
+    /**
+     * Whether the first RTP packet has been received.
+     */
+    private volatile boolean firstReceived = false;
+
+    /**
+     * Create a new <tt>FirstMediaPacketWatcher</tt>.
+     * @param callback the callback run when the first RTP packet is
+     * received, from the thread receiving it.
+     */
+    public FirstMediaPacketWatcher(Runnable callback)
+    {
+        this.callback = callback;
+    }
+
+    /**
+     * Check if a packet received is the first RTP packet, and run the
+     * callback if it is.
+     * @param p the packet received.
+     */
+    @Override
+    protected void received(DatagramPacket p)
+    {
+        if(!firstReceived && isRtp(p))
+        {
+            firstReceived = true;
+            callback.run();
+        }
+    }
+}
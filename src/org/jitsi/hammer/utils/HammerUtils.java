@@ -24,6 +24,7 @@ import net.java.sip.communicator.service.protocol.media.*;
 
 import org.ice4j.socket.*;
 import org.jitsi.hammer.extension.*;
+import org.jitsi.hammer.impairment.*;
 import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.service.neomedia.device.*;
@@ -51,6 +52,30 @@ public class HammerUtils
     private static final Logger logger
         = Logger.getLogger(HammerUtils.class);
 
+    /**
+     * The <tt>DatagramFilter</tt> accepting the RTCP packets received on a
+     * socket multiplexing RTP and RTCP (see RFC 5761).
+     */
+    private static final DatagramFilter RTCP_FILTER = new DatagramFilter()
+    {
+        public boolean accept(DatagramPacket p)
+        {
+            return PacketWatcher.isRtcp(p);
+        }
+    };
+
+    /**
+     * The <tt>DatagramFilter</tt> accepting the packets other than RTCP
+     * (RTP and DTLS) received on a socket multiplexing RTP and RTCP.
+     */
+    private static final DatagramFilter NOT_RTCP_FILTER = new DatagramFilter()
+    {
+        public boolean accept(DatagramPacket p)
+        {
+            return !PacketWatcher.isRtcp(p);
+        }
+    };
+
     /**
      * Select the favorite <tt>MediaFormat</tt> of a list of <tt>MediaFormat</tt>
      *
@@ -263,6 +288,70 @@ public class HammerUtils
         }
     }
 
+    /**
+     * Tell if all the RTP contents of a Jingle offer offer to multiplex RTP
+     * and RTCP on a single port (a <tt>rtcp-mux</tt> element in their
+     * description or their transport).
+     *
+     * @param contentList the contents of the offer.
+     * @return <tt>true</tt> if rtcp-mux is offered for all the RTP contents.
+     */
+    public static boolean isRtcpMuxOffered(
+        Collection<ContentPacketExtension> contentList)
+    {
+        boolean offered = false;
+
+        for(ContentPacketExtension content : contentList)
+        {
+            RtpDescriptionPacketExtension description
+                = content.getFirstChildOfType(
+                        RtpDescriptionPacketExtension.class);
+            IceUdpTransportPacketExtension transport
+                = content.getFirstChildOfType(
+                        IceUdpTransportPacketExtension.class);
+
+            if(description == null)
+                continue;
+            if(description.getFirstChildOfType(
+                    RtcpmuxPacketExtension.class) == null
+                && (transport == null
+                    || transport.getFirstChildOfType(
+                            RtcpmuxPacketExtension.class) == null))
+            {
+                return false;
+            }
+            offered = true;
+        }
+        return offered;
+    }
+
+    /**
+     * Accept the multiplexing of RTP and RTCP on a single port, by adding a
+     * <tt>rtcp-mux</tt> element to the description and the transport of the
+     * contents of a session-accept. The transports must have been added
+     * (see addLocalCandidateToContentList()).
+     *
+     * @param contentList the contents of the session-accept.
+     */
+    public static void addRtcpMuxToContentList(
+        Collection<ContentPacketExtension> contentList)
+    {
+        for(ContentPacketExtension content : contentList)
+        {
+            RtpDescriptionPacketExtension description
+                = content.getFirstChildOfType(
+                        RtpDescriptionPacketExtension.class);
+            IceUdpTransportPacketExtension transport
+                = content.getFirstChildOfType(
+                        IceUdpTransportPacketExtension.class);
+
+            if(description != null)
+                description.addChildExtension(new RtcpmuxPacketExtension());
+            if(transport != null)
+                transport.addChildExtension(new RtcpmuxPacketExtension());
+        }
+    }
+
     /**
      * Create a Map of <tt>MediaStream</tt> containing an AUDIO and VIDEO stream,
      * indexed by the String equivalent of their <tt>MediaType</tt> , with
@@ -311,7 +400,8 @@ public class HammerUtils
      *
      * It will also create the streams with a <tt>DtlsControl</tt> that need
      * to be configured later.
-     * The stream will be set to SENDONLY.
+     * The stream will be set to SENDONLY, or to INACTIVE if its packets are
+     * replayed from a <tt>PacketCorpus</tt>.
      *
      * @param mediaFormatMap a <tt>Map</tt> of <tt>MediaFormat</tt> indexed by
      * the name/<tt>MediaType</tt> of the MediaStreams set with this
@@ -360,7 +450,20 @@ public class HammerUtils
              * return null for the Player, the bug is also avoided : maybe
              * libjitsi doesn't handle correctly a null player..
              */
-            stream.setDirection(MediaDirection.SENDONLY);
+            if(mediaDeviceChooser.getPacketCorpus(format.getMediaType())
+                    != null)
+            {
+                /*
+                 * The packets are replayed directly in the transform chain
+                 * of the stream, so libjitsi must neither capture nor encode
+                 * anything.
+                 */
+                stream.setDirection(MediaDirection.INACTIVE);
+            }
+            else
+            {
+                stream.setDirection(MediaDirection.SENDONLY);
+            }
 
             if(format.getRTPPayloadType()
                 ==  MediaFormat.RTP_PAYLOAD_TYPE_UNKNOWN)
@@ -399,16 +502,29 @@ public class HammerUtils
      * <tt>MediaStream</tt> contained in a <tt>Map</tt> and indexed by the
      * name of their associated IceMediaStream.
      *
+     * An IceMediaStream without RTCP <tt>Component</tt> multiplexes RTP and
+     * RTCP on its RTP <tt>Component</tt> : its socket is then split in a RTP
+     * and a RTCP socket by ice4j.
+     *
      * @param agent the <tt>Agent</tt> containing the <tt>IceMediaStream</tt>
      * from which we will get the <tt>DatagramSocket</tt>
      * @param mediaStreamMap the <tt>Map</tt> of <tt>MediaStream</tt> to which
      * will be added the <tt>DatagramSocket</tt> of their corresponding
      * <tt>IceMediaStream</tt> contained in the <tt>Agent</tt>.
+     * @param dropIncomingRtpPackets whether the incoming RTP packets are
+     * dropped before reaching the <tt>MediaStream</tt>s.
+     * @param watchers the <tt>PacketWatcher</tt> watching the incoming
+     * packets (even the dropped RTP ones) of each stream, by name, or
+     * <tt>null</tt>.
+     * @param impairment the <tt>NetworkImpairment</tt> impairing the
+     * packets sent on the sockets of all the streams, or <tt>null</tt>.
      */
     public static void addSocketToMediaStream(
         Agent agent,
         Map<String,MediaStream> mediaStreamMap,
-        boolean dropIncomingRtpPackets)
+        boolean dropIncomingRtpPackets,
+        Map<String,PacketWatcher> watchers,
+        NetworkImpairment impairment)
     {
         IceMediaStream iceMediaStream = null;
         CandidatePair rtpPair = null;
@@ -424,15 +540,53 @@ public class HammerUtils
         {
             iceMediaStream = agent.getStream(mediaName);
             stream = mediaStreamMap.get(mediaName);
+            PacketWatcher watcher
+                = (watchers == null) ? null : watchers.get(mediaName);
+
+            Component rtcpComponent
+                = iceMediaStream.getComponent(Component.RTCP);
+            boolean rtcpMux = (rtcpComponent == null);
 
             rtpPair = iceMediaStream.getComponent(Component.RTP)
                 .getSelectedPair();
-            rtcpPair = iceMediaStream.getComponent(Component.RTCP)
-                .getSelectedPair();
+            rtcpPair = rtcpMux ? rtpPair : rtcpComponent.getSelectedPair();
 
-            str = str + "-" + mediaName + " stream :\n" + rtpPair + "\n";
+            str = str + "-" + mediaName + " stream"
+                + (rtcpMux ? " (rtcp-mux)" : "") + " :\n" + rtpPair + "\n";
 
             rtpSocket = rtpPair.getIceSocketWrapper().getUDPSocket();
+            DatagramSocket rtpPairSocket = rtpSocket;
+
+            if (!rtcpMux)
+            {
+                rtcpSocket = rtcpPair.getIceSocketWrapper().getUDPSocket();
+            }
+            else if (rtpSocket instanceof MultiplexingDatagramSocket)
+            {
+                MultiplexingDatagramSocket muxSocket
+                    = (MultiplexingDatagramSocket) rtpSocket;
+
+                try
+                {
+                    rtcpSocket = muxSocket.getSocket(RTCP_FILTER);
+                    // When they are dropped, the RTP packets are filtered
+                    // out of muxSocket below.
+                    if (!dropIncomingRtpPackets)
+                        rtpSocket = muxSocket.getSocket(NOT_RTCP_FILTER);
+                }
+                catch (SocketException se)
+                {
+                    logger.error("Cannot demultiplex RTP and RTCP on "
+                        + muxSocket, se);
+                    rtcpSocket = muxSocket;
+                }
+            }
+            else
+            {
+                logger.error("Cannot demultiplex RTP and RTCP on "
+                    + rtpSocket + " : it isn't a MultiplexingDatagramSocket");
+                rtcpSocket = rtpSocket;
+            }
 
             if (dropIncomingRtpPackets &&
                     rtpSocket instanceof MultiplexingDatagramSocket)
@@ -444,16 +598,64 @@ public class HammerUtils
                     // waste resources processing them further.
                     // This sets up a filtered socket, which receives only
                     // DTLS packets.
+                    DatagramFilter filter = new DTLSDatagramFilter();
+
+                    if (watcher != null)
+                        filter = watcher.wrapFilter(filter);
                     rtpSocket
                         = ((MultiplexingDatagramSocket) rtpSocket)
-                            .getSocket(new DTLSDatagramFilter());
+                            .getSocket(filter);
                 }
                 catch (SocketException se)
                 {
                     // Whatever, this is just an optimization, anyway.
                 }
             }
-            rtcpSocket = rtcpPair.getIceSocketWrapper().getUDPSocket();
+            else if (watcher != null)
+            {
+                try
+                {
+                    rtpSocket = watcher.wrapSocket(rtpSocket);
+                }
+                catch (SocketException se)
+                {
+                    logger.warn("Cannot watch the RTP packets received on "
+                        + rtpSocket, se);
+                }
+            }
+
+            // The RTCP packets received on a socket which isn't demultiplexed
+            // are already watched with the RTP ones.
+            if (watcher != null && rtcpSocket != rtpPairSocket)
+            {
+                try
+                {
+                    rtcpSocket = watcher.wrapSocket(rtcpSocket);
+                }
+                catch (SocketException se)
+                {
+                    logger.warn("Cannot watch the RTCP packets received on "
+                        + rtcpSocket, se);
+                }
+            }
+
+            if (impairment != null)
+            {
+                try
+                {
+                    boolean sameSocket = (rtcpSocket == rtpSocket);
+
+                    rtpSocket = impairment.wrapSocket(rtpSocket);
+                    rtcpSocket = sameSocket
+                        ? rtpSocket
+                        : impairment.wrapSocket(rtcpSocket);
+                }
+                catch (SocketException se)
+                {
+                    logger.warn("Cannot impair the packets sent on "
+                        + rtpSocket, se);
+                }
+            }
 
             connector = new DefaultStreamConnector(rtpSocket, rtcpSocket);
             stream.setConnector(connector);
@@ -646,6 +848,124 @@ public class HammerUtils
 
 
 
+    /**
+     * Add the sources of the simulcast layers of a stream to its
+     * <tt>RtpDescriptionPacketExtension</tt>, with the same parameters
+     * (cname, msid...) as the source of the lowest layer, already added by
+     * <tt>addSSRCToContent()</tt>, and a SIM source group listing the layers
+     * from the lowest to the highest.
+     *
+     * @param content the <tt>ContentPacketExtension</tt> of the stream.
+     * @param ssrcs the SSRCs of the layers, from the lowest (the SSRC of the
+     * <tt>MediaStream</tt>) to the highest.
+     */
+    public static void addSimulcastToContent(
+        ContentPacketExtension content,
+        long[] ssrcs)
+    {
+        RtpDescriptionPacketExtension description
+            = content.getFirstChildOfType(RtpDescriptionPacketExtension.class);
+        List<ParameterPacketExtension> parameters
+            = new ArrayList<ParameterPacketExtension>();
+
+        for(SourcePacketExtension source
+            : description.getChildExtensionsOfType(
+                SourcePacketExtension.class))
+        {
+            if(source.getSSRC() == ssrcs[0])
+            {
+                parameters = source.getChildExtensionsOfType(
+                    ParameterPacketExtension.class);
+                break;
+            }
+        }
+
+        SourceGroupPacketExtension group = new SourceGroupPacketExtension();
+        List<SourcePacketExtension> groupSources
+            = new ArrayList<SourcePacketExtension>();
+
+        group.setSemantics("SIM");
+        for(int i = 0; i < ssrcs.length; i++)
+        {
+            if(i > 0)
+            {
+                SourcePacketExtension source = new SourcePacketExtension();
+
+                source.setSSRC(ssrcs[i]);
+                for(ParameterPacketExtension parameter : parameters)
+                {
+                    source.addChildExtension(
+                        new ParameterPacketExtension(
+                            parameter.getName(),
+                            parameter.getValue()));
+                }
+                description.addChildExtension(source);
+            }
+
+            SourcePacketExtension groupSource = new SourcePacketExtension();
+            groupSource.setSSRC(ssrcs[i]);
+            groupSources.add(groupSource);
+        }
+        group.addSources(groupSources);
+        description.addChildExtension(group);
+    }
+
+
+
+    /**
+     * Get the SSRCs of the sources announced in a list of
+     * <tt>ContentPacketExtension</tt> (of a session-initiate, source-add or
+     * source-remove), by content name.
+     *
+     * @param contentList the list of <tt>ContentPacketExtension</tt>.
+     * @param secondary <tt>false</tt> to get the primary SSRCs, from which
+     * packets are expected, <tt>true</tt> to get the secondary SSRCs of the
+     * simulcast (SIM) and retransmission (FID) groups, from which packets
+     * may or may not be received.
+     * @return the primary or secondary SSRCs of the sources of each
+     * content.
+     */
+    public static Map<String,Set<Long>> getSources(
+        List<ContentPacketExtension> contentList,
+        boolean secondary)
+    {
+        Map<String,Set<Long>> sources = new HashMap<String,Set<Long>>();
+
+        for(ContentPacketExtension content : contentList)
+        {
+            RtpDescriptionPacketExtension description
+                = content.getFirstChildOfType(
+                    RtpDescriptionPacketExtension.class);
+            if(description == null) continue;
+
+            Set<Long> primaries = new HashSet<Long>();
+            Set<Long> secondaries = new HashSet<Long>();
+            for(SourcePacketExtension source
+                : description.getChildExtensionsOfType(
+                    SourcePacketExtension.class))
+            {
+                primaries.add(source.getSSRC());
+            }
+            for(SourceGroupPacketExtension group
+                : description.getChildExtensionsOfType(
+                    SourceGroupPacketExtension.class))
+            {
+                List<SourcePacketExtension> groupSources
+                    = group.getSources();
+                for(int i = 1; i < groupSources.size(); i++)
+                    secondaries.add(groupSources.get(i).getSSRC());
+            }
+            primaries.removeAll(secondaries);
+
+            Set<Long> ssrcs = secondary ? secondaries : primaries;
+            if(!ssrcs.isEmpty())
+                sources.put(content.getName(), ssrcs);
+        }
+        return sources;
+    }
+
+
+
     /**
      * Adds a <tt>SourcePacketExtension</tt> as a child element of
      * <tt>description</tt>. See XEP-0339.
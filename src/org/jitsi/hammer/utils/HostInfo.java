@@ -64,6 +64,23 @@ public class HostInfo
      */
     private String focusJID;
 
+    /**
+     * The transport used to connect to the XMPP server.
+     */
+    private XMPPTransport transport = XMPPTransport.BOSH;
+
+    /**
+     * The hostname used to access the XMPP server directly (with the
+     * <tt>TCP</tt> transport). Defaults to the BOSH host.
+     */
+    private String XMPPhost;
+
+    /**
+     * The port used to access the XMPP server directly (with the
+     * <tt>TCP</tt> transport).
+     */
+    private int XMPPport = 5222;
+
 
     /**
      * Instantiates a new <tt>HostInfo</tt> instance with default attribut. 
@@ -177,6 +194,36 @@ public class HostInfo
         return this.focusJID;
     }
 
+    /**
+     * Get the transport used to connect to the XMPP server.
+     * @return the transport used to connect to the XMPP server.
+     */
+    public XMPPTransport getTransport()
+    {
+        return this.transport;
+    }
+
+    /**
+     * Get the hostname used to access the XMPP server directly (in lower
+     * case).
+     * @return the hostname used to access the XMPP server directly.
+     */
+    public String getXMPPhostname()
+    {
+        return (this.XMPPhost != null)
+            ? this.XMPPhost.toLowerCase()
+            : getBOSHhostname();
+    }
+
+    /**
+     * Get the port used to access the XMPP server directly.
+     * @return the port used to access the XMPP server directly.
+     */
+    public int getXMPPport()
+    {
+        return this.XMPPport;
+    }
+
     /**
      * Construct the conference URL (JID) for the targeted conference 
      * using the <tt>HostInfo</tt> associated with 
@@ -260,4 +307,34 @@ public class HostInfo
         this.BOSHhost = BOSHhost;
     }
 
+    /**
+     * Set the transport used to connect to the XMPP server
+     *
+     * @param transport the transport used to connect to the XMPP server
+     */
+    public void setTransport(XMPPTransport transport)
+    {
+        this.transport = transport;
+    }
+
+    /**
+     * Set the hostname used to access the XMPP server directly
+     *
+     * @param XMPPhost the hostname used to access the XMPP server directly
+     */
+    public void setXMPPhost(String XMPPhost)
+    {
+        this.XMPPhost = XMPPhost;
+    }
+
+    /**
+     * Set the port used to access the XMPP server directly
+     *
+     * @param XMPPport the port used to access the XMPP server directly
+     */
+    public void setXMPPport(int XMPPport)
+    {
+        this.XMPPport = XMPPport;
+    }
+
 }
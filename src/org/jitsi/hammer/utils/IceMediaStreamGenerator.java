@@ -19,8 +19,12 @@ package org.jitsi.hammer.utils;
 import org.ice4j.ice.*;
 import org.ice4j.*;
 import org.ice4j.ice.harvest.*;
-import java.util.*;
+import org.jitsi.util.Logger;
+
 import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 
 /**
@@ -28,13 +32,22 @@ import java.io.*;
  * @author Thomas Kuntz
  *
  * This class is used to generate <tt>IceMediaStream</tt> without overlapping
- * the port numbers used for each.
+ * the port numbers used for each : the ports of the components are allocated
+ * by a <tt>PortRangeAllocator</tt>, and released when the <tt>Agent</tt> of
+ * the streams is done with them (see releaseIceMediaStreams()).
  *
  * This class proposes a static instance of itself (with default value for min
  * and max port number) to directly use it without having to instantiate one.
  */
 public class IceMediaStreamGenerator
 {
+    /**
+     * The <tt>Logger</tt> used by the <tt>IceMediaStreamGenerator</tt> class
+     * and its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(IceMediaStreamGenerator.class);
+
     /**
      * The static instance of the IceMediaStreamGenerator.
      */
@@ -42,28 +55,45 @@ public class IceMediaStreamGenerator
             new IceMediaStreamGenerator();
 
     /**
-     * The minimum value that will be used as port when generating new
-     * <tt>IceMediaStream</tt>.
+     * The default minimum value that will be used as port when generating
+     * new <tt>IceMediaStream</tt>.
      */
-    private int MIN_COMPONENT_PORT = 6000;
+    public static final int DEFAULT_MIN_COMPONENT_PORT = 6000;
+
     /**
-     * The maximum value that will be used as port when generating new
-     * <tt>IceMediaStream</tt>.
+     * The default maximum value that will be used as port when generating
+     * new <tt>IceMediaStream</tt>.
      */
-    private int MAX_COMPONENT_PORT = 9000;
+    public static final int DEFAULT_MAX_COMPONENT_PORT = 9000;
 
     /**
-     * The current value that will be used as port when generating new
-     * <tt>IceMediaStream</tt>.
+     * The number of blocks of ports tried for a stream before giving up,
+     * when their ports are used by other programs.
      */
-    private int CURRENT_COMPONENT_PORT = MIN_COMPONENT_PORT;
+    private static final int MAX_BIND_ATTEMPTS = 10;
+
+    /**
+     * The <tt>PortRangeAllocator</tt> handing out the ports of the
+     * components.
+     */
+    private PortRangeAllocator allocator;
+
+    /**
+     * The first port of the blocks allocated to the streams of each
+     * <tt>Agent</tt>, until they are released.
+     */
+    private final Map<Agent, List<Integer>> allocatedPorts
+        = new ConcurrentHashMap<Agent, List<Integer>>();
 
 
     /**
      * Initializes a new <tt>IceMediaStream</tt> instance with
      * default value for the minimum and maximum port value.
      */
-    public IceMediaStreamGenerator() {}
+    public IceMediaStreamGenerator()
+    {
+        this(DEFAULT_MIN_COMPONENT_PORT, DEFAULT_MAX_COMPONENT_PORT);
+    }
 
     /**
      * Initializes a new <tt>IceMediaStream</tt> instance with
@@ -75,9 +105,7 @@ public class IceMediaStreamGenerator
      */
     public IceMediaStreamGenerator(int min_port, int max_port)
     {
-        MIN_COMPONENT_PORT = min_port;
-        CURRENT_COMPONENT_PORT = min_port;
-        MAX_COMPONENT_PORT = max_port;
+        allocator = new PortRangeAllocator(min_port, max_port);
     }
 
     /**
@@ -89,6 +117,26 @@ public class IceMediaStreamGenerator
         return generator;
     }
 
+    /**
+     * Set the <tt>PortRangeAllocator</tt> handing out the ports of the
+     * components. It must be set before any stream is generated.
+     * @param allocator the <tt>PortRangeAllocator</tt>.
+     */
+    public void setPortRangeAllocator(PortRangeAllocator allocator)
+    {
+        this.allocator = allocator;
+    }
+
+    /**
+     * Get the <tt>PortRangeAllocator</tt> handing out the ports of the
+     * components.
+     * @return the <tt>PortRangeAllocator</tt>.
+     */
+    public PortRangeAllocator getPortRangeAllocator()
+    {
+        return allocator;
+    }
+
     /**
      * Generate an <tt>Agent</tt> having an <tt>IceMediaStream</tt>
      * for each media name in <tt>mediaNameSet</tt>.
@@ -108,7 +156,7 @@ public class IceMediaStreamGenerator
      * <tt>Component</tt> (RTP and RTCP), for each name in <tt>mediaNameSet</tt>.
      *
      * @throws IOException if anything goes wrong when the <tt>Component<tt>
-     * are created.
+     * are created, or if there are no free ports left.
      */
     public void generateIceMediaStream (
             Agent agent,
@@ -117,9 +165,43 @@ public class IceMediaStreamGenerator
             TransportAddress turnAddresses[])
         throws IOException
     {
-        agent.setControlling(false);
+        generateIceMediaStream(
+            agent,
+            mediaNameSet,
+            stunAddresses,
+            turnAddresses,
+            false);
+    }
 
-        IceMediaStream stream = null;
+    /**
+     * Generate an <tt>Agent</tt> having an <tt>IceMediaStream</tt>
+     * for each media name in <tt>mediaNameSet</tt>, like
+     * generateIceMediaStream(Agent, Set, TransportAddress[],
+     * TransportAddress[]), except that with <tt>rtcpMux</tt> each
+     * <tt>IceMediaStream</tt> has a single <tt>Component</tt> carrying both
+     * RTP and RTCP.
+     * @param agent the agent in which will be created the <tt>IceMediaStream</tt>
+     * @param mediaNameSet A set of media name used to create
+     * <tt>IceMediaStream</tt>.
+     * @param stunAddresses An array of STUN server that could be used be the
+     * <tt>Agent</tt>.
+     * @param turnAddresses An array of TURN server that could be used be the
+     * <tt>Agent</tt>.
+     * @param rtcpMux whether RTP and RTCP are multiplexed on a single
+     * <tt>Component</tt>.
+     *
+     * @throws IOException if anything goes wrong when the <tt>Component<tt>
+     * are created, or if there are no free ports left.
+     */
+    public void generateIceMediaStream (
+            Agent agent,
+            Set<String> mediaNameSet,
+            TransportAddress stunAddresses[],
+            TransportAddress turnAddresses[],
+            boolean rtcpMux)
+        throws IOException
+    {
+        agent.setControlling(false);
 
         if( stunAddresses != null )
         {
@@ -141,7 +223,10 @@ public class IceMediaStreamGenerator
         }
 
 
-        synchronized(this)
+        List<Integer> ports = new ArrayList<Integer>();
+
+        allocatedPorts.put(agent, ports);
+        try
         {
             for(String name : mediaNameSet)
             {
@@ -150,27 +235,91 @@ public class IceMediaStreamGenerator
                 //But better safe than sorry
                 if(name.equalsIgnoreCase("data")) continue;
 
-                stream = agent.createMediaStream(name);
+                ports.add(createComponents(agent, name, rtcpMux));
+            }
+        }
+        catch (IOException e)
+        {
+            releaseIceMediaStreams(agent);
+            throw e;
+        }
+    }
 
-                if( (CURRENT_COMPONENT_PORT + 1) >= MAX_COMPONENT_PORT )
-                    CURRENT_COMPONENT_PORT = MIN_COMPONENT_PORT;
+    /**
+     * Create an <tt>IceMediaStream</tt> with a RTP and a RTCP
+     * <tt>Component</tt> (or only the RTP one with <tt>rtcpMux</tt>) on a
+     * block of ports of the <tt>PortRangeAllocator</tt>. If a port of the
+     * block can't be bound, the block is marked as colliding and another one
+     * is tried.
+     * @param agent the agent in which will be created the
+     * <tt>IceMediaStream</tt>.
+     * @param name the name of the <tt>IceMediaStream</tt>.
+     * @param rtcpMux whether RTP and RTCP are multiplexed on the RTP
+     * <tt>Component</tt>.
+     * @return the first port of the block of the <tt>IceMediaStream</tt>.
+     * @throws IOException if there is no free block of ports, or if the
+     * <tt>Component</tt>s can't be created.
+     */
+    private int createComponents(Agent agent, String name, boolean rtcpMux)
+        throws IOException
+    {
+        PortRangeAllocator allocator = this.allocator;
 
-                agent.createComponent(
-                        stream,
-                        Transport.UDP,
-                        CURRENT_COMPONENT_PORT,
-                        CURRENT_COMPONENT_PORT,
-                        CURRENT_COMPONENT_PORT + 50);
+        for(int attempt = 1; ; attempt++)
+        {
+            int port = allocator.allocate();
+            IceMediaStream stream = agent.createMediaStream(name);
 
+            try
+            {
                 agent.createComponent(
                         stream,
                         Transport.UDP,
-                        CURRENT_COMPONENT_PORT+1,
-                        CURRENT_COMPONENT_PORT+1,
-                        CURRENT_COMPONENT_PORT + 50);
+                        port,
+                        port,
+                        port);
 
-                CURRENT_COMPONENT_PORT+=50;
+                if(!rtcpMux)
+                {
+                    agent.createComponent(
+                            stream,
+                            Transport.UDP,
+                            port + 1,
+                            port + 1,
+                            port + 1);
+                }
+                return port;
             }
+            catch (BindException e)
+            {
+                allocator.markColliding(port);
+                agent.removeStream(stream);
+                if(attempt >= MAX_BIND_ATTEMPTS)
+                    throw e;
+            }
+            catch (IOException e)
+            {
+                allocator.release(port);
+                agent.removeStream(stream);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Release the ports of the <tt>IceMediaStream</tt>s generated for an
+     * <tt>Agent</tt>, once the <tt>Agent</tt> has been freed, so that they
+     * can be used by other streams.
+     * @param agent the <tt>Agent</tt>.
+     */
+    public void releaseIceMediaStreams(Agent agent)
+    {
+        List<Integer> ports = allocatedPorts.remove(agent);
+
+        if(ports != null)
+        {
+            for(int port : ports)
+                allocator.release(port);
         }
     }
 
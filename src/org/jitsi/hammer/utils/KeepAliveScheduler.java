@@ -0,0 +1,383 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.utils;
+
+import org.jitsi.util.Logger;
+import org.jivesoftware.smack.*;
+import org.jivesoftware.smack.filter.*;
+import org.jivesoftware.smack.packet.*;
+import org.jivesoftware.smackx.ping.packet.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The <tt>KeepAliveScheduler</tt> sends the XMPP pings keeping the
+ * connections of all the fake users alive, from a single thread, instead of
+ * one <tt>PingManager</tt> timer per connection.
+ *
+ * The ping interval is divided in slots and each registered connection is
+ * put in the least loaded slot, so that the pings are spread over the
+ * interval even when the users were started all at once. A connection which
+ * received a packet during the last interval isn't pinged. The round-trip
+ * times of the pings are kept as a measure of the signaling latency, and
+ * logged periodically.
+ */
+public class KeepAliveScheduler
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>KeepAliveScheduler</tt> class and
+     * its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(KeepAliveScheduler.class);
+
+    /**
+     * The number of slots the ping interval is divided in.
+     */
+    private static final int SLOT_COUNT = 100;
+
+    /**
+     * The number of ping intervals between two logs of the pings.
+     */
+    private static final int REPORT_INTERVAL = 4;
+
+    /**
+     * The interval (in milliseconds) between two pings of a connection.
+     */
+    private final long pingInterval;
+
+    /**
+     * The registrations of each slot.
+     */
+    private final List<List<Registration>> slots
+        = new ArrayList<List<Registration>>(SLOT_COUNT);
+
+    /**
+     * The thread sending the pings.
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * The index of the next slot processed.
+     */
+    private int currentSlot = 0;
+
+    /**
+     * The number of slots processed since the start.
+     */
+    private long ticks = 0;
+
+    /**
+     * The number of pings sent.
+     */
+    private final AtomicLong pingsSent = new AtomicLong();
+
+    /**
+     * The number of pings skipped because of recent traffic.
+     */
+    private final AtomicLong pingsSkipped = new AtomicLong();
+
+    /**
+     * The number of pings not answered before the next ping was due.
+     */
+    private final AtomicLong pingsTimedOut = new AtomicLong();
+
+    /**
+     * The number of pings answered.
+     */
+    private long pingsAnswered = 0;
+
+    /**
+     * The sum of the round-trip times (in milliseconds) of the answered
+     * pings.
+     */
+    private long totalRtt = 0;
+
+    /**
+     * The highest round-trip time (in milliseconds) of an answered ping.
+     */
+    private long maxRtt = 0;
+
+    /**
+     * Initializes a new <tt>KeepAliveScheduler</tt> and starts its thread.
+     *
+     * @param pingInterval the interval (in milliseconds) between two pings of
+     * a connection.
+     */
+    public KeepAliveScheduler(long pingInterval)
+    {
+        if(pingInterval < SLOT_COUNT)
+        {
+            throw new IllegalArgumentException(
+                "The ping interval is too small : " + pingInterval + "ms");
+        }
+        this.pingInterval = pingInterval;
+        for(int i = 0; i < SLOT_COUNT; i++)
+            slots.add(new ArrayList<Registration>());
+
+        executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "KeepAliveScheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        long slotInterval = pingInterval / SLOT_COUNT;
+        executor.scheduleAtFixedRate(
+            new Runnable()
+            {
+                public void run()
+                {
+                    tick();
+                }
+            },
+            slotInterval,
+            slotInterval,
+            TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Register a connection, which will be pinged by this scheduler until
+     * its registration is cancelled. The connection must be logged in.
+     *
+     * @param connection the connection to keep alive.
+     * @return the <tt>Registration</tt> of <tt>connection</tt>.
+     */
+    public synchronized Registration register(XMPPConnection connection)
+    {
+        int slot = 0;
+        for(int i = 1; i < SLOT_COUNT; i++)
+        {
+            if(slots.get(i).size() < slots.get(slot).size())
+                slot = i;
+        }
+
+        Registration registration = new Registration(connection, slot);
+        slots.get(slot).add(registration);
+        connection.addPacketListener(
+            registration,
+            new PacketTypeFilter(Packet.class));
+        return registration;
+    }
+
+    /**
+     * Stop sending pings, and log the ping statistics.
+     */
+    public void stop()
+    {
+        executor.shutdownNow();
+        logger.info("Keepalive stopped : " + getStatistics());
+    }
+
+    /**
+     * Process the connections of the current slot, and move to the next
+     * slot.
+     */
+    private void tick()
+    {
+        List<Registration> registrations;
+        synchronized (this)
+        {
+            registrations
+                = new ArrayList<Registration>(slots.get(currentSlot));
+            currentSlot = (currentSlot + 1) % SLOT_COUNT;
+            ticks++;
+            if(ticks % (SLOT_COUNT * REPORT_INTERVAL) == 0)
+                logger.info("Keepalive : " + getStatistics());
+        }
+
+        long now = System.currentTimeMillis();
+        for(Registration registration : registrations)
+        {
+            try
+            {
+                registration.keepAlive(now);
+            }
+            catch (Exception e)
+            {
+                logger.warn("Failed to ping the XMPP server", e);
+            }
+        }
+    }
+
+    /**
+     * Record the round-trip time of an answered ping.
+     *
+     * @param rtt the round-trip time of the ping, in milliseconds.
+     */
+    private synchronized void addRtt(long rtt)
+    {
+        pingsAnswered++;
+        totalRtt += rtt;
+        if(rtt > maxRtt)
+            maxRtt = rtt;
+    }
+
+    /**
+     * Get the mean round-trip time of the answered pings.
+     * @return the mean round-trip time of the pings, in milliseconds.
+     */
+    public synchronized long getMeanRtt()
+    {
+        return (pingsAnswered == 0) ? 0 : totalRtt / pingsAnswered;
+    }
+
+    /**
+     * Get the highest round-trip time of an answered ping.
+     * @return the highest round-trip time of a ping, in milliseconds.
+     */
+    public synchronized long getMaxRtt()
+    {
+        return maxRtt;
+    }
+
+    /**
+     * Get a description of the pings sent, for the log.
+     * @return a description of the pings sent.
+     */
+    public synchronized String getStatistics()
+    {
+        return pingsSent.get() + " pings sent, "
+            + pingsSkipped.get() + " skipped (recent traffic), "
+            + pingsAnswered + " answered, "
+            + pingsTimedOut.get() + " timed out, "
+            + "rtt mean " + getMeanRtt() + "ms max " + maxRtt + "ms";
+    }
+
+    /**
+     * Represents a connection registered to a <tt>KeepAliveScheduler</tt>.
+     * It listens to all the packets received on the connection to know when
+     * the last traffic happened and to catch the answers to its pings.
+     */
+    public class Registration
+        implements PacketListener
+    {
+        /**
+         * The connection kept alive.
+         */
+        private final XMPPConnection connection;
+
+        /**
+         * The slot of this registration.
+         */
+        private final int slot;
+
+        /**
+         * The time (from <tt>System.currentTimeMillis()</tt>) at which the
+         * last packet was received on the connection.
+         */
+        private volatile long lastReceived;
+
+        /**
+         * The ID of the ping waiting for an answer, or <tt>null</tt>.
+         */
+        private volatile String pendingPingID;
+
+        /**
+         * The time at which the pending ping was sent.
+         */
+        private volatile long pendingPingTime;
+
+        /**
+         * Initializes a new <tt>Registration</tt>.
+         *
+         * @param connection the connection kept alive.
+         * @param slot the slot of the registration.
+         */
+        private Registration(XMPPConnection connection, int slot)
+        {
+            this.connection = connection;
+            this.slot = slot;
+            this.lastReceived = System.currentTimeMillis();
+        }
+
+        /**
+         * Stop pinging the connection.
+         */
+        public void cancel()
+        {
+            synchronized (KeepAliveScheduler.this)
+            {
+                slots.get(slot).remove(this);
+            }
+            connection.removePacketListener(this);
+        }
+
+        /**
+         * Send a ping on the connection, unless a packet has been received
+         * during the last ping interval.
+         *
+         * @param now the current time, in milliseconds.
+         * @throws SmackException.NotConnectedException if the connection is
+         * closed.
+         */
+        private void keepAlive(long now)
+            throws SmackException.NotConnectedException
+        {
+            if(pendingPingID != null)
+            {
+                pingsTimedOut.incrementAndGet();
+                pendingPingID = null;
+            }
+            if(now - lastReceived < pingInterval)
+            {
+                pingsSkipped.incrementAndGet();
+                return;
+            }
+            if(!connection.isConnected())
+                return;
+
+            Ping ping = new Ping(connection.getServiceName());
+            pendingPingTime = now;
+            pendingPingID = ping.getPacketID();
+            connection.sendPacket(ping);
+            pingsSent.incrementAndGet();
+        }
+
+        /**
+         * Record the round-trip time of the pending ping if <tt>packet</tt>
+         * is its answer, or else the time of the last packet received.
+         *
+         * The answers to the pings aren't counted as traffic, otherwise every
+         * other ping would be skipped.
+         *
+         * @param packet the packet received on the connection.
+         */
+        public void processPacket(Packet packet)
+        {
+            long now = System.currentTimeMillis();
+            String pingID = pendingPingID;
+
+            if(pingID != null
+                && packet instanceof IQ
+                && pingID.equals(packet.getPacketID()))
+            {
+                pendingPingID = null;
+                addRtt(now - pendingPingTime);
+            }
+            else
+            {
+                lastReceived = now;
+            }
+        }
+    }
+}
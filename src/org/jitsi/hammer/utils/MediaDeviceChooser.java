@@ -17,6 +17,7 @@
 package org.jitsi.hammer.utils;
 
 
+import org.jitsi.hammer.media.*;
 import org.jitsi.impl.neomedia.jmfext.media.protocol.greyfading.*;
 import org.jitsi.impl.neomedia.jmfext.media.protocol.ivffile.*;
 import org.jitsi.impl.neomedia.jmfext.media.protocol.rtpdumpfile.*;
@@ -31,6 +32,8 @@ import org.jitsi.videobridge.*;
 import javax.media.*;
 import javax.media.format.*;
 
+import java.io.*;
+
 /**
  * This class is used to get the chosen MediaDevice for a given MediaType.
  *
@@ -58,6 +61,31 @@ public class MediaDeviceChooser
      */
     MediaDevice audioMediaDevice;
 
+    /**
+     * The <tt>PacketCorpus</tt> replayed on the video streams, or
+     * <tt>null</tt> if the video goes through <tt>videoMediaDevice</tt>.
+     */
+    PacketCorpus videoPacketCorpus;
+
+    /**
+     * The <tt>PacketCorpus</tt> replayed on the audio streams, or
+     * <tt>null</tt> if the audio goes through <tt>audioMediaDevice</tt>.
+     */
+    PacketCorpus audioPacketCorpus;
+
+    /**
+     * The <tt>PacketCorpus</tt>es of the simulcast layers replayed on the
+     * video streams, from the lowest to the highest, or <tt>null</tt> if the
+     * video isn't simulcast. The lowest layer is also
+     * <tt>videoPacketCorpus</tt>.
+     */
+    PacketCorpus[] simulcastPacketCorpora;
+
+    /**
+     * The options of the replay of the <tt>PacketCorpus</tt>es.
+     */
+    ReplayOptions replayOptions = ReplayOptions.DEFAULT;
+
     /**
      * Initialize an empty <tt>MediaDeviceChooser<tt>. No video or audio
      * MediaDevice will be chosen (they'll need to be set later).
@@ -152,10 +180,123 @@ public class MediaDeviceChooser
                     + " for the video stream\n";
                 videoMediaDevice = new VideoGreyFadingMediaDevice();
             }
+            if(cmdArg.getReplay())
+            {
+                str = str + loadPacketCorpora(cmdArg);
+                replayOptions = cmdArg.getReplayOptions();
+                str = str + "-replay options : " + replayOptions + "\n";
+            }
             logger.info(str);
         }
     }
 
+    /**
+     * Load the <tt>PacketCorpus</tt>es replayed instead of the
+     * <tt>MediaDevice</tt>s, from the rtpdump or ivf files given as
+     * arguments. They are loaded once and shared by all the fake users.
+     *
+     * @param cmdArg the <tt>CmdLineArguments</tt> containing the media files.
+     * @return a description of the loaded corpora, for the log.
+     */
+    private String loadPacketCorpora(CmdLineArguments cmdArg)
+    {
+        String str = "";
+
+        try
+        {
+            if(cmdArg.getAudioRtpdumpFile() != null)
+            {
+                audioPacketCorpus = PacketCorpus.loadRtpdump(
+                    cmdArg.getAudioRtpdumpFile(),
+                    MediaType.AUDIO);
+                str = str + "-replaying " + audioPacketCorpus
+                    + " for the audio stream\n";
+            }
+            String[] layerFiles = cmdArg.getSimulcastLayerFiles();
+            if(layerFiles != null)
+            {
+                simulcastPacketCorpora = new PacketCorpus[layerFiles.length];
+                for(int i = 0; i < layerFiles.length; i++)
+                {
+                    simulcastPacketCorpora[i]
+                        = layerFiles[i].toLowerCase().endsWith(".ivf")
+                            ? PacketCorpus.loadIvf(layerFiles[i])
+                            : PacketCorpus.loadRtpdump(
+                                layerFiles[i],
+                                MediaType.VIDEO);
+                    str = str + "-replaying " + simulcastPacketCorpora[i]
+                        + " for the simulcast layer " + i
+                        + " of the video stream\n";
+                }
+                videoPacketCorpus = simulcastPacketCorpora[0];
+            }
+            else if(cmdArg.getVideoRtpdumpFile() != null)
+            {
+                videoPacketCorpus = PacketCorpus.loadRtpdump(
+                    cmdArg.getVideoRtpdumpFile(),
+                    MediaType.VIDEO);
+            }
+            else if(cmdArg.getIVFFile() != null)
+            {
+                videoPacketCorpus = PacketCorpus.loadIvf(cmdArg.getIVFFile());
+            }
+            if(videoPacketCorpus != null && simulcastPacketCorpora == null)
+            {
+                str = str + "-replaying " + videoPacketCorpus
+                    + " for the video stream\n";
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to load the media files to replay, they will"
+                + " be streamed through libjitsi", e);
+            audioPacketCorpus = null;
+            videoPacketCorpus = null;
+            simulcastPacketCorpora = null;
+        }
+        return str;
+    }
+
+    /**
+     * Get the options of the replay of the <tt>PacketCorpus</tt>es.
+     * @return the options of the replay of the <tt>PacketCorpus</tt>es.
+     */
+    public ReplayOptions getReplayOptions()
+    {
+        return replayOptions;
+    }
+
+    /**
+     * Get the <tt>PacketCorpus</tt> replayed on the streams of a
+     * <tt>MediaType</tt>.
+     * @param type the <tt>MediaType</tt> of the streams.
+     * @return the <tt>PacketCorpus</tt> replayed on the streams of type
+     * <tt>type</tt>, or <tt>null</tt> if they use a <tt>MediaDevice</tt>.
+     */
+    public synchronized PacketCorpus getPacketCorpus(MediaType type)
+    {
+        switch(type)
+        {
+            case AUDIO:
+                return audioPacketCorpus;
+            case VIDEO:
+                return videoPacketCorpus;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Get the <tt>PacketCorpus</tt>es of the simulcast layers replayed on
+     * the video streams.
+     * @return the <tt>PacketCorpus</tt>es of the simulcast layers, from the
+     * lowest to the highest, or <tt>null</tt> if the video isn't simulcast.
+     */
+    public synchronized PacketCorpus[] getSimulcastPacketCorpora()
+    {
+        return simulcastPacketCorpora;
+    }
+
     /**
      * Get the chosen <tt>MediaDevice</tt> from a <tt>MediaType</tt>
      * @return the chosen <tt>MediaDevice</tt>
@@ -0,0 +1,152 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jitsi.hammer.utils;
+
+import org.ice4j.socket.*;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * A <tt>PacketWatcher</tt> watches the packets received on the sockets of a
+ * stream of a <tt>FakeUser</tt>, without modifying them : the sockets are
+ * wrapped by <tt>wrapSocket()</tt>, or, when the incoming RTP packets are
+ * dropped, the filter of the RTP socket is wrapped by <tt>wrapFilter()</tt>
+ * to see the packets it rejects.
+ *
+ * The packets are watched from the thread receiving them, so the
+ * <tt>received()</tt> method of the implementations must be cheap.
+ */
+public abstract class PacketWatcher
+{
+    /**
+     * Watch a packet received.
+     * @param p the packet received, which must not be modified. It can be a
+     * RTP, RTCP, DTLS or STUN packet.
+     */
+    protected abstract void received(DatagramPacket p);
+
+    /**
+     * Get a <tt>PacketWatcher</tt> watching the packets with two
+     * <tt>PacketWatcher</tt>s.
+     * @param first the first <tt>PacketWatcher</tt>, or <tt>null</tt>.
+     * @param second the second <tt>PacketWatcher</tt>, or <tt>null</tt>.
+     * @return a <tt>PacketWatcher</tt> calling <tt>first</tt> then
+     * <tt>second</tt>, or the one which isn't <tt>null</tt>.
+     */
+    public static PacketWatcher chain(
+        final PacketWatcher first,
+        final PacketWatcher second)
+    {
+        if(first == null)
+            return second;
+        if(second == null)
+            return first;
+
+        return new PacketWatcher()
+        {
+            @Override
+            protected void received(DatagramPacket p)
+            {
+                first.received(p);
+                second.received(p);
+            }
+        };
+    }
+
+    /**
+     * Tell if a packet is a RTP packet : version 2, and a payload type which
+     * isn't the one of a RTCP packet (in case of RTP/RTCP multiplexing).
+     * DTLS and STUN packets have another version.
+     * @param p the packet.
+     * @return <tt>true</tt> if <tt>p</tt> is a RTP packet.
+     */
+    public static boolean isRtp(DatagramPacket p)
+    {
+        if(p.getLength() < 12)
+            return false;
+
+        byte[] buf = p.getData();
+        int off = p.getOffset();
+        int pt = buf[off + 1] & 0x7F;
+
+        return (buf[off] & 0xC0) == 0x80 && (pt < 72 || pt > 76);
+    }
+
+    /**
+     * Tell if a packet is a RTCP packet : version 2, and a packet type in
+     * the range reserved to RTCP by RFC 5761 (192-223).
+     * @param p the packet.
+     * @return <tt>true</tt> if <tt>p</tt> is a RTCP packet.
+     */
+    public static boolean isRtcp(DatagramPacket p)
+    {
+        if(p.getLength() < 8)
+            return false;
+
+        byte[] buf = p.getData();
+        int off = p.getOffset();
+        int pt = buf[off + 1] & 0xFF;
+
+        return (buf[off] & 0xC0) == 0x80 && pt >= 192 && pt <= 223;
+    }
+
+    /**
+     * Wrap a socket, to watch the packets it receives.
+     * @param socket the socket.
+     * @return the socket to use instead of <tt>socket</tt>.
+     * @throws SocketException if the socket can't be wrapped.
+     */
+    public DatagramSocket wrapSocket(DatagramSocket socket)
+        throws SocketException
+    {
+        return new DelegatingDatagramSocket(socket)
+        {
+            @Override
+            public void receive(DatagramPacket p)
+                throws IOException
+            {
+                super.receive(p);
+                received(p);
+            }
+        };
+    }
+
+    /**
+     * Wrap the filter of a filtered RTP socket, to watch the packets it
+     * rejects, when the incoming RTP packets are dropped. The RTCP packets
+     * rejected aren't watched : when RTP and RTCP are multiplexed, they are
+     * received, and watched, on the RTCP socket.
+     * @param filter the filter of the socket.
+     * @return the filter to use instead of <tt>filter</tt>.
+     */
+    public DatagramFilter wrapFilter(final DatagramFilter filter)
+    {
+        return new DatagramFilter()
+        {
+            public boolean accept(DatagramPacket p)
+            {
+                if(filter.accept(p))
+                    return true;
+                if(!isRtcp(p))
+                    received(p);
+                return false;
+            }
+        };
+    }
+}
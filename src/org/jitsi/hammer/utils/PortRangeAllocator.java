@@ -0,0 +1,325 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.utils;
+
+import org.jitsi.util.Logger;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A <tt>PortRangeAllocator</tt> hands out the local ports of the ICE
+ * components of the fake users, from one or several port ranges.
+ *
+ * The ranges are divided in blocks of <tt>BLOCK_SIZE</tt> consecutive ports
+ * (the RTP and RTCP ports of a stream, the RTP one being even). A block is
+ * in use from its allocation until it is released, when the user owning it
+ * is stopped, so that two streams never get the same port. The blocks are
+ * handed out in a round-robin way, so that a block just released (which can
+ * still receive the packets of the previous stream) is reused as late as
+ * possible.
+ *
+ * A block whose port couldn't be bound, because it is used by another
+ * program, is marked as colliding and never handed out again. When all the
+ * blocks are in use, <tt>allocate()</tt> fails with an <tt>IOException</tt>.
+ */
+public class PortRangeAllocator
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>PortRangeAllocator</tt> class and
+     * its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(PortRangeAllocator.class);
+
+    /**
+     * The number of ports of a block : one for RTP and one for RTCP.
+     */
+    public static final int BLOCK_SIZE = 2;
+
+    /**
+     * The first port of the first block of each range.
+     */
+    private final int[] firstPorts;
+
+    /**
+     * The number of blocks of each range.
+     */
+    private final int[] blockCounts;
+
+    /**
+     * The number of blocks of all the ranges.
+     */
+    private final int totalBlocks;
+
+    /**
+     * The ranges, as given to the constructor, for the logs.
+     */
+    private final String description;
+
+    /**
+     * The blocks in use (allocated or colliding), indexed by their position
+     * in all the ranges.
+     */
+    private final BitSet usedBlocks = new BitSet();
+
+    /**
+     * The blocks whose port couldn't be bound, indexed like
+     * <tt>usedBlocks</tt>.
+     */
+    private final BitSet collidingBlocks = new BitSet();
+
+    /**
+     * The index of the block from which the next free block is searched.
+     */
+    private int cursor = 0;
+
+    /**
+     * The number of blocks in use (allocated or colliding).
+     */
+    private int usedCount = 0;
+
+    /**
+     * The number of allocations which failed because all the blocks were in
+     * use.
+     */
+    private long exhaustionCount = 0;
+
+    /**
+     * Create a new <tt>PortRangeAllocator</tt> with a single port range.
+     * @param minPort the lowest port of the range.
+     * @param maxPort the highest port of the range.
+     * @throws IllegalArgumentException if the range is invalid.
+     */
+    public PortRangeAllocator(int minPort, int maxPort)
+    {
+        this(new int[] { minPort }, new int[] { maxPort });
+    }
+
+    /**
+     * Create a new <tt>PortRangeAllocator</tt> with several port ranges.
+     * @param minPorts the lowest port of each range.
+     * @param maxPorts the highest port of each range.
+     * @throws IllegalArgumentException if a range is invalid, or if two
+     * ranges overlap.
+     */
+    public PortRangeAllocator(int[] minPorts, int[] maxPorts)
+    {
+        if(minPorts.length == 0 || minPorts.length != maxPorts.length)
+            throw new IllegalArgumentException("No valid port range given");
+
+        StringBuilder builder = new StringBuilder();
+        int total = 0;
+
+        firstPorts = new int[minPorts.length];
+        blockCounts = new int[minPorts.length];
+        for(int i = 0; i < minPorts.length; i++)
+        {
+            int min = minPorts[i];
+            int max = maxPorts[i];
+
+            firstPorts[i] = min + (min % BLOCK_SIZE);
+            blockCounts[i] = (max - firstPorts[i] + 1) / BLOCK_SIZE;
+            if(min < 1024 || max > 65535 || blockCounts[i] <= 0)
+            {
+                throw new IllegalArgumentException("Invalid port range "
+                    + min + "-" + max + " : it must be between 1024 and 65535"
+                    + " and hold at least " + BLOCK_SIZE + " ports starting"
+                    + " at an even port");
+            }
+            for(int j = 0; j < i; j++)
+            {
+                if(min <= maxPorts[j] && minPorts[j] <= max)
+                {
+                    throw new IllegalArgumentException("The port ranges "
+                        + minPorts[j] + "-" + maxPorts[j] + " and "
+                        + min + "-" + max + " overlap");
+                }
+            }
+
+            total += blockCounts[i];
+            builder.append((i == 0) ? "" : ",").append(min).append('-')
+                .append(max);
+        }
+        totalBlocks = total;
+        description = builder.toString();
+    }
+
+    /**
+     * Create a new <tt>PortRangeAllocator</tt> from port ranges given as a
+     * comma-separated list of <tt>min-max</tt> ranges (e.g.
+     * <tt>10000-19999,40000-44999</tt>).
+     * @param ranges the port ranges.
+     * @return the <tt>PortRangeAllocator</tt> of the ranges.
+     * @throws IllegalArgumentException if the ranges are invalid.
+     */
+    public static PortRangeAllocator parse(String ranges)
+    {
+        String[] parts = ranges.split(",");
+        int[] minPorts = new int[parts.length];
+        int[] maxPorts = new int[parts.length];
+
+        for(int i = 0; i < parts.length; i++)
+        {
+            String[] bounds = parts[i].trim().split("-");
+
+            try
+            {
+                if(bounds.length != 2)
+                    throw new NumberFormatException();
+                minPorts[i] = Integer.parseInt(bounds[0].trim());
+                maxPorts[i] = Integer.parseInt(bounds[1].trim());
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Invalid port range \""
+                    + parts[i] + "\" : expected min-max");
+            }
+        }
+        return new PortRangeAllocator(minPorts, maxPorts);
+    }
+
+    /**
+     * Allocate a free block of ports.
+     * @return the first port of the block, which is even.
+     * @throws IOException if all the blocks are in use.
+     */
+    public synchronized int allocate()
+        throws IOException
+    {
+        if(usedCount >= totalBlocks)
+        {
+            exhaustionCount++;
+            logger.error("No free port left in the " + getUtilization());
+            throw new IOException("All the ports of the port ranges "
+                + description + " are in use");
+        }
+
+        int index = usedBlocks.nextClearBit(cursor);
+        if(index >= totalBlocks)
+            index = usedBlocks.nextClearBit(0);
+
+        usedBlocks.set(index);
+        usedCount++;
+        cursor = index + 1;
+        return getPort(index);
+    }
+
+    /**
+     * Release a block of ports, so that it can be allocated again.
+     * @param port the first port of the block.
+     */
+    public synchronized void release(int port)
+    {
+        int index = getBlockIndex(port);
+
+        if(index == -1 || !usedBlocks.get(index)
+            || collidingBlocks.get(index))
+        {
+            return;
+        }
+        usedBlocks.clear(index);
+        usedCount--;
+    }
+
+    /**
+     * Mark an allocated block of ports as colliding with another program,
+     * because one of its ports couldn't be bound. The block isn't released
+     * and will never be allocated again.
+     * @param port the first port of the block.
+     */
+    public synchronized void markColliding(int port)
+    {
+        int index = getBlockIndex(port);
+
+        if(index == -1 || collidingBlocks.get(index))
+            return;
+        if(!usedBlocks.get(index))
+        {
+            usedBlocks.set(index);
+            usedCount++;
+        }
+        collidingBlocks.set(index);
+        logger.warn("The ports " + port + "-" + (port + BLOCK_SIZE - 1)
+            + " are used by another program, they won't be allocated"
+            + " anymore");
+    }
+
+    /**
+     * Get the first port of a block.
+     * @param index the index of the block in all the ranges.
+     * @return the first port of the block.
+     */
+    private int getPort(int index)
+    {
+        int range = 0;
+
+        while(index >= blockCounts[range])
+        {
+            index -= blockCounts[range];
+            range++;
+        }
+        return firstPorts[range] + index * BLOCK_SIZE;
+    }
+
+    /**
+     * Get the index of the block starting at a port.
+     * @param port the first port of the block.
+     * @return the index of the block in all the ranges, or -1 if no block
+     * starts at <tt>port</tt>.
+     */
+    private int getBlockIndex(int port)
+    {
+        int offset = 0;
+
+        for(int range = 0; range < firstPorts.length; range++)
+        {
+            int delta = port - firstPorts[range];
+
+            if(delta >= 0 && delta % BLOCK_SIZE == 0
+                && delta / BLOCK_SIZE < blockCounts[range])
+            {
+                return offset + delta / BLOCK_SIZE;
+            }
+            offset += blockCounts[range];
+        }
+        return -1;
+    }
+
+    /**
+     * Get the number of streams that can be given ports at the same time.
+     * @return the number of blocks of all the ranges.
+     */
+    public int getCapacity()
+    {
+        return totalBlocks;
+    }
+
+    /**
+     * Get a description of the use of the port ranges, for the logs.
+     * @return the number of blocks in use, colliding, and the number of
+     * allocations which failed.
+     */
+    public synchronized String getUtilization()
+    {
+        return "port ranges " + description + " : "
+            + (usedCount - collidingBlocks.cardinality()) + "/" + totalBlocks
+            + " blocks of " + BLOCK_SIZE + " ports in use, "
+            + collidingBlocks.cardinality() + " colliding, "
+            + exhaustionCount + " allocations failed";
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.utils;
+
+import java.util.concurrent.*;
+
+/**
+ * A simple token bucket used to pace events (for example the arrival of new
+ * fake users) at a given rate.
+ *
+ * Tokens are added to the bucket continuously at <tt>rate</tt> tokens per
+ * second, up to <tt>capacity</tt> tokens. Each call to {@link #acquire()}
+ * takes one token, waiting until one is available if the bucket is empty.
+ * A rate lower or equal to zero means that the bucket is never empty.
+ */
+public class TokenBucket
+{
+    /**
+     * The maximum number of tokens this <tt>TokenBucket</tt> can hold, which
+     * is also the largest burst of events it allows.
+     */
+    private final double capacity;
+
+    /**
+     * The number of tokens added to the bucket each second. If lower or equal
+     * to zero, the bucket is never empty.
+     */
+    private double rate;
+
+    /**
+     * The number of tokens currently in the bucket.
+     */
+    private double tokens;
+
+    /**
+     * The time (from <tt>System.nanoTime()</tt>) of the last refill of the
+     * bucket.
+     */
+    private long lastRefillTime;
+
+    /**
+     * Initializes a new <tt>TokenBucket</tt> with a capacity of one token,
+     * which means events will be spaced exactly by <tt>1/rate</tt> seconds.
+     *
+     * @param rate the number of tokens added to the bucket each second.
+     */
+    public TokenBucket(double rate)
+    {
+        this(rate, 1);
+    }
+
+    /**
+     * Initializes a new <tt>TokenBucket</tt>. The bucket starts full.
+     *
+     * @param rate the number of tokens added to the bucket each second.
+     * @param capacity the maximum number of tokens the bucket can hold.
+     */
+    public TokenBucket(double rate, double capacity)
+    {
+        if(capacity < 1)
+            capacity = 1;
+
+        this.rate = rate;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefillTime = System.nanoTime();
+    }
+
+    /**
+     * Take one token from the bucket, waiting for it if the bucket is empty.
+     *
+     * @throws InterruptedException if the current thread is interrupted while
+     * waiting for a token.
+     */
+    public synchronized void acquire()
+        throws InterruptedException
+    {
+        while(true)
+        {
+            refill();
+            if(rate <= 0 || tokens >= 1)
+            {
+                tokens -= 1;
+                return;
+            }
+
+            long waitNanos = (long) (((1 - tokens) / rate) * 1000000000L);
+            TimeUnit.NANOSECONDS.timedWait(this, Math.max(waitNanos, 1));
+        }
+    }
+
+    /**
+     * Take one token from the bucket if one is available.
+     *
+     * @return <tt>true</tt> if a token was taken, <tt>false</tt> if the bucket
+     * was empty.
+     */
+    public synchronized boolean tryAcquire()
+    {
+        refill();
+        if(rate <= 0 || tokens >= 1)
+        {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Change the number of tokens added to the bucket each second.
+     *
+     * @param rate the new rate, in tokens per second. If lower or equal to
+     * zero, the bucket will never be empty.
+     */
+    public synchronized void setRate(double rate)
+    {
+        refill();
+        this.rate = rate;
+        notifyAll();
+    }
+
+    /**
+     * Get the number of tokens added to the bucket each second.
+     * @return the number of tokens added to the bucket each second.
+     */
+    public synchronized double getRate()
+    {
+        return rate;
+    }
+
+    /**
+     * Add to the bucket the tokens earned since the last refill.
+     */
+    private void refill()
+    {
+        long now = System.nanoTime();
+
+        if(rate > 0)
+        {
+            tokens = Math.min(
+                capacity,
+                tokens + ((now - lastRefillTime) / 1000000000D) * rate);
+        }
+        else
+        {
+            tokens = capacity;
+        }
+        lastRefillTime = now;
+    }
+}
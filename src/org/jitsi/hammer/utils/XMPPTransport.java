@@ -0,0 +1,104 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.utils;
+
+import org.jivesoftware.smack.*;
+import org.jivesoftware.smack.bosh.*;
+import org.jivesoftware.smack.tcp.*;
+
+/**
+ * The transports the fake users can use to connect to the XMPP server. Each
+ * transport creates the <tt>XMPPConnection</tt> of a fake user from the
+ * <tt>HostInfo</tt>, and the rest of the <tt>FakeUser</tt> (MUC join, Jingle)
+ * only works with the resulting <tt>XMPPConnection</tt>.
+ */
+public enum XMPPTransport
+{
+    /**
+     * XMPP over BOSH (HTTP long-polling), to the BOSH host, port and path of
+     * the <tt>HostInfo</tt>.
+     */
+    BOSH
+    {
+        @Override
+        public XMPPConnection createConnection(
+            HostInfo hostInfo,
+            boolean debug)
+        {
+            BOSHConfiguration config = new BOSHConfiguration(
+                hostInfo.getUseHTTPS(),
+                hostInfo.getBOSHhostname(),
+                hostInfo.getPort(),
+                hostInfo.getBOSHpath(),
+                hostInfo.getXMPPDomain());
+            config.setDebuggerEnabled(debug);
+
+            return new XMPPBOSHConnection(config);
+        }
+    },
+
+    /**
+     * A direct client-to-server TCP connection, to the XMPP host and port of
+     * the <tt>HostInfo</tt>. It uses STARTTLS if the server offers it.
+     */
+    TCP
+    {
+        @Override
+        public XMPPConnection createConnection(
+            HostInfo hostInfo,
+            boolean debug)
+        {
+            ConnectionConfiguration config = new ConnectionConfiguration(
+                hostInfo.getXMPPhostname(),
+                hostInfo.getXMPPport(),
+                hostInfo.getXMPPDomain());
+            config.setDebuggerEnabled(debug);
+
+            return new XMPPTCPConnection(config);
+        }
+    };
+
+    /**
+     * Create a new (not connected) <tt>XMPPConnection</tt> using this
+     * transport.
+     *
+     * @param hostInfo the <tt>HostInfo</tt> of the XMPP server.
+     * @param debug whether the debug screen of smack is activated.
+     * @return a new <tt>XMPPConnection</tt> using this transport.
+     */
+    public abstract XMPPConnection createConnection(
+        HostInfo hostInfo,
+        boolean debug);
+
+    /**
+     * Get the <tt>XMPPTransport</tt> named <tt>name</tt>, ignoring the case.
+     *
+     * @param name the name of the transport.
+     * @return the <tt>XMPPTransport</tt> named <tt>name</tt>.
+     * @throws IllegalArgumentException if there is no such transport.
+     */
+    public static XMPPTransport parse(String name)
+    {
+        for(XMPPTransport transport : values())
+        {
+            if(transport.name().equalsIgnoreCase(name))
+                return transport;
+        }
+        throw new IllegalArgumentException(
+            "Unknown XMPP transport : " + name);
+    }
+}
@@ -25,7 +25,7 @@ import javax.media.protocol.*;
 
 import org.jitsi.impl.neomedia.codec.*;
 import org.jitsi.impl.neomedia.jmfext.media.protocol.*;
-import org.jitsi.impl.neomedia.jmfext.media.renderer.audio.*;
+import org.jitsi.util.*;
 
 /**
  * Implements a <tt>CaptureDevice</tt> which provides silence in the form of
@@ -55,6 +55,20 @@ public class AudioSilenceCaptureDevice
      */
     private static final long CLOCK_TICK_INTERVAL = 20;
 
+    /**
+     * The clock shared by all the <tt>AudioSilenceStream</tt>s, which ticks
+     * every {@link #CLOCK_TICK_INTERVAL} milliseconds for each of them.
+     */
+    private static final AudioSilenceClock CLOCK
+        = new AudioSilenceClock(CLOCK_TICK_INTERVAL);
+
+    /**
+     * The <tt>Logger</tt> used by the <tt>AudioSilenceCaptureDevice</tt>
+     * class and its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(AudioSilenceCaptureDevice.class);
+
     /**
      * The list of <tt>Format</tt>s supported by the
      * <tt>AudioSilenceCaptureDevice</tt> instances.
@@ -107,19 +121,14 @@ public class AudioSilenceCaptureDevice
      */
     private static class AudioSilenceStream
         extends AbstractPushBufferStream<AudioSilenceCaptureDevice>
-        implements Runnable
     {
         /**
-         * The indicator which determines whether {@link #start()} has been
-         * invoked on this instance without an intervening {@link #stop()}.
+         * The registration of this instance to {@link #CLOCK} which pushes
+         * available media data out of this instance to its consumer i.e.
+         * <tt>BufferTransferHandler</tt>, or <tt>null</tt> if this instance
+         * is not started.
          */
-        private boolean started;
-
-        /**
-         * The <tt>Thread</tt> which pushes available media data out of this
-         * instance to its consumer i.e. <tt>BufferTransferHandler</tt>.
-         */
-        private Thread thread;
+        private AudioSilenceClock.Registration registration;
 
         /**
          * Initializes a new <tt>AudioSilenceStream</tt> which is to be exposed
@@ -180,118 +189,16 @@ public class AudioSilenceCaptureDevice
         }
 
         /**
-         * Runs in {@link #thread} and pushes available media data out of this
-         * instance to its consumer i.e. <tt>BufferTransferHandler</tt>.
+         * Runs in a thread of {@link #CLOCK} at each tick and pushes available
+         * media data out of this instance to its consumer i.e.
+         * <tt>BufferTransferHandler</tt>.
          */
-        public void run()
+        private void tick()
         {
-            try
-            {
-                /*
-                 * Make sure that the current thread which implements the actual
-                 * ticking of the clock implemented by this instance uses a
-                 * thread priority considered appropriate for audio processing.
-                 */
-                AbstractAudioRenderer.useAudioThreadPriority();
+            BufferTransferHandler transferHandler = this.transferHandler;
 
-                /*
-                 * The method implements a clock which ticks at a certain and
-                 * regular interval of time which is not affected by the
-                 * duration of the execution of, for example, the invocation of
-                 * BufferTransferHandler.transferData(PushBufferStream).
-                 *
-                 * XXX The implementation utilizes System.currentTimeMillis()
-                 * and, consequently, may be broken by run-time adjustments to
-                 * the system time. 
-                 */
-                long tickTime = System.currentTimeMillis();
-
-                while (true)
-                {
-                    long sleepInterval = tickTime - System.currentTimeMillis();
-                    boolean tick = (sleepInterval <= 0);
-
-                    if (tick)
-                    {
-                        /*
-                         * The current thread has woken up just in time or too
-                         * late for the next scheduled clock tick and,
-                         * consequently, the clock should tick right now.
-                         */
-                        tickTime += CLOCK_TICK_INTERVAL;
-                    }
-                    else
-                    {
-                        /*
-                         * The current thread has woken up too early for the
-                         * next scheduled clock tick and, consequently, it
-                         * should sleep until the time of the next scheduled
-                         * clock tick comes.
-                         */
-                        try
-                        {
-                            Thread.sleep(sleepInterval);
-                        }
-                        catch (InterruptedException ie)
-                        {
-                        }
-                        /*
-                         * The clock will not tick and spurious wakeups will be
-                         * handled. However, the current thread will first check
-                         * whether it is still utilized by this
-                         * AudioSilenceStream in order to not delay stop
-                         * requests.
-                         */
-                    }
-
-                    synchronized (this)
-                    {
-                        /*
-                         * If the current Thread is no longer utilized by this
-                         * AudioSilenceStream, it no longer has the right to
-                         * touch it. If this AudioSilenceStream has been
-                         * stopped, the current Thread should stop as well. 
-                         */
-                        if ((thread != Thread.currentThread()) || !started)
-                            break;
-                    }
-
-                    if (tick)
-                    {
-                        BufferTransferHandler transferHandler
-                            = this.transferHandler;
-
-                        if (transferHandler != null)
-                        {
-                            try
-                            {
-                                transferHandler.transferData(this);
-                            }
-                            catch (Throwable t)
-                            {
-                                if (t instanceof ThreadDeath)
-                                    throw (ThreadDeath) t;
-                                else
-                                {
-                                    // TODO Auto-generated method stub
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-            finally
-            {
-                synchronized (this)
-                {
-                    if (thread == Thread.currentThread())
-                    {
-                        thread = null;
-                        started = false;
-                        notifyAll();
-                    }
-                }
-            }
+            if (transferHandler != null)
+                transferHandler.transferData(this);
         }
 
         /**
@@ -304,62 +211,56 @@ public class AudioSilenceCaptureDevice
         public synchronized void start()
             throws IOException
         {
-            if (thread == null)
+            if (registration == null)
             {
-                String className = getClass().getName();
-
-                thread = new Thread(this, className);
-                thread.setDaemon(true);
-
-                boolean started = false;
-
-                try
-                {
-                    thread.start();
-                    started = true;
-                }
-                finally
-                {
-                    this.started = started;
-                    if (!started)
-                    {
-                        thread = null;
-                        notifyAll();
-
-                        throw new IOException("Failed to start " + className);
-                    }
-                }
+                registration
+                    = CLOCK.register(
+                            new Runnable()
+                            {
+                                public void run()
+                                {
+                                    tick();
+                                }
+                            });
             }
         }
 
         /**
-         * Stops the transfer of media data from this instance.
+         * Stops the transfer of media data from this instance. When this
+         * method returns, the clock no longer pushes media data out of this
+         * instance.
          *
          * @throws IOException if an error has prevented the stopping of the
          * transfer of media from this instance
          */
         @Override
-        public synchronized void stop()
+        public void stop()
             throws IOException
         {
-            this.started = false;
-            notifyAll();
+            AudioSilenceClock.Registration registration;
 
-            boolean interrupted = false;
+            synchronized (this)
+            {
+                registration = this.registration;
+                this.registration = null;
+            }
 
-            while (thread != null)
+            // cancel() waits for the current tick of the clock, which may be
+            // transferring the data of this stream : the monitor of this
+            // stream mustn't be held meanwhile.
+            if (registration != null)
             {
-                try
-                {
-                    wait();
-                }
-                catch (InterruptedException ie)
-                {
-                    interrupted = true;
-                }
+                registration.cancel();
+
+                logger.info(
+                        String.format(
+                                "Stopped %s after %d ticks : mean lateness"
+                                    + " %.3fms, max lateness %.3fms",
+                                getClass().getSimpleName(),
+                                registration.getTickCount(),
+                                registration.getMeanLateness(),
+                                registration.getMaxLateness()));
             }
-            if (interrupted)
-                Thread.currentThread().interrupt();
         }
     }
 }
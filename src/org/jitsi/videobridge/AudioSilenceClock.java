@@ -0,0 +1,491 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.videobridge;
+
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+import org.jitsi.impl.neomedia.jmfext.media.renderer.audio.*;
+
+/**
+ * Implements a clock shared by all the <tt>AudioSilenceStream</tt>s, instead
+ * of one ticking thread per stream.
+ *
+ * The clock runs a small number of threads (wheels). Each wheel divides the
+ * tick interval in {@link #SLOT_COUNT} slots and the tasks registered to the
+ * clock are spread over the slots of the least loaded wheel, so that the
+ * ticks of all the streams are spread over the tick interval instead of
+ * happening at the same time.
+ *
+ * The lateness of each tick (the time between its scheduled time and the
+ * moment the task is actually run) is kept for each registered task.
+ */
+class AudioSilenceClock
+{
+    /**
+     * The name of the system property which specifies the number of threads
+     * of the <tt>AudioSilenceClock</tt>s. Defaults to the number of
+     * processors.
+     */
+    public static final String THREADS_PNAME
+        = AudioSilenceClock.class.getName() + ".THREADS";
+
+    /**
+     * The number of slots each tick interval is divided in.
+     */
+    private static final int SLOT_COUNT = 20;
+
+    /**
+     * The wheels (i.e. threads) of this clock.
+     */
+    private final Wheel[] wheels;
+
+    /**
+     * The interval of time in nanoseconds between two consecutive ticks of
+     * a task.
+     */
+    private final long tickIntervalNanos;
+
+    /**
+     * Initializes a new <tt>AudioSilenceClock</tt>.
+     *
+     * @param tickInterval the interval of time in milliseconds between two
+     * consecutive ticks of each registered task.
+     */
+    AudioSilenceClock(long tickInterval)
+    {
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        String threads = System.getProperty(THREADS_PNAME);
+
+        if (threads != null)
+        {
+            try
+            {
+                threadCount = Integer.parseInt(threads);
+            }
+            catch (NumberFormatException nfe)
+            {
+            }
+        }
+        if (threadCount < 1)
+            threadCount = 1;
+
+        this.tickIntervalNanos = tickInterval * 1000000L;
+        this.wheels = new Wheel[threadCount];
+        for (int i = 0; i < wheels.length; i++)
+            wheels[i] = new Wheel(i);
+    }
+
+    /**
+     * Registers a task that will be run by this clock at each tick, until it
+     * is cancelled.
+     *
+     * @param task the task to run at each tick
+     * @return the <tt>Registration</tt> of <tt>task</tt>, used to cancel it
+     * and to get its timing accuracy
+     */
+    Registration register(Runnable task)
+    {
+        Wheel wheel = wheels[0];
+
+        for (int i = 1; i < wheels.length; i++)
+        {
+            if (wheels[i].size() < wheel.size())
+                wheel = wheels[i];
+        }
+        return wheel.register(task);
+    }
+
+    /**
+     * Represents a task registered to an <tt>AudioSilenceClock</tt>, and
+     * keeps track of the lateness of its ticks.
+     */
+    class Registration
+    {
+        /**
+         * The task run at each tick.
+         */
+        private final Runnable task;
+
+        /**
+         * The <tt>Wheel</tt> running the task.
+         */
+        private final Wheel wheel;
+
+        /**
+         * The slot of {@link #wheel} in which the task is run.
+         */
+        private final int slot;
+
+        /**
+         * Whether this registration has been cancelled.
+         */
+        private boolean cancelled = false;
+
+        /**
+         * The number of ticks run.
+         */
+        private long tickCount = 0;
+
+        /**
+         * The sum of the lateness of all the ticks, in nanoseconds.
+         */
+        private long totalLateness = 0;
+
+        /**
+         * The highest lateness of a tick, in nanoseconds.
+         */
+        private long maxLateness = 0;
+
+        /**
+         * Initializes a new <tt>Registration</tt>.
+         *
+         * @param task the task run at each tick
+         * @param wheel the <tt>Wheel</tt> running the task
+         * @param slot the slot of <tt>wheel</tt> in which the task is run
+         */
+        private Registration(Runnable task, Wheel wheel, int slot)
+        {
+            this.task = task;
+            this.wheel = wheel;
+            this.slot = slot;
+        }
+
+        /**
+         * Cancels this registration. When this method returns, the task is
+         * not running and will not be run anymore (unless it is called by the
+         * task itself).
+         */
+        void cancel()
+        {
+            wheel.unregister(this);
+        }
+
+        /**
+         * Gets the number of ticks run for this registration.
+         *
+         * @return the number of ticks run for this registration
+         */
+        synchronized long getTickCount()
+        {
+            return tickCount;
+        }
+
+        /**
+         * Gets the mean lateness of the ticks of this registration.
+         *
+         * @return the mean lateness of the ticks, in milliseconds
+         */
+        synchronized double getMeanLateness()
+        {
+            return (tickCount == 0)
+                ? 0
+                : totalLateness / (tickCount * 1000000D);
+        }
+
+        /**
+         * Gets the highest lateness of a tick of this registration.
+         *
+         * @return the highest lateness of a tick, in milliseconds
+         */
+        synchronized double getMaxLateness()
+        {
+            return maxLateness / 1000000D;
+        }
+
+        /**
+         * Records the lateness of a tick.
+         *
+         * @param lateness the lateness of the tick, in nanoseconds
+         */
+        private synchronized void addTick(long lateness)
+        {
+            if (lateness < 0)
+                lateness = 0;
+            tickCount++;
+            totalLateness += lateness;
+            if (lateness > maxLateness)
+                maxLateness = lateness;
+        }
+    }
+
+    /**
+     * Implements one thread of the clock, running the tasks registered in its
+     * slots one slot after the other.
+     */
+    private class Wheel
+        implements Runnable
+    {
+        /**
+         * The index of this wheel, used to name its thread.
+         */
+        private final int index;
+
+        /**
+         * The registrations of each slot. The arrays are replaced (and never
+         * modified) when a task is registered or cancelled, so that the
+         * thread can iterate them without holding the lock.
+         */
+        private final Registration[][] slots
+            = new Registration[SLOT_COUNT][];
+
+        /**
+         * The number of registrations of this wheel.
+         */
+        private int size = 0;
+
+        /**
+         * The registration whose task is currently running.
+         */
+        private Registration ticking;
+
+        /**
+         * The <tt>Thread</tt> of this wheel, or <tt>null</tt> if it is not
+         * running.
+         */
+        private Thread thread;
+
+        /**
+         * Initializes a new <tt>Wheel</tt>.
+         *
+         * @param index the index of the wheel in its clock
+         */
+        private Wheel(int index)
+        {
+            this.index = index;
+            for (int i = 0; i < SLOT_COUNT; i++)
+                slots[i] = new Registration[0];
+        }
+
+        /**
+         * Gets the number of registrations of this wheel.
+         *
+         * @return the number of registrations of this wheel
+         */
+        private synchronized int size()
+        {
+            return size;
+        }
+
+        /**
+         * Registers a task in the least loaded slot of this wheel, and starts
+         * the thread of this wheel if needed.
+         *
+         * @param task the task to run at each tick
+         * @return the <tt>Registration</tt> of <tt>task</tt>
+         */
+        private synchronized Registration register(Runnable task)
+        {
+            int slot = 0;
+
+            for (int i = 1; i < SLOT_COUNT; i++)
+            {
+                if (slots[i].length < slots[slot].length)
+                    slot = i;
+            }
+
+            Registration registration = new Registration(task, this, slot);
+            Registration[] oldRegs = slots[slot];
+            Registration[] newRegs
+                = Arrays.copyOf(oldRegs, oldRegs.length + 1);
+
+            newRegs[oldRegs.length] = registration;
+            slots[slot] = newRegs;
+            size++;
+
+            if (thread == null)
+            {
+                thread
+                    = new Thread(
+                            this,
+                            AudioSilenceClock.class.getName() + "-" + index);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            else
+            {
+                notifyAll();
+            }
+            return registration;
+        }
+
+        /**
+         * Removes a registration from this wheel, and waits for its task to
+         * return if it is running.
+         *
+         * @param registration the registration to remove
+         */
+        private synchronized void unregister(Registration registration)
+        {
+            if (!registration.cancelled)
+            {
+                registration.cancelled = true;
+
+                Registration[] oldRegs = slots[registration.slot];
+                List<Registration> newRegs
+                    = new ArrayList<Registration>(Arrays.asList(oldRegs));
+
+                newRegs.remove(registration);
+                slots[registration.slot]
+                    = newRegs.toArray(new Registration[newRegs.size()]);
+                size--;
+            }
+
+            boolean interrupted = false;
+
+            while ((ticking == registration)
+                    && (thread != Thread.currentThread()))
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException ie)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        /**
+         * Runs in {@link #thread} and runs the tasks of each slot at their
+         * scheduled time.
+         */
+        public void run()
+        {
+            /*
+             * Make sure that the current thread which implements the actual
+             * ticking of the clock uses a thread priority considered
+             * appropriate for audio processing.
+             */
+            AbstractAudioRenderer.useAudioThreadPriority();
+
+            long slotIntervalNanos = tickIntervalNanos / SLOT_COUNT;
+            long cycleStart = System.nanoTime();
+
+            try
+            {
+                while (true)
+                {
+                    synchronized (this)
+                    {
+                        if (size == 0)
+                        {
+                            // Sleep until a new task is registered.
+                            try
+                            {
+                                wait();
+                            }
+                            catch (InterruptedException ie)
+                            {
+                            }
+                            cycleStart = System.nanoTime();
+                            continue;
+                        }
+                    }
+
+                    for (int slot = 0; slot < SLOT_COUNT; slot++)
+                    {
+                        long slotTime = cycleStart + slot * slotIntervalNanos;
+
+                        waitUntil(slotTime);
+                        runSlot(slot, slotTime);
+                    }
+                    cycleStart += tickIntervalNanos;
+
+                    /*
+                     * If the wheel is late by more than a whole tick interval
+                     * (e.g. the host is overloaded), do not try to catch up
+                     * with a burst of ticks.
+                     */
+                    long now = System.nanoTime();
+
+                    if (now - cycleStart > tickIntervalNanos)
+                        cycleStart = now;
+                }
+            }
+            finally
+            {
+                synchronized (this)
+                {
+                    thread = null;
+                    ticking = null;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Runs the tasks registered in a slot.
+         *
+         * @param slot the slot whose tasks are to be run
+         * @param slotTime the scheduled time of the slot, from
+         * <tt>System.nanoTime()</tt>
+         */
+        private void runSlot(int slot, long slotTime)
+        {
+            Registration[] regs;
+
+            synchronized (this)
+            {
+                regs = slots[slot];
+            }
+            for (Registration reg : regs)
+            {
+                synchronized (this)
+                {
+                    if (reg.cancelled)
+                        continue;
+                    ticking = reg;
+                }
+
+                reg.addTick(System.nanoTime() - slotTime);
+                try
+                {
+                    reg.task.run();
+                }
+                catch (Throwable t)
+                {
+                    if (t instanceof ThreadDeath)
+                        throw (ThreadDeath) t;
+                }
+                finally
+                {
+                    synchronized (this)
+                    {
+                        ticking = null;
+                        notifyAll();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Sleeps until a specific time.
+         *
+         * @param time the time to wait for, from <tt>System.nanoTime()</tt>
+         */
+        private void waitUntil(long time)
+        {
+            long sleepInterval;
+
+            while ((sleepInterval = time - System.nanoTime()) > 0)
+                LockSupport.parkNanos(sleepInterval);
+        }
+    }
+}